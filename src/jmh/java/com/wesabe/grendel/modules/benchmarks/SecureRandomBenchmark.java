@@ -0,0 +1,65 @@
+package com.wesabe.grendel.modules.benchmarks;
+
+import com.wesabe.grendel.modules.StripedSecureRandom;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures contention for random bytes, comparing a single shared
+ * {@code SHA1PRNG} with a {@link StripedSecureRandom} at 1 to 64 threads.
+ * Each operation generates 32 bytes, the size of an AES-256 session key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SecureRandomBenchmark {
+    @Param({"shared", "striped"})
+    private String generator;
+
+    private SecureRandom random;
+
+    @Setup
+    public void setup() throws Exception {
+        if ("shared".equals(generator)) {
+            this.random = SecureRandom.getInstance("SHA1PRNG", "SUN");
+            random.nextInt(); // force seeding
+        } else {
+            this.random = new StripedSecureRandom(2 * Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    private byte[] next() {
+        final byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] threads1() {
+        return next();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] threads4() {
+        return next();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public byte[] threads16() {
+        return next();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public byte[] threads64() {
+        return next();
+    }
+}
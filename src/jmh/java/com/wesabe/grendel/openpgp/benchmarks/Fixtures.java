@@ -0,0 +1,85 @@
+package com.wesabe.grendel.openpgp.benchmarks;
+
+import com.google.common.io.Files;
+import com.wesabe.grendel.modules.StripedSecureRandom;
+import com.wesabe.grendel.openpgp.CryptographicException;
+import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.KeySetGenerator;
+import com.wesabe.grendel.openpgp.KeySuite;
+import com.wesabe.grendel.openpgp.UnlockedKeySet;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.Security;
+
+/**
+ * Key sets and random number generators shared by the benchmarks. Paths are
+ * relative to the project directory.
+ */
+final class Fixtures {
+    static final char[] PASSPHRASE = "test".toCharArray();
+
+    static {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    private Fixtures() {
+    }
+
+    /**
+     * Returns the encoded key set of the owner, whose passphrase is
+     * {@link #PASSPHRASE}.
+     */
+    static byte[] ownerKeySet() throws IOException {
+        return Files.toByteArray(new File("src/test/resources/secret-keyring.gpg"));
+    }
+
+    /**
+     * Returns the key set of a recipient.
+     */
+    static KeySet recipientKeySet() throws IOException, CryptographicException {
+        return KeySet.load(Files.toByteArray(new File("src/test/resources/another-secret-keyring.gpg")));
+    }
+
+    /**
+     * Returns the owner's unlocked key set for {@code suite}. Only RSA key
+     * sets are checked in, so the others are generated.
+     */
+    static UnlockedKeySet owner(KeySuite suite) throws IOException, GeneralSecurityException, CryptographicException {
+        if (suite == KeySuite.RSA_2048) {
+            return KeySet.load(ownerKeySet()).unlock(PASSPHRASE);
+        }
+        return generate(suite, "Owner <owner@example.com>");
+    }
+
+    /**
+     * Returns a recipient's key set for {@code suite}.
+     */
+    static KeySet recipient(KeySuite suite) throws IOException, GeneralSecurityException, CryptographicException {
+        if (suite == KeySuite.RSA_2048) {
+            return recipientKeySet();
+        }
+        return generate(suite, "Recipient <recipient@example.com>");
+    }
+
+    private static UnlockedKeySet generate(KeySuite suite, String userId) throws GeneralSecurityException,
+            CryptographicException {
+        final KeySetGenerator generator = new KeySetGenerator(random(), suite);
+        try {
+            return generator.generate(userId, PASSPHRASE).unlock(PASSPHRASE);
+        } finally {
+            generator.shutdown();
+        }
+    }
+
+    /**
+     * Returns a {@link SecureRandom} configured the same way as
+     * {@link com.wesabe.grendel.modules.SecureRandomProvider}'s.
+     */
+    static SecureRandom random() throws GeneralSecurityException {
+        return new StripedSecureRandom(2 * Runtime.getRuntime().availableProcessors());
+    }
+}
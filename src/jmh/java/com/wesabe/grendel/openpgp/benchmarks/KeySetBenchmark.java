@@ -0,0 +1,90 @@
+package com.wesabe.grendel.openpgp.benchmarks;
+
+import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.UnlockedKeySet;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures loading, unlocking, and relocking a {@link KeySet}. {@code unlock}
+ * only unlocks the subkey, as a read-only request does. The owner's key set
+ * is unversioned, with a separate S2K specifier for each key, so it's
+ * migrated to the current format first when {@code version} is
+ * {@link KeySet#FORMAT_VERSION}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class KeySetBenchmark {
+    @Param({"0", "1"})
+    public int version;
+
+    private byte[] encoded;
+    private KeySet keySet;
+    private UnlockedKeySet unlockedKeySet;
+    private SecureRandom random;
+
+    @Setup
+    public void setup() throws Exception {
+        this.random = Fixtures.random();
+        final KeySet owner = KeySet.load(Fixtures.ownerKeySet());
+        if (version == KeySet.FORMAT_VERSION) {
+            this.encoded = owner.unlock(Fixtures.PASSPHRASE)
+                    .relock(Fixtures.PASSPHRASE, Fixtures.PASSPHRASE, random)
+                    .getEncoded();
+        } else {
+            this.encoded = owner.getEncoded();
+        }
+        this.keySet = KeySet.load(encoded);
+        this.unlockedKeySet = keySet.unlock(Fixtures.PASSPHRASE);
+    }
+
+    @Benchmark
+    public KeySet load() throws Exception {
+        return KeySet.load(encoded);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public KeySet loadContended() throws Exception {
+        return KeySet.load(encoded);
+    }
+
+    @Benchmark
+    public UnlockedKeySet unlock() throws Exception {
+        return keySet.unlock(Fixtures.PASSPHRASE);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public UnlockedKeySet unlockContended() throws Exception {
+        return keySet.unlock(Fixtures.PASSPHRASE);
+    }
+
+    /**
+     * Unlocks the key set and its master key, as a request which signs
+     * something does.
+     */
+    @Benchmark
+    public UnlockedKeySet unlockForWriting() throws Exception {
+        final UnlockedKeySet unlocked = keySet.unlock(Fixtures.PASSPHRASE);
+        unlocked.getUnlockedMasterKey();
+        return unlocked;
+    }
+
+    @Benchmark
+    public KeySet relock() throws Exception {
+        return unlockedKeySet.relock(Fixtures.PASSPHRASE, Fixtures.PASSPHRASE, random);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public KeySet relockContended() throws Exception {
+        return unlockedKeySet.relock(Fixtures.PASSPHRASE, Fixtures.PASSPHRASE, random);
+    }
+}
@@ -0,0 +1,48 @@
+package com.wesabe.grendel.openpgp.benchmarks;
+
+import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.KeySetGenerator;
+import com.wesabe.grendel.openpgp.KeySuite;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link KeySetGenerator#generate(String, char[])} for each
+ * {@link KeySuite} without a key pair pool. Prime generation takes a variable
+ * amount of time, so this needs more iterations than the other benchmarks to
+ * give a stable average.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 20)
+@Fork(1)
+public class KeySetGeneratorBenchmark {
+    @Param({"rsa-2048", "p-256", "p-384"})
+    public String suite;
+
+    private KeySetGenerator generator;
+
+    @Setup
+    public void setup() throws Exception {
+        this.generator = new KeySetGenerator(Fixtures.random(), KeySuite.fromName(suite));
+    }
+
+    @TearDown
+    public void teardown() {
+        generator.shutdown();
+    }
+
+    @Benchmark
+    public KeySet generate() throws Exception {
+        return generator.generate("Benchmark <benchmark@example.com>", Fixtures.PASSPHRASE);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public KeySet generateContended() throws Exception {
+        return generator.generate("Benchmark <benchmark@example.com>", Fixtures.PASSPHRASE);
+    }
+}
@@ -0,0 +1,62 @@
+package com.wesabe.grendel.openpgp.benchmarks;
+
+import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.KeySuite;
+import com.wesabe.grendel.openpgp.MessageReader;
+import com.wesabe.grendel.openpgp.MessageWriter;
+import com.wesabe.grendel.openpgp.UnlockedKeySet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link MessageReader#read(byte[])} across body sizes, recipient
+ * counts, and {@link KeySuite}s. The message is read by its owner, after all
+ * the recipients' session keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MessageReaderBenchmark {
+    @Param({"1024", "65536", "1048576", "67108864"})
+    public int size;
+
+    @Param({"1", "10", "100"})
+    public int recipients;
+
+    @Param({"rsa-2048", "p-256"})
+    public String suite;
+
+    private MessageReader reader;
+    private byte[] encrypted;
+
+    @Setup
+    public void setup() throws Exception {
+        final UnlockedKeySet owner = Fixtures.owner(KeySuite.fromName(suite));
+        this.reader = new MessageReader(owner, owner);
+
+        final byte[] body = new byte[size];
+        new Random(size).nextBytes(body);
+        this.encrypted = new MessageWriter(
+                owner,
+                Collections.nCopies(recipients, Fixtures.recipient(KeySuite.fromName(suite))),
+                Fixtures.random()
+        ).write(body);
+    }
+
+    @Benchmark
+    public byte[] read() throws Exception {
+        return reader.read(encrypted);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] readContended() throws Exception {
+        return reader.read(encrypted);
+    }
+}
@@ -0,0 +1,61 @@
+package com.wesabe.grendel.openpgp.benchmarks;
+
+import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.KeySuite;
+import com.wesabe.grendel.openpgp.MessageWriter;
+import com.wesabe.grendel.openpgp.UnlockedKeySet;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link MessageWriter#write(byte[])} across body sizes, recipient
+ * counts, and {@link KeySuite}s. Each recipient is the same key set, which
+ * costs the same as distinct key sets of the same type.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MessageWriterBenchmark {
+    @Param({"1024", "65536", "1048576", "67108864"})
+    public int size;
+
+    @Param({"1", "10", "100"})
+    public int recipients;
+
+    @Param({"rsa-2048", "p-256"})
+    public String suite;
+
+    private MessageWriter writer;
+    private byte[] body;
+
+    @Setup
+    public void setup() throws Exception {
+        final UnlockedKeySet owner = Fixtures.owner(KeySuite.fromName(suite));
+        final List<KeySet> keySets = Collections.nCopies(recipients, Fixtures.recipient(KeySuite.fromName(suite)));
+        final SecureRandom random = Fixtures.random();
+        this.writer = new MessageWriter(owner, keySets, random);
+
+        // pseudorandom bodies don't compress, which is the worst case
+        this.body = new byte[size];
+        new Random(size).nextBytes(body);
+    }
+
+    @Benchmark
+    public byte[] write() throws Exception {
+        return writer.write(body);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] writeContended() throws Exception {
+        return writer.write(body);
+    }
+}
@@ -5,11 +5,16 @@ import org.glassfish.jersey.servlet.ServletContainer;
 import org.glassfish.jersey.servlet.ServletProperties;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import com.wesabe.grendel.modules.InstrumentedTransactionManager;
+import com.wesabe.grendel.modules.MetricRegistryProvider;
+import com.wesabe.grendel.modules.UnitOfWorkFilter;
+import org.springframework.boot.context.embedded.FilterRegistrationBean;
 import org.springframework.boot.context.embedded.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.Ordered;
 import org.springframework.orm.jpa.JpaTransactionManager;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 
@@ -49,10 +54,21 @@ public class Application  {
 
     @Bean
     public JpaTransactionManager transactionManager(){
-        JpaTransactionManager transactionManager = new JpaTransactionManager();
+        JpaTransactionManager transactionManager = new InstrumentedTransactionManager();
         transactionManager.setEntityManagerFactory(entityManagerFactory);;
         return transactionManager;
     }
+
+    /**
+     * Runs each request in a single transaction, ahead of authentication.
+     */
+    @Bean
+    public FilterRegistrationBean unitOfWorkFilter(JpaTransactionManager transactionManager) {
+        FilterRegistrationBean registration = new FilterRegistrationBean(
+                new UnitOfWorkFilter(transactionManager, MetricRegistryProvider.getRegistry()));
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+        return registration;
+    }
 }
 
 
@@ -4,8 +4,12 @@ import com.google.common.collect.Lists;
 import com.wesabe.grendel.entities.User;
 import com.wesabe.grendel.entities.dao.UserRepository;
 import com.wesabe.grendel.openpgp.CryptographicException;
+import com.wesabe.grendel.openpgp.KeySet;
 import com.wesabe.grendel.openpgp.UnlockedKeySet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.orm.jpa.JpaTransactionManager;
 import org.springframework.security.authentication.AuthenticationCredentialsNotFoundException;
 import org.springframework.security.authentication.AuthenticationProvider;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
@@ -15,29 +19,50 @@ import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.inject.Provider;
+import java.security.SecureRandom;
 import java.util.List;
 
 /**
  * 4/11/14 Created by Jonathan Garay
+ * <p>
+ * Key sets which aren't in the {@link KeySet#FORMAT_VERSION current format}
+ * are migrated to it the next time their users log in, by relocking them with
+ * the passphrase they were unlocked with.
  */
 @Component
 public class GrendelAuthenticationProvider implements AuthenticationProvider {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GrendelAuthenticationProvider.class);
 
     @Autowired
     private UserRepository userRepository;
 
+    @Autowired
+    private UnlockedKeySetCache keySetCache;
+
+    @Autowired
+    private Provider<SecureRandom> randomProvider;
+
+    @Autowired
+    private JpaTransactionManager transactionManager;
+
     @Override
     public Authentication authenticate(Authentication authentication) throws AuthenticationException {
         authentication.setAuthenticated(false);
 
-        final User user = userRepository.findById((String) authentication.getPrincipal());
+        User user = userRepository.findById((String) authentication.getPrincipal());
 
 
         if (user != null) {
             try {
-                final UnlockedKeySet keySet = user.getKeySet()
-                        .unlock(((String) authentication.getCredentials()).toCharArray());
+                final char[] passphrase = ((String) authentication.getCredentials()).toCharArray();
+                final UnlockedKeySet keySet = keySetCache.unlock(user, passphrase);
+                if (user.getKeySet().getFormatVersion() < KeySet.FORMAT_VERSION) {
+                    user = migrate(user, keySet, passphrase);
+                }
 
                 return new UsernamePasswordAuthenticationToken(new Session(user, keySet),
                         ((String) authentication.getCredentials()).toCharArray(),
@@ -52,6 +77,39 @@ public class GrendelAuthenticationProvider implements AuthenticationProvider {
         }
     }
 
+    /*
+     * Migrates the key set in its own transaction, against a freshly loaded
+     * user, so a failure (e.g. another request migrating it first) neither
+     * rolls back the request's transaction nor leaves the request's user
+     * half-changed.
+     */
+    private User migrate(User user, UnlockedKeySet keySet, char[] passphrase) throws CryptographicException {
+        final KeySet migrated = keySet.relock(passphrase, passphrase, randomProvider.get());
+        final TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        try {
+            final boolean changed = template.execute(status -> {
+                final User fresh = userRepository.findById(user.getId());
+                if ((fresh == null) || (fresh.getKeySet().getFormatVersion() >= KeySet.FORMAT_VERSION)) {
+                    return false;
+                }
+
+                fresh.setKeySet(migrated);
+                userRepository.saveOrUpdate(fresh);
+                return true;
+            });
+
+            if (changed) {
+                LOGGER.info("Migrated key set for {} to version {}", user.getId(), KeySet.FORMAT_VERSION);
+            }
+            return userRepository.refresh(user);
+        } catch (RuntimeException e) {
+            // try again next time
+            LOGGER.warn("Unable to migrate key set for " + user.getId(), e);
+            return user;
+        }
+    }
+
     @Override
     public boolean supports(Class<?> authentication) {
         return authentication
@@ -6,7 +6,9 @@ import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
 /**
- * A {@link User} and their {@link UnlockedKeySet}.
+ * A {@link User} and their {@link UnlockedKeySet}. Only the key set's subkey
+ * is unlocked by authentication; its master key is unlocked if the request
+ * signs something, so read-only requests do half the key derivation.
  *
  * @author coda
  */
@@ -0,0 +1,170 @@
+package com.wesabe.grendel.auth;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.wesabe.grendel.entities.User;
+import com.wesabe.grendel.openpgp.CryptographicException;
+import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.UnlockedKeySet;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.util.Arrays.fill;
+
+/**
+ * A bounded, expiring cache of {@link UnlockedKeySet}s, which saves an
+ * authenticated request from having to unlock the user's {@link KeySet} again.
+ * <p>
+ * Entries are keyed by user ID and hold an HMAC of the credentials which
+ * unlocked the key set, keyed with a random per-process salt, along with the
+ * user's {@link User#getVersion() version}. A cached key set is only returned
+ * if the supplied credentials produce the same HMAC and the user hasn't been
+ * modified since the key set was unlocked.
+ *
+ * @see GrendelAuthenticationProvider
+ */
+@Component
+public class UnlockedKeySetCache {
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int SALT_SIZE = 32;
+
+    private final Cache<String, Entry> cache;
+    private final byte[] salt;
+    private final Meter hits, misses;
+    private final Counter evictions;
+
+    @Autowired
+    public UnlockedKeySetCache(MetricRegistry metrics,
+                               @Value("${grendel.keyset-cache.max-size:10000}") long maxSize,
+                               @Value("${grendel.keyset-cache.ttl-seconds:300}") long ttl) {
+        this.salt = new byte[SALT_SIZE];
+        new SecureRandom().nextBytes(salt);
+
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterAccess(ttl, TimeUnit.SECONDS)
+                .removalListener(new RemovalListener<String, Entry>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, Entry> notification) {
+                        if (notification.wasEvicted()) {
+                            evictions.inc();
+                        }
+                        notification.getValue().wipe();
+                    }
+                })
+                .build();
+
+        this.hits = metrics.meter(name(UnlockedKeySetCache.class, "hits"));
+        this.misses = metrics.meter(name(UnlockedKeySetCache.class, "misses"));
+        this.evictions = metrics.counter(name(UnlockedKeySetCache.class, "evictions"));
+        metrics.register(name(UnlockedKeySetCache.class, "size"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return cache.size();
+            }
+        });
+    }
+
+    /**
+     * Returns {@code user}'s {@link UnlockedKeySet}, unlocking it with
+     * {@code passphrase} if a matching key set isn't already cached.
+     *
+     * @param user       a {@link User}
+     * @param passphrase the user's passphrase
+     * @return the user's {@link UnlockedKeySet}
+     * @throws CryptographicException if {@code passphrase} is incorrect
+     */
+    public UnlockedKeySet unlock(User user, char[] passphrase) throws CryptographicException {
+        final byte[] verifier = verifier(user.getId(), passphrase);
+
+        final Entry entry = cache.getIfPresent(user.getId());
+        if ((entry != null) && entry.matches(verifier, user.getVersion())) {
+            fill(verifier, (byte) 0);
+            hits.mark();
+            return entry.keySet;
+        }
+
+        misses.mark();
+        final UnlockedKeySet keySet;
+        try {
+            keySet = user.getKeySet().unlock(passphrase);
+        } catch (CryptographicException e) {
+            fill(verifier, (byte) 0);
+            throw e;
+        }
+
+        cache.put(user.getId(), new Entry(verifier, user.getVersion(), keySet));
+        return keySet;
+    }
+
+    /**
+     * Discards any cached key set for the user with the given ID.
+     *
+     * @param userId a user ID
+     */
+    public void invalidate(String userId) {
+        cache.invalidate(userId);
+    }
+
+    private byte[] verifier(String userId, char[] passphrase) throws CryptographicException {
+        final ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(passphrase));
+        try {
+            final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(salt, HMAC_ALGORITHM));
+            mac.update(userId.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            mac.update(encoded.duplicate());
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new CryptographicException(e);
+        } finally {
+            if (encoded.hasArray()) {
+                fill(encoded.array(), (byte) 0);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final byte[] verifier;
+        private final long version;
+        private final UnlockedKeySet keySet;
+
+        private Entry(byte[] verifier, long version, UnlockedKeySet keySet) {
+            this.verifier = verifier;
+            this.version = version;
+            this.keySet = keySet;
+        }
+
+        private boolean matches(byte[] otherVerifier, long otherVersion) {
+            return MessageDigest.isEqual(verifier, otherVerifier) && (version == otherVersion);
+        }
+
+        /*
+         * BouncyCastle keeps private keys as immutable BigIntegers, so the best
+         * we can do here is drop our reference to the unlocked key set. It
+         * doesn't keep the passphrase, and its derived key can't be wiped,
+         * since a request may still be using it to unlock the master key.
+         */
+        private void wipe() {
+            fill(verifier, (byte) 0);
+        }
+    }
+}
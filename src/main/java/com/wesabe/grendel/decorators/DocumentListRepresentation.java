@@ -2,23 +2,23 @@ package com.wesabe.grendel.decorators;
 
 import com.fasterxml.jackson.annotation.JsonGetter;
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.wesabe.grendel.auth.Session;
-import com.wesabe.grendel.entities.Document;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.wesabe.grendel.entities.DocumentSummary;
 import com.wesabe.grendel.resources.DocumentResource;
-import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
-import org.springframework.security.core.context.SecurityContextHolder;
+import org.joda.time.format.DateTimeFormatter;
 
 import javax.ws.rs.core.UriInfo;
 import java.util.List;
 import java.util.stream.Collectors;
 
 import static com.google.common.collect.Lists.newArrayListWithCapacity;
+import static org.joda.time.format.ISODateTimeFormat.basicDateTimeNoMillis;
 
 public class DocumentListRepresentation {
     private UriInfo uriInfo;
-    private List<Document> documents;
+    private List<DocumentSummary> documents;
 
-    public DocumentListRepresentation(UriInfo uriInfo, List<Document> documents) {
+    public DocumentListRepresentation(UriInfo uriInfo, List<DocumentSummary> documents) {
         this.uriInfo = uriInfo;
         this.documents = documents;
     }
@@ -36,7 +36,7 @@ public class DocumentListRepresentation {
     }
 
     @JsonIgnore
-    public List<Document> getDocuments() {
+    public List<DocumentSummary> getDocuments() {
         return documents;
     }
 
@@ -45,11 +45,13 @@ public class DocumentListRepresentation {
         return uriInfo;
     }
 
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     public static class DocumentListItem {
+        private static final DateTimeFormatter ISO_DATETIME = basicDateTimeNoMillis();
         private final UriInfo uriInfo;
-        private final Document document;
+        private final DocumentSummary document;
 
-        public DocumentListItem(UriInfo uriInfo, Document document) {
+        public DocumentListItem(UriInfo uriInfo, DocumentSummary document) {
             this.uriInfo = uriInfo;
             this.document = document;
         }
@@ -59,17 +61,26 @@ public class DocumentListRepresentation {
             return document.getName();
         }
 
-        @JsonGetter("uri")
-        public String getURI() {
-            UsernamePasswordAuthenticationToken authenticationToken = (UsernamePasswordAuthenticationToken) SecurityContextHolder
-                    .getContext()
-                    .getAuthentication();
+        @JsonGetter("content-type")
+        public String getContentType() {
+            return document.getContentType().toString();
+        }
+
+        @JsonGetter("size")
+        public Long getSize() {
+            return document.getPlaintextSize();
+        }
 
-            Session session = (Session) authenticationToken.getPrincipal();
+        @JsonGetter("modified-at")
+        public String getModifiedAt() {
+            return ISO_DATETIME.print(document.getModifiedAt());
+        }
 
+        @JsonGetter("uri")
+        public String getURI() {
             return uriInfo.getBaseUriBuilder()
                     .path(DocumentResource.class)
-                    .build(session.getUser(), document)
+                    .build(document.getOwnerId(), document.getName())
                     .toASCIIString();
         }
     }
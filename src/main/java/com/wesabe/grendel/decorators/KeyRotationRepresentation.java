@@ -0,0 +1,88 @@
+package com.wesabe.grendel.decorators;
+
+import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.wesabe.grendel.entities.KeyRotation;
+import org.joda.time.format.DateTimeFormatter;
+
+import static org.joda.time.format.ISODateTimeFormat.basicDateTimeNoMillis;
+
+/**
+ * A representation of a response containing the progress of rotating a
+ * user's keys.
+ * <p>
+ * Example JSON:
+ * <pre>
+ * {
+ *   "state":"running",
+ *   "phase":"rewrapping",
+ *   "processed":1200,
+ *   "total":4000,
+ *   "started-at":"20091228T234341Z",
+ *   "modified-at":"20091228T235012Z",
+ *   "error":null
+ * }
+ * </pre>
+ * <p>
+ * {@code state} is {@code running}, {@code completed}, {@code failed} if the
+ * rotation stopped with an error, or {@code stopped} if it was interrupted.
+ * A failed or stopped rotation carries on when it's started again.
+ */
+public class KeyRotationRepresentation {
+    private static final DateTimeFormatter ISO_DATETIME = basicDateTimeNoMillis();
+    private final KeyRotation rotation;
+    private final boolean running;
+
+    public KeyRotationRepresentation(KeyRotation rotation, boolean running) {
+        this.rotation = rotation;
+        this.running = running;
+    }
+
+    @JsonGetter("state")
+    public String getState() {
+        if (running) {
+            return "running";
+        }
+
+        if (rotation.isCompleted()) {
+            return "completed";
+        }
+
+        return (rotation.getError() == null) ? "stopped" : "failed";
+    }
+
+    @JsonGetter("phase")
+    public String getPhase() {
+        return rotation.getPhase().toString().toLowerCase();
+    }
+
+    @JsonGetter("processed")
+    public long getProcessed() {
+        return rotation.getProcessed();
+    }
+
+    @JsonGetter("total")
+    public long getTotal() {
+        return rotation.getTotal();
+    }
+
+    @JsonGetter("started-at")
+    public String getStartedAt() {
+        return ISO_DATETIME.print(rotation.getStartedAt());
+    }
+
+    @JsonGetter("modified-at")
+    public String getModifiedAt() {
+        return ISO_DATETIME.print(rotation.getModifiedAt());
+    }
+
+    @JsonGetter("error")
+    public String getError() {
+        return rotation.getError();
+    }
+
+    @JsonIgnore
+    public KeyRotation getRotation() {
+        return rotation;
+    }
+}
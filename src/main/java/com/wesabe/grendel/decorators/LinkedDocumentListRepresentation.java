@@ -2,27 +2,29 @@ package com.wesabe.grendel.decorators;
 
 import com.fasterxml.jackson.annotation.JsonGetter;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.wesabe.grendel.decorators.UserListRepresentation.UserListItem;
-import com.wesabe.grendel.entities.Document;
+import com.wesabe.grendel.entities.DocumentSummary;
 import com.wesabe.grendel.entities.User;
 import com.wesabe.grendel.resources.LinkedDocumentResource;
+import org.joda.time.format.DateTimeFormatter;
 
 import javax.ws.rs.core.UriInfo;
 import java.util.List;
-import java.util.Set;
 import java.util.stream.Collectors;
 
 import static com.google.common.collect.Lists.newArrayList;
+import static org.joda.time.format.ISODateTimeFormat.basicDateTimeNoMillis;
 
 public class LinkedDocumentListRepresentation {
     private final UriInfo uriInfo;
     private final User user;
-    private final Set<Document> documentSet;
+    private final List<DocumentSummary> documents;
 
-    public LinkedDocumentListRepresentation(UriInfo uriInfo, User user, Set<Document> documentSet) {
+    public LinkedDocumentListRepresentation(UriInfo uriInfo, User user, List<DocumentSummary> documents) {
         this.uriInfo = uriInfo;
         this.user = user;
-        this.documentSet = documentSet;
+        this.documents = documents;
     }
 
 
@@ -30,7 +32,7 @@ public class LinkedDocumentListRepresentation {
     public List<DocumentListItem> listDocuments() {
         final List<DocumentListItem> items = newArrayList();
 
-        items.addAll(documentSet.stream()
+        items.addAll(documents.stream()
                 .map(doc -> new DocumentListItem(uriInfo, user, doc))
                 .collect(Collectors.toList()));
         return items;
@@ -46,12 +48,14 @@ public class LinkedDocumentListRepresentation {
         return uriInfo;
     }
 
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     public static class DocumentListItem {
+        private static final DateTimeFormatter ISO_DATETIME = basicDateTimeNoMillis();
         private final UriInfo uriInfo;
         private final User user;
-        private final Document document;
+        private final DocumentSummary document;
 
-        public DocumentListItem(UriInfo uriInfo, User user, Document document) {
+        public DocumentListItem(UriInfo uriInfo, User user, DocumentSummary document) {
             this.uriInfo = uriInfo;
             this.user = user;
             this.document = document;
@@ -62,16 +66,31 @@ public class LinkedDocumentListRepresentation {
             return document.getName();
         }
 
+        @JsonGetter("content-type")
+        public String getContentType() {
+            return document.getContentType().toString();
+        }
+
+        @JsonGetter("size")
+        public Long getSize() {
+            return document.getPlaintextSize();
+        }
+
+        @JsonGetter("modified-at")
+        public String getModifiedAt() {
+            return ISO_DATETIME.print(document.getModifiedAt());
+        }
+
         @JsonGetter("owner")
         public UserListItem getOwner() {
-            return new UserListItem(uriInfo, document.getOwner());
+            return new UserListItem(uriInfo, document.getOwnerId());
         }
 
         @JsonGetter("uri")
         public String getURI() {
             return uriInfo.getBaseUriBuilder()
                     .path(LinkedDocumentResource.class)
-                    .build(user, document.getOwner(), document)
+                    .build(user, document.getOwnerId(), document.getName())
                     .toASCIIString();
         }
     }
@@ -0,0 +1,43 @@
+package com.wesabe.grendel.decorators;
+
+import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonSetter;
+
+import javax.validation.constraints.NotNull;
+
+import static java.util.Arrays.copyOf;
+import static java.util.Arrays.fill;
+
+/**
+ * A representation of a request to rotate a user's keys.
+ * <p>
+ * Example JSON:
+ * <pre>
+ * {
+ *   "password": "snoopersneekrit"
+ * }
+ * </pre>
+ * <p>
+ * The {@code password} property is required, and must be the user's current
+ * password, which protects the new subkey.
+ */
+public class RotateKeysRepresentation {
+
+    @NotNull
+    private char[] password;
+
+    @JsonGetter("password")
+    public char[] getPassword() {
+        return password;
+    }
+
+    @JsonSetter("password")
+    public void setPassword(char[] password) {
+        this.password = copyOf(password, password.length);
+        fill(password, '\0');
+    }
+
+    public void sanitize() {
+        fill(password, '\0');
+    }
+}
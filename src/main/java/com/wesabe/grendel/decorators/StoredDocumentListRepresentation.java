@@ -0,0 +1,73 @@
+package com.wesabe.grendel.decorators;
+
+import com.fasterxml.jackson.annotation.JsonGetter;
+import com.wesabe.grendel.entities.Document;
+import com.wesabe.grendel.resources.DocumentResource;
+
+import javax.ws.rs.core.UriInfo;
+import java.util.List;
+
+/**
+ * A representation of a batch of {@link Document}s which have just been
+ * stored, with the new ETag of each.
+ * <p>
+ * Example JSON:
+ * <pre>
+ * {
+ *   "documents":[
+ *     {
+ *       "name":"document1.txt",
+ *       "etag":"doc-document1.txt-4",
+ *       "uri":"http://example.com/users/codahale/documents/document1.txt"
+ *     }
+ *   ]
+ * }
+ * </pre>
+ */
+public class StoredDocumentListRepresentation {
+    private final List<StoredDocumentItem> documents;
+
+    public StoredDocumentListRepresentation(List<StoredDocumentItem> documents) {
+        this.documents = documents;
+    }
+
+    @JsonGetter("documents")
+    public List<StoredDocumentItem> getDocuments() {
+        return documents;
+    }
+
+    /**
+     * A stored {@link Document}'s name, ETag and URI, copied from it when
+     * it's stored, so the {@link Document} and its body needn't be held until
+     * the response is written.
+     */
+    public static class StoredDocumentItem {
+        private final String name;
+        private final String etag;
+        private final String uri;
+
+        public StoredDocumentItem(UriInfo uriInfo, Document document) {
+            this.name = document.getName();
+            this.etag = document.getETag();
+            this.uri = uriInfo.getBaseUriBuilder()
+                    .path(DocumentResource.class)
+                    .build(document.getOwner().getId(), document.getName())
+                    .toASCIIString();
+        }
+
+        @JsonGetter("name")
+        public String getName() {
+            return name;
+        }
+
+        @JsonGetter("etag")
+        public String getETag() {
+            return etag;
+        }
+
+        @JsonGetter("uri")
+        public String getURI() {
+            return uri;
+        }
+    }
+}
@@ -43,23 +43,27 @@ public class UserListRepresentation {
 
     public static class UserListItem {
         private final UriInfo uriInfo;
-        private final User user;
+        private final String id;
 
         public UserListItem(UriInfo uriInfo, User user) {
+            this(uriInfo, user.getId());
+        }
+
+        public UserListItem(UriInfo uriInfo, String id) {
             this.uriInfo = uriInfo;
-            this.user = user;
+            this.id = id;
         }
 
         @JsonGetter("id")
         public String getId() {
-            return user.getId();
+            return id;
         }
 
         @JsonGetter("uri")
         public String getUri() {
             return uriInfo.getBaseUriBuilder()
                     .path(UserResource.class)
-                    .build(user).toASCIIString();
+                    .build(id).toASCIIString();
         }
     }
 
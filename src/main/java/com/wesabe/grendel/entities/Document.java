@@ -1,15 +1,23 @@
 package com.wesabe.grendel.entities;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import com.wesabe.grendel.openpgp.*;
+import com.wesabe.grendel.store.BodyStore;
+import com.wesabe.grendel.util.SpillBuffer;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
 import javax.persistence.*;
 import javax.ws.rs.core.MediaType;
-import java.io.Serializable;
+import java.io.*;
 import java.security.SecureRandom;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static com.google.common.base.Objects.equal;
 import static com.google.common.collect.Sets.newHashSet;
@@ -20,6 +28,13 @@ import static javax.ws.rs.core.MediaType.valueOf;
 /**
  * A document with an abritrary body, stored as an encrypted+signed OpenPGP
  * message.
+ * <p>
+ * The body is stored inline unless a {@link BodyStore} has been attached to
+ * the document, in which case only a reference to it is kept.
+ * <p>
+ * Bodies are also encrypted for the {@link User#getPendingKeySet() pending}
+ * key sets of the owner and linked users, so that they stay readable while
+ * those users' keys are being rotated.
  *
  * @author coda
  */
@@ -35,9 +50,80 @@ import static javax.ws.rs.core.MediaType.valueOf;
                         "WHERE document.name = :name " +
                         "AND document.owner = :owner"
         ),
+        @NamedQuery(
+                name = "com.wesabe.grendel.entities.Document.ByOwnerAndNames",
+                query = "SELECT DISTINCT document " +
+                        "FROM Document AS document " +
+                        "LEFT JOIN FETCH document.linkedUsers " +
+                        "WHERE document.name IN (:names) " +
+                        "AND document.owner = :owner"
+        ),
         @NamedQuery(
                 name = "com.wesabe.grendel.entities.Document.ByOwner",
                 query = "SELECT document FROM Document AS document WHERE document.owner = :owner"
+        ),
+        @NamedQuery(
+                name = "com.wesabe.grendel.entities.Document.ReadableByUserAfter",
+                query = "SELECT document FROM Document AS document " +
+                        "WHERE (document.owner = :user OR :user MEMBER OF document.linkedUsers) " +
+                        "AND document.modifiedAt >= :since " +
+                        "AND (document.owner.id > :ownerId " +
+                        "OR (document.owner.id = :ownerId AND document.name > :name)) " +
+                        "ORDER BY document.owner.id, document.name"
+        ),
+        @NamedQuery(
+                name = "com.wesabe.grendel.entities.Document.CountReadableByUser",
+                query = "SELECT COUNT(document) FROM Document AS document " +
+                        "WHERE (document.owner = :user OR :user MEMBER OF document.linkedUsers) " +
+                        "AND document.modifiedAt >= :since"
+        ),
+        @NamedQuery(
+                name = "com.wesabe.grendel.entities.Document.BodyRefs",
+                query = "SELECT document.bodyRef FROM Document AS document " +
+                        "WHERE document.bodyRef IS NOT NULL"
+        ),
+        @NamedQuery(
+                name = "com.wesabe.grendel.entities.Document.SummariesByOwner",
+                query = "SELECT NEW com.wesabe.grendel.entities.DocumentSummary(" +
+                        "document.owner.id, document.name, document.contentType, " +
+                        "document.createdAt, document.modifiedAt, document.version, " +
+                        "document.plaintextSize, document.ciphertextSize) " +
+                        "FROM Document AS document " +
+                        "WHERE document.owner = :owner " +
+                        "ORDER BY document.name"
+        ),
+        @NamedQuery(
+                name = "com.wesabe.grendel.entities.Document.SummaryByOwnerAndName",
+                query = "SELECT NEW com.wesabe.grendel.entities.DocumentSummary(" +
+                        "document.owner.id, document.name, document.contentType, " +
+                        "document.createdAt, document.modifiedAt, document.version, " +
+                        "document.plaintextSize, document.ciphertextSize) " +
+                        "FROM Document AS document " +
+                        "WHERE document.name = :name " +
+                        "AND document.owner = :owner"
+        ),
+        @NamedQuery(
+                name = "com.wesabe.grendel.entities.Document.LinkedSummaryByUserAndName",
+                query = "SELECT NEW com.wesabe.grendel.entities.DocumentSummary(" +
+                        "document.owner.id, document.name, document.contentType, " +
+                        "document.createdAt, document.modifiedAt, document.version, " +
+                        "document.plaintextSize, document.ciphertextSize) " +
+                        "FROM User AS user " +
+                        "JOIN user.linkedDocuments AS document " +
+                        "WHERE user = :user " +
+                        "AND document.owner.id = :ownerId " +
+                        "AND document.name = :name"
+        ),
+        @NamedQuery(
+                name = "com.wesabe.grendel.entities.Document.LinkedSummariesByUser",
+                query = "SELECT NEW com.wesabe.grendel.entities.DocumentSummary(" +
+                        "document.owner.id, document.name, document.contentType, " +
+                        "document.createdAt, document.modifiedAt, document.version, " +
+                        "document.plaintextSize, document.ciphertextSize) " +
+                        "FROM User AS user " +
+                        "JOIN user.linkedDocuments AS document " +
+                        "WHERE user = :user " +
+                        "ORDER BY document.owner.id, document.name"
         )
 })
 public class Document implements Serializable {
@@ -53,10 +139,22 @@ public class Document implements Serializable {
     @Column(name = "content_type", nullable = false, length = 40)
     private String contentType;
 
-    @Column(name = "body", nullable = false)
+    @Column(name = "body")
     @Lob
     private byte[] body;
 
+    @Column(name = "body_ref", length = 64)
+    private String bodyRef;
+
+    @Transient
+    private transient BodyStore bodyStore;
+
+    @Column(name = "plaintext_size")
+    private Long plaintextSize;
+
+    @Column(name = "ciphertext_size")
+    private Long ciphertextSize;
+
     @Column(name = "created_at", nullable = false)
     private DateTime createdAt;
 
@@ -93,6 +191,14 @@ public class Document implements Serializable {
         this.modifiedAt = new DateTime(DateTimeZone.UTC);
     }
 
+    /**
+     * Sets the {@link BodyStore} used to store and retrieve the document's
+     * body, or {@code null} to store new bodies inline.
+     */
+    public void setBodyStore(BodyStore bodyStore) {
+        this.bodyStore = bodyStore;
+    }
+
     /**
      * Returns the document's owner.
      */
@@ -188,14 +294,84 @@ public class Document implements Serializable {
      */
     public void encryptAndSetBody(UnlockedKeySet keySet, SecureRandom random,
                                   byte[] body) throws CryptographicException {
+        encryptAndSetBody(keySet, random, new ByteArrayInputStream(body));
+    }
 
-        final Set<KeySet> recipients = newHashSetWithExpectedSize(linkedUsers.size());
+    /**
+     * Sets the {@link Document}'s body to an encrypted+signed OpenPGP message
+     * containing the contents of {@code body}, which is read in a single pass.
+     *
+     * @param keySet the {@link UnlockedKeySet} of the {@link User} that owns this
+     *               {@link Document}
+     * @param random a {@link SecureRandom} instance
+     * @param body   an {@link InputStream} of the unencrypted document body
+     * @throws CryptographicException if there is an error encrypting or signing {@code body}
+     * @see MessageWriter#write(InputStream, java.io.OutputStream)
+     */
+    public void encryptAndSetBody(UnlockedKeySet keySet, SecureRandom random,
+                                  InputStream body) throws CryptographicException {
 
-        recipients.addAll(linkedUsers.stream().map(User::getKeySet)
-                .collect(Collectors.toList()));
+        final MessageWriter writer = new MessageWriter(keySet, getRecipients(), random,
+                new CompressionPolicy(contentType));
+        storeBody(output -> this.plaintextSize = writer.write(body, output));
+    }
 
-        final MessageWriter writer = new MessageWriter(keySet, recipients, random);
-        this.body = writer.write(body);
+    /**
+     * Sets the {@link Document}'s body to a segmented message containing the
+     * contents of {@code body}, which is read in a single pass. Segmented
+     * bodies can be partially decrypted with {@link #openSegmentedBody(UnlockedKeySet, Executor)}.
+     *
+     * @param keySet      the {@link UnlockedKeySet} of the {@link User} that owns this
+     *                    {@link Document}
+     * @param random      a {@link SecureRandom} instance
+     * @param body        an {@link InputStream} of the unencrypted document body
+     * @param segmentSize the number of plaintext bytes in each segment
+     * @param executor    an {@link Executor} to encrypt segments on
+     * @throws CryptographicException if there is an error encrypting or signing {@code body}
+     * @see SegmentedMessageWriter
+     */
+    public void encryptAndSetSegmentedBody(UnlockedKeySet keySet, SecureRandom random, InputStream body,
+                                           int segmentSize, Executor executor) throws CryptographicException {
+
+        final SegmentedMessageWriter writer = new SegmentedMessageWriter(keySet, getRecipients(), random,
+                segmentSize, executor);
+        storeBody(output -> this.plaintextSize = writer.write(body, output));
+    }
+
+    /**
+     * Re-encrypts the session key of the {@link Document}'s body for the
+     * owner and the currently linked {@link User}s, leaving the encrypted body
+     * itself untouched.
+     *
+     * @param keySet the {@link UnlockedKeySet} of the {@link User} that owns this
+     *               {@link Document}, or of any user it's currently encrypted for
+     * @param random a {@link SecureRandom} instance
+     * @throws CryptographicException if the session key cannot be recovered with {@code keySet}
+     * @see MessageRewrapper
+     */
+    public void rewrapBody(UnlockedKeySet keySet, SecureRandom random) throws CryptographicException {
+        rewrapBody(ImmutableList.of(keySet), random);
+    }
+
+    /**
+     * Re-encrypts the session key of the {@link Document}'s body for the
+     * owner and the currently linked {@link User}s, recovering it with
+     * whichever of {@code keySets} the body is currently encrypted for.
+     *
+     * @param keySets the {@link UnlockedKeySet}s of users the body may be
+     *                encrypted for
+     * @param random  a {@link SecureRandom} instance
+     * @throws CryptographicException if the session key cannot be recovered with any of
+     *                                {@code keySets}
+     * @see MessageRewrapper
+     */
+    public void rewrapBody(List<UnlockedKeySet> keySets, SecureRandom random) throws CryptographicException {
+        final MessageRewrapper rewrapper = new MessageRewrapper(keySets, owner.getKeySet(), getRecipients(), random);
+        try (InputStream input = openBody()) {
+            storeBody(output -> rewrapper.rewrap(input, output));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
@@ -211,7 +387,155 @@ public class Document implements Serializable {
      */
     public byte[] decryptBody(UnlockedKeySet unlockedKeySet) throws CryptographicException {
         final MessageReader reader = new MessageReader(owner.getKeySet(), unlockedKeySet);
-        return reader.read(body);
+        if (bodyRef == null) {
+            return reader.read(body);
+        }
+
+        try (InputStream input = openBody()) {
+            return reader.read(ByteStreams.toByteArray(input));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decrypts the document's body using the {@link UnlockedKeySet} of the
+     * owner or a recipient, holding only a bounded amount of the plaintext in
+     * memory. The body is only returned once its signature and integrity have
+     * been verified.
+     *
+     * @param unlockedKeySet an {@link UnlockedKeySet} belonging to either the
+     *                       {@link Document}'s owner or a recipient
+     * @return a {@link SpillBuffer} containing the decrypted document body,
+     *         which the caller must close
+     * @throws CryptographicException if there is an error decrypting and verifying the
+     *                                encrypted+signed OpenPGP message
+     * @see MessageReader#readBuffered(InputStream)
+     */
+    public SpillBuffer decryptBodyBuffered(UnlockedKeySet unlockedKeySet) throws CryptographicException {
+        final MessageReader reader = new MessageReader(owner.getKeySet(), unlockedKeySet);
+        try (InputStream input = openBody()) {
+            return reader.readBuffered(input);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Opens the document's body for partial decryption, if it's a segmented
+     * message.
+     *
+     * @param unlockedKeySet an {@link UnlockedKeySet} belonging to either the
+     *                       {@link Document}'s owner or a recipient
+     * @param executor       an {@link Executor} to decrypt segments on
+     * @return the opened body, which the caller must close, or {@code null} if
+     *         the body isn't a segmented message
+     * @throws CryptographicException if there is an error decrypting and verifying the
+     *                                segmented message's header
+     * @see SegmentedMessageReader
+     */
+    public SegmentedMessage openSegmentedBody(UnlockedKeySet unlockedKeySet,
+                                              Executor executor) throws CryptographicException {
+        final ByteSource source = getBodySource();
+        try (InputStream input = new BufferedInputStream(source.openStream())) {
+            if (!SegmentedMessage.isSegmented(input)) {
+                return null;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return new SegmentedMessageReader(owner.getKeySet(), unlockedKeySet, executor).open(source);
+    }
+
+    /**
+     * Returns the size of the document's unencrypted body, in bytes, or
+     * {@code null} if it was stored before sizes were recorded.
+     */
+    public Long getPlaintextSize() {
+        return plaintextSize;
+    }
+
+    /**
+     * Returns the size of the document's encrypted body, in bytes, or
+     * {@code null} if it was stored before sizes were recorded.
+     */
+    public Long getCiphertextSize() {
+        return ciphertextSize;
+    }
+
+    /*
+     * Writes a new encrypted body to the attached body store, or inline if
+     * there isn't one.
+     */
+    private void storeBody(BodyWriter writer) throws CryptographicException {
+        if (bodyStore == null) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            writer.writeTo(output);
+            this.body = output.toByteArray();
+            this.bodyRef = null;
+            this.ciphertextSize = (long) body.length;
+        } else {
+            try (BodyStore.PendingBody output = bodyStore.create()) {
+                writer.writeTo(output);
+                this.bodyRef = output.commit();
+                this.body = null;
+                this.ciphertextSize = output.size();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /*
+     * Segmented bodies are read from both ends, so they're opened as a
+     * source which can be reopened at an offset.
+     */
+    private ByteSource getBodySource() {
+        if (bodyRef == null) {
+            return ByteSource.wrap(body);
+        }
+
+        return new ByteSource() {
+            @Override
+            public InputStream openStream() throws IOException {
+                return openBody();
+            }
+
+            @Override
+            public long size() throws IOException {
+                return (ciphertextSize == null) ? super.size() : ciphertextSize;
+            }
+        };
+    }
+
+    private InputStream openBody() throws IOException {
+        if (bodyRef == null) {
+            return new ByteArrayInputStream(body);
+        }
+
+        if (bodyStore == null) {
+            throw new IllegalStateException("no body store attached to " + name);
+        }
+
+        return bodyStore.open(bodyRef);
+    }
+
+    private Set<KeySet> getRecipients() {
+        final Set<KeySet> recipients = newHashSetWithExpectedSize(linkedUsers.size());
+
+        recipients.addAll(linkedUsers.stream().map(User::getKeySet)
+                .collect(Collectors.toList()));
+        recipients.addAll(Stream.concat(Stream.of(owner), linkedUsers.stream())
+                .map(User::getPendingKeySet)
+                .filter(keySet -> keySet != null)
+                .collect(Collectors.toList()));
+
+        return recipients;
+    }
+
+    private interface BodyWriter {
+        void writeTo(OutputStream output) throws CryptographicException;
     }
 
     private DateTime toUTC(DateTime dateTime) {
@@ -221,7 +545,7 @@ public class Document implements Serializable {
     @Override
     public int hashCode() {
         return calculate(
-                getClass(), body, contentType, createdAt, modifiedAt, name, owner
+                getClass(), body, bodyRef, contentType, createdAt, modifiedAt, name, owner
         );
     }
 
@@ -240,7 +564,8 @@ public class Document implements Serializable {
 
         final Document that = (Document) obj;
         return equal(name, that.name) && equal(owner, that.owner) &&
-                equal(body, that.body) && equal(createdAt, that.createdAt) &&
+                equal(body, that.body) && equal(bodyRef, that.bodyRef) &&
+                equal(createdAt, that.createdAt) &&
                 equal(contentType, that.contentType) &&
                 equal(modifiedAt, that.modifiedAt);
     }
@@ -0,0 +1,107 @@
+package com.wesabe.grendel.entities;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import javax.ws.rs.core.MediaType;
+
+import static javax.ws.rs.core.MediaType.valueOf;
+
+/**
+ * A read-only summary of a {@link Document}'s metadata, loaded without its
+ * body or its owner's {@link User} entity.
+ *
+ * @see com.wesabe.grendel.entities.dao.DocumentRepository
+ */
+public class DocumentSummary {
+    private final String ownerId;
+    private final String name;
+    private final String contentType;
+    private final DateTime createdAt;
+    private final DateTime modifiedAt;
+    private final long version;
+    private final Long plaintextSize;
+    private final Long ciphertextSize;
+
+    /**
+     * Creates a new {@link DocumentSummary}. Used by JPQL constructor
+     * expressions.
+     */
+    public DocumentSummary(String ownerId, String name, String contentType,
+                           DateTime createdAt, DateTime modifiedAt, long version,
+                           Long plaintextSize, Long ciphertextSize) {
+        this.ownerId = ownerId;
+        this.name = name;
+        this.contentType = contentType;
+        this.createdAt = createdAt;
+        this.modifiedAt = modifiedAt;
+        this.version = version;
+        this.plaintextSize = plaintextSize;
+        this.ciphertextSize = ciphertextSize;
+    }
+
+    /**
+     * Returns the ID of the document's owner.
+     */
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    /**
+     * Returns the document's name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the document's content type.
+     */
+    public MediaType getContentType() {
+        return valueOf(contentType);
+    }
+
+    /**
+     * Returns a UTC timestamp of when the document was created.
+     */
+    public DateTime getCreatedAt() {
+        return createdAt.toDateTime(DateTimeZone.UTC);
+    }
+
+    /**
+     * Returns a UTC timestamp of when the document was last modified.
+     */
+    public DateTime getModifiedAt() {
+        return modifiedAt.toDateTime(DateTimeZone.UTC);
+    }
+
+    /**
+     * Returns the size of the document's unencrypted body, in bytes, or
+     * {@code null} if it was stored before sizes were recorded.
+     */
+    public Long getPlaintextSize() {
+        return plaintextSize;
+    }
+
+    /**
+     * Returns the size of the document's encrypted body, in bytes, or
+     * {@code null} if it was stored before sizes were recorded.
+     */
+    public Long getCiphertextSize() {
+        return ciphertextSize;
+    }
+
+    /**
+     * Returns an opaque string indicating the document's name and version.
+     *
+     * @see Document#getETag()
+     */
+    public String getETag() {
+        return "doc-" + name + '-' + version;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
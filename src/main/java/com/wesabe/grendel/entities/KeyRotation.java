@@ -0,0 +1,276 @@
+package com.wesabe.grendel.entities;
+
+import com.wesabe.grendel.openpgp.CryptographicException;
+import com.wesabe.grendel.openpgp.KeySet;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+/**
+ * The progress of rotating a {@link User}'s keys onto a new subkey.
+ * <p>
+ * A rotation first rewraps every {@link Document} the user owns or is linked
+ * to so that it's also encrypted for the user's
+ * {@link User#getPendingKeySet() pending} key set, then replaces the user's
+ * key set with the pending one, then sweeps the documents which were written
+ * since the rotation started, in case any were written for the old key set
+ * alone. Each phase walks the documents in order of owner ID and name, and
+ * the last document committed is recorded as a checkpoint, so an interrupted
+ * rotation can carry on where it left off.
+ * <p>
+ * The user's previous key set is kept until the rotation completes, since
+ * it's needed to recover the session keys of documents which haven't been
+ * rewrapped yet.
+ */
+@Entity
+@Table(name = "KEY_ROTATIONS")
+public class KeyRotation implements Serializable {
+    private static final long serialVersionUID = -1953270574096218112L;
+    private static final int MAX_ERROR_LENGTH = 255;
+
+    /**
+     * The phases of a rotation.
+     */
+    public enum Phase {
+        /**
+         * Documents are being rewrapped for the pending key set.
+         */
+        REWRAPPING,
+
+        /**
+         * The pending key set has replaced the user's key set, and documents
+         * written during the rotation are being rewrapped.
+         */
+        SWEEPING,
+
+        /**
+         * Every document has been rewrapped.
+         */
+        COMPLETED
+    }
+
+    @Id
+    @Column(name = "user_id")
+    private String userId;
+
+    @Column(name = "phase", nullable = false, length = 16)
+    @Enumerated(EnumType.STRING)
+    private Phase phase;
+
+    @Column(name = "previous_keyset")
+    @Lob
+    private byte[] encodedPreviousKeySet;
+
+    @Column(name = "cursor_owner_id", nullable = false)
+    private String cursorOwnerId;
+
+    @Column(name = "cursor_name", nullable = false)
+    private String cursorName;
+
+    @Column(name = "processed", nullable = false)
+    private long processed;
+
+    @Column(name = "total", nullable = false)
+    private long total;
+
+    @Column(name = "error", length = MAX_ERROR_LENGTH)
+    private String error;
+
+    @Column(name = "started_at", nullable = false)
+    private DateTime startedAt;
+
+    @Column(name = "modified_at", nullable = false)
+    private DateTime modifiedAt;
+
+    @Version
+    @Column(name = "version", nullable = false)
+    private long version = 0;
+
+    @Deprecated
+    public KeyRotation() {
+        // for Hibernate usage only
+    }
+
+    /**
+     * Creates a new {@link KeyRotation} for the given user, which must be
+     * {@link #begin(KeySet, long) begun}.
+     *
+     * @param userId the ID of the user whose keys are being rotated
+     */
+    public KeyRotation(String userId) {
+        this.userId = userId;
+        this.phase = Phase.COMPLETED;
+        resetCursor();
+        touch();
+    }
+
+    /**
+     * Returns the ID of the user whose keys are being rotated.
+     */
+    public String getUserId() {
+        return userId;
+    }
+
+    /**
+     * Returns the rotation's current {@link Phase}.
+     */
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * Returns {@code true} if every document has been rewrapped.
+     */
+    public boolean isCompleted() {
+        return phase == Phase.COMPLETED;
+    }
+
+    /**
+     * Returns the user's key set from before the rotation, or {@code null} if
+     * the rotation has completed.
+     *
+     * @throws CryptographicException if the encoded key set is malformed
+     */
+    public KeySet getPreviousKeySet() throws CryptographicException {
+        return (encodedPreviousKeySet == null) ? null : KeySet.load(encodedPreviousKeySet);
+    }
+
+    /**
+     * Returns the owner ID of the last document committed in the current
+     * phase, or an empty string if there isn't one.
+     */
+    public String getCursorOwnerId() {
+        return cursorOwnerId;
+    }
+
+    /**
+     * Returns the name of the last document committed in the current phase,
+     * or an empty string if there isn't one.
+     */
+    public String getCursorName() {
+        return cursorName;
+    }
+
+    /**
+     * Returns the number of documents rewrapped in the current phase.
+     */
+    public long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * Returns the number of documents the current phase started with.
+     * Documents created during the phase may push {@link #getProcessed()}
+     * past this.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns the reason the rotation last stopped, or {@code null} if it
+     * hasn't failed since its last checkpoint.
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Returns a UTC timestamp of when the rotation was started.
+     */
+    public DateTime getStartedAt() {
+        return toUTC(startedAt);
+    }
+
+    /**
+     * Returns a UTC timestamp of when the rotation last made progress.
+     */
+    public DateTime getModifiedAt() {
+        return toUTC(modifiedAt);
+    }
+
+    /**
+     * Starts rewrapping documents.
+     *
+     * @param previousKeySet the user's current key set
+     * @param total          the number of documents the user owns or is linked to
+     */
+    public void begin(KeySet previousKeySet, long total) {
+        this.phase = Phase.REWRAPPING;
+        this.encodedPreviousKeySet = previousKeySet.getEncoded();
+        this.startedAt = new DateTime(DateTimeZone.UTC);
+        this.error = null;
+        startPhase(total);
+    }
+
+    /**
+     * Records that a chunk of documents has been rewrapped.
+     *
+     * @param last  the last document in the chunk
+     * @param count the number of documents in the chunk
+     */
+    public void advance(Document last, int count) {
+        this.cursorOwnerId = last.getOwner().getId();
+        this.cursorName = last.getName();
+        this.processed += count;
+        this.error = null;
+        touch();
+    }
+
+    /**
+     * Starts sweeping the documents written since the rotation started.
+     *
+     * @param total the number of documents written since the rotation started
+     */
+    public void beginSweep(long total) {
+        this.phase = Phase.SWEEPING;
+        startPhase(total);
+    }
+
+    /**
+     * Completes the rotation, discarding the user's previous key set.
+     */
+    public void complete() {
+        this.phase = Phase.COMPLETED;
+        this.encodedPreviousKeySet = null;
+        this.error = null;
+        touch();
+    }
+
+    /**
+     * Records why the rotation stopped.
+     *
+     * @param error a description of the failure
+     */
+    public void fail(String error) {
+        this.error = (error.length() > MAX_ERROR_LENGTH) ? error.substring(0, MAX_ERROR_LENGTH) : error;
+        touch();
+    }
+
+    private void startPhase(long total) {
+        this.total = total;
+        this.processed = 0;
+        resetCursor();
+        touch();
+    }
+
+    private void resetCursor() {
+        this.cursorOwnerId = "";
+        this.cursorName = "";
+    }
+
+    private void touch() {
+        this.modifiedAt = new DateTime(DateTimeZone.UTC);
+    }
+
+    private DateTime toUTC(DateTime dateTime) {
+        return (dateTime == null) ? null : dateTime.toDateTime(DateTimeZone.UTC);
+    }
+
+    @Override
+    public String toString() {
+        return userId + ": " + phase + " (" + processed + "/" + total + ")";
+    }
+}
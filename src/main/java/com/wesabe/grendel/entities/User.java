@@ -2,6 +2,7 @@ package com.wesabe.grendel.entities;
 
 import com.wesabe.grendel.openpgp.CryptographicException;
 import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.KeySetCache;
 import org.hibernate.annotations.GenericGenerator;
 import org.hibernate.annotations.Type;
 import org.hibernate.id.UUIDGenerator;
@@ -16,11 +17,14 @@ import java.util.UUID;
 
 import static com.google.common.base.Objects.equal;
 import static com.google.common.collect.Sets.newHashSet;
-import static com.wesabe.grendel.openpgp.KeySet.load;
 import static com.wesabe.grendel.util.HashCode.calculate;
 
 /**
  * A Grendel user.
+ * <p>
+ * While the user's keys are being rotated, they also have a pending
+ * {@link KeySet}, which documents are encrypted for alongside their current
+ * one and which replaces it once every document has been rewrapped.
  *
  * @author coda
  */
@@ -58,6 +62,13 @@ public class User implements Serializable {
     @Transient
     private KeySet keySet = null;
 
+    @Column(name = "pending_keyset")
+    @Lob
+    private byte[] encodedPendingKeySet;
+
+    @Transient
+    private KeySet pendingKeySet = null;
+
     @Column(name = "created_at", nullable = false)
     @Type(type="org.jadira.usertype.dateandtime.joda.PersistentLocalDateTime")
     private LocalDateTime createdAt;
@@ -144,7 +155,7 @@ public class User implements Serializable {
     public KeySet getKeySet() {
         if (keySet == null) {
             try {
-                this.keySet = load(encodedKeySet);
+                this.keySet = KeySetCache.getInstance().load(encodedKeySet);
             } catch (CryptographicException e) {
                 throw new RuntimeException(e);
             }
@@ -161,6 +172,38 @@ public class User implements Serializable {
         this.keySet = keySet;
         this.id = keySet.getUserID();
         this.encodedKeySet = keySet.getEncoded();
+        KeySetCache.getInstance().put(encodedKeySet, keySet);
+    }
+
+    /**
+     * Returns the {@link KeySet} the user's keys are being rotated to, or
+     * {@code null} if they aren't being rotated.
+     */
+    public KeySet getPendingKeySet() {
+        if ((pendingKeySet == null) && (encodedPendingKeySet != null)) {
+            try {
+                this.pendingKeySet = KeySetCache.getInstance().load(encodedPendingKeySet);
+            } catch (CryptographicException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return pendingKeySet;
+    }
+
+    /**
+     * Sets the {@link KeySet} the user's keys are being rotated to.
+     *
+     * @param keySet a new {@link KeySet} with the same master key, or
+     *               {@code null} once the rotation is over
+     */
+    public void setPendingKeySet(KeySet keySet) {
+        this.pendingKeySet = keySet;
+        if (keySet == null) {
+            this.encodedPendingKeySet = null;
+        } else {
+            this.encodedPendingKeySet = keySet.getEncoded();
+            KeySetCache.getInstance().put(encodedPendingKeySet, keySet);
+        }
     }
 
     /**
@@ -246,6 +289,14 @@ public class User implements Serializable {
         return "user-" + id + '-' + version;
     }
 
+    /**
+     * Returns the {@link User}'s version, which is incremented each time the
+     * user is modified.
+     */
+    public long getVersion() {
+        return version;
+    }
+
     public UUID getUuid() {
         return uuid;
     }
@@ -1,18 +1,40 @@
 package com.wesabe.grendel.entities.dao;
 
+import com.codahale.metrics.Timer;
 import com.wesabe.grendel.entities.Document;
+import com.wesabe.grendel.entities.DocumentSummary;
 import com.wesabe.grendel.entities.User;
+import com.wesabe.grendel.modules.MetricRegistryProvider;
+import com.wesabe.grendel.store.BodyStore;
 import com.wesabe.grendel.util.WithSession;
+import org.hibernate.Hibernate;
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.orm.jpa.JpaTransactionManager;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
-import javax.persistence.EntityManager;
+import javax.persistence.NoResultException;
 import javax.ws.rs.core.MediaType;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.collect.Sets.newHashSet;
+
+/**
+ * Loads and stores {@link Document}s.
+ * <p>
+ * The time taken by statements is recorded in three timers:
+ * {@code DocumentRepository.loads} for statements which load whole
+ * {@link Document}s, including any inline body, {@code queries} for those
+ * which only load metadata, and {@code writes}.
+ */
 @Repository
 @Transactional(propagation = Propagation.REQUIRED)
 public class DocumentRepository {
@@ -20,15 +42,33 @@ public class DocumentRepository {
     @Inject
     JpaTransactionManager transactionManager;
 
-    @Inject
-    EntityManager entityManager;
+    @Autowired(required = false)
+    BodyStore bodyStore;
+
+    private final Timer loads = MetricRegistryProvider.getRegistry().timer(name(DocumentRepository.class, "loads"));
+    private final Timer queries = MetricRegistryProvider.getRegistry().timer(name(DocumentRepository.class, "queries"));
+    private final Timer writes = MetricRegistryProvider.getRegistry().timer(name(DocumentRepository.class, "writes"));
+
+    /**
+     * Refuses to start without a {@link BodyStore} if any {@link Document}
+     * bodies are kept in one, since those documents couldn't be read.
+     */
+    @PostConstruct
+    void checkBodyStore() {
+        if ((bodyStore == null) && hasStoredBodies()) {
+            throw new IllegalStateException("document bodies are kept in a body store, " +
+                    "but grendel.body-store.type isn't 'file'");
+        }
+    }
 
     /**
      * Returns a new {@link Document} with the provided owner, name, and
      * content-type.
      */
     public Document newDocument(User owner, String name, MediaType contentType) {
-        return new Document(owner, name, contentType);
+        final Document document = new Document(owner, name, contentType);
+        document.setBodyStore(bodyStore);
+        return document;
     }
 
     /**
@@ -36,27 +76,116 @@ public class DocumentRepository {
      * {@code null} if the {@link Document} does not exist.
      */
     public Document findByOwnerAndName(User owner, String name) {
-        return new WithSession<Document>(transactionManager).transaction(entityManager1 ->
-                entityManager1.createNamedQuery("com.wesabe.grendel.entities.Document.ByOwnerAndName", Document.class)
+        final Document document = new WithSession<Document>(transactionManager, loads).transaction(entityManager1 -> {
+            try {
+                return entityManager1.createNamedQuery("com.wesabe.grendel.entities.Document.ByOwnerAndName", Document.class)
                         .setParameter("owner", owner)
                         .setParameter("name", name)
-                        .getSingleResult());
+                        .getSingleResult();
+            } catch (NoResultException e) {
+                return null;
+            }
+        });
+        if (document != null) {
+            document.setBodyStore(bodyStore);
+        }
+        return document;
 
     }
 
     /**
-     * Writes the {@link Document} to the database.
+     * Finds the {@link Document}s with a given owner and any of the given
+     * names in a single query, along with their linked {@link User}s. Names
+     * which don't match a {@link Document} are left out of the result. Their
+     * owner is loaded too, so they can be decrypted outside the session.
+     */
+    public List<Document> findByOwnerAndNames(User owner, Collection<String> names) {
+        if (names.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final List<Document> documents = new WithSession<List<Document>>(transactionManager, loads).transaction(entityManager1 -> {
+            final List<Document> results = entityManager1.createNamedQuery("com.wesabe.grendel.entities.Document.ByOwnerAndNames", Document.class)
+                    .setParameter("owner", owner)
+                    .setParameter("names", names)
+                    .getResultList();
+            for (Document document : results) {
+                Hibernate.initialize(document.getOwner());
+            }
+            return results;
+        });
+        for (Document document : documents) {
+            document.setBodyStore(bodyStore);
+        }
+        return documents;
+    }
+
+    /**
+     * Writes the {@link Document} to the database, and returns the managed
+     * instance.
      */
     public Document saveOrUpdate(Document doc) {
-        entityManager.merge(doc);
-        return doc;
+        final Document managed = new WithSession<Document>(transactionManager, writes).transaction(entityManager1 -> {
+            final Document merged = entityManager1.merge(doc);
+            entityManager1.flush();
+            return merged;
+        });
+        managed.setBodyStore(bodyStore);
+        return managed;
+    }
+
+    /**
+     * Writes a batch of {@link Document}s to the database with a single
+     * flush, so their inserts and updates can be batched. Each
+     * {@link Document} must either be new or have been loaded in the current
+     * transaction.
+     */
+    public void saveAll(Collection<Document> docs) {
+        new WithSession<Boolean>(transactionManager, writes).transaction(entityManager1 -> {
+            for (Document doc : docs) {
+                if (!entityManager1.contains(doc)) {
+                    entityManager1.persist(doc);
+                }
+            }
+            entityManager1.flush();
+            return true;
+        });
+    }
+
+    /**
+     * Detaches a batch of {@link Document}s which have been written from the
+     * current transaction, so they and their bodies can be garbage collected
+     * before it completes.
+     */
+    public void detachAll(Collection<Document> docs) {
+        new WithSession<Boolean>(transactionManager).transaction(entityManager1 -> {
+            for (Document doc : docs) {
+                entityManager1.detach(doc);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Writes a batch of {@link Document}s which were loaded in other
+     * transactions to the database with a single flush. If any of them has
+     * been modified since it was loaded, none of them are written.
+     */
+    public void updateAll(Collection<Document> docs) {
+        new WithSession<Boolean>(transactionManager, writes).transaction(entityManager1 -> {
+            for (Document doc : docs) {
+                entityManager1.merge(doc);
+            }
+            entityManager1.flush();
+            return true;
+        });
     }
 
     /**
      * Deletes the {@link Document} from the database.
      */
     public void delete(Document doc) {
-        new WithSession<Boolean>(transactionManager).transaction(entityManager1 -> {
+        new WithSession<Boolean>(transactionManager, writes).transaction(entityManager1 -> {
             entityManager1.remove(entityManager1.merge(doc));
             return true;
         });
@@ -64,9 +193,123 @@ public class DocumentRepository {
     }
 
     public List<Document> getUserDocuments(User user) {
-        return new WithSession<List<Document>>(transactionManager).transaction(entityManager1 ->
+        return new WithSession<List<Document>>(transactionManager, loads).transaction(entityManager1 ->
                 entityManager1.createNamedQuery("com.wesabe.grendel.entities.Document.ByOwner", Document.class)
                         .setParameter("owner", user)
                         .getResultList());
     }
+
+    /**
+     * Returns up to {@code limit} of the {@link Document}s which {@code user}
+     * owns or is linked to and which were modified at or after {@code since},
+     * ordered by owner ID and name, starting after the {@link Document} with
+     * the given owner ID and name. Their owners and linked {@link User}s are
+     * loaded too, so they can be rewrapped outside the session.
+     */
+    public List<Document> findReadableByUser(User user, String ownerId, String name, DateTime since, int limit) {
+        final List<Document> documents = new WithSession<List<Document>>(transactionManager, loads).transaction(entityManager1 -> {
+            final List<Document> results = entityManager1.createNamedQuery("com.wesabe.grendel.entities.Document.ReadableByUserAfter", Document.class)
+                    .setParameter("user", user)
+                    .setParameter("since", since)
+                    .setParameter("ownerId", ownerId)
+                    .setParameter("name", name)
+                    .setMaxResults(limit)
+                    .getResultList();
+            for (Document document : results) {
+                Hibernate.initialize(document.getOwner());
+                for (User linkedUser : document.getLinkedUsers()) {
+                    Hibernate.initialize(linkedUser);
+                }
+            }
+            return results;
+        });
+        for (Document document : documents) {
+            document.setBodyStore(bodyStore);
+        }
+        return documents;
+    }
+
+    /**
+     * Returns the number of {@link Document}s which {@code user} owns or is
+     * linked to and which were modified at or after {@code since}.
+     */
+    public long countReadableByUser(User user, DateTime since) {
+        return new WithSession<Long>(transactionManager, queries).transaction(entityManager1 ->
+                entityManager1.createNamedQuery("com.wesabe.grendel.entities.Document.CountReadableByUser", Long.class)
+                        .setParameter("user", user)
+                        .setParameter("since", since)
+                        .getSingleResult());
+    }
+
+    /**
+     * Returns {@link DocumentSummary}s of the {@link Document}s owned by
+     * {@code user}, ordered by name, without loading their bodies.
+     */
+    public List<DocumentSummary> getUserDocumentSummaries(User user) {
+        return new WithSession<List<DocumentSummary>>(transactionManager, queries).transaction(entityManager1 ->
+                entityManager1.createNamedQuery("com.wesabe.grendel.entities.Document.SummariesByOwner", DocumentSummary.class)
+                        .setParameter("owner", user)
+                        .getResultList());
+    }
+
+    /**
+     * Returns {@link DocumentSummary}s of the {@link Document}s linked to
+     * {@code user}, ordered by owner and name, without loading their bodies.
+     */
+    public List<DocumentSummary> getLinkedDocumentSummaries(User user) {
+        return new WithSession<List<DocumentSummary>>(transactionManager, queries).transaction(entityManager1 ->
+                entityManager1.createNamedQuery("com.wesabe.grendel.entities.Document.LinkedSummariesByUser", DocumentSummary.class)
+                        .setParameter("user", user)
+                        .getResultList());
+    }
+
+    /**
+     * Returns a {@link DocumentSummary} of the {@link Document} with a given
+     * owner and name, without loading its body, or {@code null} if the
+     * {@link Document} does not exist.
+     */
+    public DocumentSummary findSummaryByOwnerAndName(User owner, String name) {
+        return new WithSession<DocumentSummary>(transactionManager, queries).transaction(entityManager1 ->
+                singleResultOrNull(
+                        entityManager1.createNamedQuery("com.wesabe.grendel.entities.Document.SummaryByOwnerAndName", DocumentSummary.class)
+                                .setParameter("owner", owner)
+                                .setParameter("name", name)
+                                .getResultList()));
+    }
+
+    /**
+     * Returns a {@link DocumentSummary} of the {@link Document} with a given
+     * owner and name, without loading its body, or {@code null} if the
+     * {@link Document} does not exist or isn't linked to {@code user}.
+     */
+    public DocumentSummary findLinkedSummary(User user, String ownerId, String name) {
+        return new WithSession<DocumentSummary>(transactionManager, queries).transaction(entityManager1 ->
+                singleResultOrNull(
+                        entityManager1.createNamedQuery("com.wesabe.grendel.entities.Document.LinkedSummaryByUserAndName", DocumentSummary.class)
+                                .setParameter("user", user)
+                                .setParameter("ownerId", ownerId)
+                                .setParameter("name", name)
+                                .getResultList()));
+    }
+
+    /**
+     * Returns the references of all {@link Document} bodies kept in a
+     * {@link BodyStore}.
+     */
+    public Set<String> getBodyRefs() {
+        return newHashSet(new WithSession<List<String>>(transactionManager, queries).transaction(entityManager1 ->
+                entityManager1.createNamedQuery("com.wesabe.grendel.entities.Document.BodyRefs", String.class)
+                        .getResultList()));
+    }
+
+    private boolean hasStoredBodies() {
+        return !new WithSession<List<String>>(transactionManager, queries).transaction(entityManager1 ->
+                entityManager1.createNamedQuery("com.wesabe.grendel.entities.Document.BodyRefs", String.class)
+                        .setMaxResults(1)
+                        .getResultList()).isEmpty();
+    }
+
+    private static <T> T singleResultOrNull(List<T> results) {
+        return results.isEmpty() ? null : results.get(0);
+    }
 }
@@ -0,0 +1,63 @@
+package com.wesabe.grendel.entities.dao;
+
+import com.codahale.metrics.Timer;
+import com.wesabe.grendel.entities.KeyRotation;
+import com.wesabe.grendel.modules.MetricRegistryProvider;
+import com.wesabe.grendel.util.WithSession;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.stereotype.Repository;
+
+import javax.inject.Inject;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Loads and stores {@link KeyRotation}s.
+ * <p>
+ * The time taken by statements is recorded in the
+ * {@code KeyRotationRepository.reads} and {@code writes} timers.
+ */
+@Repository
+public class KeyRotationRepository {
+
+    @Inject
+    JpaTransactionManager transactionManager;
+
+    private final Timer reads = MetricRegistryProvider.getRegistry().timer(name(KeyRotationRepository.class, "reads"));
+    private final Timer writes = MetricRegistryProvider.getRegistry().timer(name(KeyRotationRepository.class, "writes"));
+
+    /**
+     * Returns the {@link KeyRotation} of the user with the given id, or
+     * {@code null} if their keys have never been rotated.
+     */
+    public KeyRotation findByUserId(String userId) {
+        return new WithSession<KeyRotation>(transactionManager, reads).transaction(entityManager ->
+                entityManager.find(KeyRotation.class, userId));
+    }
+
+    /**
+     * Writes the {@link KeyRotation} to the database, and returns the managed
+     * instance.
+     */
+    public KeyRotation saveOrUpdate(KeyRotation rotation) {
+        return new WithSession<KeyRotation>(transactionManager, writes).transaction(entityManager -> {
+            final KeyRotation managed = entityManager.merge(rotation);
+            entityManager.flush();
+            return managed;
+        });
+    }
+
+    /**
+     * Deletes the {@link KeyRotation} of the user with the given id, if there
+     * is one.
+     */
+    public void delete(String userId) {
+        new WithSession<Boolean>(transactionManager, writes).transaction(entityManager -> {
+            final KeyRotation rotation = entityManager.find(KeyRotation.class, userId);
+            if (rotation != null) {
+                entityManager.remove(rotation);
+            }
+            return true;
+        });
+    }
+}
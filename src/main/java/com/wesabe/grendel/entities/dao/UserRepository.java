@@ -1,6 +1,8 @@
 package com.wesabe.grendel.entities.dao;
 
+import com.codahale.metrics.Timer;
 import com.wesabe.grendel.entities.User;
+import com.wesabe.grendel.modules.MetricRegistryProvider;
 import com.wesabe.grendel.util.WithSession;
 import org.springframework.orm.jpa.JpaTransactionManager;
 import org.springframework.stereotype.Repository;
@@ -8,20 +10,32 @@ import org.springframework.stereotype.Repository;
 import javax.inject.Inject;
 import java.util.List;
 
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Loads and stores {@link User}s.
+ * <p>
+ * The time taken by statements is recorded in the {@code UserRepository.reads}
+ * and {@code writes} timers.
+ */
 @Repository
 public class UserRepository {
 
     @Inject
     JpaTransactionManager transactionManager;
 
+    private final Timer reads = MetricRegistryProvider.getRegistry().timer(name(UserRepository.class, "reads"));
+    private final Timer writes = MetricRegistryProvider.getRegistry().timer(name(UserRepository.class, "writes"));
+
     /**
      * Returns {@code true} if a user already exists with the given id.
      */
     public boolean contains(String id) {
-        return new WithSession<Boolean>(transactionManager).transaction(entityManager ->
-                entityManager.createNamedQuery("com.wesabe.grendel.entities.User.Exists", User.class)
+        return new WithSession<Boolean>(transactionManager, reads).transaction(entityManager ->
+                !entityManager.createNamedQuery("com.wesabe.grendel.entities.User.Exists", String.class)
                         .setParameter("id", id)
-                        .getSingleResult() != null);
+                        .getResultList()
+                        .isEmpty());
 
     }
 
@@ -30,26 +44,42 @@ public class UserRepository {
      * does not exist.
      */
     public User findById(String id) {
-        return new WithSession<User>(transactionManager).transaction(entityManager ->
+        return new WithSession<User>(transactionManager, reads).transaction(entityManager ->
                 entityManager.find(User.class, id));
     }
 
+    /**
+     * Reloads the {@link User} from the database, discarding any changes made
+     * to it, and returns the managed instance.
+     */
+    public User refresh(User user) {
+        return new WithSession<User>(transactionManager, reads).transaction(entityManager -> {
+            if (entityManager.contains(user)) {
+                entityManager.refresh(user);
+                return user;
+            }
+            return entityManager.find(User.class, user.getId());
+        });
+    }
+
     /**
      * Returns a list of all {@link User}s.
      */
     public List<User> findAll() {
-        return new WithSession<List<User>>(transactionManager).transaction(entityManager ->
+        return new WithSession<List<User>>(transactionManager, reads).transaction(entityManager ->
                 entityManager.createNamedQuery("com.wesabe.grendel.entities.User.All", User.class)
                         .getResultList());
     }
 
     /**
-     * Writes the {@link User} to the database.
+     * Writes the {@link User} to the database, and returns the managed
+     * instance.
      */
     public User saveOrUpdate(User user) {
-        return new WithSession<User>(transactionManager).transaction(entityManager -> {
-            entityManager.persist(user);
-            return user;
+        return new WithSession<User>(transactionManager, writes).transaction(entityManager -> {
+            final User managed = entityManager.merge(user);
+            entityManager.flush();
+            return managed;
         });
     }
 
@@ -57,8 +87,8 @@ public class UserRepository {
      * Deletes the {@link User} from the database.
      */
     public void delete(User user) {
-        new WithSession<User>(transactionManager).transaction(entityManager -> {
-            entityManager.remove(user);
+        new WithSession<User>(transactionManager, writes).transaction(entityManager -> {
+            entityManager.remove(entityManager.contains(user) ? user : entityManager.merge(user));
             return user;
         });
     }
@@ -0,0 +1,103 @@
+package com.wesabe.grendel.modules;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
+
+/**
+ * A bounded pool of threads for CPU-bound cryptographic work, like
+ * decrypting several documents for a single request.
+ * <p>
+ * The pool has one thread per processor by default. Once its queue is full,
+ * tasks run on the submitting thread instead, which slows callers down rather
+ * than letting the backlog grow without bound.
+ */
+@Component
+public class CryptoExecutor implements Executor {
+    private final ThreadPoolExecutor executor;
+    private final ListeningExecutorService service;
+
+    /**
+     * Creates a new {@link CryptoExecutor}.
+     *
+     * @param metrics   a {@link MetricRegistry} to register the pool's gauges with
+     * @param threads   the number of threads, or {@code 0} for one per processor
+     * @param queueSize the number of tasks which may wait for a thread
+     */
+    @Inject
+    public CryptoExecutor(MetricRegistry metrics,
+                          @Value("${grendel.crypto.threads:0}") int threads,
+                          @Value("${grendel.crypto.queue-size:1024}") int queueSize) {
+        final int poolSize = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("crypto-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+        this.service = listeningDecorator(executor);
+
+        metrics.register(name(CryptoExecutor.class, "active"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return executor.getActiveCount();
+            }
+        });
+        metrics.register(name(CryptoExecutor.class, "queued"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return executor.getQueue().size();
+            }
+        });
+    }
+
+    /**
+     * Submits a task to the pool.
+     *
+     * @param task a task
+     * @return a future which holds the result of {@code task}
+     */
+    public <T> ListenableFuture<T> submit(Callable<T> task) {
+        return service.submit(task);
+    }
+
+    /**
+     * Returns the number of threads in the pool.
+     */
+    public int getPoolSize() {
+        return executor.getCorePoolSize();
+    }
+
+    /**
+     * Runs a task on the pool.
+     *
+     * @param task a task
+     */
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Stops the pool's threads.
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,71 @@
+package com.wesabe.grendel.modules;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * A {@link DataSource} which times how long it takes to check out a
+ * connection, and exposes the state of the underlying Tomcat JDBC pool.
+ *
+ * @see InstrumentedDataSourcePostProcessor
+ */
+public class InstrumentedDataSource extends DelegatingDataSource {
+    private final Timer checkouts;
+
+    public InstrumentedDataSource(DataSource target, MetricRegistry metrics) {
+        super(target);
+        this.checkouts = metrics.timer(name(InstrumentedDataSource.class, "checkouts"));
+
+        if (target instanceof org.apache.tomcat.jdbc.pool.DataSource) {
+            final org.apache.tomcat.jdbc.pool.DataSource pool = (org.apache.tomcat.jdbc.pool.DataSource) target;
+            metrics.register(name(InstrumentedDataSource.class, "active"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return pool.getActive();
+                }
+            });
+            metrics.register(name(InstrumentedDataSource.class, "idle"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return pool.getIdle();
+                }
+            });
+            metrics.register(name(InstrumentedDataSource.class, "waiting"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return pool.getWaitCount();
+                }
+            });
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        final Timer.Context context = checkouts.time();
+        try {
+            return super.getConnection();
+        } finally {
+            context.stop();
+            UnitOfWorkFilter.countConnection();
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        final Timer.Context context = checkouts.time();
+        try {
+            return super.getConnection(username, password);
+        } finally {
+            context.stop();
+            UnitOfWorkFilter.countConnection();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.wesabe.grendel.modules;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+
+/**
+ * Wraps the application's {@link DataSource} in an
+ * {@link InstrumentedDataSource}.
+ */
+@Component
+public class InstrumentedDataSourcePostProcessor implements BeanPostProcessor {
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        if ((bean instanceof DataSource) && !(bean instanceof InstrumentedDataSource)) {
+            return new InstrumentedDataSource((DataSource) bean, MetricRegistryProvider.getRegistry());
+        }
+        return bean;
+    }
+}
@@ -0,0 +1,25 @@
+package com.wesabe.grendel.modules;
+
+import com.codahale.metrics.Meter;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * A {@link JpaTransactionManager} which counts the transactions it begins.
+ * Joining an existing transaction isn't counted.
+ */
+public class InstrumentedTransactionManager extends JpaTransactionManager {
+    private static final long serialVersionUID = -2071447006262733151L;
+
+    private final transient Meter transactions = MetricRegistryProvider.getRegistry()
+            .meter(name(InstrumentedTransactionManager.class, "transactions"));
+
+    @Override
+    protected void doBegin(Object transaction, TransactionDefinition definition) {
+        transactions.mark();
+        UnitOfWorkFilter.countTransaction();
+        super.doBegin(transaction, definition);
+    }
+}
@@ -0,0 +1,39 @@
+package com.wesabe.grendel.modules;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import org.springframework.beans.factory.FactoryBean;
+import org.springframework.stereotype.Service;
+
+/**
+ * A {@link FactoryBean} which provides Grendel's {@link MetricRegistry}.
+ * <p>
+ * Classes which aren't managed by Spring, like the OpenPGP readers and
+ * writers, can get hold of the same registry via {@link #getRegistry()}.
+ */
+@Service
+public class MetricRegistryProvider implements FactoryBean<MetricRegistry> {
+    private static final String REGISTRY_NAME = "grendel";
+
+    /**
+     * Returns Grendel's shared {@link MetricRegistry}.
+     */
+    public static MetricRegistry getRegistry() {
+        return SharedMetricRegistries.getOrCreate(REGISTRY_NAME);
+    }
+
+    @Override
+    public MetricRegistry getObject() throws Exception {
+        return getRegistry();
+    }
+
+    @Override
+    public Class<?> getObjectType() {
+        return MetricRegistry.class;
+    }
+
+    @Override
+    public boolean isSingleton() {
+        return true;
+    }
+}
@@ -0,0 +1,164 @@
+package com.wesabe.grendel.modules;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * A bounded pool of threads which runs the cryptographic work of suspended
+ * requests, so that request threads are free to serve other requests while
+ * documents are encrypted and decrypted.
+ * <p>
+ * Each task runs in its own transaction, like a request does in
+ * {@link UnitOfWorkFilter}, and the suspended response is only resumed once
+ * the transaction has completed. Responses with an error status roll the
+ * transaction back. Once the pool's queue is full, requests are turned away
+ * with a {@code 503 Service Unavailable}.
+ * <p>
+ * Tasks shouldn't read request entities, since a few slow clients could then
+ * hold every thread in the pool. Entities are buffered on the request thread
+ * instead, before the task is submitted.
+ * <p>
+ * This pool is separate from {@link CryptoExecutor}, whose tasks its own
+ * tasks wait on.
+ */
+@Component
+public class RequestExecutor {
+    private final ThreadPoolExecutor executor;
+    private final TransactionTemplate readOnlyTemplate;
+    private final TransactionTemplate readWriteTemplate;
+    private final Timer waits;
+    private final Meter rejections;
+
+    /**
+     * Creates a new {@link RequestExecutor}.
+     *
+     * @param metrics            a {@link MetricRegistry} to register the pool's metrics with
+     * @param transactionManager the transaction manager to run tasks with
+     * @param threads            the number of threads, or {@code 0} for two per processor
+     * @param queueSize          the number of requests which may wait for a thread
+     */
+    @Inject
+    public RequestExecutor(MetricRegistry metrics, PlatformTransactionManager transactionManager,
+                           @Value("${grendel.requests.threads:0}") int threads,
+                           @Value("${grendel.requests.queue-size:256}") int queueSize) {
+        final int poolSize = (threads > 0) ? threads : 2 * Runtime.getRuntime().availableProcessors();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("request-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+
+        this.readOnlyTemplate = new TransactionTemplate(transactionManager);
+        readOnlyTemplate.setReadOnly(true);
+        this.readWriteTemplate = new TransactionTemplate(transactionManager);
+
+        this.waits = metrics.timer(name(RequestExecutor.class, "wait"));
+        this.rejections = metrics.meter(name(RequestExecutor.class, "rejected"));
+        metrics.register(name(RequestExecutor.class, "active"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return executor.getActiveCount();
+            }
+        });
+        metrics.register(name(RequestExecutor.class, "queued"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getQueueLength();
+            }
+        });
+    }
+
+    /**
+     * Runs {@code task} on the pool in a transaction, and resumes
+     * {@code response} with its result, or with whatever it throws.
+     *
+     * @param response the suspended response
+     * @param readOnly whether the task only reads
+     * @param task     a task which returns the response entity, usually a
+     *                 {@link Response}
+     * @return {@code false} if the pool's queue was full, in which case
+     *         {@code task} will never run
+     */
+    public boolean resume(final AsyncResponse response, boolean readOnly, final Callable<?> task) {
+        final TransactionTemplate template = readOnly ? readOnlyTemplate : readWriteTemplate;
+        final long queuedAt = System.nanoTime();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    waits.update(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
+
+                    final Object result;
+                    try {
+                        result = template.execute((TransactionStatus status) -> {
+                            final Object entity = call(task);
+                            if (entity instanceof Response && ((Response) entity).getStatus() >= 400) {
+                                status.setRollbackOnly();
+                            }
+                            return entity;
+                        });
+                    } catch (TaskException e) {
+                        response.resume(e.getCause());
+                        return;
+                    } catch (RuntimeException | Error e) {
+                        response.resume(e);
+                        return;
+                    }
+                    response.resume(result);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejections.mark();
+            response.resume(Response.status(Status.SERVICE_UNAVAILABLE).build());
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of requests waiting for a thread.
+     */
+    public int getQueueLength() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops the pool's threads.
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static Object call(Callable<?> task) {
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new TaskException(e);
+        }
+    }
+}
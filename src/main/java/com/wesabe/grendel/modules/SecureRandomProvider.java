@@ -1,58 +1,126 @@
 package com.wesabe.grendel.modules;
 
 
-import org.slf4j.Logger;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.FactoryBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
 import javax.inject.Provider;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-import static java.security.SecureRandom.getInstance;
-import static java.security.SecureRandom.getSeed;
+import static com.codahale.metrics.MetricRegistry.name;
 import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 
 /**
  * A Guice {@link Provider} which manages a {@link SecureRandom} instance.
+ * <p>
+ * The instance is a {@link StripedSecureRandom}, so concurrent requests don't
+ * contend for a single PRNG. Each stripe is reseeded every hour, at staggered
+ * times, on a background thread.
+ * <p>
+ * Seeds come from a non-blocking entropy source, both at startup and when
+ * reseeding, and a reseeded stripe is swapped in whole, so request threads
+ * never wait on entropy. The time spent gathering entropy and the total time
+ * taken to reseed a stripe are recorded as the
+ * {@code SecureRandomProvider.entropy} and {@code SecureRandomProvider.reseed}
+ * timers.
  *
  * @author coda
  */
 @Service
 public class SecureRandomProvider implements FactoryBean<SecureRandom> {
     private static final int ENTROPY_UPDATE_SIZE = 64;
+    private static final long UPDATE_PERIOD_SECONDS = TimeUnit.HOURS.toSeconds(1);
 
     private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(SecureRandomProvider.class);
 
-    private static final String PRNG_ALGORITHM = "SHA1PRNG";
-    private static final String PRNG_PROVIDER = "SUN";
-
-    private final SecureRandom random;
+    private final SecureRandom entropy;
+    private final StripedSecureRandom random;
     private final ScheduledExecutorService pool;
+    private final Timer entropyTimer;
+    private final Timer reseedTimer;
 
     public SecureRandomProvider() {
-        this.pool = newSingleThreadScheduledExecutor();
+        this(0);
+    }
 
-        LOGGER.info("Creating PRNG");
+    public SecureRandomProvider(int stripes) {
+        this(MetricRegistryProvider.getRegistry(), stripes);
+    }
+
+    /**
+     * Creates a new {@link SecureRandomProvider}.
+     *
+     * @param metrics a {@link MetricRegistry} to register the reseeding timers with
+     * @param stripes the number of stripes, or {@code 0} for two per processor
+     */
+    @Inject
+    public SecureRandomProvider(MetricRegistry metrics,
+                                @Value("${grendel.random.stripes:0}") int stripes) {
+        this.pool = newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("prng-reseed-%d").setDaemon(true).build());
+        this.entropyTimer = metrics.timer(name(SecureRandomProvider.class, "entropy"));
+        this.reseedTimer = metrics.timer(name(SecureRandomProvider.class, "reseed"));
+        this.entropy = StripedSecureRandom.nonBlockingEntropySource();
+
+        LOGGER.info("Creating and seeding PRNG from {}", entropy.getAlgorithm());
         try {
-            this.random = getInstance(PRNG_ALGORITHM, PRNG_PROVIDER);
+            this.random = new StripedSecureRandom(
+                    (stripes > 0) ? stripes : 2 * Runtime.getRuntime().availableProcessors(), entropy);
         } catch (GeneralSecurityException e) {
             throw new IllegalStateException(e);
         }
+        LOGGER.info("Seeded PRNG with {} stripes", random.getStripeCount());
 
-        LOGGER.info("Seeding PRNG");
-        random.nextInt(); // force seeding
-        LOGGER.info("Next Seed PRNG");
-
-        // update the PRNG every hour, starting in an hour
-        pool.scheduleAtFixedRate(new UpdateTask(random, LOGGER), 1, 1, TimeUnit.HOURS);
+        // update each stripe every hour, starting within the hour
+        final int count = random.getStripeCount();
+        for (int i = 0; i < count; i++) {
+            final long delay = UPDATE_PERIOD_SECONDS * (i + 1) / count;
+            pool.scheduleAtFixedRate(new UpdateTask(i), delay, UPDATE_PERIOD_SECONDS, TimeUnit.SECONDS);
+        }
 
         LOGGER.info("Scheduled Seed PRNG");
     }
 
+    /**
+     * Reseeds a single stripe of the PRNG immediately, on the calling thread.
+     *
+     * @param stripe the index of the stripe
+     * @throws GeneralSecurityException if the PRNG isn't available
+     */
+    public void reseed(int stripe) throws GeneralSecurityException {
+        final Timer.Context reseeding = reseedTimer.time();
+        try {
+            final byte[] seed;
+            final Timer.Context gathering = entropyTimer.time();
+            try {
+                seed = entropy.generateSeed(ENTROPY_UPDATE_SIZE);
+            } finally {
+                gathering.stop();
+            }
+            random.reseed(stripe, seed);
+        } finally {
+            reseeding.stop();
+        }
+    }
+
+    /**
+     * Stops reseeding the PRNG.
+     */
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
     @Override
     public SecureRandom getObject() throws Exception {
         return random;
@@ -69,24 +137,24 @@ public class SecureRandomProvider implements FactoryBean<SecureRandom> {
     }
 
     /**
-     * A scheduled, asynchronous task which generates additional entropy and
-     * adds it to the PRNG's entropy pool.
+     * A scheduled, asynchronous task which reseeds one stripe of the PRNG.
      */
-    private static class UpdateTask implements Runnable {
-        private final SecureRandom random;
-        private final Logger logger;
+    private class UpdateTask implements Runnable {
+        private final int stripe;
 
-        public UpdateTask(SecureRandom random, Logger logger) {
-            this.random = random;
-            this.logger = logger;
+        public UpdateTask(int stripe) {
+            this.stripe = stripe;
         }
 
         @Override
         public void run() {
-            logger.info("Generating new PRNG seed");
-            final byte[] seed = getSeed(ENTROPY_UPDATE_SIZE);
-            logger.info("Updating PRNG seed");
-            random.setSeed(seed);
+            LOGGER.info("Reseeding PRNG stripe {}", stripe);
+            try {
+                reseed(stripe);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                // an exception would cancel all future updates of this stripe
+                LOGGER.error("Unable to reseed PRNG stripe " + stripe, e);
+            }
         }
     }
 }
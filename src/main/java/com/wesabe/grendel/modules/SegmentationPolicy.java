@@ -0,0 +1,50 @@
+package com.wesabe.grendel.modules;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.inject.Inject;
+
+/**
+ * Decides which document bodies are stored as segmented messages, which can
+ * be partially decrypted to serve {@code Range} requests.
+ * <p>
+ * Segmenting a body costs a few bytes per segment and an extra header, so
+ * only bodies which are known to be large are segmented.
+ */
+@Component
+public class SegmentationPolicy {
+    private final long threshold;
+    private final int segmentSize;
+
+    /**
+     * Creates a new {@link SegmentationPolicy}.
+     *
+     * @param threshold   the smallest body, in bytes, which is segmented
+     * @param segmentSize the number of plaintext bytes in each segment
+     */
+    @Inject
+    public SegmentationPolicy(@Value("${grendel.segments.threshold:16777216}") long threshold,
+                              @Value("${grendel.segments.size:1048576}") int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("invalid segment size: " + segmentSize);
+        }
+        this.threshold = threshold;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Returns {@code true} if a body of {@code contentLength} bytes should be
+     * segmented. Bodies of unknown length ({@code -1}) aren't.
+     */
+    public boolean shouldSegment(long contentLength) {
+        return contentLength >= 0 && contentLength >= threshold;
+    }
+
+    /**
+     * Returns the number of plaintext bytes in each segment.
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+}
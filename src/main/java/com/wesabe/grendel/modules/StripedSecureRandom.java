@@ -0,0 +1,201 @@
+package com.wesabe.grendel.modules;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static java.security.SecureRandom.getInstance;
+
+/**
+ * A {@link SecureRandom} which spreads its callers over a fixed number of
+ * independently seeded PRNGs, so that concurrent callers rarely wait on each
+ * other.
+ * <p>
+ * Each thread always uses the same stripe. Stripes are never shared with
+ * another {@link StripedSecureRandom}, and each can be reseeded on its own
+ * with {@link #reseed(int, byte[])}, which swaps in a freshly seeded PRNG
+ * rather than holding the stripe's lock while it's reseeded.
+ * <p>
+ * Stripes are seeded from an entropy source passed in, never by the PRNG
+ * seeding itself, which can block on some systems.
+ */
+public class StripedSecureRandom extends SecureRandom {
+    private static final long serialVersionUID = -2203475093163434316L;
+    private static final String PRNG_ALGORITHM = "SHA1PRNG";
+    private static final String PRNG_PROVIDER = "SUN";
+    private static final String ENTROPY_ALGORITHM = "NativePRNGNonBlocking";
+    private static final int SEED_SIZE = 64;
+    private static final int CARRIED_SEED_SIZE = 32;
+
+    private final AtomicReferenceArray<SecureRandom> stripes;
+    private final int mask;
+
+    /**
+     * Creates a new {@link StripedSecureRandom}, seeded from
+     * {@link #nonBlockingEntropySource()}.
+     *
+     * @param stripes the number of stripes, which is rounded up to a power of
+     *                two
+     * @throws GeneralSecurityException if the PRNG isn't available
+     */
+    public StripedSecureRandom(int stripes) throws GeneralSecurityException {
+        this(stripes, nonBlockingEntropySource());
+    }
+
+    /**
+     * Creates a new {@link StripedSecureRandom}.
+     *
+     * @param stripes the number of stripes, which is rounded up to a power of
+     *                two
+     * @param entropy the source of each stripe's seed
+     * @throws GeneralSecurityException if the PRNG isn't available
+     */
+    public StripedSecureRandom(int stripes, SecureRandom entropy) throws GeneralSecurityException {
+        this(newStripes(stripes, entropy));
+    }
+
+    private StripedSecureRandom(AtomicReferenceArray<SecureRandom> stripes) {
+        super(new StripedSpi(stripes), null);
+        this.stripes = stripes;
+        this.mask = stripes.length() - 1;
+    }
+
+    /**
+     * Returns a source of entropy which doesn't block: {@code /dev/urandom}
+     * where it's available, or the platform's default {@link SecureRandom}
+     * otherwise.
+     */
+    public static SecureRandom nonBlockingEntropySource() {
+        try {
+            return getInstance(ENTROPY_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+
+    private static AtomicReferenceArray<SecureRandom> newStripes(int count,
+                                                                 SecureRandom entropy) throws GeneralSecurityException {
+        if (count <= 0) {
+            throw new IllegalArgumentException("invalid stripe count: " + count);
+        }
+
+        int size = Integer.highestOneBit(count);
+        if (size < count) {
+            size <<= 1;
+        }
+
+        final AtomicReferenceArray<SecureRandom> stripes = new AtomicReferenceArray<>(size);
+        for (int i = 0; i < size; i++) {
+            stripes.set(i, newStripe(entropy.generateSeed(SEED_SIZE)));
+        }
+        return stripes;
+    }
+
+    /*
+     * Seeding SHA1PRNG before it's used replaces its self-seeding.
+     */
+    private static SecureRandom newStripe(byte[] seed) throws GeneralSecurityException {
+        final SecureRandom stripe = getInstance(PRNG_ALGORITHM, PRNG_PROVIDER);
+        stripe.setSeed(seed);
+        return stripe;
+    }
+
+    /**
+     * Returns the number of stripes.
+     */
+    public int getStripeCount() {
+        return stripes.length();
+    }
+
+    /**
+     * Replaces a single stripe with a new PRNG, seeded with {@code seed} and
+     * with output from the stripe it replaces. Callers using the stripe are
+     * never blocked while it's reseeded.
+     *
+     * @param stripe the index of the stripe
+     * @param seed   the new seed
+     * @throws GeneralSecurityException if the PRNG isn't available
+     */
+    public void reseed(int stripe, byte[] seed) throws GeneralSecurityException {
+        final byte[] carried = new byte[CARRIED_SEED_SIZE];
+        stripes.get(stripe).nextBytes(carried);
+
+        final SecureRandom replacement = newStripe(seed);
+        replacement.setSeed(carried);
+        stripes.set(stripe, replacement);
+    }
+
+    /*
+     * SecureRandom#nextBytes is synchronized, which would serialize every
+     * caller on this instance, so stripes are used directly instead.
+     */
+    @Override
+    public void nextBytes(byte[] bytes) {
+        stripe().nextBytes(bytes);
+    }
+
+    /**
+     * Adds {@code seed} to every stripe's entropy.
+     */
+    @Override
+    public void setSeed(byte[] seed) {
+        for (int i = 0; i < stripes.length(); i++) {
+            stripes.get(i).setSeed(seed);
+        }
+    }
+
+    @Override
+    public void setSeed(long seed) {
+        // called by Random's constructor, before there are any stripes
+        if (stripes != null) {
+            super.setSeed(seed);
+        }
+    }
+
+    @Override
+    public byte[] generateSeed(int numBytes) {
+        return stripe().generateSeed(numBytes);
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return PRNG_ALGORITHM;
+    }
+
+    private SecureRandom stripe() {
+        // spread sequential thread IDs over the stripes
+        final long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return stripes.get((int) (id >>> 32) & mask);
+    }
+
+    /**
+     * Used by the methods of {@link SecureRandom} which aren't overridden.
+     */
+    private static class StripedSpi extends SecureRandomSpi {
+        private static final long serialVersionUID = 1434290917343735094L;
+        private final AtomicReferenceArray<SecureRandom> stripes;
+
+        private StripedSpi(AtomicReferenceArray<SecureRandom> stripes) {
+            this.stripes = stripes;
+        }
+
+        @Override
+        protected void engineSetSeed(byte[] seed) {
+            for (int i = 0; i < stripes.length(); i++) {
+                stripes.get(i).setSeed(seed);
+            }
+        }
+
+        @Override
+        protected void engineNextBytes(byte[] bytes) {
+            stripes.get(0).nextBytes(bytes);
+        }
+
+        @Override
+        protected byte[] engineGenerateSeed(int numBytes) {
+            return stripes.get(0).generateSeed(numBytes);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.wesabe.grendel.modules;
+
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Carries checked exceptions out of a {@link TransactionTemplate}, which
+ * rolls the transaction back.
+ *
+ * @see UnitOfWorkFilter
+ * @see RequestExecutor
+ */
+class TaskException extends RuntimeException {
+    private static final long serialVersionUID = -2826212425131538473L;
+
+    TaskException(Exception cause) {
+        super(cause);
+    }
+}
@@ -0,0 +1,241 @@
+package com.wesabe.grendel.modules;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * A servlet filter which runs each request in a single transaction, so that
+ * authentication, repository calls, and resource methods share one
+ * {@link javax.persistence.EntityManager} and one connection.
+ * <p>
+ * {@code GET}, {@code HEAD} and {@code OPTIONS} requests run in a read-only
+ * transaction. Every response is buffered until the transaction completes, so
+ * a client never sees a successful response for a change which wasn't stored,
+ * and the connection is back in the pool before the body is sent to a slow
+ * client. Any response with an error status rolls the transaction back.
+ * <p>
+ * Requests which are suspended run their work in a transaction of their own,
+ * usually via {@link RequestExecutor}, and their responses are written
+ * straight through once this filter's transaction has completed. Resources
+ * with large bodies are suspended, so they're never held in the buffer.
+ * <p>
+ * Requests for {@code /metrics} aren't run in a transaction at all.
+ */
+public class UnitOfWorkFilter extends OncePerRequestFilter {
+    private static final ThreadLocal<int[]> COUNTS = new ThreadLocal<>();
+    private static final int TRANSACTIONS = 0, CONNECTIONS = 1;
+    private static final String METRICS_PATH = "/metrics";
+
+    private final TransactionTemplate readOnlyTemplate;
+    private final TransactionTemplate readWriteTemplate;
+    private final Histogram transactionsPerRequest;
+    private final Histogram connectionsPerRequest;
+
+    public UnitOfWorkFilter(PlatformTransactionManager transactionManager, MetricRegistry metrics) {
+        this.readOnlyTemplate = new TransactionTemplate(transactionManager);
+        readOnlyTemplate.setReadOnly(true);
+        this.readWriteTemplate = new TransactionTemplate(transactionManager);
+        this.transactionsPerRequest = metrics.histogram(name(UnitOfWorkFilter.class, "transactions-per-request"));
+        this.connectionsPerRequest = metrics.histogram(name(UnitOfWorkFilter.class, "connections-per-request"));
+    }
+
+    /**
+     * Records that a transaction was started on the current thread.
+     */
+    static void countTransaction() {
+        count(TRANSACTIONS);
+    }
+
+    /**
+     * Records that a connection was checked out on the current thread.
+     */
+    static void countConnection() {
+        count(CONNECTIONS);
+    }
+
+    private static void count(int index) {
+        final int[] counts = COUNTS.get();
+        if (counts != null) {
+            counts[index]++;
+        }
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                    FilterChain chain) throws ServletException, IOException {
+        final int[] counts = new int[2];
+        COUNTS.set(counts);
+        try {
+            final BufferedResponse buffered = new BufferedResponse(response);
+            execute(isReadOnly(request) ? readOnlyTemplate : readWriteTemplate, request, buffered, chain);
+            buffered.release(!request.isAsyncStarted());
+        } finally {
+            COUNTS.remove();
+            transactionsPerRequest.update(counts[TRANSACTIONS]);
+            connectionsPerRequest.update(counts[CONNECTIONS]);
+        }
+    }
+
+    /*
+     * Metrics are scraped often and never touch the database.
+     */
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return METRICS_PATH.equals(request.getRequestURI().substring(request.getContextPath().length()));
+    }
+
+    private boolean isReadOnly(HttpServletRequest request) {
+        final String method = request.getMethod();
+        return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method);
+    }
+
+    private void execute(TransactionTemplate template, final HttpServletRequest request,
+                         final HttpServletResponse response, final FilterChain chain) throws ServletException, IOException {
+        try {
+            template.execute((TransactionStatus status) -> {
+                try {
+                    chain.doFilter(request, response);
+                } catch (IOException | ServletException e) {
+                    throw new TaskException(e);
+                }
+
+                if (response.getStatus() >= 400) {
+                    status.setRollbackOnly();
+                }
+                return null;
+            });
+        } catch (TaskException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw (ServletException) e.getCause();
+        }
+    }
+
+    /**
+     * A response whose body is held in memory until {@link #release(boolean)}
+     * is called, after which it's written straight through. Status and
+     * headers are passed through, since they aren't sent until the body is.
+     */
+    private static class BufferedResponse extends HttpServletResponseWrapper {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private ServletOutputStream outputStream;
+        private PrintWriter writer;
+        private boolean released = false;
+
+        private BufferedResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public synchronized ServletOutputStream getOutputStream() {
+            if (outputStream == null) {
+                this.outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        synchronized (BufferedResponse.this) {
+                            if (released) {
+                                getResponse().getOutputStream().write(b);
+                            } else {
+                                buffer.write(b);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        synchronized (BufferedResponse.this) {
+                            if (released) {
+                                getResponse().getOutputStream().write(b, off, len);
+                            } else {
+                                buffer.write(b, off, len);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        synchronized (BufferedResponse.this) {
+                            if (released) {
+                                getResponse().getOutputStream().flush();
+                            }
+                        }
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public synchronized PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                this.writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public synchronized void flushBuffer() throws IOException {
+            if (released) {
+                super.flushBuffer();
+            }
+            // otherwise held until the transaction commits
+        }
+
+        @Override
+        public synchronized boolean isCommitted() {
+            return released && super.isCommitted();
+        }
+
+        @Override
+        public synchronized void reset() {
+            super.reset();
+            buffer.reset();
+        }
+
+        @Override
+        public synchronized void resetBuffer() {
+            super.resetBuffer();
+            buffer.reset();
+        }
+
+        /*
+         * Writes out the buffered body, and passes anything written later
+         * straight through. Suspended responses aren't flushed, since they may
+         * still be being written.
+         */
+        private synchronized void release(boolean flush) throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+
+            final HttpServletResponse response = (HttpServletResponse) getResponse();
+            if (buffer.size() > 0) {
+                buffer.writeTo(response.getOutputStream());
+                buffer.reset();
+            }
+            this.released = true;
+
+            if (flush) {
+                response.flushBuffer();
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.wesabe.grendel.modules;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.inject.Inject;
+
+/**
+ * Limits the size of a batch upload, and how much of it is encrypted before
+ * it's written to the database.
+ * <p>
+ * Encrypted bodies which aren't kept in a body store are held in memory until
+ * they're written, so a batch is encrypted and written a chunk at a time. The
+ * chunks are all written in the request's transaction, so a batch is still
+ * stored all or nothing.
+ */
+@Component
+public class UploadPolicy {
+    private final long maxSize;
+    private final long chunkSize;
+
+    /**
+     * Creates a new {@link UploadPolicy}.
+     *
+     * @param maxSize   the largest batch upload, in bytes
+     * @param chunkSize the number of plaintext bytes to encrypt before writing
+     *                  them; a chunk always holds at least one document
+     */
+    @Inject
+    public UploadPolicy(@Value("${grendel.uploads.max-size:67108864}") long maxSize,
+                        @Value("${grendel.uploads.chunk-size:8388608}") long chunkSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("invalid maximum upload size: " + maxSize);
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("invalid chunk size: " + chunkSize);
+        }
+        this.maxSize = maxSize;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Returns the largest batch upload, in bytes, including its multipart
+     * headers and boundaries.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of plaintext bytes to encrypt before writing them.
+     */
+    public long getChunkSize() {
+        return chunkSize;
+    }
+}
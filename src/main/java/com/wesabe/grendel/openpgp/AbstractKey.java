@@ -1,8 +1,15 @@
 package com.wesabe.grendel.openpgp;
 
+import org.bouncycastle.asn1.x9.ECNamedCurveTable;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.bcpg.BCPGKey;
+import org.bouncycastle.bcpg.ECPublicBCPGKey;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPrivateKey;
 import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPSecretKey;
 import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
@@ -56,6 +63,15 @@ public abstract class AbstractKey {
      */
     public abstract UnlockedKey unlock(char[] passphrase) throws CryptographicException;
 
+    /**
+     * Decrypts the secret key with {@code decryptor}.
+     *
+     * @throws PGPException if the decryptor's passphrase is incorrect
+     */
+    protected PGPPrivateKey extractPrivateKey(PBESecretKeyDecryptor decryptor) throws PGPException {
+        return secretKey.extractPrivateKey(decryptor);
+    }
+
     /**
      * Returns this key's public key component.
      */
@@ -116,9 +132,17 @@ public abstract class AbstractKey {
     }
 
     /**
-     * Returns the key's size, in bits.
+     * Returns the key's size, in bits. For elliptic-curve keys, this is the
+     * size of the curve's field.
      */
     public int getSize() {
+        final BCPGKey key = publicKey.getPublicKeyPacket().getKey();
+        if (key instanceof ECPublicBCPGKey) {
+            final X9ECParameters curve = ECNamedCurveTable.getByOID(((ECPublicBCPGKey) key).getCurveOID());
+            if (curve != null) {
+                return curve.getCurve().getFieldSize();
+            }
+        }
         return publicKey.getBitStrength();
     }
 
@@ -4,6 +4,7 @@ import com.wesabe.grendel.util.IntegerEquivalent;
 import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
 
 import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECGenParameterSpec;
 import java.security.spec.RSAKeyGenParameterSpec;
 
 /**
@@ -68,22 +69,30 @@ public enum AsymmetricAlgorithm implements IntegerEquivalent {
     RSA_S("RSA(s)", PublicKeyAlgorithmTags.RSA_SIGN),
 
     /**
-     * Elliptic Curve
+     * Elliptic Curve Diffie-Hellman (Encrypt-Only). Keys are generated on the
+     * NIST P-256 curve unless a {@link KeySuite} says otherwise.
      *
-     * @see <a href="http://www.ietf.org/rfc/rfc4880.txt">Section 13.8, RFC 4880</a>
-     * @deprecated Underspecified in RFC 4880.
+     * @see <a href="http://www.ietf.org/rfc/rfc6637.txt">RFC 6637</a>
      */
-    @Deprecated
-    EC("EC", PublicKeyAlgorithmTags.EC),
+    EC("EC", PublicKeyAlgorithmTags.ECDH) {
+        @Override
+        public AlgorithmParameterSpec getAlgorithmParameterSpec() {
+            return new ECGenParameterSpec("P-256");
+        }
+    },
 
     /**
-     * Elliptic Curve Digital Signature Algorithm.
+     * Elliptic Curve Digital Signature Algorithm. Keys are generated on the
+     * NIST P-256 curve unless a {@link KeySuite} says otherwise.
      *
-     * @see <a href="http://www.ietf.org/rfc/rfc4880.txt">Section 13.8, RFC 4880</a>
-     * @deprecated Underspecified in RFC 4880.
+     * @see <a href="http://www.ietf.org/rfc/rfc6637.txt">RFC 6637</a>
      */
-    @Deprecated
-    ECDSA("ECDSA", PublicKeyAlgorithmTags.ECDSA),
+    ECDSA("ECDSA", PublicKeyAlgorithmTags.ECDSA) {
+        @Override
+        public AlgorithmParameterSpec getAlgorithmParameterSpec() {
+            return new ECGenParameterSpec("P-256");
+        }
+    },
 
     /**
      * Elgamal (Encrypt or Sign)
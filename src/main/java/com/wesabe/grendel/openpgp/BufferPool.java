@@ -0,0 +1,79 @@
+package com.wesabe.grendel.openpgp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static java.util.Arrays.fill;
+
+/**
+ * A bounded pool of fixed-size byte arrays, used by {@link MessageWriter},
+ * {@link MessageReader}, and {@link MessageRewrapper} for their partial packet
+ * and copy buffers instead of allocating new ones for every message.
+ * <p>
+ * Buffers hold plaintext and ciphertext while they're in use, so they're
+ * wiped when they're returned. Callers never wait for a buffer: if the pool
+ * is empty a new one is allocated, and if it's full a returned buffer is left
+ * for the garbage collector.
+ */
+public class BufferPool {
+    /**
+     * The pool shared by the message readers and writers. A message being
+     * written holds three buffers, so this holds enough for a couple of
+     * messages per processor.
+     */
+    static final BufferPool MESSAGES = new BufferPool(1 << 16, 8 * Runtime.getRuntime().availableProcessors());
+
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> buffers;
+
+    /**
+     * Creates a new, empty {@link BufferPool}.
+     *
+     * @param bufferSize the size of each buffer, in bytes
+     * @param capacity   the maximum number of idle buffers to keep
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("invalid buffer size: " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Returns the size of each buffer, in bytes.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns the number of idle buffers in the pool.
+     */
+    public int getIdleCount() {
+        return buffers.size();
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates a new one if the pool is
+     * empty. The buffer is zeroed.
+     */
+    public byte[] acquire() {
+        final byte[] buffer = buffers.poll();
+        return (buffer == null) ? new byte[bufferSize] : buffer;
+    }
+
+    /**
+     * Wipes {@code buffer} and returns it to the pool. It must not be used by
+     * the caller afterwards.
+     *
+     * @param buffer a buffer taken from this pool
+     */
+    public void release(byte[] buffer) {
+        if (buffer.length != bufferSize) {
+            throw new IllegalArgumentException("buffer is " + buffer.length + " bytes, not " + bufferSize);
+        }
+        fill(buffer, (byte) 0);
+        buffers.offer(buffer);
+    }
+}
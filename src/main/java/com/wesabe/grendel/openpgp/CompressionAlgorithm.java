@@ -15,7 +15,8 @@ public enum CompressionAlgorithm implements IntegerEquivalent {
      *
      * @see <a href="http://www.cs.umd.edu/~jkatz/papers/pgp-attack.pdf">Implementation of Chosen-Ciphertext Attacks against PGP and GnuPG</a>
      * @deprecated Leaves messages vulnerable to adaptive chosen-plaintext
-     * attacks.
+     * attacks, unless they're integrity-protected. Use
+     * {@link CompressionLevel#STORED} instead.
      */
     @Deprecated
     NONE("None", CompressionAlgorithmTags.UNCOMPRESSED),
@@ -0,0 +1,58 @@
+package com.wesabe.grendel.openpgp;
+
+import java.util.zip.Deflater;
+
+/**
+ * How hard {@link MessageWriter} compresses a message body before encrypting
+ * it.
+ *
+ * @see CompressionPolicy
+ */
+public enum CompressionLevel {
+    /**
+     * Stored without compression, in a compressed data packet. Used for bodies
+     * which are already compressed or encrypted, where compressing them again
+     * would only cost time.
+     */
+    @SuppressWarnings("deprecation")
+    STORED("Stored", CompressionAlgorithm.NONE, Deflater.NO_COMPRESSION),
+
+    /**
+     * ZLIB, at its fastest level.
+     */
+    FAST("Fast", CompressionAlgorithm.ZLIB, Deflater.BEST_SPEED),
+
+    /**
+     * ZLIB, at its strongest level.
+     */
+    STRONG("Strong", CompressionAlgorithm.ZLIB, Deflater.BEST_COMPRESSION);
+
+    private final String name;
+    private final CompressionAlgorithm algorithm;
+    private final int level;
+
+    private CompressionLevel(String name, CompressionAlgorithm algorithm, int level) {
+        this.name = name;
+        this.algorithm = algorithm;
+        this.level = level;
+    }
+
+    /**
+     * Returns the {@link CompressionAlgorithm} used at this level.
+     */
+    public CompressionAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns the {@link Deflater} level used at this level.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,154 @@
+package com.wesabe.grendel.openpgp;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Picks a {@link CompressionLevel} for a message body, from its content type
+ * and a sample of its first bytes.
+ * <p>
+ * Bodies whose content type is already compressed (e.g., {@code image/jpeg}
+ * or {@code application/zip}) are stored. Textual bodies are compressed
+ * strongly, since they compress well. Bodies of any other content type are
+ * stored if their sample looks random — i.e., already compressed or
+ * encrypted — and compressed quickly otherwise.
+ */
+public class CompressionPolicy {
+    /**
+     * The number of bytes of a message body which should be sampled.
+     */
+    public static final int SAMPLE_SIZE = 4096;
+
+    /**
+     * Samples shorter than this are too short to judge, and their bodies are
+     * compressed quickly.
+     */
+    private static final int MIN_SAMPLE_SIZE = 1024;
+
+    /**
+     * The entropy, in bits per byte, above which a sample is considered to be
+     * incompressible. Compressed and encrypted data is very close to 8.
+     */
+    private static final double MAX_ENTROPY = 7.5;
+
+    private static final Set<String> COMPRESSED_TYPES = ImmutableSet.of(
+            "application/zip",
+            "application/gzip",
+            "application/x-gzip",
+            "application/x-bzip2",
+            "application/x-xz",
+            "application/x-7z-compressed",
+            "application/x-rar-compressed",
+            "application/pgp-encrypted",
+            "image/jpeg",
+            "image/png",
+            "image/gif",
+            "image/webp"
+    );
+    private static final Set<String> COMPRESSED_PREFIXES = ImmutableSet.of("audio/", "video/");
+    private static final Set<String> TEXT_TYPES = ImmutableSet.of(
+            "application/json",
+            "application/xml",
+            "application/javascript",
+            "application/x-www-form-urlencoded"
+    );
+
+    private final String contentType;
+
+    /**
+     * Creates a new {@link CompressionPolicy} for bodies of an unknown content
+     * type, which are judged by their samples alone.
+     */
+    public CompressionPolicy() {
+        this(null);
+    }
+
+    /**
+     * Creates a new {@link CompressionPolicy} for bodies of a given content
+     * type.
+     *
+     * @param contentType the body's content type, with or without parameters,
+     *                    or {@code null} if it isn't known
+     */
+    public CompressionPolicy(String contentType) {
+        this.contentType = normalize(contentType);
+    }
+
+    /**
+     * Returns the {@link CompressionLevel} a body should be written with.
+     *
+     * @param sample the first bytes of the body
+     * @param length the number of bytes in {@code sample}
+     */
+    public CompressionLevel choose(byte[] sample, int length) {
+        if (contentType != null) {
+            if (isCompressed(contentType)) {
+                return CompressionLevel.STORED;
+            }
+
+            if (isText(contentType)) {
+                return CompressionLevel.STRONG;
+            }
+        }
+
+        if (length >= MIN_SAMPLE_SIZE && entropy(sample, length) > MAX_ENTROPY) {
+            return CompressionLevel.STORED;
+        }
+
+        return CompressionLevel.FAST;
+    }
+
+    /**
+     * Returns the Shannon entropy of {@code sample}, in bits per byte.
+     */
+    private static double entropy(byte[] sample, int length) {
+        final int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[sample[i] & 0xFF]++;
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                final double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    private static boolean isCompressed(String type) {
+        if (COMPRESSED_TYPES.contains(type)) {
+            return true;
+        }
+
+        for (String prefix : COMPRESSED_PREFIXES) {
+            if (type.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isText(String type) {
+        return type.startsWith("text/") || TEXT_TYPES.contains(type) ||
+                type.endsWith("+json") || type.endsWith("+xml");
+    }
+
+    private static String normalize(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+
+        final int semicolon = contentType.indexOf(';');
+        final String type = (semicolon < 0) ? contentType : contentType.substring(0, semicolon);
+        return type.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionPolicy[" + contentType + "]";
+    }
+}
@@ -0,0 +1,213 @@
+package com.wesabe.grendel.openpgp;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.security.KeyPairGenerator.getInstance;
+
+/**
+ * A pool of pregenerated {@link KeyPair}s, kept topped up in the background by
+ * a bounded set of low-priority daemon threads. No more refills are scheduled
+ * than are needed to fill the pool.
+ * <p>
+ * Generating RSA key pairs takes a variable and often long time, so handing
+ * out pregenerated key pairs keeps that cost off the request path. When the
+ * pool for an algorithm is empty, a key pair is generated on demand instead.
+ * <p>
+ * Key pairs for each algorithm are generated with the same parameters, either
+ * the algorithm's own or those of a {@link KeySuite}.
+ *
+ * @see KeySetGenerator
+ */
+public class KeyPairPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeyPairPool.class);
+
+    private final SecureRandom random;
+    private final int size;
+    private final ExecutorService refillExecutor;
+    private final Map<AsymmetricAlgorithm, AlgorithmParameterSpec> specs;
+    private final Map<AsymmetricAlgorithm, BlockingQueue<KeyPair>> pools;
+    // the number of key pairs in each pool plus those being generated for it
+    private final Map<AsymmetricAlgorithm, AtomicInteger> reserved;
+    private final Meter refills;
+
+    /**
+     * Creates a new {@link KeyPairPool}.
+     *
+     * @param random     a secure random number generator
+     * @param size       the number of key pairs to keep ready for each algorithm
+     * @param threads    the number of background threads used to refill the pool
+     * @param algorithms the algorithms to keep key pairs ready for
+     * @param metrics    a {@link MetricRegistry} to register the pool's gauges with
+     */
+    public KeyPairPool(SecureRandom random, int size, int threads,
+                       Iterable<AsymmetricAlgorithm> algorithms, MetricRegistry metrics) {
+        this(random, size, threads, defaultSpecs(algorithms), metrics);
+    }
+
+    /**
+     * Creates a new {@link KeyPairPool} for the algorithms of a
+     * {@link KeySuite}.
+     *
+     * @param random  a secure random number generator
+     * @param size    the number of key pairs to keep ready for each algorithm
+     * @param threads the number of background threads used to refill the pool
+     * @param suite   the {@link KeySuite} to keep key pairs ready for
+     * @param metrics a {@link MetricRegistry} to register the pool's gauges with
+     */
+    public KeyPairPool(SecureRandom random, int size, int threads,
+                       KeySuite suite, MetricRegistry metrics) {
+        this(random, size, threads, suiteSpecs(suite), metrics);
+    }
+
+    private KeyPairPool(SecureRandom random, int size, int threads,
+                        Map<AsymmetricAlgorithm, AlgorithmParameterSpec> specs, MetricRegistry metrics) {
+        this.random = random;
+        this.specs = specs;
+        this.size = size;
+        // refills are reserved per slot, so at most size tasks per algorithm are ever queued
+        this.refillExecutor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, size * specs.size())),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("keypair-pool-%d")
+                        .setDaemon(true)
+                        .setPriority(Thread.MIN_PRIORITY)
+                        .build(),
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        this.pools = new EnumMap<>(AsymmetricAlgorithm.class);
+        this.reserved = new EnumMap<>(AsymmetricAlgorithm.class);
+        this.refills = metrics.meter(name(KeyPairPool.class, "refills"));
+
+        for (final AsymmetricAlgorithm algorithm : specs.keySet()) {
+            final BlockingQueue<KeyPair> pool = new ArrayBlockingQueue<>(size);
+            pools.put(algorithm, pool);
+            reserved.put(algorithm, new AtomicInteger());
+            metrics.register(name(KeyPairPool.class, algorithm.getName(), "depth"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return pool.size();
+                }
+            });
+        }
+
+        for (AsymmetricAlgorithm algorithm : pools.keySet()) {
+            refill(algorithm);
+        }
+    }
+
+    /**
+     * Removes a pregenerated key pair from the pool and schedules its
+     * replacement.
+     *
+     * @param algorithm the key pair's algorithm
+     * @return a pregenerated key pair, or {@code null} if none are ready
+     */
+    public KeyPair poll(AsymmetricAlgorithm algorithm) {
+        final BlockingQueue<KeyPair> pool = pools.get(algorithm);
+        if (pool == null) {
+            return null;
+        }
+
+        final KeyPair keyPair = pool.poll();
+        if (keyPair != null) {
+            reserved.get(algorithm).decrementAndGet();
+        }
+        refill(algorithm);
+        return keyPair;
+    }
+
+    /**
+     * Stops refilling the pool.
+     */
+    public void shutdown() {
+        refillExecutor.shutdownNow();
+    }
+
+    private void refill(final AsymmetricAlgorithm algorithm) {
+        final BlockingQueue<KeyPair> pool = pools.get(algorithm);
+        final AtomicInteger slots = reserved.get(algorithm);
+        while (reserve(slots)) {
+            try {
+                refillExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean added = false;
+                        try {
+                            added = pool.offer(generateKeyPair(algorithm, specs.get(algorithm), random));
+                            if (added) {
+                                refills.mark();
+                            }
+                        } catch (Exception e) {
+                            LOGGER.warn("Unable to pregenerate " + algorithm + " key pair", e);
+                        } finally {
+                            if (!added) {
+                                slots.decrementAndGet();
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the pool has been shut down
+                slots.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reserves a slot for a new key pair, unless the pool and its in-flight
+     * refills already add up to {@code size}.
+     */
+    private boolean reserve(AtomicInteger slots) {
+        while (true) {
+            final int current = slots.get();
+            if (current >= size) {
+                return false;
+            }
+            if (slots.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static Map<AsymmetricAlgorithm, AlgorithmParameterSpec> defaultSpecs(Iterable<AsymmetricAlgorithm> algorithms) {
+        final Map<AsymmetricAlgorithm, AlgorithmParameterSpec> specs = new EnumMap<>(AsymmetricAlgorithm.class);
+        for (AsymmetricAlgorithm algorithm : algorithms) {
+            specs.put(algorithm, algorithm.getAlgorithmParameterSpec());
+        }
+        return specs;
+    }
+
+    private static Map<AsymmetricAlgorithm, AlgorithmParameterSpec> suiteSpecs(KeySuite suite) {
+        final Map<AsymmetricAlgorithm, AlgorithmParameterSpec> specs = new EnumMap<>(AsymmetricAlgorithm.class);
+        specs.put(suite.getMasterKeyAlgorithm(), suite.getAlgorithmParameterSpec(suite.getMasterKeyAlgorithm()));
+        specs.put(suite.getSubKeyAlgorithm(), suite.getAlgorithmParameterSpec(suite.getSubKeyAlgorithm()));
+        return specs;
+    }
+
+    /**
+     * Generates a new key pair.
+     */
+    static KeyPair generateKeyPair(AsymmetricAlgorithm algorithm, AlgorithmParameterSpec spec,
+                                   SecureRandom random) throws Exception {
+        final KeyPairGenerator generator = getInstance(algorithm.getName(), "BC");
+        generator.initialize(spec, random);
+        return generator.generateKeyPair();
+    }
+}
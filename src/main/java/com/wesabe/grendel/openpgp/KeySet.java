@@ -1,21 +1,85 @@
 package com.wesabe.grendel.openpgp;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.io.ByteStreams;
+import com.wesabe.grendel.modules.MetricRegistryProvider;
+import com.wesabe.grendel.util.FlightEvent;
+import com.wesabe.grendel.util.FlightEventType;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPSecretKey;
 import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 
 import java.io.*;
+import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.List;
 
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.wesabe.grendel.util.IntegerEquivalents.fromInt;
 import static com.wesabe.grendel.util.Iterators.toList;
 import static java.lang.String.format;
 
 /**
  * A {@link MasterKey} and {@link SubKey} pair.
+ * <p>
+ * Key sets are encoded as their two OpenPGP secret key packets. If both keys
+ * are protected by the same S2K specifier, and so are unlocked with a single
+ * key derivation, the packets are preceded by {@code GKS} and a version
+ * byte of {@link #FORMAT_VERSION}. Key sets encoded without that header, such
+ * as those exported from GnuPG, are still loaded, and can be migrated by
+ * {@link UnlockedKeySet#relock(char[], char[], java.security.SecureRandom)
+ * relocking} them with the same passphrase.
+ * <p>
+ * New and relocked keys are encrypted with {@link SymmetricAlgorithm#DEFAULT}
+ * under an iterated and salted SHA-256 S2K specifier, whose single digest is
+ * long enough for a 256-bit key.
+ * <p>
+ * The time taken to parse and verify keysets is recorded in the
+ * {@code KeySet.load} timer, and the time taken to unlock their subkeys, which
+ * is dominated by S2K, in the {@code KeySet.unlock} timer. Both are also
+ * recorded as {@code com.wesabe.grendel.KeySetLoad} and
+ * {@code com.wesabe.grendel.KeySetUnlock} Flight Recorder events. Every key
+ * derived from a passphrase, whether to lock or unlock a key set, is counted
+ * in the {@code KeySet.derivations} meter.
  *
  * @author coda
  */
 public class KeySet {
+    /**
+     * The current version of the key set encoding.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final byte[] MAGIC = {'G', 'K', 'S'};
+
+    private static final Timer LOAD, UNLOCK;
+    static final Meter DERIVATIONS;
+
+    static {
+        final MetricRegistry metrics = MetricRegistryProvider.getRegistry();
+        LOAD = metrics.timer(name(KeySet.class, "load"));
+        UNLOCK = metrics.timer(name(KeySet.class, "unlock"));
+        DERIVATIONS = metrics.meter(name(KeySet.class, "derivations"));
+    }
+
+    private static final FlightEventType LOAD_EVENT = FlightEventType
+            .builder("com.wesabe.grendel.KeySetLoad", "Key Set Load")
+            .withString("masterKeyAlgorithm", "Master Key Algorithm")
+            .withString("subKeyAlgorithm", "Subkey Algorithm")
+            .withHash("user", "User")
+            .build();
+
+    private static final FlightEventType UNLOCK_EVENT = FlightEventType
+            .builder("com.wesabe.grendel.KeySetUnlock", "Key Set Unlock")
+            .withString("masterKeyAlgorithm", "Master Key Algorithm")
+            .withString("subKeyAlgorithm", "Subkey Algorithm")
+            .withString("protection", "Protection Cipher")
+            .withHash("user", "User")
+            .build();
+
     private final MasterKey masterKey;
     private final SubKey subKey;
 
@@ -37,26 +101,65 @@ public class KeySet {
      * Loads a {@link KeySet} from a {@link PGPSecretKeyRing}.
      */
     public static KeySet load(PGPSecretKeyRing keyRing) throws CryptographicException {
-        final List<PGPSecretKey> secretKeys = toList(keyRing.getSecretKeys());
-        final MasterKey masterKey = MasterKey.load(secretKeys.get(0));
-        final SubKey subKey = SubKey.load(secretKeys.get(1), masterKey);
+        final Timer.Context context = LOAD.time();
+        final FlightEvent event = LOAD_EVENT.begin();
+        try {
+            final List<PGPSecretKey> secretKeys = toList(keyRing.getSecretKeys());
+            final MasterKey masterKey = MasterKey.load(secretKeys.get(0));
+            final SubKey subKey = SubKey.load(secretKeys.get(1), masterKey);
 
-        return new KeySet(masterKey, subKey);
+            if (event.isRecording()) {
+                event.set("masterKeyAlgorithm", masterKey.getAlgorithm())
+                     .set("subKeyAlgorithm", subKey.getAlgorithm())
+                     .set("user", masterKey.getUserID());
+            }
+            return new KeySet(masterKey, subKey);
+        } finally {
+            context.stop();
+            event.commit();
+        }
     }
 
     /**
-     * Loads a {@link KeySet} from an {@link InputStream}.
+     * Loads a {@link KeySet} from an {@link InputStream}, in either the
+     * current or the unversioned encoding.
      */
     public static KeySet load(InputStream input) throws CryptographicException {
         try {
-            final PGPSecretKeyRing keyRing = new PGPSecretKeyRing(input);
+            final PushbackInputStream pushback = new PushbackInputStream(input, MAGIC.length + 1);
+            final int version = readVersion(pushback);
+            if (version > FORMAT_VERSION) {
+                throw new CryptographicException("unsupported key set version: " + version);
+            }
+
+            final PGPSecretKeyRing keyRing = new PGPSecretKeyRing(pushback, new JcaKeyFingerprintCalculator());
             input.close();
-            return load(keyRing);
+
+            final KeySet keySet = load(keyRing);
+            if ((version == FORMAT_VERSION) && (keySet.getFormatVersion() != FORMAT_VERSION)) {
+                throw new CryptographicException("key set doesn't have a shared S2K specifier");
+            }
+            return keySet;
         } catch (IOException | PGPException e) {
             throw new CryptographicException(e);
         }
     }
 
+    /*
+     * Reads the header of a versioned key set, or pushes back whatever was
+     * read and returns 0 if there isn't one. OpenPGP packet tags always have
+     * their high bit set, so an unversioned key set can't start with MAGIC.
+     */
+    private static int readVersion(PushbackInputStream input) throws IOException {
+        final byte[] header = new byte[MAGIC.length + 1];
+        final int length = ByteStreams.read(input, header, 0, header.length);
+        if ((length == header.length) && Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+            return header[MAGIC.length] & 0xFF;
+        }
+        input.unread(header, 0, length);
+        return 0;
+    }
+
     /**
      * Returns the keyset's {@link MasterKey}.
      */
@@ -78,13 +181,35 @@ public class KeySet {
         return masterKey.getUserID();
     }
 
+    /**
+     * Returns the version of the encoding which {@link #encode(OutputStream)}
+     * writes: {@link #FORMAT_VERSION} if both keys are protected by the same
+     * S2K specifier, or {@code 0} if they must be unlocked separately.
+     */
+    public int getFormatVersion() {
+        final PGPSecretKey master = masterKey.getSecretKey();
+        final PGPSecretKey sub = subKey.getSecretKey();
+        if ((master.getKeyEncryptionAlgorithm() == sub.getKeyEncryptionAlgorithm())
+                && (master.getS2KUsage() == sub.getS2KUsage())
+                && PassphraseDecryptor.isSame(master.getS2K(), sub.getS2K())) {
+            return FORMAT_VERSION;
+        }
+        return 0;
+    }
+
     /**
      * Writes the keyset in encoded form, to {@code output}.
      *
      * @param output an {@link OutputStream}
      * @throws IOException if there is an error writing to {@code output}
+     * @see #getFormatVersion()
      */
     public void encode(OutputStream output) throws IOException {
+        final int version = getFormatVersion();
+        if (version > 0) {
+            output.write(MAGIC);
+            output.write(version);
+        }
         masterKey.getSecretKey().encode(output);
         subKey.getSecretKey().encode(output);
     }
@@ -108,16 +233,63 @@ public class KeySet {
     }
 
     /**
-     * Given the keyset's passphrase, unlocks the secret keys and returns an
+     * Given the keyset's passphrase, unlocks the subkey and returns an
      * {@link UnlockedKeySet} equivalent of {@code this}.
+     * <p>
+     * The passphrase isn't kept. If both keys share an S2K specifier, the
+     * {@link UnlockedKeySet} keeps the key derived for the subkey, and unlocks
+     * the master key with it when it's first needed. Otherwise the master key
+     * is unlocked now.
      *
      * @param passphrase the key's passphrase
      * @return a {@link UnlockedKeySet} equivalent of {@code this}
      * @throws CryptographicException if {@code passphrase} is incorrect
      */
     public UnlockedKeySet unlock(char[] passphrase) throws CryptographicException {
-        final UnlockedMasterKey unlockedMasterKey = masterKey.unlock(passphrase);
-        final UnlockedSubKey unlockedSubKey = subKey.unlock(passphrase);
-        return new UnlockedKeySet(unlockedMasterKey, unlockedSubKey);
+        final Timer.Context context = UNLOCK.time();
+        final FlightEvent event = UNLOCK_EVENT.begin();
+        try {
+            if (event.isRecording()) {
+                event.set("masterKeyAlgorithm", masterKey.getAlgorithm())
+                     .set("subKeyAlgorithm", subKey.getAlgorithm())
+                     .set("protection", fromInt(SymmetricAlgorithm.class,
+                             masterKey.getSecretKey().getKeyEncryptionAlgorithm()))
+                     .set("user", getUserID());
+            }
+
+            final PassphraseDecryptor decryptor = PassphraseDecryptor.create(passphrase);
+            try {
+                final UnlockedSubKey unlockedSubKey = subKey.unlock(decryptor);
+                if (getFormatVersion() == FORMAT_VERSION) {
+                    decryptor.wipePassphrase();
+                    return new UnlockedKeySet(masterKey, unlockedSubKey, decryptor);
+                }
+
+                final UnlockedMasterKey unlockedMasterKey = masterKey.unlock(decryptor);
+                decryptor.wipe();
+                return new UnlockedKeySet(unlockedMasterKey, unlockedSubKey);
+            } catch (CryptographicException e) {
+                decryptor.wipe();
+                throw e;
+            }
+        } finally {
+            context.stop();
+            event.commit();
+        }
+    }
+
+    /**
+     * Returns an encryptor which protects secret keys with {@code passphrase}.
+     * Every key it encrypts shares one S2K specifier and one key derivation,
+     * so a key set encrypted with a single encryptor is in the
+     * {@link #FORMAT_VERSION current format}. The encryptor should be
+     * {@link PassphraseEncryptor#wipe() wiped} once the key set is encrypted.
+     *
+     * @param passphrase the passphrase
+     * @param random     a {@link SecureRandom} instance, used for the S2K salt
+     * @throws PGPException if the encryption algorithms are unavailable
+     */
+    static PassphraseEncryptor newEncryptor(char[] passphrase, SecureRandom random) throws PGPException {
+        return PassphraseEncryptor.create(passphrase, random);
     }
 }
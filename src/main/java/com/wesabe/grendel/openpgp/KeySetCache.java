@@ -0,0 +1,139 @@
+package com.wesabe.grendel.openpgp;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * A bounded cache of parsed and verified {@link KeySet}s, keyed by the SHA-256
+ * digest of their encoded form.
+ * <p>
+ * Loading a {@link KeySet} verifies its self-signatures, which is expensive
+ * enough to matter when done on every request. {@link KeySet}s are immutable,
+ * so the same instance can be shared by every entity which holds the same
+ * encoded bytes.
+ * <p>
+ * Entities aren't managed by Spring, so they use the instance returned by
+ * {@link #getInstance()}, which is the Spring-managed cache once it's been
+ * {@link #install() installed}. Until then, {@link #getInstance()} throws
+ * rather than handing out a cache with some other configuration. Hits and
+ * misses are recorded in the {@code KeySetCache.hits} and {@code misses}
+ * meters.
+ */
+@Component
+public class KeySetCache {
+    private static final AtomicReference<KeySetCache> INSTANCE = new AtomicReference<>();
+
+    /**
+     * Returns the installed {@link KeySetCache}.
+     *
+     * @throws IllegalStateException if no {@link KeySetCache} is installed
+     */
+    public static KeySetCache getInstance() {
+        final KeySetCache cache = INSTANCE.get();
+        if (cache == null) {
+            throw new IllegalStateException("no KeySetCache has been installed");
+        }
+        return cache;
+    }
+
+    private final Cache<HashCode, KeySet> cache;
+    private final Meter hits, misses;
+
+    /**
+     * Creates a new {@link KeySetCache}.
+     *
+     * @param metrics the {@link MetricRegistry} to record hits and misses in
+     * @param maxSize the maximum number of {@link KeySet}s to hold
+     */
+    @Autowired
+    public KeySetCache(MetricRegistry metrics,
+                       @Value("${grendel.keysets.cache-size:10000}") long maxSize) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .build();
+
+        this.hits = metrics.meter(name(KeySetCache.class, "hits"));
+        this.misses = metrics.meter(name(KeySetCache.class, "misses"));
+        metrics.register(name(KeySetCache.class, "size"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return cache.size();
+            }
+        });
+    }
+
+    /**
+     * Makes this the cache returned by {@link #getInstance()}.
+     */
+    @PostConstruct
+    public void install() {
+        INSTANCE.set(this);
+    }
+
+    /**
+     * Stops returning this cache from {@link #getInstance()}, if it's the
+     * installed one.
+     */
+    @PreDestroy
+    public void uninstall() {
+        INSTANCE.compareAndSet(this, null);
+    }
+
+    /**
+     * Returns the {@link KeySet} encoded in {@code encoded}, loading it if it
+     * isn't already cached.
+     *
+     * @throws CryptographicException if the encoded {@link KeySet} is malformed
+     */
+    public KeySet load(byte[] encoded) throws CryptographicException {
+        final HashCode digest = Hashing.sha256().hashBytes(encoded);
+        final KeySet cached = cache.getIfPresent(digest);
+        if (cached != null) {
+            hits.mark();
+            return cached;
+        }
+
+        misses.mark();
+        final KeySet keySet = KeySet.load(encoded);
+        cache.put(digest, keySet);
+        return keySet;
+    }
+
+    /**
+     * Adds a {@link KeySet} to the cache under its encoded form.
+     * {@link UnlockedKeySet}s are never cached.
+     */
+    public void put(byte[] encoded, KeySet keySet) {
+        if (!(keySet instanceof UnlockedKeySet)) {
+            cache.put(Hashing.sha256().hashBytes(encoded), keySet);
+        }
+    }
+
+    /**
+     * Returns the number of cached {@link KeySet}s.
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Discards all cached {@link KeySet}s.
+     */
+    public void clear() {
+        cache.invalidateAll();
+    }
+}
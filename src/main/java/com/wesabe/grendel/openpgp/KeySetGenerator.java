@@ -1,49 +1,154 @@
 package com.wesabe.grendel.openpgp;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.wesabe.grendel.modules.MetricRegistryProvider;
+import com.wesabe.grendel.util.FlightEvent;
+import com.wesabe.grendel.util.FlightEventType;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
 import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
 import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
-import java.security.GeneralSecurityException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import static com.codahale.metrics.MetricRegistry.name;
 import static com.wesabe.grendel.openpgp.KeySet.load;
 import static com.wesabe.grendel.util.IntegerEquivalents.toBitmask;
 import static com.wesabe.grendel.util.IntegerEquivalents.toIntArray;
-import static java.security.KeyPairGenerator.getInstance;
 import static java.util.EnumSet.of;
-import static java.util.concurrent.Executors.newCachedThreadPool;
 
 /**
  * A multithreaded generator for {@link KeySet}s.
  * <p>
- * Generates master keys using {@link AsymmetricAlgorithm#ENCRYPTION_DEFAULT},
- * and subkeys using {@link AsymmetricAlgorithm#SIGNING_DEFAULT}.
+ * Generates master keys and subkeys using the algorithms of a
+ * {@link KeySuite}, which is {@link KeySuite#DEFAULT} unless configured
+ * otherwise. If a {@link KeyPairPool} is configured, pregenerated key pairs
+ * are used when available. Other key pairs are generated on a bounded pool of
+ * threads; once its queue is full, callers generate their own.
+ * <p>
+ * Existing keysets can also be {@link #rotate(UnlockedKeySet, char[]) rotated}
+ * onto a new subkey, generated with the suite's subkey algorithm.
+ * <p>
+ * The time spent waiting for key pairs is recorded in the
+ * {@code KeySetGenerator.key-pairs} timer, and the total time taken to
+ * generate a {@link KeySet}, including certifying and encrypting its keys, in
+ * {@code generate}. Each generation is also recorded as a
+ * {@code com.wesabe.grendel.KeySetGenerate} Flight Recorder event.
  *
  * @author coda
  */
 @Service
 public class KeySetGenerator {
+    private static final FlightEventType GENERATE_EVENT = FlightEventType
+            .builder("com.wesabe.grendel.KeySetGenerate", "Key Set Generate")
+            .withString("masterKeyAlgorithm", "Master Key Algorithm")
+            .withString("subKeyAlgorithm", "Subkey Algorithm")
+            .withBoolean("pooled", "Pregenerated Key Pairs Enabled")
+            .withHash("user", "User")
+            .build();
+    private static final int DEFAULT_QUEUE_SIZE = 64;
 
     private final SecureRandom random;
+    private final KeySuite suite;
     private final ExecutorService executor;
+    private final KeyPairPool pool;
+    private final Timer keyPairs;
+    private final Timer generations;
+    private final Timer rotations;
 
     /**
-     * Creates a new {@link KeySetGenerator}.
+     * Creates a new {@link KeySetGenerator} which generates all key pairs on
+     * demand.
      *
      * @param random a secure random number generator
      */
-    @Inject
     public KeySetGenerator(SecureRandom random) {
+        this(random, KeySuite.DEFAULT);
+    }
+
+    /**
+     * Creates a new {@link KeySetGenerator} which generates all key pairs on
+     * demand.
+     *
+     * @param random a secure random number generator
+     * @param suite  the {@link KeySuite} of new keysets
+     */
+    public KeySetGenerator(SecureRandom random, KeySuite suite) {
+        this(random, MetricRegistryProvider.getRegistry(), suite.toString(), DEFAULT_QUEUE_SIZE, 0, 1);
+    }
+
+    /**
+     * Creates a new {@link KeySetGenerator}.
+     *
+     * @param random      a secure random number generator
+     * @param metrics     a {@link MetricRegistry}
+     * @param suite       the name of the {@link KeySuite} of new keysets
+     * @param queueSize   the number of key pairs which may wait for a
+     *                    generator thread before callers generate their own
+     * @param poolSize    the number of key pairs per algorithm to pregenerate,
+     *                    or {@code 0} to disable the pool
+     * @param poolThreads the number of threads used to refill the pool
+     */
+    @Inject
+    public KeySetGenerator(SecureRandom random,
+                           MetricRegistry metrics,
+                           @Value("${grendel.keysets.suite:rsa-2048}") String suite,
+                           @Value("${grendel.keysets.queue-size:64}") int queueSize,
+                           @Value("${grendel.keypair-pool.size:0}") int poolSize,
+                           @Value("${grendel.keypair-pool.threads:1}") int poolThreads) {
         this.random = random;
-        this.executor = newCachedThreadPool();
+        this.suite = KeySuite.fromName(suite);
+        this.keyPairs = metrics.timer(name(KeySetGenerator.class, "key-pairs"));
+        this.generations = metrics.timer(name(KeySetGenerator.class, "generate"));
+        this.rotations = metrics.timer(name(KeySetGenerator.class, "rotate"));
+        final int threads = Runtime.getRuntime().availableProcessors();
+        this.executor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("keyset-generator-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+        if (poolSize > 0) {
+            this.pool = new KeyPairPool(random, poolSize, poolThreads, this.suite, metrics);
+        } else {
+            this.pool = null;
+        }
+    }
+
+    /**
+     * Returns the {@link KeySuite} of new keysets.
+     */
+    public KeySuite getSuite() {
+        return suite;
+    }
+
+    /**
+     * Stops generating key pairs.
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        if (pool != null) {
+            pool.shutdown();
+        }
     }
 
     /**
@@ -55,36 +160,51 @@ public class KeySetGenerator {
      * @throws CryptographicException if there was an error generating the keyset
      */
     public KeySet generate(String userId, char[] passphrase) throws CryptographicException {
+        final Timer.Context context = generations.time();
+        final FlightEvent event = GENERATE_EVENT.begin()
+                .set("masterKeyAlgorithm", suite.getMasterKeyAlgorithm())
+                .set("subKeyAlgorithm", suite.getSubKeyAlgorithm())
+                .set("pooled", pool != null)
+                .set("user", userId);
+        PassphraseEncryptor encryptor = null;
         try {
             final Future<KeyPair> masterKeyPair = generateKeyPair(
-                    AsymmetricAlgorithm.SIGNING_DEFAULT
+                    suite.getMasterKeyAlgorithm()
             );
             final Future<KeyPair> subKeyPair = generateKeyPair(
-                    AsymmetricAlgorithm.ENCRYPTION_DEFAULT
+                    suite.getSubKeyAlgorithm()
             );
 
-            final PGPKeyPair masterPGPKeyPair = new PGPKeyPair(
-                    AsymmetricAlgorithm.SIGNING_DEFAULT.toInteger(),
-                    masterKeyPair.get(),
+            final Timer.Context waiting = keyPairs.time();
+            final KeyPair masterJavaKeyPair = masterKeyPair.get();
+            final KeyPair subJavaKeyPair = subKeyPair.get();
+            waiting.stop();
+
+            final PGPKeyPair masterPGPKeyPair = new JcaPGPKeyPair(
+                    suite.getMasterKeyAlgorithm().toInteger(),
+                    masterJavaKeyPair,
                     new DateTime().toDate()
             );
 
+            encryptor = KeySet.newEncryptor(passphrase, random);
             final PGPKeyRingGenerator generator = new PGPKeyRingGenerator(
                     SignatureType.POSITIVE_CERTIFICATION.toInteger(),
                     masterPGPKeyPair,
                     userId,
-                    SymmetricAlgorithm.DEFAULT.toInteger(),
-                    passphrase,
-                    true, // use SHA-1 instead of MD5
+                    // RFC 4880 requires a SHA-1 checksum of encrypted secret keys
+                    new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1),
                     generateMasterKeySettings(),
                     null, // don't store any key settings unhashed
-                    random,
-                    "BC"
+                    new JcaPGPContentSignerBuilder(
+                            suite.getMasterKeyAlgorithm().toInteger(),
+                            HashAlgorithm.DEFAULT.toInteger()
+                    ).setProvider("BC"),
+                    encryptor
             );
 
-            final PGPKeyPair subPGPKeyPair = new PGPKeyPair(
-                    AsymmetricAlgorithm.ENCRYPTION_DEFAULT.toInteger(),
-                    subKeyPair.get(),
+            final PGPKeyPair subPGPKeyPair = new JcaPGPKeyPair(
+                    suite.getSubKeyAlgorithm().toInteger(),
+                    subJavaKeyPair,
                     new DateTime().toDate()
             );
 
@@ -93,8 +213,84 @@ public class KeySetGenerator {
             final PGPSecretKeyRing keyRing = generator.generateSecretKeyRing();
             return load(keyRing);
 
-        } catch (GeneralSecurityException | PGPException | InterruptedException | ExecutionException e) {
+        } catch (PGPException | InterruptedException | ExecutionException e) {
+            throw new CryptographicException(e);
+        } finally {
+            if (encryptor != null) {
+                encryptor.wipe();
+            }
+            context.stop();
+            event.commit();
+        }
+    }
+
+    /**
+     * Generates a new subkey for an existing {@link KeySet}, certified by its
+     * master key. The old subkey is not part of the returned keyset, so any
+     * messages encrypted for it must be rewrapped before it's discarded.
+     *
+     * @param keySet     the {@link UnlockedKeySet} to rotate
+     * @param passphrase the keyset's passphrase, which protects both keys of
+     *                   the new keyset
+     * @return a keyset with {@code keySet}'s master key and a new subkey
+     * @throws CryptographicException if {@code passphrase} is incorrect, or if
+     *                                there was an error generating the subkey
+     */
+    public KeySet rotate(UnlockedKeySet keySet, char[] passphrase) throws CryptographicException {
+        final Timer.Context context = rotations.time();
+        final PassphraseDecryptor decryptor = PassphraseDecryptor.create(passphrase);
+        PassphraseEncryptor encryptor = null;
+        try {
+            final Future<KeyPair> subKeyPair = generateKeyPair(suite.getSubKeyAlgorithm());
+
+            final Timer.Context waiting = keyPairs.time();
+            final KeyPair subJavaKeyPair = subKeyPair.get();
+            waiting.stop();
+
+            final PGPKeyPair subPGPKeyPair = new JcaPGPKeyPair(
+                    suite.getSubKeyAlgorithm().toInteger(),
+                    subJavaKeyPair,
+                    new DateTime().toDate()
+            );
+
+            final MasterKey masterKey = keySet.getMasterKey();
+            final PGPSignatureGenerator generator = new PGPSignatureGenerator(
+                    new JcaPGPContentSignerBuilder(
+                            masterKey.getAlgorithm().toInteger(),
+                            HashAlgorithm.DEFAULT.toInteger()
+                    ).setProvider("BC")
+            );
+            generator.init(SignatureType.SUBKEY_BINDING.toInteger(), keySet.getUnlockedMasterKey().getPrivateKey());
+            generator.setHashedSubpackets(generateSubKeySettings());
+            final PGPPublicKey subPublicKey = PGPPublicKey.addCertification(
+                    subPGPKeyPair.getPublicKey(),
+                    generator.generateCertification(masterKey.getPublicKey(), subPGPKeyPair.getPublicKey())
+            );
+
+            encryptor = KeySet.newEncryptor(passphrase, random);
+            final MasterKey newMasterKey = MasterKey.load(
+                    PGPSecretKey.copyWithNewPassword(masterKey.getSecretKey(), decryptor, encryptor)
+            );
+            final SubKey newSubKey = SubKey.load(
+                    new PGPSecretKey(
+                            subPGPKeyPair.getPrivateKey(),
+                            subPublicKey,
+                            // RFC 4880 requires a SHA-1 checksum of encrypted secret keys
+                            new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1),
+                            false,
+                            encryptor
+                    ),
+                    newMasterKey
+            );
+            return new KeySet(newMasterKey, newSubKey);
+        } catch (PGPException | InterruptedException | ExecutionException e) {
             throw new CryptographicException(e);
+        } finally {
+            if (encryptor != null) {
+                encryptor.wipe();
+            }
+            decryptor.wipe();
+            context.stop();
         }
     }
 
@@ -128,7 +324,13 @@ public class KeySetGenerator {
     }
 
     private Future<KeyPair> generateKeyPair(final AsymmetricAlgorithm algorithm) {
-        return executor.submit(new GeneratorTask(algorithm, random));
+        if (pool != null) {
+            final KeyPair keyPair = pool.poll(algorithm);
+            if (keyPair != null) {
+                return Futures.immediateFuture(keyPair);
+            }
+        }
+        return executor.submit(new GeneratorTask(algorithm, suite.getAlgorithmParameterSpec(algorithm), random));
     }
 
     /**
@@ -138,18 +340,18 @@ public class KeySetGenerator {
      */
     private static class GeneratorTask implements Callable<KeyPair> {
         private final AsymmetricAlgorithm algorithm;
+        private final AlgorithmParameterSpec spec;
         private final SecureRandom random;
 
-        public GeneratorTask(AsymmetricAlgorithm algorithm, SecureRandom random) {
+        public GeneratorTask(AsymmetricAlgorithm algorithm, AlgorithmParameterSpec spec, SecureRandom random) {
             this.algorithm = algorithm;
+            this.spec = spec;
             this.random = random;
         }
 
         @Override
         public KeyPair call() throws Exception {
-            final KeyPairGenerator generator = getInstance(algorithm.getName(), "BC");
-            generator.initialize(algorithm.getAlgorithmParameterSpec(), random);
-            return generator.generateKeyPair();
+            return KeyPairPool.generateKeyPair(algorithm, spec, random);
         }
     }
 }
@@ -3,10 +3,10 @@ package com.wesabe.grendel.openpgp;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPSignature;
 import org.bouncycastle.openpgp.PGPSignatureSubpacketVector;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
-import java.security.SignatureException;
 import java.util.List;
 import java.util.Set;
 
@@ -102,9 +102,9 @@ public class KeySignature {
      */
     public boolean verifyCertification(MasterKey key) {
         try {
-            signature.initVerify(key.getPublicKey(), "BC");
+            signature.init(new JcaPGPContentVerifierBuilderProvider().setProvider("BC"), key.getPublicKey());
             return signature.verifyCertification(key.getUserID(), key.getPublicKey());
-        } catch (PGPException | SignatureException e) {
+        } catch (PGPException e) {
             return false;
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -120,7 +120,7 @@ public class KeySignature {
      */
     public boolean verifyCertification(SubKey key, MasterKey masterKey) {
         try {
-            signature.initVerify(masterKey.getPublicKey(), "BC");
+            signature.init(new JcaPGPContentVerifierBuilderProvider().setProvider("BC"), masterKey.getPublicKey());
             return signature.verifyCertification(masterKey.getPublicKey(), key.getPublicKey());
         } catch (Exception e) {
             return false;
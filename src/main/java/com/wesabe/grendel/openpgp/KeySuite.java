@@ -0,0 +1,99 @@
+package com.wesabe.grendel.openpgp;
+
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * The algorithms and parameters used to generate the master key and subkey of
+ * a new {@link KeySet}.
+ * <p>
+ * The elliptic-curve suites generate keys much faster than RSA, and sign and
+ * decrypt much faster with them. Messages can be exchanged between users of
+ * any suite.
+ *
+ * @see KeySetGenerator
+ * @see <a href="http://www.ietf.org/rfc/rfc6637.txt">RFC 6637</a>
+ */
+public enum KeySuite {
+    /**
+     * A 2048-bit RSA master key and subkey.
+     */
+    RSA_2048("rsa-2048", AsymmetricAlgorithm.RSA, AsymmetricAlgorithm.RSA, null),
+
+    /**
+     * An ECDSA master key and ECDH subkey on the NIST P-256 curve.
+     */
+    P_256("p-256", AsymmetricAlgorithm.ECDSA, AsymmetricAlgorithm.EC, "P-256"),
+
+    /**
+     * An ECDSA master key and ECDH subkey on the NIST P-384 curve.
+     */
+    P_384("p-384", AsymmetricAlgorithm.ECDSA, AsymmetricAlgorithm.EC, "P-384");
+
+    /**
+     * The default suite.
+     */
+    public static final KeySuite DEFAULT = RSA_2048;
+
+    private final String name;
+    private final AsymmetricAlgorithm masterKeyAlgorithm;
+    private final AsymmetricAlgorithm subKeyAlgorithm;
+    private final String curve;
+
+    private KeySuite(String name, AsymmetricAlgorithm masterKeyAlgorithm,
+                     AsymmetricAlgorithm subKeyAlgorithm, String curve) {
+        this.name = name;
+        this.masterKeyAlgorithm = masterKeyAlgorithm;
+        this.subKeyAlgorithm = subKeyAlgorithm;
+        this.curve = curve;
+    }
+
+    /**
+     * Returns the suite with the given name (e.g., {@code p-256}).
+     *
+     * @param name the suite's name
+     * @throws IllegalArgumentException if there is no suite with that name
+     */
+    public static KeySuite fromName(String name) {
+        for (KeySuite suite : values()) {
+            if (suite.name.equalsIgnoreCase(name.trim())) {
+                return suite;
+            }
+        }
+        throw new IllegalArgumentException("unknown key suite: " + name);
+    }
+
+    /**
+     * Returns the algorithm used for master keys.
+     */
+    public AsymmetricAlgorithm getMasterKeyAlgorithm() {
+        return masterKeyAlgorithm;
+    }
+
+    /**
+     * Returns the algorithm used for subkeys.
+     */
+    public AsymmetricAlgorithm getSubKeyAlgorithm() {
+        return subKeyAlgorithm;
+    }
+
+    /**
+     * Returns the {@link AlgorithmParameterSpec} used to generate keys for
+     * {@code algorithm}, which must be one of this suite's algorithms.
+     */
+    public AlgorithmParameterSpec getAlgorithmParameterSpec(AsymmetricAlgorithm algorithm) {
+        if (algorithm != masterKeyAlgorithm && algorithm != subKeyAlgorithm) {
+            throw new IllegalArgumentException(algorithm + " isn't used by " + this);
+        }
+
+        if (curve != null) {
+            return new ECGenParameterSpec(curve);
+        }
+        return algorithm.getAlgorithmParameterSpec();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
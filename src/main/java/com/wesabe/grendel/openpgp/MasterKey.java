@@ -3,8 +3,7 @@ package com.wesabe.grendel.openpgp;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPPrivateKey;
 import org.bouncycastle.openpgp.PGPSecretKey;
-
-import java.security.NoSuchProviderException;
+import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
 
 /**
  * A PGP master key, used for signing and verifying data. <b>Must</b> be a
@@ -40,11 +39,23 @@ public class MasterKey extends AbstractKey {
 
     @Override
     public UnlockedMasterKey unlock(char[] passphrase) throws CryptographicException {
+        final PassphraseDecryptor decryptor = PassphraseDecryptor.create(passphrase);
+        try {
+            return unlock(decryptor);
+        } finally {
+            decryptor.wipe();
+        }
+    }
+
+    /**
+     * Unlocks the secret key with {@code decryptor}.
+     *
+     * @throws CryptographicException if the decryptor's passphrase is incorrect
+     */
+    UnlockedMasterKey unlock(PBESecretKeyDecryptor decryptor) throws CryptographicException {
         try {
-            final PGPPrivateKey privateKey = secretKey.extractPrivateKey(passphrase, "BC");
+            final PGPPrivateKey privateKey = extractPrivateKey(decryptor);
             return new UnlockedMasterKey(secretKey, privateKey);
-        } catch (NoSuchProviderException e) {
-            throw new CryptographicException(e);
         } catch (PGPException e) {
             throw new CryptographicException("incorrect passphrase");
         }
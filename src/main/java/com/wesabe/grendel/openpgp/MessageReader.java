@@ -1,14 +1,32 @@
 package com.wesabe.grendel.openpgp;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.wesabe.grendel.modules.MetricRegistryProvider;
+import com.wesabe.grendel.util.FlightEvent;
+import com.wesabe.grendel.util.FlightEventType;
+import com.wesabe.grendel.util.SpillBuffer;
 import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.jcajce.JcaPGPObjectFactory;
+import org.bouncycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchProviderException;
+import java.util.concurrent.TimeUnit;
 
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
 import static com.wesabe.grendel.util.IntegerEquivalents.fromInt;
 import static org.bouncycastle.openpgp.PGPUtil.getDecoderStream;
 
@@ -18,8 +36,10 @@ import static org.bouncycastle.openpgp.PGPUtil.getDecoderStream;
  * <p>
  * For security reasons, this class enforces the following constraints:
  * <ul>
- * <li>Uncompressed data is not accepted, due to adaptive-chosen plaintext
- * attacks.
+ * <li>Data outside of a compressed data packet is not accepted, due to
+ * adaptive-chosen plaintext attacks. Stored (uncompressed) data packets are
+ * accepted, since {@link MessageWriter} uses them for incompressible bodies
+ * and the integrity packet they're always encrypted with detects tampering.
  * <li>Integrity-protected data is required, and modification detection code
  * packets are always verified.
  * <li>OpenPGP/CFB mode's "quick check" is disabled, due to adaptive
@@ -29,6 +49,16 @@ import static org.bouncycastle.openpgp.PGPUtil.getDecoderStream;
  * <p>
  * Any deviation from the format described by {@link MessageWriter} is
  * considered an unrecoverable error.
+ * <p>
+ * Segmented messages created by {@link SegmentedMessageWriter} are also
+ * accepted, and are decrypted a segment at a time on the calling thread.
+ * <p>
+ * The time spent in each stage of reading a message is recorded in the
+ * {@code MessageReader.session-key}, {@code signature},
+ * {@code decompression}, {@code decryption}, and {@code input} timers, along
+ * with the total in {@code read}. The number of plaintext bytes decrypted is
+ * recorded in the {@code bytes} meter, and each message is recorded as a
+ * {@code com.wesabe.grendel.MessageRead} Flight Recorder event.
  *
  * @author coda
  * @see <a href="http://eprint.iacr.org/2005/033.pdf">An Attack on CFB Mode Encryption As Used By OpenPGP</a>
@@ -38,7 +68,29 @@ import static org.bouncycastle.openpgp.PGPUtil.getDecoderStream;
  * @see SymmetricAlgorithm#ACCEPTABLE_ALGORITHMS
  */
 public class MessageReader {
-    private static final int BUFFER_SIZE = 1024 * 16; // 16KB
+    private static final int SPILL_THRESHOLD = 1024 * 1024; // 1MB
+    private static final Timer SESSION_KEY, SIGNATURE, DECOMPRESSION, DECRYPTION, INPUT, READ;
+    private static final Meter BYTES;
+
+    static {
+        final MetricRegistry metrics = MetricRegistryProvider.getRegistry();
+        SESSION_KEY = metrics.timer(name(MessageReader.class, "session-key"));
+        SIGNATURE = metrics.timer(name(MessageReader.class, "signature"));
+        DECOMPRESSION = metrics.timer(name(MessageReader.class, "decompression"));
+        DECRYPTION = metrics.timer(name(MessageReader.class, "decryption"));
+        INPUT = metrics.timer(name(MessageReader.class, "input"));
+        READ = metrics.timer(name(MessageReader.class, "read"));
+        BYTES = metrics.meter(name(MessageReader.class, "bytes"));
+    }
+
+    private static final FlightEventType READ_EVENT = FlightEventType
+            .builder("com.wesabe.grendel.MessageRead", "Message Read")
+            .withBytes("size", "Plaintext Size")
+            .withBoolean("segmented", "Segmented")
+            .withString("cipher", "Cipher")
+            .withHash("signer", "Signer")
+            .withHash("recipient", "Recipient")
+            .build();
     private final KeySet signer;
     private final UnlockedKeySet recipient;
 
@@ -66,42 +118,170 @@ public class MessageReader {
      *                                pointless.
      */
     public byte[] read(byte[] encrypted) throws CryptographicException {
+        // most bodies are about as large as their encrypted form, so this
+        // rarely needs to grow
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(encrypted.length);
+        if (isSegmented(new ByteArrayInputStream(encrypted))) {
+            decryptSegmented(ByteSource.wrap(encrypted), output);
+        } else {
+            decrypt(new ByteArrayInputStream(encrypted), output);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Decrypts the message and verifies its signature and integrity packet,
+     * buffering the plaintext in a {@link SpillBuffer} which only holds a
+     * bounded amount of it in memory.
+     * <p>
+     * The buffer is only returned once the message has been verified, and the
+     * caller is responsible for closing it. If verification fails, the buffer
+     * is closed and its contents discarded.
+     *
+     * @param encrypted an {@link InputStream} of the encrypted message body
+     * @return a {@link SpillBuffer} containing the decrypted message body
+     * @throws CryptographicException if any error occurs while processing the message
+     * @see #read(byte[])
+     */
+    public SpillBuffer readBuffered(InputStream encrypted) throws CryptographicException {
+        final SpillBuffer buffer = new SpillBuffer(SPILL_THRESHOLD);
+        boolean verified = false;
+        try {
+            if (!encrypted.markSupported()) {
+                encrypted = new BufferedInputStream(encrypted);
+            }
+
+            if (isSegmented(encrypted)) {
+                // segmented messages are read from both ends, so the
+                // ciphertext is buffered too
+                try (SpillBuffer ciphertext = new SpillBuffer(SPILL_THRESHOLD)) {
+                    ByteStreams.copy(encrypted, ciphertext);
+                    decryptSegmented(ciphertext.asByteSource(), buffer);
+                }
+            } else {
+                decrypt(encrypted, buffer);
+            }
+            verified = true;
+            return buffer;
+        } catch (IOException e) {
+            throw new CryptographicException(e);
+        } finally {
+            if (!verified) {
+                buffer.close();
+            }
+        }
+    }
+
+    /*
+     * Writes the plaintext to output as it's decrypted. Callers must discard
+     * the output if this throws.
+     *
+     * Each stage's time is measured as the time spent reading from it, less
+     * the time its own reads from the previous stage took.
+     */
+    private void decrypt(InputStream encrypted, OutputStream output) throws CryptographicException {
+        final long start = System.nanoTime();
+        final FlightEvent event = READ_EVENT.begin();
+        if (event.isRecording()) {
+            event.set("signer", signer.getUserID())
+                 .set("recipient", recipient.getUserID());
+        }
         try {
-            final PGPPublicKeyEncryptedData encryptedData = getEncryptedData(new ByteArrayInputStream(encrypted));
-            final InputStream decryptedData = encryptedData.getDataStream(recipient.getUnlockedSubKey().getPrivateKey(), "BC");
-            final InputStream decompressedData = getCompressedData(decryptedData);
+            final TimedInputStream input = new TimedInputStream(encrypted);
+            final PGPPublicKeyEncryptedData encryptedData = getEncryptedData(input, event);
+            final TimedInputStream decryptedData = new TimedInputStream(
+                    encryptedData.getDataStream(getDecryptorFactory()));
+            final long sessionKey = System.nanoTime() - start;
+            final long headerNanos = input.getNanos();
+
+            final TimedInputStream decompressedData = new TimedInputStream(getCompressedData(decryptedData));
 
             final PGPObjectFactory factory = getFactory(decompressedData);
 
+            long signing = System.nanoTime();
             final PGPOnePassSignature signature = getOnePassSignature(signer, factory);
-            signature.initVerify(signer.getMasterKey().getPublicKey(), "BC");
+            signature.init(new JcaPGPContentVerifierBuilderProvider().setProvider("BC"), signer.getMasterKey().getPublicKey());
+            signing = System.nanoTime() - signing;
 
             final InputStream body = getLiteralData(factory);
-            final ByteArrayOutputStream output = new ByteArrayOutputStream();
 
-            byte[] b = new byte[BUFFER_SIZE];
-            int r = 0;
-            while ((r = body.read(b)) >= 0) {
-                output.write(b, 0, r);
-                signature.update(b, 0, r);
+            long length = 0;
+            final byte[] b = BufferPool.MESSAGES.acquire();
+            try {
+                int r;
+                while ((r = body.read(b)) >= 0) {
+                    output.write(b, 0, r);
+                    final long update = System.nanoTime();
+                    signature.update(b, 0, r);
+                    signing += System.nanoTime() - update;
+                    length += r;
+                }
+            } finally {
+                BufferPool.MESSAGES.release(b);
             }
 
-            if (!signature.verify(getSignature(signer, factory))) {
+            final PGPSignature expected = getSignature(signer, (PGPSignatureList) factory.nextObject());
+            final long verify = System.nanoTime();
+            if (!signature.verify(expected)) {
                 throw new CryptographicException("Invalid signature");
             }
+            signing += System.nanoTime() - verify;
 
             if (!encryptedData.verify()) {
                 throw new CryptographicException("Integrity check failed");
             }
 
-            return output.toByteArray();
+            final long inputNanos = input.getNanos() - headerNanos;
+            SESSION_KEY.update(sessionKey, TimeUnit.NANOSECONDS);
+            SIGNATURE.update(signing, TimeUnit.NANOSECONDS);
+            DECOMPRESSION.update(decompressedData.getNanos() - decryptedData.getNanos(), TimeUnit.NANOSECONDS);
+            DECRYPTION.update(decryptedData.getNanos() - inputNanos, TimeUnit.NANOSECONDS);
+            INPUT.update(input.getNanos(), TimeUnit.NANOSECONDS);
+            READ.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            BYTES.mark(length);
+            event.set("size", length);
         } catch (IOException | ClassCastException | GeneralSecurityException | PGPException e) {
             throw new CryptographicException(e);
+        } finally {
+            event.commit();
         }
     }
 
-    private PGPSignature getSignature(KeySet owner, PGPObjectFactory factory) throws CryptographicException, IOException {
-        final PGPSignatureList signatures = (PGPSignatureList) factory.nextObject();
+    /*
+     * Segmented messages are decrypted a segment at a time on the calling
+     * thread, and each segment is verified before it's written.
+     */
+    private void decryptSegmented(ByteSource encrypted, OutputStream output) throws CryptographicException {
+        final long start = System.nanoTime();
+        final FlightEvent event = READ_EVENT.begin();
+        if (event.isRecording()) {
+            event.set("signer", signer.getUserID())
+                 .set("recipient", recipient.getUserID())
+                 .set("segmented", true);
+        }
+        try {
+            final SegmentedMessageReader reader = new SegmentedMessageReader(signer, recipient, sameThreadExecutor());
+            try (SegmentedMessage message = reader.open(encrypted)) {
+                message.read(output);
+                event.set("size", message.getLength());
+            }
+            READ.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            throw new CryptographicException(e);
+        } finally {
+            event.commit();
+        }
+    }
+
+    private static boolean isSegmented(InputStream encrypted) throws CryptographicException {
+        try {
+            return SegmentedMessage.isSegmented(encrypted);
+        } catch (IOException e) {
+            throw new CryptographicException(e);
+        }
+    }
+
+    static PGPSignature getSignature(KeySet owner, PGPSignatureList signatures) throws CryptographicException {
         for (int i = 0, size = signatures.size(); i < size; i++) {
             final PGPSignature signature = signatures.get(i);
             if (signature.getKeyID() == owner.getMasterKey().getKeyID()) {
@@ -137,17 +317,20 @@ public class MessageReader {
         throw new CryptographicException("couldn't find a one-pass signature by " + owner);
     }
 
-    @SuppressWarnings("deprecation")
+    /*
+     * Stored data is only accepted because getEncryptedData has already
+     * required an integrity packet.
+     */
     private InputStream getCompressedData(InputStream decryptedData) throws PGPException, IOException, CryptographicException {
         final PGPObjectFactory factory = getFactory(decryptedData);
-        final PGPCompressedData compressedData = (PGPCompressedData) factory.nextObject();
-        if (compressedData.getAlgorithm() == CompressionAlgorithm.NONE.toInteger()) {
+        final Object packet = factory.nextObject();
+        if (!(packet instanceof PGPCompressedData)) {
             throw new CryptographicException("encrypted data is uncompressed");
         }
-        return compressedData.getDataStream();
+        return ((PGPCompressedData) packet).getDataStream();
     }
 
-    private PGPPublicKeyEncryptedData getEncryptedData(InputStream input) throws IOException,
+    private PGPPublicKeyEncryptedData getEncryptedData(InputStream input, FlightEvent event) throws IOException,
             CryptographicException, IllegalArgumentException, NoSuchProviderException, PGPException {
 
         final PGPObjectFactory factory = getFactory(input);
@@ -160,9 +343,10 @@ public class MessageReader {
                 if (pkEncryptedData.getKeyID() == recipient.getSubKey().getKeyID()) {
                     final SymmetricAlgorithm symmetricAlgorithm = fromInt(
                             SymmetricAlgorithm.class,
-                            pkEncryptedData.getSymmetricAlgorithm(recipient.getUnlockedSubKey().getPrivateKey(), "BC")
+                            pkEncryptedData.getSymmetricAlgorithm(getDecryptorFactory())
                     );
 
+                    event.set("cipher", symmetricAlgorithm);
                     if (!SymmetricAlgorithm.ACCEPTABLE_ALGORITHMS.contains(symmetricAlgorithm)) {
                         throw new CryptographicException("data is encrypted with " + symmetricAlgorithm + " which is unacceptable");
                     }
@@ -178,7 +362,13 @@ public class MessageReader {
         throw new CryptographicException("no encrypted data for " + recipient + " found");
     }
 
+    private PublicKeyDataDecryptorFactory getDecryptorFactory() {
+        return new JcePublicKeyDataDecryptorFactoryBuilder()
+                .setProvider("BC")
+                .build(recipient.getUnlockedSubKey().getPrivateKey());
+    }
+
     private PGPObjectFactory getFactory(InputStream input) throws IOException {
-        return new PGPObjectFactory(getDecoderStream(input));
+        return new JcaPGPObjectFactory(getDecoderStream(input));
     }
 }
@@ -0,0 +1,237 @@
+package com.wesabe.grendel.openpgp;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import org.bouncycastle.bcpg.BCPGInputStream;
+import org.bouncycastle.bcpg.BCPGOutputStream;
+import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.bcpg.PublicKeyEncSessionPacket;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
+
+import java.io.*;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.wesabe.grendel.util.IntegerEquivalents.fromInt;
+import static java.util.Arrays.fill;
+
+/**
+ * Changes the recipients of an encrypted+signed OpenPGP message created by
+ * {@link MessageWriter} without decrypting its body.
+ * <p>
+ * The message's session key is recovered using the owner's subkey, or the
+ * subkey of any other current recipient, and re-encrypted for any new
+ * recipients. Public-Key Encrypted Session Key
+ * packets for recipients who should no longer have access are dropped, and
+ * the Symmetrically Encrypted Integrity Protected Data packet is copied
+ * verbatim. The cost of rewrapping a message therefore depends on the number
+ * of recipients added, not on the size of the message body.
+ * <p>
+ * Segmented messages created by {@link SegmentedMessageWriter} are rewrapped
+ * the same way: only their header is rewrapped, and their segments are copied
+ * verbatim.
+ * <p>
+ * <strong>N.B.:</strong> A removed recipient who kept a copy of the session
+ * key can still decrypt the rewrapped message. If that matters, re-encrypt the
+ * message with {@link MessageWriter} instead.
+ *
+ * @see MessageWriter
+ */
+public class MessageRewrapper {
+    private final List<UnlockedKeySet> holders;
+    private final KeySet owner;
+    private final Collection<KeySet> recipients;
+    private final SecureRandom random;
+
+    /**
+     * Creates a new rewrapper for an encrypted+signed message.
+     *
+     * @param owner      the {@link UnlockedKeySet} belonging to the message owner
+     * @param recipients the {@link KeySet}s belonging to the new set of recipients
+     * @param random     a {@link SecureRandom} instance
+     */
+    public MessageRewrapper(UnlockedKeySet owner, Collection<KeySet> recipients, SecureRandom random) {
+        this(owner, owner, recipients, random);
+    }
+
+    /**
+     * Creates a new rewrapper for an encrypted+signed message, which recovers
+     * the session key with the subkey of {@code holder}. {@code holder} only
+     * keeps access to the message if it's {@code owner} or one of
+     * {@code recipients}.
+     *
+     * @param holder     the {@link UnlockedKeySet} of a current recipient of the message
+     * @param owner      the {@link KeySet} belonging to the message owner
+     * @param recipients the {@link KeySet}s belonging to the new set of recipients
+     * @param random     a {@link SecureRandom} instance
+     */
+    public MessageRewrapper(UnlockedKeySet holder, KeySet owner, Collection<KeySet> recipients, SecureRandom random) {
+        this(ImmutableList.of(holder), owner, recipients, random);
+    }
+
+    /**
+     * Creates a new rewrapper for an encrypted+signed message, which recovers
+     * the session key with the subkey of whichever of {@code holders} the
+     * message is encrypted for.
+     *
+     * @param holders    the {@link UnlockedKeySet}s of possible current recipients of
+     *                   the message
+     * @param owner      the {@link KeySet} belonging to the message owner
+     * @param recipients the {@link KeySet}s belonging to the new set of recipients
+     * @param random     a {@link SecureRandom} instance
+     */
+    public MessageRewrapper(List<UnlockedKeySet> holders, KeySet owner, Collection<KeySet> recipients,
+                            SecureRandom random) {
+        this.holders = holders;
+        this.owner = owner;
+        this.recipients = recipients;
+        this.random = random;
+    }
+
+    /**
+     * Re-encrypts the message's session key for the owner and the new set of
+     * recipients.
+     *
+     * @param encrypted the encrypted message
+     * @return the message, encrypted for the new set of recipients
+     * @throws CryptographicException if any error occurs while processing the message
+     */
+    public byte[] rewrap(byte[] encrypted) throws CryptographicException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(encrypted.length);
+        rewrap(new ByteArrayInputStream(encrypted), output);
+        return output.toByteArray();
+    }
+
+    /**
+     * Re-encrypts the message's session key for the owner and the new set of
+     * recipients, reading the message from {@code input} and writing the
+     * rewrapped message to {@code output}. Neither stream is closed.
+     *
+     * @param input  the encrypted message
+     * @param output the destination of the rewrapped message
+     * @throws CryptographicException if any error occurs while processing the message
+     */
+    public void rewrap(InputStream input, OutputStream output) throws CryptographicException {
+        try {
+            if (!input.markSupported()) {
+                input = new BufferedInputStream(input);
+            }
+
+            if (SegmentedMessage.isSegmented(input)) {
+                SegmentedMessage.rewrap(this, input, output);
+                return;
+            }
+
+            final BCPGInputStream packets = new BCPGInputStream(input);
+            final List<PublicKeyEncSessionPacket> sessionKeys = newArrayList();
+            while (packets.nextPacketTag() == PacketTags.PUBLIC_KEY_ENC_SESSION) {
+                sessionKeys.add((PublicKeyEncSessionPacket) packets.readPacket());
+            }
+
+            if (packets.nextPacketTag() != PacketTags.SYM_ENC_INTEGRITY_PRO) {
+                throw new CryptographicException("missing integrity packet");
+            }
+
+            final BCPGOutputStream encryptedOutput = new BCPGOutputStream(output);
+            writeSessionKeys(sessionKeys, encryptedOutput);
+            encryptedOutput.flush();
+
+            final byte[] b = BufferPool.MESSAGES.acquire();
+            try {
+                int r;
+                while ((r = packets.read(b)) >= 0) {
+                    output.write(b, 0, r);
+                }
+            } finally {
+                BufferPool.MESSAGES.release(b);
+            }
+        } catch (IOException | IllegalArgumentException | PGPException e) {
+            throw new CryptographicException(e);
+        }
+    }
+
+    private void writeSessionKeys(List<PublicKeyEncSessionPacket> sessionKeys,
+                                  BCPGOutputStream output) throws CryptographicException, IOException, PGPException {
+        final Map<Long, SubKey> wanted = newLinkedHashMap();
+        for (KeySet recipient : recipients) {
+            wanted.put(recipient.getSubKey().getKeyID(), recipient.getSubKey());
+        }
+        wanted.put(owner.getSubKey().getKeyID(), owner.getSubKey());
+
+        for (PublicKeyEncSessionPacket sessionKey : sessionKeys) {
+            if (wanted.remove(sessionKey.getKeyID()) != null) {
+                output.writePacket(sessionKey);
+            }
+        }
+
+        if (!wanted.isEmpty()) {
+            final byte[] sessionInfo = recoverSessionInfo(sessionKeys);
+            try {
+                for (SubKey subKey : wanted.values()) {
+                    final JcePublicKeyKeyEncryptionMethodGenerator generator =
+                            new JcePublicKeyKeyEncryptionMethodGenerator(subKey.getPublicKey())
+                                    .setProvider("BC")
+                                    .setSecureRandom(random);
+                    output.writePacket(generator.generate(sessionInfo[0], sessionInfo));
+                }
+            } finally {
+                fill(sessionInfo, (byte) 0);
+            }
+        }
+    }
+
+    /*
+     * Returns the decrypted session info: the symmetric algorithm, the session
+     * key, and a two-byte checksum of the session key.
+     */
+    private byte[] recoverSessionInfo(List<PublicKeyEncSessionPacket> sessionKeys) throws CryptographicException, PGPException {
+        for (PublicKeyEncSessionPacket sessionKey : sessionKeys) {
+            final UnlockedKeySet holder = findHolder(sessionKey.getKeyID());
+            if (holder != null) {
+                final byte[] sessionInfo = new JcePublicKeyDataDecryptorFactoryBuilder()
+                        .setProvider("BC")
+                        .build(holder.getUnlockedSubKey().getPrivateKey())
+                        .recoverSessionData(sessionKey.getAlgorithm(), sessionKey.getEncSessionKey());
+
+                if (!isChecksumValid(sessionInfo)) {
+                    fill(sessionInfo, (byte) 0);
+                    throw new CryptographicException("session key checksum failed");
+                }
+
+                final SymmetricAlgorithm symmetricAlgorithm = fromInt(SymmetricAlgorithm.class, sessionInfo[0]);
+                if (!SymmetricAlgorithm.ACCEPTABLE_ALGORITHMS.contains(symmetricAlgorithm)) {
+                    fill(sessionInfo, (byte) 0);
+                    throw new CryptographicException("data is encrypted with " + symmetricAlgorithm + " which is unacceptable");
+                }
+
+                return sessionInfo;
+            }
+        }
+
+        throw new CryptographicException("no encrypted data for " + Joiner.on(", ").join(holders) + " found");
+    }
+
+    private UnlockedKeySet findHolder(long keyID) {
+        for (UnlockedKeySet holder : holders) {
+            if (holder.getSubKey().getKeyID() == keyID) {
+                return holder;
+            }
+        }
+        return null;
+    }
+
+    private boolean isChecksumValid(byte[] sessionInfo) {
+        int checksum = 0;
+        for (int i = 1; i < sessionInfo.length - 2; i++) {
+            checksum += sessionInfo[i] & 0xff;
+        }
+        return (sessionInfo[sessionInfo.length - 2] == (byte) (checksum >> 8))
+                && (sessionInfo[sessionInfo.length - 1] == (byte) checksum);
+    }
+}
@@ -1,14 +1,32 @@
 package com.wesabe.grendel.openpgp;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.wesabe.grendel.modules.MetricRegistryProvider;
+import com.wesabe.grendel.util.FlightEvent;
+import com.wesabe.grendel.util.FlightEventType;
 import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.SecureRandom;
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.codahale.metrics.MetricRegistry.name;
 import static java.lang.Math.ceil;
 import static java.lang.Math.round;
 
@@ -64,39 +82,104 @@ import static java.lang.Math.round;
  * To prevent adaptive chosen-plaintext attacks, this class enforces two
  * constraints:
  * <ul>
- * <li>All signed data is compressed before being encrypted.
+ * <li>All signed data is wrapped in a compressed data packet before being
+ * encrypted.
  * <li>All encrypted data has an accompanying modification detection code
  * packet.
  * </ul>
+ * <p>
+ * How hard the body is compressed is chosen by a {@link CompressionPolicy}
+ * from its content type and first few kilobytes. Bodies which are already
+ * compressed or encrypted are stored in the compressed data packet as-is.
+ * <p>
+ * The time spent in each stage of writing a message is recorded in the
+ * {@code MessageWriter.session-key}, {@code signature}, {@code compression},
+ * {@code encryption}, and {@code output} timers, along with the total in
+ * {@code write}. The number of plaintext bytes encrypted is recorded in the
+ * {@code bytes} meter, and each message is recorded as a
+ * {@code com.wesabe.grendel.MessageWrite} Flight Recorder event.
+ * <p>
+ * The size of each compressed body, as a percentage of its plaintext, is
+ * recorded in the {@code compression-ratio} histogram. Stored bodies are
+ * counted in the {@code stored} meter, and the time which compressing them
+ * would have taken, estimated from the bodies compressed so far, is added to
+ * the {@code compression-saved} counter, in microseconds.
  *
  * @author coda
  * @see <a href="http://eprint.iacr.org/2005/033.pdf">An Attack on CFB Mode Encryption As Used By OpenPGP</a>
  * @see <a href="http://www.cs.umd.edu/~jkatz/papers/pgp-attack.pdf">Implementation of Chosen-Ciphertext Attacks against PGP and GnuPG</a>
  * @see AsymmetricAlgorithm#ENCRYPTION_DEFAULT
  * @see AsymmetricAlgorithm#SIGNING_DEFAULT
+ * @see KeySuite
  * @see SymmetricAlgorithm#DEFAULT
  * @see HashAlgorithm#DEFAULT
- * @see CompressionAlgorithm#DEFAULT
+ * @see CompressionPolicy
  */
 public class MessageWriter {
-    private static final int BUFFER_SIZE = 1 << 16;
     private static final double ENVELOPE_OVERHEAD = 1.2;
     private static final double RECIPIENT_OVERHEAD = 300;
+    private static final Timer SESSION_KEY, SIGNATURE, COMPRESSION, ENCRYPTION, OUTPUT, WRITE;
+    private static final Meter BYTES, STORED;
+    private static final Histogram COMPRESSION_RATIO;
+    private static final Counter COMPRESSION_SAVED;
+    private static final AtomicLong COMPRESSED_BYTES = new AtomicLong();
+    private static final AtomicLong COMPRESSED_NANOS = new AtomicLong();
+
+    static {
+        final MetricRegistry metrics = MetricRegistryProvider.getRegistry();
+        SESSION_KEY = metrics.timer(name(MessageWriter.class, "session-key"));
+        SIGNATURE = metrics.timer(name(MessageWriter.class, "signature"));
+        COMPRESSION = metrics.timer(name(MessageWriter.class, "compression"));
+        ENCRYPTION = metrics.timer(name(MessageWriter.class, "encryption"));
+        OUTPUT = metrics.timer(name(MessageWriter.class, "output"));
+        WRITE = metrics.timer(name(MessageWriter.class, "write"));
+        BYTES = metrics.meter(name(MessageWriter.class, "bytes"));
+        STORED = metrics.meter(name(MessageWriter.class, "stored"));
+        COMPRESSION_RATIO = metrics.histogram(name(MessageWriter.class, "compression-ratio"));
+        COMPRESSION_SAVED = metrics.counter(name(MessageWriter.class, "compression-saved"));
+    }
+
+    private static final FlightEventType WRITE_EVENT = FlightEventType
+            .builder("com.wesabe.grendel.MessageWrite", "Message Write")
+            .withBytes("size", "Plaintext Size")
+            .withLong("recipients", "Recipients")
+            .withString("cipher", "Cipher")
+            .withString("signature", "Signature Algorithm")
+            .withString("compression", "Compression")
+            .withHash("owner", "Owner")
+            .build();
+
     private final UnlockedKeySet owner;
     private final Collection<KeySet> recipients;
     private final SecureRandom random;
+    private final CompressionPolicy compressionPolicy;
 
     /**
-     * Creates a new writer for an encrypted+signed message.
+     * Creates a new writer for an encrypted+signed message whose body has an
+     * unknown content type.
      *
      * @param owner      the {@link UnlockedKeySet} belonging to the message owner
      * @param recipients the {@link KeySet}s belonging to the recipients
      * @param random     a {@link SecureRandom} instance
      */
     public MessageWriter(UnlockedKeySet owner, Collection<KeySet> recipients, SecureRandom random) {
+        this(owner, recipients, random, new CompressionPolicy());
+    }
+
+    /**
+     * Creates a new writer for an encrypted+signed message.
+     *
+     * @param owner             the {@link UnlockedKeySet} belonging to the message owner
+     * @param recipients        the {@link KeySet}s belonging to the recipients
+     * @param random            a {@link SecureRandom} instance
+     * @param compressionPolicy the {@link CompressionPolicy} for the message body
+     */
+    public MessageWriter(UnlockedKeySet owner, Collection<KeySet> recipients, SecureRandom random,
+                         CompressionPolicy compressionPolicy) {
         this.owner = owner;
         this.recipients = recipients;
         this.random = random;
+        this.compressionPolicy = compressionPolicy;
     }
 
     /**
@@ -107,12 +190,47 @@ public class MessageWriter {
      * @throws CryptographicException if any error occurs while processing the message
      */
     public byte[] write(byte[] body) throws CryptographicException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(estimateEncryptedSize(body.length));
+        write(new ByteArrayInputStream(body), output);
+        return output.toByteArray();
+    }
+
+    /**
+     * Signs, compresses, and encrypts a message in a single pass, reading the
+     * body from {@code input} and writing the encrypted+signed OpenPGP
+     * envelope to {@code output}.
+     * <p>
+     * Only a fixed number of buffers are held in memory, regardless of the
+     * size of the message body, and they're taken from a {@link BufferPool}.
+     * Neither stream is closed.
+     *
+     * @param input  the message body
+     * @param output the destination of the encrypted+signed message
+     * @return the number of bytes read from {@code input}
+     * @throws CryptographicException if any error occurs while processing the message
+     */
+    public long write(InputStream input, OutputStream output) throws CryptographicException {
+        final FlightEvent event = WRITE_EVENT.begin();
+        final byte[] buffer = BufferPool.MESSAGES.acquire();
         try {
-            final ByteArrayOutputStream output = new ByteArrayOutputStream(estimateEncryptedSize(body.length));
-            signAndCompressAndEncrypt(body, output);
-            return output.toByteArray();
+            final int sampled = ByteStreams.read(input, buffer, 0, CompressionPolicy.SAMPLE_SIZE);
+            final CompressionLevel level = compressionPolicy.choose(buffer, sampled);
+            event.set("compression", level);
+
+            final long length = signAndCompressAndEncrypt(input, buffer, sampled, output, level);
+            event.set("size", length);
+            return length;
         } catch (Exception e) {
             throw new CryptographicException(e);
+        } finally {
+            if (event.isRecording()) {
+                event.set("recipients", recipients.size())
+                     .set("cipher", SymmetricAlgorithm.DEFAULT)
+                     .set("signature", owner.getMasterKey().getAlgorithm())
+                     .set("owner", owner.getUserID());
+            }
+            BufferPool.MESSAGES.release(buffer);
+            event.commit();
         }
     }
 
@@ -120,65 +238,164 @@ public class MessageWriter {
      * This formula was empirically determined to return a buffer size which
      * will fit most messages, including envelope overhead and per-recipient
      * overhead. Some messages may require another buffer allocation, but this
-     * should be rare.
+     * should be rare. The owner's session key and signature are each about
+     * as large as a recipient's session key.
      */
     private int estimateEncryptedSize(int unencryptedSize) {
         return (int) round(ceil(
                 (unencryptedSize * ENVELOPE_OVERHEAD) +
-                        (recipients.size() * RECIPIENT_OVERHEAD)
+                        ((recipients.size() + 2) * RECIPIENT_OVERHEAD)
         ));
     }
 
-    private void signAndCompressAndEncrypt(byte[] body, OutputStream output) throws Exception {
-        try (OutputStream encryptedOutput = getEncryptionWrapper(output)) {
-            signAndCompress(body, encryptedOutput);
+    /*
+     * The first buffered bytes of the body have already been read into
+     * buffer, which is then used to copy the rest of it.
+     *
+     * Each stage's time is measured as the time spent writing to it, less the
+     * time its own writes to the next stage took.
+     */
+    private long signAndCompressAndEncrypt(InputStream body, byte[] buffer, int buffered, OutputStream output,
+                                           CompressionLevel level) throws Exception {
+        final long start = System.nanoTime();
+        final TimedOutputStream timedOutput = new TimedOutputStream(output);
+        final Phases phases = new Phases();
+
+        final long length, headerNanos;
+        final TimedOutputStream encryptedOutput;
+        final byte[] packetBuffer = BufferPool.MESSAGES.acquire();
+        try {
+            final OutputStream encryptionWrapper = getEncryptionWrapper(timedOutput, packetBuffer);
+            phases.sessionKey = System.nanoTime() - start;
+            headerNanos = timedOutput.getNanos();
+
+            encryptedOutput = new TimedOutputStream(encryptionWrapper);
+            try {
+                length = signAndCompress(body, buffer, buffered, encryptedOutput, level, phases);
+            } finally {
+                encryptedOutput.close();
+            }
+        } finally {
+            BufferPool.MESSAGES.release(packetBuffer);
+        }
+
+        final long outputNanos = timedOutput.getNanos() - headerNanos;
+        SESSION_KEY.update(phases.sessionKey, TimeUnit.NANOSECONDS);
+        SIGNATURE.update(phases.signature, TimeUnit.NANOSECONDS);
+        COMPRESSION.update(phases.compression, TimeUnit.NANOSECONDS);
+        ENCRYPTION.update(encryptedOutput.getNanos() - outputNanos, TimeUnit.NANOSECONDS);
+        OUTPUT.update(timedOutput.getNanos(), TimeUnit.NANOSECONDS);
+        WRITE.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        BYTES.mark(length);
+        recordCompression(level, length, phases);
+        return length;
+    }
+
+    private long signAndCompress(InputStream body, byte[] buffer, int buffered, TimedOutputStream encryptedOutput,
+                                 CompressionLevel level, Phases phases) throws Exception {
+        final long length;
+        final CountingOutputStream counter = new CountingOutputStream(encryptedOutput);
+        final TimedOutputStream compressedOutput = new TimedOutputStream(getCompressionWrapper(counter, level));
+        try {
+            length = sign(body, buffer, buffered, compressedOutput, phases);
+        } finally {
+            compressedOutput.close();
         }
+        phases.compression = compressedOutput.getNanos() - encryptedOutput.getNanos();
+        phases.compressedLength = counter.getCount();
+        return length;
     }
 
-    private void signAndCompress(byte[] body, OutputStream encryptedOutput) throws Exception {
-        try (OutputStream compressedOutput = getCompressionWrapper(encryptedOutput)) {
-            sign(body, compressedOutput);
+    /*
+     * The time saved by storing a body is estimated from the mean time per
+     * byte of every body compressed so far, so it's only an estimate of what
+     * the default level would have cost.
+     */
+    private static void recordCompression(CompressionLevel level, long length, Phases phases) {
+        if (level == CompressionLevel.STORED) {
+            STORED.mark();
+            final long bytes = COMPRESSED_BYTES.get();
+            if (bytes > 0) {
+                final double nanosPerByte = (double) COMPRESSED_NANOS.get() / bytes;
+                COMPRESSION_SAVED.inc(round(length * nanosPerByte / 1000));
+            }
+        } else if (length > 0) {
+            COMPRESSED_BYTES.addAndGet(length);
+            COMPRESSED_NANOS.addAndGet(phases.compression);
+            COMPRESSION_RATIO.update(phases.compressedLength * 100 / length);
         }
     }
 
-    private void sign(byte[] body, OutputStream compressedOutput) throws Exception {
+    private long sign(InputStream body, byte[] buffer, int buffered, OutputStream compressedOutput,
+                      Phases phases) throws Exception {
+        long start = System.nanoTime();
         final PGPSignatureGenerator signatureGenerator = getSignatureGenerator(owner.getUnlockedMasterKey());
+        long signing = System.nanoTime() - start;
+
         signatureGenerator.generateOnePassVersion(false).encode(compressedOutput);
-        try (OutputStream literalOutput = getLiteralWrapper(compressedOutput)) {
-            literalOutput.write(body);
-            signatureGenerator.update(body);
+        long length = 0;
+        final byte[] packetBuffer = BufferPool.MESSAGES.acquire();
+        try (OutputStream literalOutput = getLiteralWrapper(compressedOutput, packetBuffer)) {
+            int r = buffered;
+            do {
+                literalOutput.write(buffer, 0, r);
+                start = System.nanoTime();
+                signatureGenerator.update(buffer, 0, r);
+                signing += System.nanoTime() - start;
+                length += r;
+            } while ((r = body.read(buffer)) >= 0);
+        } finally {
+            BufferPool.MESSAGES.release(packetBuffer);
         }
-        signatureGenerator.generate().encode(compressedOutput);
+
+        start = System.nanoTime();
+        final PGPSignature signature = signatureGenerator.generate();
+        phases.signature = signing + (System.nanoTime() - start);
+
+        signature.encode(compressedOutput);
+        return length;
     }
 
-    private OutputStream getEncryptionWrapper(OutputStream out) throws Exception {
+    private OutputStream getEncryptionWrapper(OutputStream out, byte[] buffer) throws Exception {
 
         final PGPEncryptedDataGenerator encryptedDataGenerator = new PGPEncryptedDataGenerator(
-                SymmetricAlgorithm.DEFAULT.toInteger(), true, random,
-                "BC");
+                new JcePGPDataEncryptorBuilder(SymmetricAlgorithm.DEFAULT.toInteger())
+                        .setWithIntegrityPacket(true)
+                        .setSecureRandom(random)
+                        .setProvider("BC"));
 
         for (KeySet recipient : recipients) {
             if (recipient.getSubKey().getKeyID() != owner.getSubKey().getKeyID()) {
-                encryptedDataGenerator.addMethod(recipient.getSubKey().getPublicKey());
+                encryptedDataGenerator.addMethod(getEncryptionMethod(recipient.getSubKey()));
             }
         }
 
-        encryptedDataGenerator.addMethod(owner.getSubKey().getPublicKey());
+        encryptedDataGenerator.addMethod(getEncryptionMethod(owner.getSubKey()));
+
+        return encryptedDataGenerator.open(out, buffer);
+    }
 
-        return encryptedDataGenerator.open(out, new byte[BUFFER_SIZE]);
+    private JcePublicKeyKeyEncryptionMethodGenerator getEncryptionMethod(SubKey subKey) {
+        return new JcePublicKeyKeyEncryptionMethodGenerator(subKey.getPublicKey())
+                .setProvider("BC")
+                .setSecureRandom(random);
     }
 
-    private OutputStream getCompressionWrapper(OutputStream out) throws Exception {
-        return new PGPCompressedDataGenerator(CompressionAlgorithm.DEFAULT.toInteger()).open(out);
+    private OutputStream getCompressionWrapper(OutputStream out, CompressionLevel level) throws Exception {
+        return new PGPCompressedDataGenerator(level.getAlgorithm().toInteger(), level.getLevel()).open(out);
     }
 
-    private PGPSignatureGenerator getSignatureGenerator(UnlockedMasterKey owner) throws Exception {
+    /**
+     * Returns a generator for signatures by {@code owner}.
+     */
+    static PGPSignatureGenerator getSignatureGenerator(UnlockedMasterKey owner) throws PGPException {
 
         final PGPSignatureGenerator signatureGenerator = new PGPSignatureGenerator(
-                owner.getPublicKey().getAlgorithm(),
-                HashAlgorithm.DEFAULT.toInteger(),
-                "BC");
-        signatureGenerator.initSign(PGPSignature.BINARY_DOCUMENT, owner.getPrivateKey());
+                new JcaPGPContentSignerBuilder(
+                        owner.getPublicKey().getAlgorithm(),
+                        HashAlgorithm.DEFAULT.toInteger()
+                ).setProvider("BC"));
+        signatureGenerator.init(PGPSignature.BINARY_DOCUMENT, owner.getPrivateKey());
 
         final PGPSignatureSubpacketGenerator signatureMetaData = new PGPSignatureSubpacketGenerator();
         signatureMetaData.setSignerUserID(false, owner.getUserID());
@@ -186,12 +403,23 @@ public class MessageWriter {
         return signatureGenerator;
     }
 
-    private OutputStream getLiteralWrapper(OutputStream output) throws Exception {
+    private OutputStream getLiteralWrapper(OutputStream output, byte[] buffer) throws Exception {
         return new PGPLiteralDataGenerator().open(output,
                 PGPLiteralData.BINARY,
                 PGPLiteralData.CONSOLE,
                 new DateTime(DateTimeZone.UTC).toDate(),
-                new byte[BUFFER_SIZE]
+                buffer
         );
     }
+
+    /**
+     * The stages of writing a message which can't be read off a single
+     * stream.
+     */
+    private static class Phases {
+        private long sessionKey;
+        private long signature;
+        private long compression;
+        private long compressedLength;
+    }
 }
@@ -0,0 +1,118 @@
+package com.wesabe.grendel.openpgp;
+
+import org.bouncycastle.bcpg.S2K;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+
+import java.util.Arrays;
+
+import static java.util.Arrays.fill;
+
+/**
+ * A {@link PBESecretKeyDecryptor} which remembers the last key it derived from
+ * its passphrase. Secret keys protected by the same S2K specifier, as both
+ * keys of a {@link KeySet#FORMAT_VERSION current-format} {@link KeySet} are,
+ * are decrypted with a single derivation.
+ * <p>
+ * The decryptor holds a copy of the passphrase until it's
+ * {@link #wipePassphrase() wiped}, after which it can only decrypt keys
+ * protected by the S2K specifier it last derived a key for. The derived key
+ * is held until the decryptor is {@link #wipe() wiped}.
+ */
+final class PassphraseDecryptor extends PBESecretKeyDecryptor {
+    private final char[] passphrase;
+    private final PBESecretKeyDecryptor decryptor;
+    private int keyAlgorithm;
+    private S2K s2k;
+    private byte[] key;
+    private boolean passphraseWiped;
+
+    /**
+     * Creates a new {@link PassphraseDecryptor}.
+     *
+     * @param passphrase the passphrase, which is copied
+     * @throws CryptographicException if the digest algorithms are unavailable
+     */
+    static PassphraseDecryptor create(char[] passphrase) throws CryptographicException {
+        final char[] copy = passphrase.clone();
+        try {
+            final PGPDigestCalculatorProvider digests =
+                    new JcaPGPDigestCalculatorProviderBuilder().setProvider("BC").build();
+            return new PassphraseDecryptor(
+                    copy,
+                    digests,
+                    new JcePBESecretKeyDecryptorBuilder(digests).setProvider("BC").build(copy)
+            );
+        } catch (PGPException e) {
+            fill(copy, '\0');
+            throw new CryptographicException(e);
+        }
+    }
+
+    private PassphraseDecryptor(char[] passphrase, PGPDigestCalculatorProvider digests,
+                                PBESecretKeyDecryptor decryptor) {
+        super(passphrase, digests);
+        this.passphrase = passphrase;
+        this.decryptor = decryptor;
+    }
+
+    @Override
+    public synchronized byte[] makeKeyFromPassPhrase(int keyAlgorithm, S2K s2k) throws PGPException {
+        if ((key == null) || (keyAlgorithm != this.keyAlgorithm) || !isSame(s2k, this.s2k)) {
+            if (passphraseWiped) {
+                throw new PGPException("passphrase has been wiped");
+            }
+
+            if (key != null) {
+                fill(key, (byte) 0);
+            }
+            this.key = super.makeKeyFromPassPhrase(keyAlgorithm, s2k);
+            KeySet.DERIVATIONS.mark();
+            this.keyAlgorithm = keyAlgorithm;
+            this.s2k = s2k;
+        }
+        return key.clone();
+    }
+
+    @Override
+    public byte[] recoverKeyData(int encAlgorithm, byte[] key, byte[] iv,
+                                 byte[] keyData, int keyOff, int keyLen) throws PGPException {
+        return decryptor.recoverKeyData(encAlgorithm, key, iv, keyData, keyOff, keyLen);
+    }
+
+    /**
+     * Wipes the passphrase, keeping the last derived key.
+     */
+    synchronized void wipePassphrase() {
+        fill(passphrase, '\0');
+        this.passphraseWiped = true;
+    }
+
+    /**
+     * Wipes the passphrase and the derived key. The decryptor can't be used
+     * afterwards.
+     */
+    synchronized void wipe() {
+        wipePassphrase();
+        if (key != null) {
+            fill(key, (byte) 0);
+            this.key = null;
+        }
+    }
+
+    /**
+     * Returns {@code true} if the two S2K specifiers derive the same key from
+     * the same passphrase.
+     */
+    static boolean isSame(S2K a, S2K b) {
+        return (a != null) && (b != null)
+                && (a.getType() == b.getType())
+                && (a.getHashAlgorithm() == b.getHashAlgorithm())
+                && (a.getIterationCount() == b.getIterationCount())
+                && (a.getProtectionMode() == b.getProtectionMode())
+                && Arrays.equals(a.getIV(), b.getIV());
+    }
+}
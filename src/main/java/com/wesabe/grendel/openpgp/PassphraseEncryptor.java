@@ -0,0 +1,83 @@
+package com.wesabe.grendel.openpgp;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.operator.PBESecretKeyEncryptor;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+
+import java.security.SecureRandom;
+
+import static java.util.Arrays.fill;
+
+/**
+ * A {@link PBESecretKeyEncryptor} which derives its key from the passphrase
+ * once. Every secret key it encrypts is protected by the same S2K specifier,
+ * as both keys of a {@link KeySet#FORMAT_VERSION current-format}
+ * {@link KeySet} are, and costs no further derivations.
+ * <p>
+ * The passphrase isn't copied, so it must not be wiped until the encryptor is
+ * no longer needed. The derived key is held until the encryptor is
+ * {@link #wipe() wiped}.
+ */
+final class PassphraseEncryptor extends PBESecretKeyEncryptor {
+    private final PBESecretKeyEncryptor encryptor;
+    private byte[] key;
+
+    /**
+     * Creates a new {@link PassphraseEncryptor} which encrypts keys with
+     * {@link SymmetricAlgorithm#DEFAULT} under an iterated and salted SHA-256
+     * S2K specifier.
+     *
+     * @param passphrase the passphrase
+     * @param random     a {@link SecureRandom} instance
+     * @throws PGPException if the algorithms are unavailable
+     */
+    static PassphraseEncryptor create(char[] passphrase, SecureRandom random) throws PGPException {
+        final PGPDigestCalculator digest = new JcaPGPDigestCalculatorProviderBuilder()
+                .setProvider("BC").build()
+                .get(HashAlgorithm.SHA_256.toInteger());
+        return new PassphraseEncryptor(
+                digest,
+                random,
+                passphrase,
+                new JcePBESecretKeyEncryptorBuilder(SymmetricAlgorithm.DEFAULT.toInteger(), digest)
+                        .setSecureRandom(random).setProvider("BC").build(passphrase)
+        );
+    }
+
+    private PassphraseEncryptor(PGPDigestCalculator digest, SecureRandom random,
+                                char[] passphrase, PBESecretKeyEncryptor encryptor) {
+        super(SymmetricAlgorithm.DEFAULT.toInteger(), digest, random, passphrase);
+        this.encryptor = encryptor;
+    }
+
+    @Override
+    public synchronized byte[] getKey() throws PGPException {
+        if (key == null) {
+            this.key = super.getKey();
+            KeySet.DERIVATIONS.mark();
+        }
+        return key.clone();
+    }
+
+    @Override
+    public byte[] encryptKeyData(byte[] key, byte[] keyData, int keyOff, int keyLen) throws PGPException {
+        return encryptor.encryptKeyData(key, keyData, keyOff, keyLen);
+    }
+
+    @Override
+    public byte[] getCipherIV() {
+        return encryptor.getCipherIV();
+    }
+
+    /**
+     * Wipes the derived key. The encryptor can't be used afterwards.
+     */
+    synchronized void wipe() {
+        if (key != null) {
+            fill(key, (byte) 0);
+            this.key = null;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package com.wesabe.grendel.openpgp;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.wesabe.grendel.modules.MetricRegistryProvider;
+import com.wesabe.grendel.util.SpillBuffer;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.util.Arrays.fill;
+
+/**
+ * A message created by {@link SegmentedMessageWriter} whose header and index
+ * have been decrypted and verified, ready to have all or part of its body
+ * read.
+ * <p>
+ * Segmented messages have the following form:
+ * <p>
+ * <pre>
+ * +---------------------------------------------------------------------------+
+ * | "GSEG" | version (1 byte) | header length (4 bytes)                       |
+ * +---------------------------------------------------------------------------+
+ * | Header: an encrypted+signed OpenPGP message, as written by                |
+ * | {@link MessageWriter}, containing the segment size, a random data key,    |
+ * | and a random nonce prefix                                                 |
+ * +---------------------------------------------------------------------------+
+ * | Segment 0: AES-256-GCM ciphertext and tag                                 |
+ * +---------------------------------------------------------------------------+
+ * | ... (repeated for all segments)                                           |
+ * +---------------------------------------------------------------------------+
+ * | Index: the segment size (4 bytes), the nonce prefix, the body length      |
+ * | (8 bytes), and the SHA-256 digest of each segment's ciphertext            |
+ * +---------------------------------------------------------------------------+
+ * | Index signature: an OpenPGP signature packet over the index, made with    |
+ * | the owner's master key                                                    |
+ * +---------------------------------------------------------------------------+
+ * | index length (4 bytes) | index signature length (4 bytes)                 |
+ * +---------------------------------------------------------------------------+
+ * </pre>
+ * <p>
+ * Every segment but the last holds exactly one segment's worth of plaintext.
+ * Each segment's nonce is the nonce prefix followed by its index, and its
+ * additional authenticated data is its index and whether it's the last
+ * segment, so segments can't be reordered, and the message can't be
+ * truncated, without detection. Because segments are authenticated
+ * independently, any segment can be decrypted without reading the ones before
+ * it.
+ * <p>
+ * GCM only proves that a segment was written by someone holding the data key,
+ * which every recipient can recover. The owner's signature over the index
+ * proves that the segments themselves were written by the owner, so each
+ * segment's ciphertext is checked against its digest before it's decrypted,
+ * and no plaintext is released from a segment the owner didn't write.
+ * <p>
+ * The time taken to decrypt each segment is recorded in the
+ * {@code SegmentedMessage.segment} timer, and the number of plaintext bytes
+ * read in the {@code bytes} meter.
+ *
+ * @see SegmentedMessageWriter
+ * @see SegmentedMessageReader
+ */
+public class SegmentedMessage implements Closeable {
+    static final byte[] MAGIC = {'G', 'S', 'E', 'G'};
+    static final int VERSION = 1;
+    static final int PREFIX_SIZE = MAGIC.length + 1 + 4;
+    static final int KEY_SIZE = 32;
+    static final int NONCE_PREFIX_SIZE = 8;
+    static final int TAG_SIZE = 16;
+    static final int DIGEST_SIZE = 32;
+    static final int INDEX_HEADER_SIZE = 4 + NONCE_PREFIX_SIZE + 8;
+    static final int TRAILER_SIZE = 4 + 4;
+    static final int MAX_HEADER_SIZE = 1 << 20; // 1MB
+    static final int MAX_INDEX_SIZE = 1 << 26; // 64MB
+    static final int MAX_SIGNATURE_SIZE = 1 << 16; // 64KB
+    static final int MAX_SEGMENT_SIZE = 1 << 26; // 64MB
+    static final long MAX_SEGMENTS = 1L << 32;
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int SPILL_THRESHOLD = 1024 * 1024; // 1MB
+    private static final Timer SEGMENT;
+    private static final Meter BYTES;
+
+    static {
+        final MetricRegistry metrics = MetricRegistryProvider.getRegistry();
+        SEGMENT = metrics.timer(name(SegmentedMessage.class, "segment"));
+        BYTES = metrics.meter(name(SegmentedMessage.class, "bytes"));
+    }
+
+    private final ByteSource segments;
+    private final byte[] key;
+    private final byte[] noncePrefix;
+    private final int segmentSize;
+    private final long length;
+    private final byte[] digests;
+    private final Executor executor;
+    private final int window;
+
+    SegmentedMessage(ByteSource segments, byte[] key, byte[] noncePrefix, int segmentSize,
+                     long length, byte[] digests, Executor executor) {
+        this.segments = segments;
+        this.key = key;
+        this.noncePrefix = noncePrefix;
+        this.segmentSize = segmentSize;
+        this.length = length;
+        this.digests = digests;
+        this.executor = executor;
+        this.window = 2 * Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Returns {@code true} if {@code input} starts with a segmented message.
+     * The stream must support {@link InputStream#mark(int)}, and is left
+     * where it was.
+     */
+    public static boolean isSegmented(InputStream input) throws IOException {
+        final byte[] magic = new byte[MAGIC.length];
+        input.mark(MAGIC.length);
+        try {
+            return (ByteStreams.read(input, magic, 0, magic.length) == magic.length)
+                    && Arrays.equals(magic, MAGIC);
+        } finally {
+            input.reset();
+        }
+    }
+
+    /**
+     * Returns the length of the message body, in bytes.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the number of plaintext bytes in each segment.
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Decrypts the whole message body to {@code output}, one segment at a
+     * time. Each segment is authenticated before it's written.
+     *
+     * @throws CryptographicException if a segment can't be authenticated
+     * @throws IOException            if there is an error reading the message or
+     *                                writing to {@code output}
+     */
+    public void read(OutputStream output) throws CryptographicException, IOException {
+        decrypt(0, length, output);
+    }
+
+    /**
+     * Decrypts part of the message body to {@code output}, decrypting only
+     * the segments which cover it. Each segment is authenticated before it's
+     * written.
+     *
+     * @param offset the offset of the first byte to decrypt
+     * @param count  the number of bytes to decrypt
+     * @param output the destination of the plaintext
+     * @throws CryptographicException if a segment can't be authenticated
+     * @throws IOException            if there is an error reading the message or
+     *                                writing to {@code output}
+     */
+    public void read(long offset, long count, OutputStream output) throws CryptographicException, IOException {
+        if (offset < 0 || count < 0 || offset + count > length) {
+            throw new IndexOutOfBoundsException("range " + offset + "+" + count + " is outside of " + length);
+        }
+
+        if (count > 0) {
+            decrypt(offset, count, output);
+        }
+    }
+
+    /**
+     * Decrypts the whole message body into a {@link SpillBuffer} which only
+     * holds a bounded amount of it in memory. The caller is responsible for
+     * closing the buffer.
+     *
+     * @throws CryptographicException if a segment can't be authenticated
+     */
+    public SpillBuffer readBuffered() throws CryptographicException {
+        final SpillBuffer buffer = new SpillBuffer(SPILL_THRESHOLD);
+        boolean verified = false;
+        try {
+            read(buffer);
+            verified = true;
+            return buffer;
+        } catch (IOException e) {
+            throw new CryptographicException(e);
+        } finally {
+            if (!verified) {
+                buffer.close();
+            }
+        }
+    }
+
+    /**
+     * Wipes the data key.
+     */
+    @Override
+    public void close() throws IOException {
+        fill(key, (byte) 0);
+    }
+
+    /*
+     * Decrypts segments in parallel, writing them in order. At most a window
+     * of segments are held in memory at once.
+     */
+    private void decrypt(long offset, long count, OutputStream output) throws CryptographicException, IOException {
+        final long unit = segmentSize + TAG_SIZE;
+        final long segmentCount = segmentCount(length, segmentSize);
+        long index = offset / segmentSize;
+
+        int skip = (int) (offset % segmentSize);
+        final long needed = skip + count;
+        long remaining = count;
+        final Deque<FutureTask<byte[]>> pending = new ArrayDeque<>(window);
+        try (InputStream input = segments.slice(index * unit, Long.MAX_VALUE).openStream()) {
+            long requested = 0;
+            while (index < segmentCount && requested < needed) {
+                final boolean last = (index == segmentCount - 1);
+                final byte[] ciphertext = new byte[last ? (int) (length - index * segmentSize) + TAG_SIZE : (int) unit];
+                ByteStreams.readFully(input, ciphertext);
+                requested += ciphertext.length - TAG_SIZE;
+
+                final FutureTask<byte[]> task = new FutureTask<>(decryptor(index, last, ciphertext));
+                executor.execute(task);
+                pending.add(task);
+                index++;
+
+                while (pending.size() >= window) {
+                    final byte[] plaintext = await(pending.removeFirst());
+                    remaining -= writeSlice(plaintext, skip, remaining, output);
+                    skip = 0;
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                final byte[] plaintext = await(pending.removeFirst());
+                remaining -= writeSlice(plaintext, skip, remaining, output);
+                skip = 0;
+            }
+        } finally {
+            discard(pending);
+        }
+    }
+
+    private int writeSlice(byte[] plaintext, int skip, long remaining, OutputStream output) throws IOException {
+        try {
+            final int n = (int) Math.min(Math.max(plaintext.length - skip, 0), remaining);
+            output.write(plaintext, skip, n);
+            BYTES.mark(n);
+            return n;
+        } finally {
+            fill(plaintext, (byte) 0);
+        }
+    }
+
+    private Callable<byte[]> decryptor(final long index, final boolean last, final byte[] ciphertext) {
+        return new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                final Timer.Context context = SEGMENT.time();
+                try {
+                    final int position = (int) index * DIGEST_SIZE;
+                    if (!MessageDigest.isEqual(digest(ciphertext, 0, ciphertext.length),
+                            Arrays.copyOfRange(digests, position, position + DIGEST_SIZE))) {
+                        throw new CryptographicException("segment " + index + " doesn't match the signed index");
+                    }
+                    return cipher(Cipher.DECRYPT_MODE, key, noncePrefix, index, last).doFinal(ciphertext);
+                } finally {
+                    context.stop();
+                }
+            }
+        };
+    }
+
+    private static byte[] await(FutureTask<byte[]> task) throws CryptographicException, InterruptedIOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while decrypting segment");
+        } catch (ExecutionException e) {
+            throw new CryptographicException("segment failed authentication", e.getCause());
+        }
+    }
+
+    /*
+     * Wipes the plaintext of segments which were decrypted but not written.
+     */
+    private static void discard(Deque<FutureTask<byte[]>> pending) {
+        for (FutureTask<byte[]> task : pending) {
+            if (!task.cancel(false)) {
+                try {
+                    fill(task.get(), (byte) 0);
+                } catch (Exception ignored) {
+                    // nothing to wipe
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of segments a body of {@code length} bytes is split
+     * into. Every segment but the last is full, and the last is only empty if
+     * the whole body is.
+     */
+    static long segmentCount(long length, int segmentSize) {
+        return (length == 0) ? 1 : ((length - 1) / segmentSize) + 1;
+    }
+
+    /**
+     * Returns the digest of a segment's ciphertext, as recorded in the index.
+     */
+    static byte[] digest(byte[] ciphertext, int offset, int length) {
+        return Hashing.sha256().hashBytes(ciphertext, offset, length).asBytes();
+    }
+
+    /**
+     * Returns a cipher for the given segment.
+     */
+    static Cipher cipher(int mode, byte[] key, byte[] noncePrefix, long index, boolean last) throws GeneralSecurityException {
+        if (index >= MAX_SEGMENTS) {
+            throw new GeneralSecurityException("too many segments");
+        }
+
+        final byte[] nonce = ByteBuffer.allocate(NONCE_PREFIX_SIZE + 4)
+                .put(noncePrefix)
+                .putInt((int) index)
+                .array();
+        final Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(mode, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_SIZE * 8, nonce));
+        cipher.updateAAD(ByteBuffer.allocate(9).putLong(index).put((byte) (last ? 1 : 0)).array());
+        return cipher;
+    }
+
+    /**
+     * Reads the prefix and header of a segmented message.
+     */
+    static byte[] readHeader(InputStream input) throws CryptographicException, IOException {
+        final DataInputStream data = new DataInputStream(input);
+        final byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new CryptographicException("not a segmented message");
+        }
+
+        final int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new CryptographicException("unsupported segmented message version " + version);
+        }
+
+        final int headerSize = data.readInt();
+        if (headerSize <= 0 || headerSize > MAX_HEADER_SIZE) {
+            throw new CryptographicException("invalid header size " + headerSize);
+        }
+
+        final byte[] header = new byte[headerSize];
+        data.readFully(header);
+        return header;
+    }
+
+    /**
+     * Writes the prefix and header of a segmented message.
+     */
+    static void writeHeader(OutputStream output, byte[] header) throws IOException {
+        final DataOutputStream data = new DataOutputStream(output);
+        data.write(MAGIC);
+        data.writeByte(VERSION);
+        data.writeInt(header.length);
+        data.write(header);
+        data.flush();
+    }
+
+    /**
+     * Rewraps the header of a segmented message, copying its segments and
+     * signed index verbatim.
+     */
+    static void rewrap(MessageRewrapper rewrapper, InputStream input, OutputStream output) throws CryptographicException, IOException {
+        writeHeader(output, rewrapper.rewrap(readHeader(input)));
+        ByteStreams.copy(input, output);
+    }
+}
@@ -0,0 +1,201 @@
+package com.wesabe.grendel.openpgp;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.jcajce.JcaPGPObjectFactory;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.Executor;
+
+import static com.wesabe.grendel.openpgp.SegmentedMessage.*;
+import static java.util.Arrays.fill;
+
+/**
+ * A reader class capable of opening segmented messages created by
+ * {@link SegmentedMessageWriter}.
+ * <p>
+ * Opening a message decrypts its header and verifies the owner's signature
+ * with {@link MessageReader}, which enforces the same constraints on the
+ * header as it does on any other message, and then verifies the owner's
+ * signature of its index. Segments are then checked against the index,
+ * decrypted, and authenticated in parallel on the provided {@link Executor}
+ * as they're read.
+ *
+ * @see SegmentedMessage
+ * @see SegmentedMessageWriter
+ */
+public class SegmentedMessageReader {
+    private final KeySet signer;
+    private final UnlockedKeySet recipient;
+    private final Executor executor;
+
+    /**
+     * Creates a new reader for a segmented message.
+     *
+     * @param signer    the {@link KeySet} belonging to the user who signed the
+     *                  message
+     * @param recipient the {@link UnlockedKeySet} belonging to the user whose public
+     *                  key the message is encrypted with
+     * @param executor  an {@link Executor} to decrypt segments on
+     */
+    public SegmentedMessageReader(KeySet signer, UnlockedKeySet recipient, Executor executor) {
+        this.signer = signer;
+        this.recipient = recipient;
+        this.executor = executor;
+    }
+
+    /**
+     * Decrypts and verifies the header and index of a segmented message.
+     *
+     * @param encrypted a {@link ByteSource} of the segmented message, which must
+     *                  be able to open it more than once
+     * @return the opened message
+     * @throws CryptographicException if the header can't be decrypted or verified, if
+     *                                the index wasn't signed by the signer, or if the
+     *                                length of {@code encrypted} is inconsistent with them
+     */
+    public SegmentedMessage open(ByteSource encrypted) throws CryptographicException {
+        final byte[] header;
+        final byte[] index;
+        final long size;
+        try {
+            size = encrypted.size();
+            try (InputStream input = encrypted.openStream()) {
+                header = readHeader(input);
+            }
+            index = new MessageReader(signer, recipient).read(header);
+        } catch (IOException e) {
+            throw new CryptographicException(e);
+        }
+
+        try {
+            if (index.length != 4 + NONCE_PREFIX_SIZE + KEY_SIZE) {
+                throw new CryptographicException("invalid segmented message header");
+            }
+
+            final ByteBuffer buffer = ByteBuffer.wrap(index);
+            final int segmentSize = buffer.getInt();
+            if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+                throw new CryptographicException("invalid segment size " + segmentSize);
+            }
+
+            final byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+            final byte[] key = new byte[KEY_SIZE];
+            buffer.get(noncePrefix).get(key);
+
+            final long offset = PREFIX_SIZE + header.length;
+            final SegmentIndex segmentIndex = readIndex(encrypted, offset, size);
+            if (segmentIndex.segmentSize != segmentSize
+                    || !MessageDigest.isEqual(segmentIndex.noncePrefix, noncePrefix)) {
+                throw new CryptographicException("segment index doesn't match the header");
+            }
+
+            final long segmentsLength = segmentIndex.length
+                    + segmentCount(segmentIndex.length, segmentSize) * TAG_SIZE;
+            if (segmentsLength != size - offset - segmentIndex.trailerLength) {
+                throw new CryptographicException("invalid segmented message length");
+            }
+
+            return new SegmentedMessage(encrypted.slice(offset, segmentsLength), key, noncePrefix, segmentSize,
+                    segmentIndex.length, segmentIndex.digests, executor);
+        } finally {
+            fill(index, (byte) 0);
+        }
+    }
+
+    /*
+     * Reads the index from the end of the message and verifies the signer's
+     * signature of it before anything in it is trusted.
+     */
+    private SegmentIndex readIndex(ByteSource encrypted, long offset, long size) throws CryptographicException {
+        try {
+            if (size - offset < TRAILER_SIZE) {
+                throw new CryptographicException("invalid segmented message length");
+            }
+
+            final DataInputStream trailer = new DataInputStream(
+                    encrypted.slice(size - TRAILER_SIZE, TRAILER_SIZE).openStream());
+            final int indexLength = trailer.readInt();
+            final int signatureLength = trailer.readInt();
+            if (indexLength < INDEX_HEADER_SIZE || indexLength > MAX_INDEX_SIZE
+                    || (indexLength - INDEX_HEADER_SIZE) % DIGEST_SIZE != 0
+                    || signatureLength <= 0 || signatureLength > MAX_SIGNATURE_SIZE
+                    || (long) indexLength + signatureLength + TRAILER_SIZE > size - offset) {
+                throw new CryptographicException("invalid segment index");
+            }
+
+            final long start = size - TRAILER_SIZE - signatureLength - indexLength;
+            final byte[] index = new byte[indexLength];
+            final byte[] signature = new byte[signatureLength];
+            try (InputStream input = encrypted.slice(start, indexLength + signatureLength).openStream()) {
+                ByteStreams.readFully(input, index);
+                ByteStreams.readFully(input, signature);
+            }
+            verify(index, signature);
+
+            final ByteBuffer buffer = ByteBuffer.wrap(index);
+            final int segmentSize = buffer.getInt();
+            final byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+            buffer.get(noncePrefix);
+            final long length = buffer.getLong();
+            if (segmentSize <= 0 || length < 0
+                    || segmentCount(length, segmentSize) != (indexLength - INDEX_HEADER_SIZE) / DIGEST_SIZE) {
+                throw new CryptographicException("invalid segment index");
+            }
+
+            final byte[] digests = new byte[buffer.remaining()];
+            buffer.get(digests);
+            return new SegmentIndex(segmentSize, noncePrefix, length, digests,
+                    TRAILER_SIZE + signatureLength + indexLength);
+        } catch (IOException e) {
+            throw new CryptographicException(e);
+        }
+    }
+
+    private void verify(byte[] index, byte[] encodedSignature) throws CryptographicException, IOException {
+        try {
+            final Object packet = new JcaPGPObjectFactory(encodedSignature).nextObject();
+            if (!(packet instanceof PGPSignatureList)) {
+                throw new CryptographicException("invalid segment index signature");
+            }
+
+            final PGPSignature signature = MessageReader.getSignature(signer, (PGPSignatureList) packet);
+            signature.init(new JcaPGPContentVerifierBuilderProvider().setProvider("BC"),
+                    signer.getMasterKey().getPublicKey());
+            signature.update(index);
+            if (!signature.verify()) {
+                throw new CryptographicException("invalid segment index signature");
+            }
+        } catch (PGPException e) {
+            throw new CryptographicException(e);
+        }
+    }
+
+    /**
+     * The contents of a segmented message's index, and the length of the
+     * trailer it was read from.
+     */
+    private static class SegmentIndex {
+        private final int segmentSize;
+        private final byte[] noncePrefix;
+        private final long length;
+        private final byte[] digests;
+        private final long trailerLength;
+
+        private SegmentIndex(int segmentSize, byte[] noncePrefix, long length, byte[] digests, long trailerLength) {
+            this.segmentSize = segmentSize;
+            this.noncePrefix = noncePrefix;
+            this.length = length;
+            this.digests = digests;
+            this.trailerLength = trailerLength;
+        }
+    }
+}
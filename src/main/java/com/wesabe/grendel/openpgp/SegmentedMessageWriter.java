@@ -0,0 +1,257 @@
+package com.wesabe.grendel.openpgp;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.io.ByteStreams;
+import com.wesabe.grendel.modules.MetricRegistryProvider;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+
+import javax.crypto.Cipher;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.wesabe.grendel.openpgp.SegmentedMessage.*;
+import static java.util.Arrays.fill;
+
+/**
+ * A writer class capable of producing segmented messages, which can be
+ * decrypted a segment at a time.
+ * <p>
+ * The message body is split into fixed-size segments, each encrypted and
+ * authenticated with AES-256-GCM under a random data key. The data key is
+ * stored in a header which is signed by the owner and encrypted for the owner
+ * and recipients by {@link MessageWriter}, so rewrapping a segmented message
+ * only touches its header. Segments are encrypted in parallel on the provided
+ * {@link Executor}, and once the last has been written the digests of their
+ * ciphertexts are written in an index signed with the owner's master key.
+ * <p>
+ * The time taken to encrypt each segment is recorded in the
+ * {@code SegmentedMessageWriter.segment} timer, and the total in
+ * {@code write}. The number of plaintext bytes encrypted is recorded in the
+ * {@code bytes} meter.
+ *
+ * @see SegmentedMessage
+ * @see SegmentedMessageReader
+ */
+public class SegmentedMessageWriter {
+    private static final byte[] EMPTY = new byte[0];
+    private static final Timer SEGMENT, WRITE;
+    private static final Meter BYTES;
+
+    static {
+        final MetricRegistry metrics = MetricRegistryProvider.getRegistry();
+        SEGMENT = metrics.timer(name(SegmentedMessageWriter.class, "segment"));
+        WRITE = metrics.timer(name(SegmentedMessageWriter.class, "write"));
+        BYTES = metrics.meter(name(SegmentedMessageWriter.class, "bytes"));
+    }
+
+    private final UnlockedKeySet owner;
+    private final Collection<KeySet> recipients;
+    private final SecureRandom random;
+    private final int segmentSize;
+    private final Executor executor;
+    private final int window;
+
+    /**
+     * Creates a new writer for a segmented message.
+     *
+     * @param owner       the {@link UnlockedKeySet} belonging to the message owner
+     * @param recipients  the {@link KeySet}s belonging to the recipients
+     * @param random      a {@link SecureRandom} instance
+     * @param segmentSize the number of plaintext bytes in each segment
+     * @param executor    an {@link Executor} to encrypt segments on
+     */
+    public SegmentedMessageWriter(UnlockedKeySet owner, Collection<KeySet> recipients, SecureRandom random,
+                                  int segmentSize, Executor executor) {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("invalid segment size: " + segmentSize);
+        }
+        this.owner = owner;
+        this.recipients = recipients;
+        this.random = random;
+        this.segmentSize = segmentSize;
+        this.executor = executor;
+        this.window = 2 * Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Encrypts a message in a single pass, reading the body from
+     * {@code input} and writing the segmented message to {@code output}.
+     * <p>
+     * Only a bounded number of segments are held in memory, regardless of
+     * the size of the message body. Neither stream is closed.
+     *
+     * @param input  the message body
+     * @param output the destination of the segmented message
+     * @return the number of bytes read from {@code input}
+     * @throws CryptographicException if any error occurs while processing the message
+     */
+    public long write(InputStream input, OutputStream output) throws CryptographicException {
+        final byte[] key = new byte[KEY_SIZE];
+        final byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+        random.nextBytes(key);
+        random.nextBytes(noncePrefix);
+
+        final byte[] header = encodeHeader(key, noncePrefix);
+        final Timer.Context context = WRITE.time();
+        try {
+            writeHeader(output, new MessageWriter(owner, recipients, random).write(header));
+            fill(header, (byte) 0);
+            final ByteArrayOutputStream digests = new ByteArrayOutputStream();
+            final long length = writeSegments(input, output, key, noncePrefix, digests);
+            writeIndex(output, noncePrefix, length, digests.toByteArray());
+            context.stop();
+            BYTES.mark(length);
+            return length;
+        } catch (IOException | PGPException e) {
+            throw new CryptographicException(e);
+        } finally {
+            fill(header, (byte) 0);
+            fill(key, (byte) 0);
+        }
+    }
+
+    private byte[] encodeHeader(byte[] key, byte[] noncePrefix) {
+        return ByteBuffer.allocate(4 + NONCE_PREFIX_SIZE + KEY_SIZE)
+                .putInt(segmentSize)
+                .put(noncePrefix)
+                .put(key)
+                .array();
+    }
+
+    /*
+     * The index is signed with a detached signature, which isn't encrypted
+     * so that rewrapping can copy it verbatim.
+     */
+    private void writeIndex(OutputStream output, byte[] noncePrefix, long length,
+                            byte[] digests) throws CryptographicException, IOException, PGPException {
+        final byte[] index = ByteBuffer.allocate(INDEX_HEADER_SIZE + digests.length)
+                .putInt(segmentSize)
+                .put(noncePrefix)
+                .putLong(length)
+                .put(digests)
+                .array();
+
+        final PGPSignatureGenerator signatureGenerator = MessageWriter.getSignatureGenerator(owner.getUnlockedMasterKey());
+        signatureGenerator.update(index);
+        final byte[] signature = signatureGenerator.generate().getEncoded();
+
+        final DataOutputStream data = new DataOutputStream(output);
+        data.write(index);
+        data.write(signature);
+        data.writeInt(index.length);
+        data.writeInt(signature.length);
+        data.flush();
+    }
+
+    /*
+     * Reads one segment ahead so the last segment can be marked as such, and
+     * encrypts segments in parallel, writing them in order.
+     */
+    private long writeSegments(InputStream input, OutputStream output, byte[] key, byte[] noncePrefix,
+                               ByteArrayOutputStream digests) throws CryptographicException, IOException {
+        final Deque<FutureTask<byte[]>> pending = new ArrayDeque<>(window);
+        long length = 0;
+        long index = 0;
+        try {
+            byte[] current = readSegment(input);
+            while (true) {
+                final byte[] next = (current.length == segmentSize) ? readSegment(input) : EMPTY;
+                final boolean last = (next.length == 0);
+                length += current.length;
+
+                final FutureTask<byte[]> task = new FutureTask<>(encryptor(key, noncePrefix, index++, last, current));
+                executor.execute(task);
+                pending.add(task);
+
+                while (pending.size() >= window) {
+                    writeSegment(await(pending.removeFirst()), output, digests);
+                }
+
+                if (last) {
+                    break;
+                }
+                current = next;
+            }
+
+            while (!pending.isEmpty()) {
+                writeSegment(await(pending.removeFirst()), output, digests);
+            }
+            return length;
+        } finally {
+            for (FutureTask<byte[]> task : pending) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /*
+     * Encryptors return each segment's digest followed by its ciphertext, so
+     * both are computed in parallel.
+     */
+    private static void writeSegment(byte[] sealed, OutputStream output,
+                                     ByteArrayOutputStream digests) throws IOException {
+        digests.write(sealed, 0, DIGEST_SIZE);
+        output.write(sealed, DIGEST_SIZE, sealed.length - DIGEST_SIZE);
+    }
+
+    private byte[] readSegment(InputStream input) throws IOException {
+        final byte[] segment = new byte[segmentSize];
+        final int r = ByteStreams.read(input, segment, 0, segmentSize);
+        if (r == segmentSize) {
+            return segment;
+        }
+
+        final byte[] partial = Arrays.copyOf(segment, r);
+        fill(segment, (byte) 0);
+        return partial;
+    }
+
+    private Callable<byte[]> encryptor(final byte[] key, final byte[] noncePrefix, final long index,
+                                       final boolean last, final byte[] plaintext) {
+        return new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                final Timer.Context context = SEGMENT.time();
+                try {
+                    final Cipher cipher = cipher(Cipher.ENCRYPT_MODE, key, noncePrefix, index, last);
+                    final byte[] sealed = new byte[DIGEST_SIZE + cipher.getOutputSize(plaintext.length)];
+                    final int n = cipher.doFinal(plaintext, 0, plaintext.length, sealed, DIGEST_SIZE);
+                    System.arraycopy(digest(sealed, DIGEST_SIZE, n), 0, sealed, 0, DIGEST_SIZE);
+                    return sealed;
+                } finally {
+                    context.stop();
+                    fill(plaintext, (byte) 0);
+                }
+            }
+        };
+    }
+
+    private static byte[] await(FutureTask<byte[]> task) throws CryptographicException, InterruptedIOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while encrypting segment");
+        } catch (ExecutionException e) {
+            throw new CryptographicException(e.getCause());
+        }
+    }
+}
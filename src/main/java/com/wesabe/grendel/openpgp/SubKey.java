@@ -3,8 +3,8 @@ package com.wesabe.grendel.openpgp;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPPrivateKey;
 import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
 
-import java.security.NoSuchProviderException;
 import java.util.List;
 
 /**
@@ -77,11 +77,23 @@ public class SubKey extends AbstractKey {
 
     @Override
     public UnlockedSubKey unlock(char[] passphrase) throws CryptographicException {
+        final PassphraseDecryptor decryptor = PassphraseDecryptor.create(passphrase);
         try {
-            final PGPPrivateKey privateKey = secretKey.extractPrivateKey(passphrase, "BC");
+            return unlock(decryptor);
+        } finally {
+            decryptor.wipe();
+        }
+    }
+
+    /**
+     * Unlocks the secret key with {@code decryptor}.
+     *
+     * @throws CryptographicException if the decryptor's passphrase is incorrect
+     */
+    UnlockedSubKey unlock(PBESecretKeyDecryptor decryptor) throws CryptographicException {
+        try {
+            final PGPPrivateKey privateKey = extractPrivateKey(decryptor);
             return new UnlockedSubKey(secretKey, masterKey, privateKey);
-        } catch (NoSuchProviderException e) {
-            throw new CryptographicException(e);
         } catch (PGPException e) {
             throw new CryptographicException("incorrect passphrase");
         }
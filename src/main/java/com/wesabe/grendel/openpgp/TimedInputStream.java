@@ -0,0 +1,56 @@
+package com.wesabe.grendel.openpgp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An {@link InputStream} which records the time spent in the stream it wraps.
+ * Used to split the time taken by a chain of streams into its stages.
+ * <p>
+ * Only accurate when read in blocks, since the clock is read on every call.
+ */
+class TimedInputStream extends FilterInputStream {
+    private long nanos;
+
+    TimedInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Returns the time spent in the wrapped stream so far, in nanoseconds.
+     */
+    long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return in.read();
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return in.read(b, off, len);
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return in.skip(n);
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+}
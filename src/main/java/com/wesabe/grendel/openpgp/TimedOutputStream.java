@@ -0,0 +1,67 @@
+package com.wesabe.grendel.openpgp;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An {@link OutputStream} which records the time spent in the stream it
+ * wraps. Used to split the time taken by a chain of streams into its stages.
+ * <p>
+ * Only accurate when written to in blocks, since the clock is read on every
+ * call.
+ */
+class TimedOutputStream extends FilterOutputStream {
+    private long nanos;
+
+    TimedOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Returns the time spent in the wrapped stream so far, in nanoseconds.
+     */
+    long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            out.write(b);
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            out.write(b, off, len);
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        final long start = System.nanoTime();
+        try {
+            out.flush();
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        final long start = System.nanoTime();
+        try {
+            out.close();
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+}
@@ -1,29 +1,90 @@
 package com.wesabe.grendel.openpgp;
 
+import com.codahale.metrics.Timer;
+import com.wesabe.grendel.modules.MetricRegistryProvider;
 import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
 import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
 
-import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
 
+import static com.codahale.metrics.MetricRegistry.name;
 import static org.bouncycastle.openpgp.PGPSecretKey.copyWithNewPassword;
 
 /**
  * An unlocked {@link KeySet}.
+ * <p>
+ * The subkey is unlocked when the key set is, which also checks the
+ * passphrase. The master key is only needed to sign messages, so for a
+ * {@link KeySet#FORMAT_VERSION current-format} key set it's unlocked the first
+ * time {@link #getUnlockedMasterKey()} is called, with the key derived for the
+ * subkey, and requests which only read documents never pay for it at all.
+ * Until then the derived key is held instead of the passphrase, which has
+ * already been wiped, and it's wiped in turn once it has been used. The time
+ * taken to unlock master keys is recorded in the
+ * {@code UnlockedKeySet.unlock-master-key} timer.
  *
  * @author coda
  */
 public class UnlockedKeySet extends KeySet {
+    private static final Timer UNLOCK_MASTER_KEY = MetricRegistryProvider.getRegistry()
+            .timer(name(UnlockedKeySet.class, "unlock-master-key"));
+
+    private volatile UnlockedMasterKey unlockedMasterKey;
+    private PassphraseDecryptor decryptor;
 
     protected UnlockedKeySet(UnlockedMasterKey masterKey, UnlockedSubKey subKey) {
         super(masterKey, subKey);
+        this.unlockedMasterKey = masterKey;
     }
 
     /**
-     * Returns the {@link UnlockedMasterKey}.
+     * Creates an {@link UnlockedKeySet} whose master key will be unlocked with
+     * {@code decryptor} when it's first needed.
+     *
+     * @param masterKey the locked master key
+     * @param subKey    the unlocked subkey
+     * @param decryptor the decryptor which unlocked {@code subKey}, whose
+     *                  passphrase has been wiped
      */
-    public UnlockedMasterKey getUnlockedMasterKey() {
-        return (UnlockedMasterKey) getMasterKey();
+    UnlockedKeySet(MasterKey masterKey, UnlockedSubKey subKey, PassphraseDecryptor decryptor) {
+        super(masterKey, subKey);
+        this.decryptor = decryptor;
+    }
+
+    /**
+     * Returns the {@link UnlockedMasterKey}, unlocking it if this is the first
+     * time it's been needed.
+     *
+     * @throws CryptographicException if the master key can't be unlocked
+     */
+    public UnlockedMasterKey getUnlockedMasterKey() throws CryptographicException {
+        UnlockedMasterKey key = unlockedMasterKey;
+        if (key == null) {
+            synchronized (this) {
+                key = unlockedMasterKey;
+                if (key == null) {
+                    final Timer.Context context = UNLOCK_MASTER_KEY.time();
+                    try {
+                        key = getMasterKey().unlock(decryptor);
+                        decryptor.wipe();
+                        this.decryptor = null;
+                        this.unlockedMasterKey = key;
+                    } finally {
+                        context.stop();
+                    }
+                }
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Returns {@code true} if the master key has been unlocked.
+     */
+    public boolean isMasterKeyUnlocked() {
+        return unlockedMasterKey != null;
     }
 
     /**
@@ -33,9 +94,59 @@ public class UnlockedKeySet extends KeySet {
         return (UnlockedSubKey) getSubKey();
     }
 
+    /**
+     * Re-encrypts the key set's unlocked keys with a new passphrase and returns
+     * it in locked form. The old passphrase isn't needed, and both keys are
+     * protected by the same S2K specifier, so the result is in the
+     * {@link KeySet#FORMAT_VERSION current format} and costs a single key
+     * derivation.
+     *
+     * @param newPassphrase the new passphrase
+     * @param random        a {@link SecureRandom} instance
+     * @return {@code this}, re-encrypted with {@code newPassphrase}
+     * @throws CryptographicException if the master key can't be unlocked
+     */
+    public KeySet relock(char[] newPassphrase, SecureRandom random) throws CryptographicException {
+        final UnlockedMasterKey masterKey = getUnlockedMasterKey();
+        final UnlockedSubKey subKey = getUnlockedSubKey();
+        PassphraseEncryptor encryptor = null;
+        try {
+            encryptor = KeySet.newEncryptor(newPassphrase, random);
+
+            // RFC 4880 requires a SHA-1 checksum of encrypted secret keys
+            final PGPSecretKey masterSecretKey = new PGPSecretKey(
+                    masterKey.getPrivateKey(),
+                    masterKey.getPublicKey(),
+                    new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1),
+                    true,
+                    encryptor
+            );
+            final PGPSecretKey subSecretKey = new PGPSecretKey(
+                    subKey.getPrivateKey(),
+                    subKey.getPublicKey(),
+                    new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1),
+                    false,
+                    encryptor
+            );
+
+            final MasterKey newMasterKey = new MasterKey(masterSecretKey);
+            final SubKey newSubKey = new SubKey(subSecretKey, newMasterKey);
+
+            return new KeySet(newMasterKey, newSubKey);
+        } catch (PGPException e) {
+            throw new CryptographicException(e);
+        } finally {
+            if (encryptor != null) {
+                encryptor.wipe();
+            }
+        }
+    }
+
     /**
      * Re-encrypts the key set with a new passphrase and returns it in locked
-     * form.
+     * form. Both keys are protected by the same S2K specifier, so the result
+     * is in the {@link KeySet#FORMAT_VERSION current format}, and relocking a
+     * key set with its own passphrase migrates it.
      *
      * @param oldPassphrase the old passphrase
      * @param newPassphrase the new passphrase
@@ -44,30 +155,33 @@ public class UnlockedKeySet extends KeySet {
      * @throws CryptographicException if {@code oldPassphrase} is incorrect
      */
     public KeySet relock(char[] oldPassphrase, char[] newPassphrase, SecureRandom random) throws CryptographicException {
+        final PassphraseDecryptor oldDecryptor = PassphraseDecryptor.create(oldPassphrase);
+        PassphraseEncryptor encryptor = null;
         try {
+            encryptor = KeySet.newEncryptor(newPassphrase, random);
+
             final PGPSecretKey masterSecretKey = copyWithNewPassword(
-                    getUnlockedMasterKey().getSecretKey(),
-                    oldPassphrase,
-                    newPassphrase,
-                    SymmetricAlgorithm.DEFAULT.toInteger(),
-                    random,
-                    "BC"
+                    getMasterKey().getSecretKey(),
+                    oldDecryptor,
+                    encryptor
             );
             final PGPSecretKey subSecretKey = copyWithNewPassword(
                     getUnlockedSubKey().getSecretKey(),
-                    oldPassphrase,
-                    newPassphrase,
-                    SymmetricAlgorithm.DEFAULT.toInteger(),
-                    random,
-                    "BC"
+                    oldDecryptor,
+                    encryptor
             );
 
             final MasterKey newMasterKey = new MasterKey(masterSecretKey);
             final SubKey newSubKey = new SubKey(subSecretKey, newMasterKey);
 
             return new KeySet(newMasterKey, newSubKey);
-        } catch (NoSuchProviderException | PGPException e) {
+        } catch (PGPException e) {
             throw new CryptographicException(e);
+        } finally {
+            if (encryptor != null) {
+                encryptor.wipe();
+            }
+            oldDecryptor.wipe();
         }
     }
 }
@@ -0,0 +1,137 @@
+package com.wesabe.grendel.resources;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Response;
+
+/**
+ * A single range of bytes requested with a {@code Range} header.
+ * <p>
+ * Only single ranges are supported. Multiple ranges, other units, and
+ * malformed headers are ignored, in which case the whole body should be sent,
+ * as permitted by RFC 7233.
+ */
+final class ByteRange {
+    private static final String UNIT = "bytes=";
+    private final long offset;
+    private final long count;
+    private final long length;
+
+    private ByteRange(long offset, long count, long length) {
+        this.offset = offset;
+        this.count = count;
+        this.length = length;
+    }
+
+    /**
+     * Parses a {@code Range} header for a body of {@code length} bytes.
+     *
+     * @param range   the {@code Range} header, or {@code null}
+     * @param ifRange the {@code If-Range} header, or {@code null}
+     * @param eTag    the body's ETag
+     * @param length  the length of the body
+     * @return the requested range, or {@code null} if the whole body should be
+     *         sent
+     * @throws WebApplicationException a {@code 416 Requested Range Not Satisfiable}
+     *                                 if the range is outside of the body
+     */
+    static ByteRange parse(String range, String ifRange, String eTag, long length) {
+        if (range == null || !range.startsWith(UNIT) || range.indexOf(',') >= 0) {
+            return null;
+        }
+
+        if (ifRange != null && !matches(ifRange, eTag)) {
+            return null;
+        }
+
+        final String spec = range.substring(UNIT.length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+
+        if (dash == 0) {
+            // a suffix range, e.g. bytes=-500
+            final long suffix = parseLong(spec.substring(1));
+            if (suffix < 0) {
+                return null;
+            }
+
+            if (suffix == 0 || length == 0) {
+                throw notSatisfiable(length);
+            }
+            final long count = Math.min(suffix, length);
+            return new ByteRange(length - count, count, length);
+        }
+
+        final long first = parseLong(spec.substring(0, dash));
+        final long last = (dash + 1 == spec.length()) ? Long.MAX_VALUE : parseLong(spec.substring(dash + 1));
+        if (first < 0 || last < first) {
+            return null;
+        }
+
+        if (first >= length) {
+            throw notSatisfiable(length);
+        }
+
+        final long end = Math.min(last, length - 1);
+        return new ByteRange(first, end - first + 1, length);
+    }
+
+    /**
+     * Returns the offset of the first byte in the range.
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the number of bytes in the range.
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the value of the range's {@code Content-Range} header.
+     */
+    String toContentRange() {
+        return "bytes " + offset + '-' + (offset + count - 1) + '/' + length;
+    }
+
+    /*
+     * If-Range requires a strong comparison, and dates are never treated as
+     * matching.
+     */
+    private static boolean matches(String ifRange, String eTag) {
+        try {
+            final EntityTag tag = EntityTag.valueOf(ifRange.trim());
+            return !tag.isWeak() && tag.getValue().equals(eTag);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static long parseLong(String s) {
+        final String value = s.trim();
+        if (value.isEmpty() || value.length() > 18) {
+            return -1;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        return Long.parseLong(value);
+    }
+
+    private static WebApplicationException notSatisfiable(long length) {
+        return new WebApplicationException(
+                Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header("Content-Range", "bytes */" + length)
+                        .build()
+        );
+    }
+}
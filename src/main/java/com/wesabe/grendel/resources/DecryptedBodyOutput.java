@@ -0,0 +1,28 @@
+package com.wesabe.grendel.resources;
+
+import com.wesabe.grendel.util.SpillBuffer;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link StreamingOutput} which writes a verified, decrypted document body
+ * to the response and then discards it.
+ */
+class DecryptedBodyOutput implements StreamingOutput {
+    private final SpillBuffer body;
+
+    DecryptedBodyOutput(SpillBuffer body) {
+        this.body = body;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try {
+            body.writeTo(output);
+        } finally {
+            body.close();
+        }
+    }
+}
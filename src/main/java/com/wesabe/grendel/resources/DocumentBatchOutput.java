@@ -0,0 +1,197 @@
+package com.wesabe.grendel.resources;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.wesabe.grendel.entities.Document;
+import com.wesabe.grendel.modules.CryptoExecutor;
+import com.wesabe.grendel.util.SpillBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.RuntimeDelegate;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A {@link StreamingOutput} which writes a batch of documents as the parts of
+ * a {@code multipart/mixed} entity, in the order they were requested.
+ * <p>
+ * Each part has a {@code Content-Location} header with the document's URI
+ * and a {@code Status} header with the status a single {@code GET} of that
+ * URI would have had. Successful parts also have the document's content type,
+ * length, {@code ETag}, and {@code Last-Modified} headers. Bodies are
+ * decrypted in the background, at most {@code window} at a time, starting
+ * with the part being written; each is written as soon as it and all the
+ * parts before it are ready, and is discarded once written. Only the
+ * {@link SpillBuffer}s of the bodies in the window are held at once, however
+ * many documents were requested.
+ */
+class DocumentBatchOutput implements StreamingOutput {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DocumentBatchOutput.class);
+    private static final String CRLF = "\r\n";
+
+    /**
+     * A single requested document.
+     */
+    static class Part {
+        private final String uri;
+        private final Document document;
+        private final Callable<SpillBuffer> decrypt;
+        private ListenableFuture<SpillBuffer> body;
+
+        /**
+         * Creates a part for a document which was found, and whose body will
+         * be decrypted by {@code decrypt}.
+         */
+        Part(String uri, Document document, Callable<SpillBuffer> decrypt) {
+            this.uri = uri;
+            this.document = document;
+            this.decrypt = decrypt;
+        }
+
+        /**
+         * Creates a part for a document which doesn't exist.
+         */
+        Part(String uri) {
+            this(uri, null, null);
+        }
+    }
+
+    private final String boundary;
+    private final List<Part> parts;
+    private final CryptoExecutor executor;
+    private final int window;
+
+    /**
+     * Creates a new {@link DocumentBatchOutput}.
+     *
+     * @param boundary the multipart boundary
+     * @param parts    the requested documents, in order
+     * @param executor the {@link CryptoExecutor} to decrypt bodies on
+     * @param window   the number of bodies which may be decrypted or held at
+     *                 once
+     */
+    DocumentBatchOutput(String boundary, List<Part> parts, CryptoExecutor executor, int window) {
+        this.boundary = boundary;
+        this.parts = parts;
+        this.executor = executor;
+        this.window = window;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        int written = 0;
+        try {
+            for (Part part : parts) {
+                decryptAhead(written);
+                writePart(output, part);
+                written++;
+            }
+            writeLine(output, "--" + boundary + "--");
+        } finally {
+            for (Part part : parts.subList(written, parts.size())) {
+                discard(part);
+            }
+        }
+    }
+
+    private void writePart(OutputStream output, Part part) throws IOException {
+        writeLine(output, "--" + boundary);
+        writeHeader(output, HttpHeaders.CONTENT_LOCATION, part.uri);
+
+        if (part.document == null) {
+            writeStatus(output, Status.NOT_FOUND);
+            writeHeader(output, HttpHeaders.CONTENT_LENGTH, "0");
+            writeLine(output, "");
+            writeLine(output, "");
+            return;
+        }
+
+        final SpillBuffer body;
+        try {
+            body = part.body.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while decrypting " + part.document);
+        } catch (ExecutionException e) {
+            LOGGER.warn("Unable to decrypt " + part.document, e.getCause());
+            writeStatus(output, Status.INTERNAL_SERVER_ERROR);
+            writeHeader(output, HttpHeaders.CONTENT_LENGTH, "0");
+            writeLine(output, "");
+            writeLine(output, "");
+            return;
+        }
+
+        try {
+            writeStatus(output, Status.OK);
+            writeHeader(output, HttpHeaders.CONTENT_TYPE, part.document.getContentType().toString());
+            writeHeader(output, HttpHeaders.CONTENT_LENGTH, Long.toString(body.size()));
+            writeHeader(output, HttpHeaders.ETAG, toString(new EntityTag(part.document.getETag()), EntityTag.class));
+            writeHeader(output, HttpHeaders.LAST_MODIFIED, toString(part.document.getModifiedAt().toDate(), Date.class));
+            writeLine(output, "");
+            body.writeTo(output);
+            writeLine(output, "");
+        } finally {
+            body.close();
+        }
+    }
+
+    /*
+     * Starts decrypting the bodies of the parts in the window beginning at
+     * {@code first} which haven't been started yet.
+     */
+    private void decryptAhead(int first) {
+        for (Part part : parts.subList(first, Math.min(first + window, parts.size()))) {
+            if (part.decrypt != null && part.body == null) {
+                part.body = executor.submit(part.decrypt);
+            }
+        }
+    }
+
+    /*
+     * Makes sure the body of a part which won't be written is wiped, whether
+     * or not it has been decrypted yet.
+     */
+    private void discard(Part part) {
+        if (part.body != null && !part.body.cancel(false)) {
+            Futures.addCallback(part.body, new FutureCallback<SpillBuffer>() {
+                @Override
+                public void onSuccess(SpillBuffer body) {
+                    body.close();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    // nothing to wipe
+                }
+            });
+        }
+    }
+
+    private static <T> String toString(T value, Class<T> type) {
+        return RuntimeDelegate.getInstance().createHeaderDelegate(type).toString(value);
+    }
+
+    private static void writeStatus(OutputStream output, Status status) throws IOException {
+        writeHeader(output, "Status", status.getStatusCode() + " " + status.getReasonPhrase());
+    }
+
+    private static void writeHeader(OutputStream output, String name, String value) throws IOException {
+        writeLine(output, name + ": " + value);
+    }
+
+    private static void writeLine(OutputStream output, String line) throws IOException {
+        output.write((line + CRLF).getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
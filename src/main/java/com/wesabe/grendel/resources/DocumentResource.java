@@ -1,10 +1,16 @@
 package com.wesabe.grendel.resources;
 
+import com.google.common.io.ByteStreams;
 import com.wesabe.grendel.auth.Session;
 import com.wesabe.grendel.entities.Document;
+import com.wesabe.grendel.entities.DocumentSummary;
 import com.wesabe.grendel.entities.dao.DocumentRepository;
 import com.wesabe.grendel.entities.dao.UserRepository;
-import com.wesabe.grendel.openpgp.CryptographicException;
+import com.wesabe.grendel.modules.CryptoExecutor;
+import com.wesabe.grendel.modules.RequestExecutor;
+import com.wesabe.grendel.modules.SegmentationPolicy;
+import com.wesabe.grendel.openpgp.SegmentedMessage;
+import com.wesabe.grendel.util.SpillBuffer;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.springframework.orm.jpa.JpaTransactionManager;
@@ -15,15 +21,19 @@ import org.springframework.transaction.annotation.Transactional;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
-import javax.persistence.NoResultException;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.*;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.SecureRandom;
 
 import static javax.ws.rs.core.Response.noContent;
 import static javax.ws.rs.core.Response.ok;
+import static javax.ws.rs.core.Response.status;
 
 /**
  * A class which exposes {@link Document} as a resource.
@@ -32,12 +42,19 @@ import static javax.ws.rs.core.Response.ok;
  */
 @Path("/users/{user_id}/documents/{name}")
 @Produces(MediaType.APPLICATION_JSON)
-@Transactional
 public class DocumentResource {
     private static final CacheControl CACHE_SETTINGS;
+    private static final String RANGE = "Range";
+    private static final String IF_RANGE = "If-Range";
+    private static final String CONTENT_RANGE = "Content-Range";
+    private static final String ACCEPT_RANGES = "Accept-Ranges";
+    private static final int SPILL_THRESHOLD = 1024 * 1024; // 1MB
     private final Provider<SecureRandom> randomProvider;
     private final UserRepository userRepository;
     private final DocumentRepository documentRepository;
+    private final SegmentationPolicy segmentationPolicy;
+    private final CryptoExecutor cryptoExecutor;
+    private final RequestExecutor requestExecutor;
 
     @Inject
     private JpaTransactionManager transactionManager;
@@ -52,55 +69,78 @@ public class DocumentResource {
     @Inject
     public DocumentResource(Provider<SecureRandom> randomProvider,
                             UserRepository userRepository,
-                            DocumentRepository documentRepository) {
+                            DocumentRepository documentRepository,
+                            SegmentationPolicy segmentationPolicy,
+                            CryptoExecutor cryptoExecutor,
+                            RequestExecutor requestExecutor) {
 
         this.randomProvider = randomProvider;
         this.userRepository = userRepository;
         this.documentRepository = documentRepository;
+        this.segmentationPolicy = segmentationPolicy;
+        this.cryptoExecutor = cryptoExecutor;
+        this.requestExecutor = requestExecutor;
     }
 
     /**
      * Responds to a {@link GET} request by decrypting the {@link Document} body
      * and returning it.
      * <p>
+     * Preconditions are checked against the document's metadata before its
+     * body is loaded, so a {@code 304 Not Modified} costs a single small
+     * query on the request thread. The body is decrypted on the
+     * {@link RequestExecutor}, and is only streamed to the client once its
+     * signature and integrity have been verified.
+     * <p>
+     * Segmented bodies are instead decrypted a segment at a time as they're
+     * streamed, and a single {@code Range} of them can be requested, in which
+     * case only the segments covering it are decrypted.
+     * <p>
      * <strong>N.B.:</strong> Requires Basic authentication.
-     *
-     * @throws CryptographicException
      */
     @GET
-    @Transactional
-    public Response show(
-            @Context Request request,
+    public void show(
+            @Context Request request, @Context HttpHeaders headers,
             @PathParam("user_id") String userId,
-            @PathParam("name") String name) throws CryptographicException {
+            @PathParam("name") String name,
+            @Suspended AsyncResponse response) {
 
 
         UsernamePasswordAuthenticationToken authenticationToken = (UsernamePasswordAuthenticationToken) SecurityContextHolder
                 .getContext()
                 .getAuthentication();
 
-        Session session = (Session) authenticationToken.getPrincipal();
-
+        final Session session = (Session) authenticationToken.getPrincipal();
 
-        final Document doc = documentRepository.findByOwnerAndName(session.getUser(), name);
-
-
-        if (doc == null) {
+        final DocumentSummary summary = documentRepository.findSummaryByOwnerAndName(session.getUser(), name);
+        if (summary == null) {
             throw new WebApplicationException(Status.NOT_FOUND);
         }
 
-        checkPreconditions(request, doc);
-
-        final byte[] body = doc.decryptBody(session.getKeySet());
-
-
-        return ok()
-                .entity(body)
-                .type(doc.getContentType())
-                .cacheControl(CACHE_SETTINGS)
-                .lastModified(doc.getModifiedAt().toDate())
-                .tag(doc.getETag())
-                .build();
+        Preconditions.check(request, summary.getModifiedAt(), summary.getETag());
+
+        requestExecutor.resume(response, true, () -> {
+            final Document doc = documentRepository.findByOwnerAndName(session.getUser(), name);
+            if (doc == null) {
+                throw new WebApplicationException(Status.NOT_FOUND);
+            }
+
+            final SegmentedMessage segmented = doc.openSegmentedBody(session.getKeySet(), cryptoExecutor);
+            if (segmented != null) {
+                return showSegmented(headers, doc, segmented);
+            }
+
+            final SpillBuffer body = doc.decryptBodyBuffered(session.getKeySet());
+
+            return ok()
+                    .entity(new DecryptedBodyOutput(body))
+                    .header(HttpHeaders.CONTENT_LENGTH, body.size())
+                    .type(doc.getContentType())
+                    .cacheControl(CACHE_SETTINGS)
+                    .lastModified(doc.getModifiedAt().toDate())
+                    .tag(doc.getETag())
+                    .build();
+        });
     }
 
     /**
@@ -135,47 +175,129 @@ public class DocumentResource {
      * Responds to a {@link PUT} request by replacing the specified
      * {@link Document} with the request entity.
      * <p>
+     * The request entity is read on the request thread into a
+     * {@link SpillBuffer}, which only holds a bounded amount of it in memory,
+     * so slow clients don't tie up the {@link RequestExecutor}. It's then
+     * encrypted on the {@link RequestExecutor}, and the response is sent once
+     * the new body has been stored.
+     * <p>
      * <strong>N.B.:</strong> Requires Basic authentication.
-     *
-     * @throws CryptographicException
      */
     @PUT
     @PreAuthorize("hasAuthority('DOCUMENT_ACTIONS')")
-    @Transactional
-    public Response store(@Context Request request, @Context HttpHeaders headers,
-                          @PathParam("user_id") String userId,
-                          @PathParam("name") String name, byte[] body) throws CryptographicException {
+    public void store(@Context Request request, @Context HttpHeaders headers,
+                      @PathParam("user_id") String userId,
+                      @PathParam("name") String name, InputStream body,
+                      @Suspended AsyncResponse response) {
 
         UsernamePasswordAuthenticationToken authenticationToken = (UsernamePasswordAuthenticationToken) SecurityContextHolder
                 .getContext()
                 .getAuthentication();
 
-        Session session = (Session) authenticationToken.getPrincipal();
-
-        Document doc;
+        final Session session = (Session) authenticationToken.getPrincipal();
+        final SecureRandom random = randomProvider.get();
+        final SpillBuffer plaintext = readEntity(body);
+
+        final boolean accepted = requestExecutor.resume(response, false, () -> {
+            try {
+                Document doc = documentRepository.findByOwnerAndName(session.getUser(), name);
+                if (doc == null) {
+                    doc = documentRepository.newDocument(session.getUser(), name, headers.getMediaType());
+                } else {
+                    checkPreconditions(request, doc);
+                }
+
+                doc.setModifiedAt(new DateTime(DateTimeZone.UTC));
+
+                try (InputStream input = plaintext.getInputStream()) {
+                    if (segmentationPolicy.shouldSegment(plaintext.size())) {
+                        doc.encryptAndSetSegmentedBody(
+                                session.getKeySet(),
+                                random,
+                                input,
+                                segmentationPolicy.getSegmentSize(),
+                                cryptoExecutor
+                        );
+                    } else {
+                        doc.encryptAndSetBody(
+                                session.getKeySet(),
+                                random,
+                                input
+                        );
+                    }
+                }
+
+                doc = documentRepository.saveOrUpdate(doc);
+
+                return noContent()
+                        .tag(doc.getETag())
+                        .build();
+            } finally {
+                plaintext.close();
+            }
+        });
+
+        if (!accepted) {
+            plaintext.close();
+        }
+    }
 
+    /*
+     * Responds with the requested range of a segmented body, or all of it.
+     */
+    private Response showSegmented(HttpHeaders headers, Document doc, SegmentedMessage body) {
+        final ByteRange range;
         try {
-            doc = documentRepository.findByOwnerAndName(session.getUser(), name);
-            checkPreconditions(request, doc);
-        } catch (NoResultException noResultException) {
-            doc = documentRepository.newDocument(session.getUser(), name, headers.getMediaType());
+            range = ByteRange.parse(
+                    headers.getHeaderString(RANGE),
+                    headers.getHeaderString(IF_RANGE),
+                    doc.getETag(),
+                    body.getLength()
+            );
+        } catch (WebApplicationException e) {
+            closeQuietly(body);
+            throw e;
         }
 
-        doc.setModifiedAt(new DateTime(DateTimeZone.UTC));
-
-        doc.encryptAndSetBody(
-                session.getKeySet(),
-                randomProvider.get(),
-                body
-        );
-
-        documentRepository.saveOrUpdate(doc);
+        final ResponseBuilder response;
+        if (range == null) {
+            response = ok(new SegmentedBodyOutput(body, 0, body.getLength()))
+                    .header(HttpHeaders.CONTENT_LENGTH, body.getLength());
+        } else {
+            response = status(Status.PARTIAL_CONTENT)
+                    .entity(new SegmentedBodyOutput(body, range.getOffset(), range.getCount()))
+                    .header(HttpHeaders.CONTENT_LENGTH, range.getCount())
+                    .header(CONTENT_RANGE, range.toContentRange());
+        }
 
-        return noContent()
+        return response
+                .header(ACCEPT_RANGES, "bytes")
+                .type(doc.getContentType())
+                .cacheControl(CACHE_SETTINGS)
+                .lastModified(doc.getModifiedAt().toDate())
                 .tag(doc.getETag())
                 .build();
     }
 
+    private static SpillBuffer readEntity(InputStream body) {
+        final SpillBuffer buffer = new SpillBuffer(SPILL_THRESHOLD);
+        try {
+            ByteStreams.copy(body, buffer);
+            return buffer;
+        } catch (IOException e) {
+            buffer.close();
+            throw new WebApplicationException(e, Status.BAD_REQUEST);
+        }
+    }
+
+    private static void closeQuietly(SegmentedMessage body) {
+        try {
+            body.close();
+        } catch (IOException ignored) {
+            // nothing to do
+        }
+    }
+
     /**
      * If the request has {@code If-Modified-Since} or {@code If-None-Match}
      * headers, and the resource has a matching {@link Document#getModifiedAt()}
@@ -189,11 +311,7 @@ public class DocumentResource {
      * the resource before overwriting it.
      */
     private void checkPreconditions(Request request, Document document) {
-        final EntityTag eTag = new EntityTag(document.getETag());
-        final ResponseBuilder response = request.evaluatePreconditions(document.getModifiedAt().toDate(), eTag);
-        if (response != null) {
-            throw new WebApplicationException(response.build());
-        }
+        Preconditions.check(request, document.getModifiedAt(), document.getETag());
     }
 
 }
@@ -1,19 +1,50 @@
 package com.wesabe.grendel.resources;
 
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.wesabe.grendel.auth.Session;
 import com.wesabe.grendel.decorators.DocumentListRepresentation;
+import com.wesabe.grendel.decorators.StoredDocumentListRepresentation;
+import com.wesabe.grendel.decorators.StoredDocumentListRepresentation.StoredDocumentItem;
 import com.wesabe.grendel.entities.Document;
 import com.wesabe.grendel.entities.dao.DocumentRepository;
+import com.wesabe.grendel.modules.CryptoExecutor;
+import com.wesabe.grendel.modules.RequestExecutor;
+import com.wesabe.grendel.modules.UploadPolicy;
+import com.wesabe.grendel.openpgp.CryptographicException;
+import com.wesabe.grendel.openpgp.UnlockedKeySet;
+import com.wesabe.grendel.util.MultipartReader;
+import com.wesabe.grendel.util.SpillBuffer;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.context.SecurityContextHolder;
 
 import javax.inject.Inject;
-import javax.ws.rs.GET;
-import javax.ws.rs.Path;
-import javax.ws.rs.Produces;
-import javax.ws.rs.core.Context;
-import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.UriInfo;
+import javax.inject.Provider;
+import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.*;
+import javax.ws.rs.core.Response.Status;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Lists.newArrayListWithExpectedSize;
+import static javax.ws.rs.core.Response.ok;
 
 /**
  * A class which exposes a list of {@link Document}s as a resource.
@@ -23,12 +54,48 @@ import javax.ws.rs.core.UriInfo;
 @Path("/users/{id}/documents")
 @Produces(MediaType.APPLICATION_JSON)
 public class DocumentsResource {
+    /**
+     * The maximum number of documents which can be requested at once.
+     */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * The maximum number of documents which can be stored at once.
+     */
+    public static final int MAX_UPLOAD_SIZE = 1000;
 
+    private static final String MULTIPART_MIXED = "multipart/mixed";
+    private static final int PART_SPILL_THRESHOLD = 64 * 1024; // 64KB
+    private static final Pattern FILENAME = Pattern.compile(
+            "(?:^|;)\\s*filename\\s*=\\s*(?:\"((?:[^\"\\\\]|\\\\.)*)\"|([^;\\s]+))");
+    private static final Pattern EXTENDED_FILENAME = Pattern.compile(
+            "(?:^|;)\\s*filename\\*\\s*=\\s*UTF-8'[^']*'([^;\\s]+)", Pattern.CASE_INSENSITIVE);
+    private static final CacheControl CACHE_SETTINGS;
+
+    private final Provider<SecureRandom> randomProvider;
     private final DocumentRepository documentRepository;
+    private final CryptoExecutor cryptoExecutor;
+    private final RequestExecutor requestExecutor;
+    private final UploadPolicy uploadPolicy;
+
+    static {
+        CACHE_SETTINGS = new CacheControl();
+        CACHE_SETTINGS.setNoCache(true);
+        CACHE_SETTINGS.setNoStore(true);
+        CACHE_SETTINGS.setPrivate(true);
+    }
 
     @Inject
-    public DocumentsResource(DocumentRepository documentRepository) {
+    public DocumentsResource(Provider<SecureRandom> randomProvider,
+                             DocumentRepository documentRepository,
+                             CryptoExecutor cryptoExecutor,
+                             RequestExecutor requestExecutor,
+                             UploadPolicy uploadPolicy) {
+        this.randomProvider = randomProvider;
         this.documentRepository = documentRepository;
+        this.cryptoExecutor = cryptoExecutor;
+        this.requestExecutor = requestExecutor;
+        this.uploadPolicy = uploadPolicy;
     }
 
     @GET
@@ -42,6 +109,332 @@ public class DocumentsResource {
         Session session = (Session) authenticationToken.getPrincipal();
 
         return new DocumentListRepresentation(uriInfo,
-                documentRepository.getUserDocuments(session.getUser()));
+                documentRepository.getUserDocumentSummaries(session.getUser()));
+    }
+
+    /**
+     * Responds to a {@link GET} request for {@code multipart/mixed} by
+     * returning the documents named by the {@code name} query parameters, in
+     * the order they were requested, as the parts of a single entity.
+     * <p>
+     * The documents are loaded with a single query on the
+     * {@link RequestExecutor}, whose transaction has completed before the
+     * entity is streamed. They're decrypted in parallel as it's written, with
+     * no more in flight than the {@link CryptoExecutor} has threads, so a
+     * large batch doesn't hold all of its plaintext at once. Documents which don't
+     * exist or can't be decrypted are returned as parts with a {@code Status}
+     * header of {@code 404} or {@code 500}.
+     * <p>
+     * <strong>N.B.:</strong> Requires Basic authentication.
+     *
+     * @see DocumentBatchOutput
+     */
+    @GET
+    @Produces(MULTIPART_MIXED + ";qs=0.5")
+    public void showDocuments(
+            @Context UriInfo uriInfo,
+            @QueryParam("name") List<String> names,
+            @Suspended AsyncResponse response) {
+
+        final Set<String> requested = new LinkedHashSet<>(names);
+        if (requested.isEmpty() || requested.size() > MAX_BATCH_SIZE) {
+            throw new WebApplicationException(Status.BAD_REQUEST);
+        }
+
+        UsernamePasswordAuthenticationToken authenticationToken = (UsernamePasswordAuthenticationToken) SecurityContextHolder
+                .getContext()
+                .getAuthentication();
+
+        final Session session = (Session) authenticationToken.getPrincipal();
+        final UriBuilder documentUri = uriInfo.getBaseUriBuilder().path(DocumentResource.class);
+
+        requestExecutor.resume(response, true, () -> {
+            final Map<String, Document> documents = Maps.newHashMap();
+            for (Document document : documentRepository.findByOwnerAndNames(session.getUser(), requested)) {
+                documents.put(document.getName(), document);
+            }
+
+            final UnlockedKeySet keySet = session.getKeySet();
+            final List<DocumentBatchOutput.Part> parts = newArrayListWithExpectedSize(requested.size());
+            for (String name : requested) {
+                final String uri = documentUri.build(session.getUser().getId(), name).toASCIIString();
+
+                final Document document = documents.get(name);
+                if (document == null) {
+                    parts.add(new DocumentBatchOutput.Part(uri));
+                } else {
+                    parts.add(new DocumentBatchOutput.Part(uri, document, () -> document.decryptBodyBuffered(keySet)));
+                }
+            }
+
+            final String boundary = "grendel-" + UUID.randomUUID();
+            return ok()
+                    .entity(new DocumentBatchOutput(boundary, parts, cryptoExecutor, cryptoExecutor.getPoolSize()))
+                    .type(MULTIPART_MIXED + "; boundary=\"" + boundary + '"')
+                    .cacheControl(CACHE_SETTINGS)
+                    .build();
+        });
+    }
+
+    /**
+     * Responds to a {@link PUT} request of a {@code multipart/mixed} entity by
+     * storing each part as the document named by the {@code filename} of its
+     * {@code Content-Disposition} header, with the part's content type.
+     * <p>
+     * The documents are encrypted in parallel and written in chunks of about
+     * {@link UploadPolicy#getChunkSize()} bytes, so only one chunk's encrypted
+     * bodies are held in memory at a time. Every chunk is written in the
+     * request's transaction, so either all of them are stored or none are. A
+     * part with an {@code If-Match} header is only stored if it matches the
+     * current document's ETag; if any part doesn't match, nothing is stored
+     * and a {@code 412 Precondition Failed} is returned. An entity larger
+     * than {@link UploadPolicy#getMaxSize()} is refused with a
+     * {@code 413 Request Entity Too Large}.
+     * <p>
+     * <strong>N.B.:</strong> Requires Basic authentication.
+     *
+     * @return the new ETag of each document
+     * @throws CryptographicException
+     */
+    @PUT
+    @Consumes(MULTIPART_MIXED)
+    @PreAuthorize("hasAuthority('DOCUMENT_ACTIONS')")
+    public StoredDocumentListRepresentation storeDocuments(
+            @Context UriInfo uriInfo,
+            @Context HttpHeaders headers,
+            InputStream body) throws CryptographicException, IOException {
+
+        final String boundary = headers.getMediaType().getParameters().get("boundary");
+        if (boundary == null) {
+            throw new WebApplicationException(Status.BAD_REQUEST);
+        }
+
+        if (headers.getLength() > uploadPolicy.getMaxSize()) {
+            throw new WebApplicationException(Status.REQUEST_ENTITY_TOO_LARGE);
+        }
+
+        UsernamePasswordAuthenticationToken authenticationToken = (UsernamePasswordAuthenticationToken) SecurityContextHolder
+                .getContext()
+                .getAuthentication();
+
+        Session session = (Session) authenticationToken.getPrincipal();
+
+        final Map<String, UploadedPart> uploads = readParts(body, boundary);
+        try {
+            final List<StoredDocumentItem> stored = newArrayListWithExpectedSize(uploads.size());
+            for (Map<String, UploadedPart> chunk : chunk(uploads)) {
+                for (Document doc : storeChunk(session, chunk)) {
+                    stored.add(new StoredDocumentItem(uriInfo, doc));
+                }
+            }
+            return new StoredDocumentListRepresentation(stored);
+        } finally {
+            for (UploadedPart upload : uploads.values()) {
+                upload.body.close();
+            }
+        }
+    }
+
+    /*
+     * Splits the uploads into chunks of no more than the policy's chunk size
+     * of plaintext, in the order they were sent. A part larger than the
+     * chunk size gets a chunk of its own.
+     */
+    private List<Map<String, UploadedPart>> chunk(Map<String, UploadedPart> uploads) {
+        final List<Map<String, UploadedPart>> chunks = newArrayList();
+        Map<String, UploadedPart> chunk = new LinkedHashMap<>();
+        long size = 0;
+        for (UploadedPart upload : uploads.values()) {
+            if (!chunk.isEmpty() && size + upload.body.size() > uploadPolicy.getChunkSize()) {
+                chunks.add(chunk);
+                chunk = new LinkedHashMap<>();
+                size = 0;
+            }
+            chunk.put(upload.name, upload);
+            size += upload.body.size();
+        }
+        chunks.add(chunk);
+        return chunks;
+    }
+
+    /*
+     * Checks, encrypts and writes a chunk of the uploads, then detaches their
+     * documents, so no more than one chunk's encrypted bodies are held at
+     * once. A failed precondition rolls back the chunks already written with
+     * the rest of the request's transaction.
+     */
+    private List<Document> storeChunk(Session session, Map<String, UploadedPart> chunk)
+            throws CryptographicException, IOException {
+        final Map<String, Document> existing = Maps.newHashMap();
+        for (Document document : documentRepository.findByOwnerAndNames(session.getUser(), chunk.keySet())) {
+            existing.put(document.getName(), document);
+        }
+
+        final List<Document> documents = newArrayListWithExpectedSize(chunk.size());
+        for (UploadedPart upload : chunk.values()) {
+            Document doc = existing.get(upload.name);
+            if (!upload.matches(doc)) {
+                throw new WebApplicationException(Status.PRECONDITION_FAILED);
+            }
+
+            if (doc == null) {
+                doc = documentRepository.newDocument(session.getUser(), upload.name, upload.contentType);
+            }
+            doc.setModifiedAt(new DateTime(DateTimeZone.UTC));
+            documents.add(doc);
+        }
+
+        encryptAll(session.getKeySet(), documents, chunk);
+        documentRepository.saveAll(documents);
+        documentRepository.detachAll(documents);
+        return documents;
+    }
+
+    /*
+     * Encrypts each document's body on the crypto executor, waiting for all of
+     * them to finish before returning, since their plaintext buffers are
+     * closed afterwards.
+     */
+    private void encryptAll(final UnlockedKeySet keySet, List<Document> documents,
+                            Map<String, UploadedPart> uploads) throws CryptographicException, IOException {
+        final SecureRandom random = randomProvider.get();
+        final List<ListenableFuture<Document>> futures = newArrayListWithExpectedSize(documents.size());
+        for (final Document doc : documents) {
+            final SpillBuffer plaintext = uploads.get(doc.getName()).body;
+            futures.add(cryptoExecutor.submit(() -> {
+                try (InputStream input = plaintext.getInputStream()) {
+                    doc.encryptAndSetBody(keySet, random, input);
+                }
+                return doc;
+            }));
+        }
+
+        try {
+            Futures.successfulAsList(futures).get();
+            for (ListenableFuture<Document> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while encrypting documents");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CryptographicException) {
+                throw (CryptographicException) e.getCause();
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /*
+     * Reads each part of a multipart entity into a spill buffer, keyed by
+     * document name, in the order they were sent. No more than one byte past
+     * the policy's maximum size is read, in case the entity has no
+     * Content-Length.
+     */
+    private Map<String, UploadedPart> readParts(InputStream body, String boundary) {
+        final Map<String, UploadedPart> uploads = new LinkedHashMap<>();
+        final CountingInputStream input = new CountingInputStream(
+                ByteStreams.limit(body, uploadPolicy.getMaxSize() + 1));
+        try {
+            final MultipartReader reader = new MultipartReader(input, boundary);
+            Map<String, String> partHeaders;
+            while ((partHeaders = reader.nextPart()) != null) {
+                final String name = parseFilename(partHeaders.get("content-disposition"));
+                if (name == null || name.isEmpty() || uploads.containsKey(name)
+                        || uploads.size() == MAX_UPLOAD_SIZE) {
+                    throw new WebApplicationException(Status.BAD_REQUEST);
+                }
+
+                final String contentType = partHeaders.get("content-type");
+                final UploadedPart upload = new UploadedPart(
+                        name,
+                        MediaType.valueOf((contentType == null) ? MediaType.TEXT_PLAIN : contentType),
+                        partHeaders.get("if-match")
+                );
+                uploads.put(name, upload);
+                reader.readBody(upload.body);
+            }
+
+            if (uploads.isEmpty()) {
+                throw new WebApplicationException(Status.BAD_REQUEST);
+            }
+            if (input.getCount() > uploadPolicy.getMaxSize()) {
+                throw new WebApplicationException(Status.REQUEST_ENTITY_TOO_LARGE);
+            }
+            return uploads;
+        } catch (IOException | IllegalArgumentException | WebApplicationException e) {
+            for (UploadedPart upload : uploads.values()) {
+                upload.body.close();
+            }
+            if (input.getCount() > uploadPolicy.getMaxSize()) {
+                throw new WebApplicationException(e, Status.REQUEST_ENTITY_TOO_LARGE);
+            }
+            if (e instanceof WebApplicationException) {
+                throw (WebApplicationException) e;
+            }
+            throw new WebApplicationException(e, Status.BAD_REQUEST);
+        }
+    }
+
+    private static String parseFilename(String disposition) throws UnsupportedEncodingException {
+        if (disposition == null) {
+            return null;
+        }
+
+        final Matcher extended = EXTENDED_FILENAME.matcher(disposition);
+        if (extended.find()) {
+            return URLDecoder.decode(extended.group(1).replace("+", "%2B"), "UTF-8");
+        }
+
+        final Matcher plain = FILENAME.matcher(disposition);
+        if (plain.find()) {
+            return (plain.group(1) != null) ? plain.group(1).replaceAll("\\\\(.)", "$1") : plain.group(2);
+        }
+        return null;
+    }
+
+    /**
+     * A document body which has been uploaded, but not yet stored.
+     */
+    private static class UploadedPart {
+        private final String name;
+        private final MediaType contentType;
+        private final boolean conditional;
+        private final List<EntityTag> ifMatch;
+        private final SpillBuffer body = new SpillBuffer(PART_SPILL_THRESHOLD);
+
+        /*
+         * Throws an IllegalArgumentException if ifMatch is malformed.
+         */
+        private UploadedPart(String name, MediaType contentType, String ifMatch) {
+            this.name = name;
+            this.contentType = contentType;
+            this.conditional = (ifMatch != null);
+            this.ifMatch = conditional ? Preconditions.parseEntityTags(ifMatch) : null;
+        }
+
+        private boolean matches(Document document) {
+            if (!conditional) {
+                return true;
+            }
+
+            if (document == null) {
+                return false;
+            }
+
+            if (ifMatch == null) {
+                return true;
+            }
+
+            for (EntityTag tag : ifMatch) {
+                if (tag.getValue().equals(document.getETag())) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 }
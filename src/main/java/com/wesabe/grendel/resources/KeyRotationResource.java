@@ -0,0 +1,85 @@
+package com.wesabe.grendel.resources;
+
+import com.wesabe.grendel.auth.Session;
+import com.wesabe.grendel.decorators.KeyRotationRepresentation;
+import com.wesabe.grendel.decorators.RotateKeysRepresentation;
+import com.wesabe.grendel.entities.KeyRotation;
+import com.wesabe.grendel.entities.dao.KeyRotationRepository;
+import com.wesabe.grendel.openpgp.CryptographicException;
+import com.wesabe.grendel.rotation.KeyRotator;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import javax.inject.Inject;
+import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.UriInfo;
+
+import static javax.ws.rs.core.Response.accepted;
+import static javax.ws.rs.core.Response.ok;
+
+/**
+ * A resource for rotating a user's keys and following the rotation's
+ * progress.
+ *
+ * @see KeyRotator
+ */
+@Path("/users/{id}/rotation")
+public class KeyRotationResource {
+
+    @Inject
+    private KeyRotationRepository rotationRepository;
+
+    @Inject
+    private KeyRotator keyRotator;
+
+    /**
+     * Responds to a {@link GET} request with the progress of the user's most
+     * recent key rotation.
+     * <p>
+     * <strong>N.B.:</strong> Requires Basic authentication.
+     */
+    @GET
+    @PreAuthorize("hasAuthority('USER_ACTIONS')")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response show(@PathParam("id") String id) {
+        final Session session = (Session) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+
+        final KeyRotation rotation = rotationRepository.findByUserId(session.getUser().getId());
+        if (rotation == null) {
+            throw new WebApplicationException(Status.NOT_FOUND);
+        }
+
+        return ok(new KeyRotationRepresentation(rotation, keyRotator.isRunning(rotation.getUserId()))).build();
+    }
+
+    /**
+     * Responds to a {@link POST} request by rotating the user's keys onto a
+     * new subkey in the background, or by resuming an unfinished rotation.
+     * <p>
+     * <strong>N.B.:</strong> Requires Basic authentication.
+     */
+    @POST
+    @PreAuthorize("hasAuthority('USER_ACTIONS')")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response create(@Context UriInfo uriInfo,
+                           @PathParam("id") String id,
+                           RotateKeysRepresentation entity) {
+        final Session session = (Session) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+
+        try {
+            final KeyRotation rotation = keyRotator.start(session.getUser(), entity.getPassword());
+            return accepted(new KeyRotationRepresentation(rotation, keyRotator.isRunning(rotation.getUserId())))
+                    .location(uriInfo.getAbsolutePath())
+                    .build();
+        } catch (CryptographicException e) {
+            throw new WebApplicationException(Status.FORBIDDEN);
+        } finally {
+            entity.sanitize();
+        }
+    }
+}
@@ -5,6 +5,7 @@ import com.wesabe.grendel.entities.Document;
 import com.wesabe.grendel.entities.User;
 import com.wesabe.grendel.entities.dao.DocumentRepository;
 import com.wesabe.grendel.entities.dao.UserRepository;
+import com.wesabe.grendel.modules.RequestExecutor;
 import com.wesabe.grendel.openpgp.CryptographicException;
 import com.wesabe.grendel.openpgp.UnlockedKeySet;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
@@ -13,7 +14,8 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.ws.rs.*;
-import javax.ws.rs.core.Response;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Response.Status;
 import java.security.SecureRandom;
 
@@ -24,62 +26,98 @@ public class LinkResource {
     private final UserRepository userRepository;
     private final DocumentRepository documentRepository;
     private final Provider<SecureRandom> randomProvider;
+    private final RequestExecutor requestExecutor;
 
     @Inject
-    public LinkResource(UserRepository userRepository, DocumentRepository documentRepository, Provider<SecureRandom> randomProvider) {
+    public LinkResource(UserRepository userRepository, DocumentRepository documentRepository, Provider<SecureRandom> randomProvider,
+                        RequestExecutor requestExecutor) {
         this.userRepository = userRepository;
         this.documentRepository = documentRepository;
         this.randomProvider = randomProvider;
+        this.requestExecutor = requestExecutor;
     }
 
+    /**
+     * Responds to a {@link PUT} request by linking the reader to the
+     * document. The document's session key is rewrapped on the
+     * {@link RequestExecutor}.
+     */
     @PUT
-    public Response createLink(@PathParam("user_id") String userId, @PathParam("name") String name,
-                               @PathParam("reader_id") String readerId) {
+    public void createLink(@PathParam("user_id") String userId, @PathParam("name") String name,
+                           @PathParam("reader_id") String readerId,
+                           @Suspended AsyncResponse response) {
 
         UsernamePasswordAuthenticationToken authenticationToken = (UsernamePasswordAuthenticationToken) SecurityContextHolder
                 .getContext()
                 .getAuthentication();
 
-        Session session = (Session) authenticationToken.getPrincipal();
-        final User reader = findUser(readerId);
-        final Document doc = findDocument(session.getUser(), name);
+        final Session session = (Session) authenticationToken.getPrincipal();
+        final SecureRandom random = randomProvider.get();
 
-        doc.linkUser(reader);
-        reEncrypt(doc, session.getKeySet());
+        requestExecutor.resume(response, false, () -> {
+            final User reader = findUser(readerId);
+            final Document doc = findDocument(session.getUser(), name);
 
-        documentRepository.saveOrUpdate(doc);
+            doc.linkUser(reader);
+            rewrap(doc, session.getKeySet(), random);
 
-        return noContent().build();
+            documentRepository.saveOrUpdate(doc);
+
+            return noContent().build();
+        });
     }
 
+    /**
+     * Responds to a {@link DELETE} request by unlinking the reader from the
+     * document. By default only the reader's copy of the session key is
+     * removed; if {@code rotate} is {@code true}, the document is re-encrypted
+     * with a new session key. Either is done on the {@link RequestExecutor}.
+     */
     @DELETE
-    public Response deleteLink(@PathParam("user_id") String userId,
-                               @PathParam("name") String name,
-                               @PathParam("reader_id") String readerId) {
+    public void deleteLink(@PathParam("user_id") String userId,
+                           @PathParam("name") String name,
+                           @PathParam("reader_id") String readerId,
+                           @QueryParam("rotate") @DefaultValue("false") boolean rotate,
+                           @Suspended AsyncResponse response) {
 
         UsernamePasswordAuthenticationToken authenticationToken = (UsernamePasswordAuthenticationToken) SecurityContextHolder
                 .getContext()
                 .getAuthentication();
 
-        Session session = (Session) authenticationToken.getPrincipal();
+        final Session session = (Session) authenticationToken.getPrincipal();
+        final SecureRandom random = randomProvider.get();
+
+        requestExecutor.resume(response, false, () -> {
+            final User reader = findUser(readerId);
+            final Document doc = findDocument(session.getUser(), name);
 
-        final User reader = findUser(readerId);
-        final Document doc = findDocument(session.getUser(), name);
+            doc.unlinkUser(reader);
+            if (rotate) {
+                reEncrypt(doc, session.getKeySet(), random);
+            } else {
+                rewrap(doc, session.getKeySet(), random);
+            }
 
-        doc.unlinkUser(reader);
-        reEncrypt(doc, session.getKeySet());
+            documentRepository.saveOrUpdate(doc);
 
-        documentRepository.saveOrUpdate(doc);
+            return noContent().build();
+        });
+    }
 
-        return noContent().build();
+    private void rewrap(Document doc, UnlockedKeySet ownerKeySet, SecureRandom random) {
+        try {
+            doc.rewrapBody(ownerKeySet, random);
+        } catch (CryptographicException e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    private void reEncrypt(Document doc, UnlockedKeySet ownerKeySet) {
+    private void reEncrypt(Document doc, UnlockedKeySet ownerKeySet, SecureRandom random) {
         try {
             final byte[] body = doc.decryptBody(ownerKeySet);
             doc.encryptAndSetBody(
                     ownerKeySet,
-                    randomProvider.get(),
+                    random,
                     body
             );
         } catch (CryptographicException e) {
@@ -2,18 +2,20 @@ package com.wesabe.grendel.resources;
 
 import com.wesabe.grendel.auth.Session;
 import com.wesabe.grendel.entities.Document;
+import com.wesabe.grendel.entities.DocumentSummary;
 import com.wesabe.grendel.entities.User;
 import com.wesabe.grendel.entities.dao.DocumentRepository;
 import com.wesabe.grendel.entities.dao.UserRepository;
-import com.wesabe.grendel.openpgp.CryptographicException;
+import com.wesabe.grendel.modules.RequestExecutor;
+import com.wesabe.grendel.util.SpillBuffer;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.context.SecurityContextHolder;
 
 import javax.inject.Inject;
 import javax.ws.rs.*;
-import javax.ws.rs.core.CacheControl;
-import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.Response;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.*;
 import javax.ws.rs.core.Response.Status;
 
 import static javax.ws.rs.core.Response.noContent;
@@ -39,45 +41,60 @@ public class LinkedDocumentResource {
 
     private final UserRepository userRepository;
     private final DocumentRepository documentRepository;
+    private final RequestExecutor requestExecutor;
 
     @Inject
-    public LinkedDocumentResource(UserRepository userRepository, DocumentRepository documentRepository) {
+    public LinkedDocumentResource(UserRepository userRepository, DocumentRepository documentRepository,
+                                  RequestExecutor requestExecutor) {
         this.userRepository = userRepository;
         this.documentRepository = documentRepository;
+        this.requestExecutor = requestExecutor;
     }
 
     /**
      * Responds to a {@link GET} request by decrypting the {@link Document} body
      * and returning it.
      * <p>
+     * Preconditions are checked against the document's metadata before its
+     * body is loaded. The body is decrypted on the {@link RequestExecutor},
+     * and is only streamed to the client once its signature and integrity
+     * have been verified.
+     * <p>
      * <strong>N.B.:</strong> Requires Basic authentication.
      */
     @GET
-    public Response show(@PathParam("user_id") String userId, @PathParam("owner_id") String ownerId,
-                         @PathParam("name") String name) {
+    public void show(@Context Request request,
+                     @PathParam("user_id") String userId, @PathParam("owner_id") String ownerId,
+                     @PathParam("name") String name,
+                     @Suspended AsyncResponse response) {
 
         UsernamePasswordAuthenticationToken authenticationToken = (UsernamePasswordAuthenticationToken) SecurityContextHolder
                 .getContext()
                 .getAuthentication();
 
-        Session session = (Session) authenticationToken.getPrincipal();
+        final Session session = (Session) authenticationToken.getPrincipal();
 
-        final User owner = findUser(ownerId);
-        final Document doc = findDocument(owner, name);
+        final DocumentSummary summary = documentRepository.findLinkedSummary(session.getUser(), ownerId, name);
+        if (summary == null) {
+            throw new WebApplicationException(Status.NOT_FOUND);
+        }
 
-        checkLinkage(doc, session.getUser());
+        Preconditions.check(request, summary.getModifiedAt(), summary.getETag());
 
-        try {
-            final byte[] body = doc.decryptBody(session.getKeySet());
+        requestExecutor.resume(response, true, () -> {
+            final User owner = findUser(ownerId);
+            final Document doc = findDocument(owner, name);
+
+            final SpillBuffer body = doc.decryptBodyBuffered(session.getKeySet());
             return ok()
-                    .entity(body)
+                    .entity(new DecryptedBodyOutput(body))
+                    .header(HttpHeaders.CONTENT_LENGTH, body.size())
                     .type(doc.getContentType())
                     .cacheControl(CACHE_SETTINGS)
                     .lastModified(doc.getModifiedAt().toDate())
+                    .tag(doc.getETag())
                     .build();
-        } catch (CryptographicException e) {
-            throw new RuntimeException(e);
-        }
+        });
     }
 
     /**
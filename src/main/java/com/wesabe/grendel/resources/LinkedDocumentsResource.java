@@ -4,7 +4,7 @@ import com.wesabe.grendel.auth.Session;
 import com.wesabe.grendel.decorators.LinkedDocumentListRepresentation;
 import com.wesabe.grendel.entities.Document;
 import com.wesabe.grendel.entities.User;
-import com.wesabe.grendel.entities.dao.UserRepository;
+import com.wesabe.grendel.entities.dao.DocumentRepository;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.context.SecurityContextHolder;
 
@@ -27,11 +27,11 @@ import javax.ws.rs.core.UriInfo;
 @Produces(MediaType.APPLICATION_JSON)
 @Transactional
 public class LinkedDocumentsResource {
-    private final UserRepository userRepository;
+    private final DocumentRepository documentRepository;
 
     @Inject
-    public LinkedDocumentsResource(UserRepository userRepository) {
-        this.userRepository = userRepository;
+    public LinkedDocumentsResource(DocumentRepository documentRepository) {
+        this.documentRepository = documentRepository;
     }
 
     @GET
@@ -46,6 +46,7 @@ public class LinkedDocumentsResource {
 
         User user = session.getUser();
 
-        return new LinkedDocumentListRepresentation(uriInfo, user, user.getLinkedDocuments());
+        return new LinkedDocumentListRepresentation(uriInfo, user,
+                documentRepository.getLinkedDocumentSummaries(user));
     }
 }
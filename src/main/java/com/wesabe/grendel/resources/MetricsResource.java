@@ -0,0 +1,48 @@
+package com.wesabe.grendel.resources;
+
+import com.codahale.metrics.MetricRegistry;
+import com.wesabe.grendel.modules.UnitOfWorkFilter;
+import com.wesabe.grendel.util.PrometheusFormat;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A resource which exposes Grendel's metrics to be scraped by Prometheus.
+ * <p>
+ * It doesn't require authentication, so it should only be reachable by
+ * trusted clients. It also runs outside of {@link UnitOfWorkFilter}'s
+ * transaction, so a scrape never takes a database connection.
+ *
+ * @see PrometheusFormat
+ */
+@Path("/metrics")
+public class MetricsResource {
+    private final MetricRegistry metrics;
+
+    @Inject
+    public MetricsResource(MetricRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Responds to a {@link GET} request with the current value of every
+     * metric.
+     */
+    @GET
+    @Produces(PrometheusFormat.CONTENT_TYPE)
+    public StreamingOutput show() {
+        return output -> {
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            PrometheusFormat.write(metrics, writer);
+            writer.flush();
+        };
+    }
+}
@@ -0,0 +1,82 @@
+package com.wesabe.grendel.resources;
+
+import org.joda.time.DateTime;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Evaluates conditional request headers against a document's ETag and
+ * modification time.
+ */
+final class Preconditions {
+    private Preconditions() {
+    }
+
+    /**
+     * If the request has {@code If-Modified-Since} or {@code If-None-Match}
+     * headers which match, throws a {@code 304 Not Modified}. If the request
+     * has {@code If-Unmodified-Since} or {@code If-Match} headers which don't
+     * match, throws a {@code 412 Precondition Failed}.
+     *
+     * @param request    the request
+     * @param modifiedAt when the document was last modified
+     * @param eTag       the document's ETag
+     * @throws WebApplicationException if a precondition applies
+     */
+    static void check(Request request, DateTime modifiedAt, String eTag) {
+        final ResponseBuilder response = request.evaluatePreconditions(modifiedAt.toDate(), new EntityTag(eTag));
+        if (response != null) {
+            throw new WebApplicationException(response.tag(eTag).build());
+        }
+    }
+
+    /**
+     * Parses the value of an {@code If-Match} or {@code If-None-Match} header,
+     * which is either {@code *} or a comma-separated list of entity tags.
+     * Returns {@code null} for {@code *}.
+     *
+     * @param header the header's value
+     * @throws IllegalArgumentException if the header is malformed
+     */
+    static List<EntityTag> parseEntityTags(String header) {
+        if ("*".equals(header.trim())) {
+            return null;
+        }
+
+        final List<EntityTag> tags = newArrayList();
+        int i = 0;
+        while (i < header.length()) {
+            final char c = header.charAt(i);
+            if ((c == ',') || Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+
+            final int start = i;
+            if (header.startsWith("W/", i)) {
+                i += 2;
+            }
+            if ((i >= header.length()) || (header.charAt(i) != '"')) {
+                throw new IllegalArgumentException("malformed entity tag in " + header);
+            }
+
+            final int end = header.indexOf('"', i + 1);
+            if (end < 0) {
+                throw new IllegalArgumentException("unterminated entity tag in " + header);
+            }
+            tags.add(EntityTag.valueOf(header.substring(start, end + 1)));
+            i = end + 1;
+        }
+
+        if (tags.isEmpty()) {
+            throw new IllegalArgumentException("no entity tags in " + header);
+        }
+        return tags;
+    }
+}
@@ -0,0 +1,40 @@
+package com.wesabe.grendel.resources;
+
+import com.wesabe.grendel.openpgp.CryptographicException;
+import com.wesabe.grendel.openpgp.SegmentedMessage;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link StreamingOutput} which decrypts part of a segmented document body
+ * to the response and then closes it.
+ * <p>
+ * Each segment is authenticated before it's written, but unlike
+ * {@link DecryptedBodyOutput}, the response is committed before the whole
+ * range has been verified. If a segment fails authentication, the response is
+ * cut short.
+ */
+class SegmentedBodyOutput implements StreamingOutput {
+    private final SegmentedMessage body;
+    private final long offset;
+    private final long count;
+
+    SegmentedBodyOutput(SegmentedMessage body, long offset, long count) {
+        this.body = body;
+        this.offset = offset;
+        this.count = count;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try {
+            body.read(offset, count, output);
+        } catch (CryptographicException e) {
+            throw new IOException(e);
+        } finally {
+            body.close();
+        }
+    }
+}
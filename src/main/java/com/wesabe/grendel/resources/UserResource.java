@@ -1,16 +1,18 @@
 package com.wesabe.grendel.resources;
 
 import com.wesabe.grendel.auth.Session;
+import com.wesabe.grendel.auth.UnlockedKeySetCache;
 import com.wesabe.grendel.decorators.UpdateUserRepresentation;
 import com.wesabe.grendel.decorators.UserInfoRepresentation;
 import com.wesabe.grendel.entities.Document;
+import com.wesabe.grendel.entities.KeyRotation;
 import com.wesabe.grendel.entities.User;
+import com.wesabe.grendel.entities.dao.KeyRotationRepository;
 import com.wesabe.grendel.entities.dao.UserRepository;
 import com.wesabe.grendel.openpgp.CryptographicException;
 import com.wesabe.grendel.openpgp.UnlockedKeySet;
 import org.joda.time.DateTime;
 import org.springframework.security.access.prepost.PreAuthorize;
-import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -39,6 +41,12 @@ public class UserResource {
     @Inject
     private Provider<SecureRandom> randomProvider;
 
+    @Inject
+    private UnlockedKeySetCache keySetCache;
+
+    @Inject
+    private KeyRotationRepository rotationRepository;
+
     /**
      * Responds to a {@link GET} request with information about the specified
      * user.
@@ -64,7 +72,8 @@ public class UserResource {
     }
 
     /**
-     * Responds to a {@link PUT} request by changing the user's password.
+     * Responds to a {@link PUT} request by changing the user's password, or
+     * with a {@code 409 Conflict} if the user's keys are being rotated.
      * <p>
      * <strong>N.B.:</strong> Requires Basic authentication.
      *
@@ -77,30 +86,31 @@ public class UserResource {
                            @PathParam("id") String id,
                            UpdateUserRepresentation entity) throws CryptographicException {
 
-        UsernamePasswordAuthenticationToken authenticationToken = (UsernamePasswordAuthenticationToken) SecurityContextHolder
-                .getContext()
-                .getAuthentication();
+        final Session session = (Session) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
 
-        Session session = (Session) authenticationToken.getPrincipal();
+        try {
+            checkPreconditions(request, session.getUser());
 
-        checkPreconditions(request, session.getUser());
+            final User user = session.getUser();
+            final UnlockedKeySet keySet = session.getKeySet();
 
+            final KeyRotation rotation = rotationRepository.findByUserId(user.getId());
+            if ((rotation != null) && !rotation.isCompleted()) {
+                throw new WebApplicationException(Status.CONFLICT);
+            }
 
-        final User user = session.getUser();
-        final UnlockedKeySet keySet = session.getKeySet();
+            // the request's credentials have been erased by now, but the key
+            // set is already unlocked, so the old password isn't needed
+            user.setKeySet(keySet.relock(entity.getPassword(), randomProvider.get()));
 
-        user.setKeySet(
-                keySet.relock(
-                        (char[]) authenticationToken.getCredentials(),
-                        entity.getPassword(),
-                        randomProvider.get()
-                )
-        );
+            user.setModifiedAt(new DateTime());
+            userRepository.saveOrUpdate(user);
+            keySetCache.invalidate(user.getId());
 
-        user.setModifiedAt(new DateTime());
-        userRepository.saveOrUpdate(user);
-
-        return noContent().build();
+            return noContent().build();
+        } finally {
+            entity.sanitize();
+        }
     }
 
     /**
@@ -116,7 +126,9 @@ public class UserResource {
 
         checkPreconditions(request, user);
 
+        rotationRepository.delete(user.getId());
         userRepository.delete(user);
+        keySetCache.invalidate(user.getId());
         return noContent().build();
     }
 
@@ -0,0 +1,383 @@
+package com.wesabe.grendel.rotation;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.wesabe.grendel.auth.UnlockedKeySetCache;
+import com.wesabe.grendel.entities.Document;
+import com.wesabe.grendel.entities.KeyRotation;
+import com.wesabe.grendel.entities.KeyRotation.Phase;
+import com.wesabe.grendel.entities.User;
+import com.wesabe.grendel.entities.dao.DocumentRepository;
+import com.wesabe.grendel.entities.dao.KeyRotationRepository;
+import com.wesabe.grendel.entities.dao.UserRepository;
+import com.wesabe.grendel.modules.RequestExecutor;
+import com.wesabe.grendel.openpgp.CryptographicException;
+import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.KeySetGenerator;
+import com.wesabe.grendel.openpgp.UnlockedKeySet;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.persistence.OptimisticLockException;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.Lock;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.collect.Lists.newArrayListWithExpectedSize;
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+
+/**
+ * Rotates users' keys onto new subkeys in the background, rewrapping their
+ * documents as it goes.
+ * <p>
+ * A rotation generates a new key set with the user's master key and a new
+ * subkey, which becomes the user's {@link User#getPendingKeySet() pending}
+ * key set. The documents the user owns or is linked to are then loaded in
+ * chunks and rewrapped in parallel, so their session keys are also encrypted
+ * for the new subkey. Each chunk is committed in one transaction along with
+ * the rotation's {@link KeyRotation checkpoint}, so a rotation which is
+ * interrupted by a crash or a restart carries on from its last chunk when it's
+ * {@link #start(User, char[]) started} again. Once every document has been
+ * rewrapped the pending key set replaces the user's key set, and the
+ * documents written since the rotation started are swept in case any of them
+ * were written for the old subkey alone. Both subkeys are unlocked when a
+ * rotation starts, and each document's session key is recovered with
+ * whichever of them it's encrypted for.
+ * <p>
+ * Rewrapping only re-encrypts session keys, so rotation doesn't protect
+ * existing documents from someone who already has the old subkey. It does
+ * make sure no new document is ever encrypted for it.
+ * <p>
+ * Documents are rewrapped on a bounded pool of threads, which is shared by
+ * all rotations, at no more than a configured rate. Rewrapping also pauses
+ * while requests are waiting for a {@link RequestExecutor} thread, so
+ * rotations yield to live traffic. Rewrapped documents are recorded in the
+ * {@code KeyRotator.rewrapped} meter, and committed chunks in the
+ * {@code chunks} timer.
+ */
+@Component
+public class KeyRotator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeyRotator.class);
+    private static final DateTime EPOCH = new DateTime(0, DateTimeZone.UTC);
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BACKOFF_MILLIS = 100;
+    private static final int LOCK_STRIPES = 64;
+
+    private final UserRepository userRepository;
+    private final DocumentRepository documentRepository;
+    private final KeyRotationRepository rotationRepository;
+    private final TransactionTemplate transactions;
+    private final KeySetGenerator generator;
+    private final UnlockedKeySetCache keySetCache;
+    private final RequestExecutor requestExecutor;
+    private final SecureRandom random;
+    private final int chunkSize;
+    private final RateLimiter rateLimiter;
+    private final ListeningExecutorService workers;
+    private final ExecutorService drivers;
+    private final ConcurrentMap<String, Future<?>> running;
+    private final Striped<Lock> starting;
+    private final Meter rewrapped;
+    private final Timer chunks;
+
+    /**
+     * Creates a new {@link KeyRotator}.
+     *
+     * @param userRepository     a {@link UserRepository}
+     * @param documentRepository a {@link DocumentRepository}
+     * @param rotationRepository a {@link KeyRotationRepository}
+     * @param transactionManager the transaction manager to commit chunks with
+     * @param generator          the {@link KeySetGenerator} which generates new subkeys
+     * @param keySetCache        the {@link UnlockedKeySetCache} of authenticated users
+     * @param requestExecutor    the {@link RequestExecutor} which live requests wait for
+     * @param random             a secure random number generator
+     * @param metrics            a {@link MetricRegistry}
+     * @param threads            the number of threads documents are rewrapped on
+     * @param chunkSize          the number of documents committed together
+     * @param rate               the maximum number of documents rewrapped per second
+     */
+    @Inject
+    public KeyRotator(UserRepository userRepository,
+                      DocumentRepository documentRepository,
+                      KeyRotationRepository rotationRepository,
+                      PlatformTransactionManager transactionManager,
+                      KeySetGenerator generator,
+                      UnlockedKeySetCache keySetCache,
+                      RequestExecutor requestExecutor,
+                      SecureRandom random,
+                      MetricRegistry metrics,
+                      @Value("${grendel.rotation.threads:1}") int threads,
+                      @Value("${grendel.rotation.chunk-size:100}") int chunkSize,
+                      @Value("${grendel.rotation.rate:50}") double rate) {
+        this.userRepository = userRepository;
+        this.documentRepository = documentRepository;
+        this.rotationRepository = rotationRepository;
+        this.transactions = new TransactionTemplate(transactionManager);
+        // rotations are started by requests, but must be committed before they run
+        transactions.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.generator = generator;
+        this.keySetCache = keySetCache;
+        this.requestExecutor = requestExecutor;
+        this.random = random;
+        this.chunkSize = chunkSize;
+        this.rateLimiter = RateLimiter.create(rate);
+        this.workers = listeningDecorator(newFixedThreadPool(
+                threads,
+                new ThreadFactoryBuilder().setNameFormat("key-rotator-%d").setDaemon(true).build()
+        ));
+        this.drivers = newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("key-rotation-%d").setDaemon(true).build()
+        );
+        this.running = new ConcurrentHashMap<>();
+        this.starting = Striped.lock(LOCK_STRIPES);
+        this.rewrapped = metrics.meter(name(KeyRotator.class, "rewrapped"));
+        this.chunks = metrics.timer(name(KeyRotator.class, "chunks"));
+    }
+
+    /**
+     * Starts rotating {@code user}'s keys onto a new subkey, or resumes their
+     * unfinished rotation. Returns immediately if a rotation is already
+     * running for the user, and concurrent calls for the same user start at
+     * most one.
+     *
+     * @param user       a {@link User}
+     * @param passphrase the user's passphrase
+     * @return the user's {@link KeyRotation}
+     * @throws CryptographicException if {@code passphrase} is incorrect, or if
+     *                                there was an error generating the subkey
+     */
+    public KeyRotation start(User user, char[] passphrase) throws CryptographicException {
+        final String userId = user.getId();
+        final Lock lock = starting.get(userId);
+        lock.lock();
+        try {
+            final KeyRotation current = transactions.execute(status -> rotationRepository.findByUserId(userId));
+            if (isRunning(userId)) {
+                return current;
+            }
+
+            final KeyRotation rotation;
+            final UnlockedKeySet previous, next;
+            if ((current == null) || current.isCompleted()) {
+                previous = user.getKeySet().unlock(passphrase);
+                final KeySet pending = generator.rotate(previous, passphrase);
+                next = pending.unlock(passphrase);
+                rotation = begin(userId, previous, pending);
+                LOGGER.info("Started rotating keys for {}", userId);
+            } else {
+                previous = current.getPreviousKeySet().unlock(passphrase);
+                // the new key set is still pending until the documents are rewrapped
+                next = ((user.getPendingKeySet() == null) ? user.getKeySet() : user.getPendingKeySet())
+                        .unlock(passphrase);
+                rotation = current;
+                LOGGER.info("Resuming key rotation for {} from {}", userId, rotation);
+            }
+
+            // registered before it runs, so it can't finish before it's registered
+            final List<UnlockedKeySet> holders = ImmutableList.of(previous, next);
+            final FutureTask<Void> driver = new FutureTask<>(() -> rotate(rotation, holders), null);
+            running.put(userId, driver);
+            drivers.execute(driver);
+            return rotation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns {@code true} if a rotation is running for the user with the
+     * given ID in this process.
+     */
+    public boolean isRunning(String userId) {
+        return running.containsKey(userId);
+    }
+
+    /**
+     * Stops all rotations. They carry on from their last checkpoints when
+     * they're started again.
+     */
+    @PreDestroy
+    public void shutdown() {
+        drivers.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private KeyRotation begin(String userId, KeySet previous, KeySet pending) {
+        return transactions.execute(status -> {
+            final User user = userRepository.findById(userId);
+            user.setPendingKeySet(pending);
+            user.setModifiedAt(new DateTime());
+            userRepository.saveOrUpdate(user);
+
+            KeyRotation rotation = rotationRepository.findByUserId(userId);
+            if (rotation == null) {
+                rotation = new KeyRotation(userId);
+            }
+            rotation.begin(previous, documentRepository.countReadableByUser(user, EPOCH));
+            return rotationRepository.saveOrUpdate(rotation);
+        });
+    }
+
+    private void rotate(KeyRotation rotation, List<UnlockedKeySet> holders) {
+        final String userId = rotation.getUserId();
+        try {
+            while (!rotation.isCompleted()) {
+                rotation = rotateChunk(rotation, holders);
+            }
+            LOGGER.info("Rotated keys for {}", userId);
+        } catch (InterruptedException e) {
+            LOGGER.info("Key rotation for {} stopped at {}", userId, rotation);
+        } catch (Exception e) {
+            LOGGER.warn("Unable to rotate keys for " + userId, e);
+            fail(userId, e);
+        } finally {
+            running.remove(userId);
+        }
+    }
+
+    /*
+     * Rewraps and commits the next chunk of documents, or moves on to the
+     * next phase if there aren't any left. Returns the updated rotation.
+     *
+     * Session keys are recovered with either the old or the new subkey,
+     * since documents written after the swap are only encrypted for the new
+     * one.
+     */
+    private KeyRotation rotateChunk(KeyRotation rotation, List<UnlockedKeySet> holders) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            final User user = userRepository.findById(rotation.getUserId());
+            if (user == null) {
+                throw new IllegalStateException("user no longer exists");
+            }
+
+            final DateTime since = (rotation.getPhase() == Phase.SWEEPING) ? rotation.getStartedAt() : EPOCH;
+            final List<Document> chunk = documentRepository.findReadableByUser(
+                    user, rotation.getCursorOwnerId(), rotation.getCursorName(), since, chunkSize
+            );
+            if (chunk.isEmpty()) {
+                return (rotation.getPhase() == Phase.REWRAPPING) ? swap(rotation) : complete(rotation);
+            }
+
+            final Timer.Context context = chunks.time();
+            try {
+                rewrap(chunk, holders);
+                return checkpoint(rotation, chunk);
+            } catch (OptimisticLockingFailureException | OptimisticLockException e) {
+                // a document was written while it was being rewrapped
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                rotation = rotationRepository.findByUserId(rotation.getUserId());
+            } finally {
+                context.stop();
+            }
+        }
+    }
+
+    private void rewrap(List<Document> chunk, final List<UnlockedKeySet> holders) throws Exception {
+        final List<ListenableFuture<Void>> futures = newArrayListWithExpectedSize(chunk.size());
+        for (final Document document : chunk) {
+            futures.add(workers.submit(() -> {
+                throttle();
+                document.rewrapBody(holders, random);
+                rewrapped.mark();
+                return null;
+            }));
+        }
+
+        try {
+            Futures.allAsList(futures).get();
+        } catch (ExecutionException e) {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            throw e;
+        }
+    }
+
+    /*
+     * Waits until no requests are waiting for a thread, then for the rate
+     * limiter.
+     */
+    private void throttle() throws InterruptedException {
+        while (requestExecutor.getQueueLength() > 0) {
+            Thread.sleep(BACKOFF_MILLIS);
+        }
+        rateLimiter.acquire();
+    }
+
+    private KeyRotation checkpoint(KeyRotation rotation, List<Document> chunk) {
+        return transactions.execute(status -> {
+            documentRepository.updateAll(chunk);
+            rotation.advance(chunk.get(chunk.size() - 1), chunk.size());
+            return rotationRepository.saveOrUpdate(rotation);
+        });
+    }
+
+    private KeyRotation swap(KeyRotation rotation) {
+        final KeyRotation swapped = transactions.execute(status -> {
+            final User user = userRepository.findById(rotation.getUserId());
+            user.setKeySet(user.getPendingKeySet());
+            user.setPendingKeySet(null);
+            user.setModifiedAt(new DateTime());
+            userRepository.saveOrUpdate(user);
+
+            rotation.beginSweep(documentRepository.countReadableByUser(user, rotation.getStartedAt()));
+            return rotationRepository.saveOrUpdate(rotation);
+        });
+        keySetCache.invalidate(rotation.getUserId());
+        return swapped;
+    }
+
+    private KeyRotation complete(KeyRotation rotation) {
+        rotation.complete();
+        return rotationRepository.saveOrUpdate(rotation);
+    }
+
+    private void fail(String userId, Exception e) {
+        try {
+            final KeyRotation rotation = rotationRepository.findByUserId(userId);
+            if (rotation != null) {
+                rotation.fail(String.valueOf(e.getMessage()));
+                rotationRepository.saveOrUpdate(rotation);
+            }
+        } catch (RuntimeException e1) {
+            LOGGER.warn("Unable to record failed key rotation for " + userId, e1);
+        }
+    }
+}
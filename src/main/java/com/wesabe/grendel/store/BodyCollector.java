@@ -0,0 +1,99 @@
+package com.wesabe.grendel.store;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.wesabe.grendel.entities.dao.DocumentRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+
+/**
+ * Periodically deletes bodies from a {@link FileBodyStore} which are no
+ * longer referenced by any document.
+ * <p>
+ * Bodies are written before the documents which reference them are
+ * committed, so only bodies older than a grace period are considered.
+ * Candidates are found before the referenced bodies are queried, which means
+ * a body can only be deleted if it was unreferenced for the whole run.
+ */
+@Component
+@ConditionalOnExpression("'${grendel.body-store.type:database}' == 'file'")
+public class BodyCollector {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BodyCollector.class);
+
+    private final FileBodyStore store;
+    private final DocumentRepository documentRepository;
+    private final long gracePeriod;
+    private final ScheduledExecutorService pool;
+    private final Counter deleted;
+
+    @Autowired
+    public BodyCollector(FileBodyStore store,
+                         DocumentRepository documentRepository,
+                         MetricRegistry metrics,
+                         @Value("${grendel.body-store.gc-interval-minutes:60}") long interval,
+                         @Value("${grendel.body-store.gc-grace-minutes:60}") long gracePeriod) {
+        this.store = store;
+        this.documentRepository = documentRepository;
+        this.gracePeriod = TimeUnit.MINUTES.toMillis(gracePeriod);
+        this.deleted = metrics.counter(name(BodyCollector.class, "deleted"));
+        this.pool = newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("body-collector").setDaemon(true).build()
+        );
+
+        pool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    collect();
+                } catch (Exception e) {
+                    LOGGER.warn("Unable to collect unreferenced bodies", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Deletes all bodies which are older than the grace period and aren't
+     * referenced by any document.
+     *
+     * @return the number of bodies deleted
+     */
+    public int collect() throws Exception {
+        final long cutoff = System.currentTimeMillis() - gracePeriod;
+        final Set<String> candidates = store.findOlderThan(cutoff);
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+
+        candidates.removeAll(documentRepository.getBodyRefs());
+
+        int count = 0;
+        for (String ref : candidates) {
+            if (store.deleteIfOlderThan(ref, cutoff)) {
+                count++;
+            }
+        }
+
+        deleted.inc(count);
+        LOGGER.info("Deleted {} unreferenced bodies", count);
+        return count;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
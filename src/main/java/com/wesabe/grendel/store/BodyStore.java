@@ -0,0 +1,53 @@
+package com.wesabe.grendel.store;
+
+import com.wesabe.grendel.entities.Document;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A backend which stores encrypted {@link Document} bodies outside of the
+ * database, leaving only a reference to the body in the document's row.
+ * <p>
+ * If no {@link BodyStore} is configured, document bodies are stored inline in
+ * the database. Moving bodies into a {@link BodyStore} is one-way: once any
+ * body is kept in one, Grendel won't start without it.
+ *
+ * @see FileBodyStore
+ */
+public interface BodyStore {
+    /**
+     * Begins writing a new body. The body isn't stored until
+     * {@link PendingBody#commit()} is called; closing an uncommitted body
+     * discards it.
+     *
+     * @throws IOException if the body can't be created
+     */
+    PendingBody create() throws IOException;
+
+    /**
+     * Opens a stored body for reading.
+     *
+     * @param ref a reference returned by {@link PendingBody#commit()}
+     * @throws IOException if the body doesn't exist or can't be read
+     */
+    InputStream open(String ref) throws IOException;
+
+    /**
+     * A body which is being written to a {@link BodyStore}.
+     */
+    abstract class PendingBody extends OutputStream {
+        /**
+         * Stores the body and returns a reference to it.
+         *
+         * @throws IOException if the body can't be stored
+         */
+        public abstract String commit() throws IOException;
+
+        /**
+         * Returns the number of bytes written to the body.
+         */
+        public abstract long size();
+    }
+}
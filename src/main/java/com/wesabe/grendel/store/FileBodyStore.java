@@ -0,0 +1,208 @@
+package com.wesabe.grendel.store;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.Striped;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static com.google.common.collect.Sets.newHashSet;
+import static java.nio.file.Files.*;
+
+/**
+ * A {@link BodyStore} which keeps bodies in a local directory, addressed by
+ * the SHA-256 digest of their contents.
+ * <p>
+ * Bodies are written to a temporary file, synced to disk, and then atomically
+ * renamed into a directory sharded by the first two bytes of the digest, so a
+ * body is either fully present or absent. Bodies are read by memory-mapping
+ * them a window at a time.
+ * <p>
+ * Stored bodies are never modified; bodies which are no longer referenced are
+ * removed by {@link BodyCollector}. Committing a body and collecting it are
+ * serialized per reference, so a body which is committed again while it's
+ * being collected is either kept or written anew, never lost.
+ */
+@Component
+@ConditionalOnExpression("'${grendel.body-store.type:database}' == 'file'")
+public class FileBodyStore implements BodyStore {
+    private static final Pattern REF_PATTERN = Pattern.compile("[0-9a-f]{64}");
+    private static final String TEMP_DIRECTORY = "tmp";
+    private static final int BUFFER_SIZE = 1 << 16; // 64KB
+    private static final int WINDOW_SIZE = 1 << 26; // 64MB
+    private static final int LOCK_STRIPES = 64;
+
+    private final Path root;
+    private final Path temp;
+    private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+
+    @Autowired
+    public FileBodyStore(@Value("${grendel.body-store.directory:bodies}") String directory) throws IOException {
+        this(Paths.get(directory));
+    }
+
+    /**
+     * Creates a new {@link FileBodyStore} in {@code root}, creating the
+     * directory if necessary.
+     */
+    public FileBodyStore(Path root) throws IOException {
+        this.root = createDirectories(root);
+        this.temp = createDirectories(root.resolve(TEMP_DIRECTORY));
+    }
+
+    @Override
+    public PendingBody create() throws IOException {
+        return new PendingFile(createTempFile(temp, "body-", ".tmp"));
+    }
+
+    @Override
+    public InputStream open(String ref) throws IOException {
+        return new MappedInputStream(FileChannel.open(resolve(ref), StandardOpenOption.READ), WINDOW_SIZE);
+    }
+
+    /**
+     * Returns references to all stored bodies which were last written before
+     * {@code cutoff}, and deletes any abandoned temporary files older than
+     * {@code cutoff}.
+     *
+     * @param cutoff a time, in milliseconds since the epoch
+     */
+    public Set<String> findOlderThan(long cutoff) throws IOException {
+        final Set<String> refs = newHashSet();
+        try (Stream<Path> files = walk(root)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (isRegularFile(file) && isOlderThan(file, cutoff)) {
+                    if (file.getParent().equals(temp)) {
+                        deleteIfExists(file);
+                    } else if (REF_PATTERN.matcher(file.getFileName().toString()).matches()) {
+                        refs.add(file.getFileName().toString());
+                    }
+                }
+            }
+        }
+        return refs;
+    }
+
+    /**
+     * Deletes a stored body, unless it has been written since {@code cutoff}.
+     *
+     * @param ref    a reference to a stored body
+     * @param cutoff a time, in milliseconds since the epoch
+     * @return {@code true} if the body was deleted
+     */
+    public boolean deleteIfOlderThan(String ref, long cutoff) throws IOException {
+        final Path file = resolve(ref);
+        final Lock lock = locks.get(ref);
+        lock.lock();
+        try {
+            return exists(file) && isOlderThan(file, cutoff) && deleteIfExists(file);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isOlderThan(Path file, long cutoff) throws IOException {
+        return getLastModifiedTime(file).toMillis() < cutoff;
+    }
+
+    private Path resolve(String ref) throws IOException {
+        if (!REF_PATTERN.matcher(ref).matches()) {
+            throw new FileNotFoundException("invalid body reference: " + ref);
+        }
+        return root.resolve(ref.substring(0, 2)).resolve(ref.substring(2, 4)).resolve(ref);
+    }
+
+    /**
+     * A body which is being written to a temporary file.
+     */
+    private class PendingFile extends PendingBody {
+        private final Path file;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private final OutputStream output;
+        private long size = 0;
+        private boolean committed = false;
+
+        private PendingFile(Path file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                channel.close();
+                throw new IOException(e);
+            }
+            this.output = new DigestOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE),
+                    digest
+            );
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            output.write(b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            output.write(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public String commit() throws IOException {
+            output.flush();
+            channel.force(true);
+            channel.close();
+
+            final String ref = BaseEncoding.base16().lowerCase().encode(digest.digest());
+            final Path target = resolve(ref);
+            createDirectories(target.getParent());
+
+            final Lock lock = locks.get(ref);
+            lock.lock();
+            try {
+                if (exists(target)) {
+                    // an identical body is already stored; keep it safe from collection
+                    deleteIfExists(file);
+                    setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
+                } else {
+                    move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            this.committed = true;
+            return ref;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                channel.close();
+                deleteIfExists(file);
+            }
+        }
+    }
+}
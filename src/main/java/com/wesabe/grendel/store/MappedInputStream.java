@@ -0,0 +1,102 @@
+package com.wesabe.grendel.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An {@link InputStream} which reads a file by memory-mapping it a window at
+ * a time, so that large files don't need to be mapped all at once.
+ */
+class MappedInputStream extends InputStream {
+    private final FileChannel channel;
+    private final int windowSize;
+    private final long size;
+    private long position = 0;
+    private MappedByteBuffer window;
+
+    MappedInputStream(FileChannel channel, int windowSize) throws IOException {
+        this.channel = channel;
+        this.windowSize = windowSize;
+        this.size = channel.size();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextWindow()) {
+            return -1;
+        }
+        return window.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!nextWindow()) {
+            return -1;
+        }
+
+        final int r = Math.min(len, window.remaining());
+        window.get(b, off, r);
+        return r;
+    }
+
+    /**
+     * Skips forward without reading, mapping no windows in between.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+
+        long skipped = 0;
+        if (window != null) {
+            final int inWindow = (int) Math.min(n, window.remaining());
+            window.position(window.position() + inWindow);
+            skipped = inWindow;
+        }
+
+        final long beyond = Math.min(n - skipped, size - position);
+        if (beyond > 0) {
+            this.window = null;
+            position += beyond;
+            skipped += beyond;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (window == null) ? 0 : window.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    /*
+     * Maps the next window of the file if the current one is exhausted.
+     * Returns false at the end of the file.
+     */
+    private boolean nextWindow() throws IOException {
+        if ((window != null) && window.hasRemaining()) {
+            return true;
+        }
+
+        if (position >= size) {
+            return false;
+        }
+
+        final long length = Math.min(windowSize, size - position);
+        this.window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        position += length;
+        return true;
+    }
+}
@@ -0,0 +1,55 @@
+package com.wesabe.grendel.util;
+
+/**
+ * A Java Flight Recorder event which has begun, and which is committed once
+ * the operation it times has finished.
+ * <p>
+ * Events of types which aren't being recorded ignore their fields, so
+ * values which are expensive to compute should only be computed if
+ * {@link #isRecording()}.
+ *
+ * @see FlightEventType
+ */
+public class FlightEvent {
+    static final FlightEvent DISABLED = new FlightEvent(null, null);
+
+    private final FlightEventType type;
+    private final Object event;
+
+    FlightEvent(FlightEventType type, Object event) {
+        this.type = type;
+        this.event = event;
+    }
+
+    /**
+     * Returns {@code true} if the event will be recorded.
+     */
+    public boolean isRecording() {
+        return event != null;
+    }
+
+    /**
+     * Sets one of the event's fields.
+     *
+     * @param field the name of the field
+     * @param value the field's value
+     * @return {@code this}
+     * @throws IllegalArgumentException if the event type has no such field
+     */
+    public FlightEvent set(String field, Object value) {
+        if (event != null) {
+            type.set(event, field, value);
+        }
+        return this;
+    }
+
+    /**
+     * Ends the event, and records it if it took long enough to be of
+     * interest to the running recordings.
+     */
+    public void commit() {
+        if (event != null) {
+            type.commit(event);
+        }
+    }
+}
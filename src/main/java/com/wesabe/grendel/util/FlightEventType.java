@@ -0,0 +1,306 @@
+package com.wesabe.grendel.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A type of custom Java Flight Recorder event, which Grendel emits around
+ * expensive operations so recordings can tie GC pauses and lock contention
+ * to them.
+ * <p>
+ * Event types are defined at runtime through {@code jdk.jfr.EventFactory},
+ * which is looked up reflectively so Grendel still runs on JVMs without
+ * Flight Recorder. On those JVMs, and whenever an event type isn't being
+ * recorded, {@link #begin()} returns an event which ignores its fields and
+ * is never committed, so events cost next to nothing unless a recording is
+ * running.
+ * <p>
+ * Every event type is in the {@code Grendel} category, and records its
+ * duration and the stack trace of the thread which began it.
+ */
+public final class FlightEventType {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlightEventType.class);
+    private static final String CATEGORY = "Grendel";
+    private static final int HASH_LENGTH = 16;
+    private static final Support SUPPORT = Support.load();
+
+    private final String[] fields;
+    private final FieldType[] types;
+    private final Object factory;
+
+    private FlightEventType(String name, String label, List<String> fields,
+                            List<FieldType> types, List<String> labels) {
+        this.fields = fields.toArray(new String[fields.size()]);
+        this.types = types.toArray(new FieldType[types.size()]);
+        this.factory = (SUPPORT == null) ? null : SUPPORT.define(name, label, fields, types, labels);
+    }
+
+    /**
+     * Returns a builder for a new event type.
+     *
+     * @param name  the event type's name, e.g. {@code com.wesabe.grendel.MessageWrite}
+     * @param label the event type's human-readable label
+     */
+    public static Builder builder(String name, String label) {
+        return new Builder(name, label);
+    }
+
+    /**
+     * Returns {@code true} if the JVM supports custom Flight Recorder events.
+     */
+    public static boolean isSupported() {
+        return SUPPORT != null;
+    }
+
+    /**
+     * Begins timing a new event of this type.
+     */
+    public FlightEvent begin() {
+        if (factory == null) {
+            return FlightEvent.DISABLED;
+        }
+
+        final Object event = SUPPORT.begin(factory);
+        return (event == null) ? FlightEvent.DISABLED : new FlightEvent(this, event);
+    }
+
+    void set(Object event, String field, Object value) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].equals(field)) {
+                SUPPORT.set(event, i, types[i].convert(value));
+                return;
+            }
+        }
+        throw new IllegalArgumentException("unknown field: " + field);
+    }
+
+    void commit(Object event) {
+        SUPPORT.commit(event);
+    }
+
+    /**
+     * The types of field an event can have.
+     */
+    private enum FieldType {
+        LONG(long.class) {
+            @Override
+            Object convert(Object value) {
+                return (value == null) ? 0L : ((Number) value).longValue();
+            }
+        },
+        BYTES(long.class) {
+            @Override
+            Object convert(Object value) {
+                return LONG.convert(value);
+            }
+        },
+        BOOLEAN(boolean.class) {
+            @Override
+            Object convert(Object value) {
+                return Boolean.TRUE.equals(value);
+            }
+        },
+        STRING(String.class) {
+            @Override
+            Object convert(Object value) {
+                return (value == null) ? null : value.toString();
+            }
+        },
+        HASH(String.class) {
+            @Override
+            Object convert(Object value) {
+                return (value == null) ? null : Hashing.sha256().hashString(value.toString(), StandardCharsets.UTF_8).toString().substring(0, HASH_LENGTH);
+            }
+        };
+
+        private final Class<?> type;
+
+        FieldType(Class<?> type) {
+            this.type = type;
+        }
+
+        abstract Object convert(Object value);
+    }
+
+    /**
+     * Builds a {@link FlightEventType}.
+     */
+    public static final class Builder {
+        private final String name;
+        private final String label;
+        private final List<String> fields = new ArrayList<>();
+        private final List<FieldType> types = new ArrayList<>();
+        private final List<String> labels = new ArrayList<>();
+
+        private Builder(String name, String label) {
+            this.name = name;
+            this.label = label;
+        }
+
+        /**
+         * Adds a numeric field.
+         */
+        public Builder withLong(String field, String label) {
+            return with(field, FieldType.LONG, label);
+        }
+
+        /**
+         * Adds a numeric field which holds a number of bytes.
+         */
+        public Builder withBytes(String field, String label) {
+            return with(field, FieldType.BYTES, label);
+        }
+
+        /**
+         * Adds a boolean field.
+         */
+        public Builder withBoolean(String field, String label) {
+            return with(field, FieldType.BOOLEAN, label);
+        }
+
+        /**
+         * Adds a string field.
+         */
+        public Builder withString(String field, String label) {
+            return with(field, FieldType.STRING, label);
+        }
+
+        /**
+         * Adds a string field which records a truncated SHA-256 digest of the
+         * value it's set to, rather than the value itself, so recordings
+         * don't contain user IDs.
+         */
+        public Builder withHash(String field, String label) {
+            return with(field, FieldType.HASH, label);
+        }
+
+        private Builder with(String field, FieldType type, String label) {
+            fields.add(field);
+            types.add(type);
+            labels.add(label);
+            return this;
+        }
+
+        /**
+         * Defines the event type.
+         */
+        public FlightEventType build() {
+            return new FlightEventType(name, label, fields, types, labels);
+        }
+    }
+
+    /**
+     * Method handles for the parts of {@code jdk.jfr} which are used.
+     */
+    private static final class Support {
+        private final Class<?> nameAnnotation, labelAnnotation, categoryAnnotation, dataAmountAnnotation;
+        private final MethodHandle newAnnotation, newValueDescriptor, createFactory, newEvent;
+        private final MethodHandle isEnabled, begin, end, shouldCommit, commit, set;
+
+        private Support() throws ReflectiveOperationException {
+            final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            final Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+            final Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+            final Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+            final Class<?> event = Class.forName("jdk.jfr.Event");
+
+            this.nameAnnotation = Class.forName("jdk.jfr.Name");
+            this.labelAnnotation = Class.forName("jdk.jfr.Label");
+            this.categoryAnnotation = Class.forName("jdk.jfr.Category");
+            this.dataAmountAnnotation = Class.forName("jdk.jfr.DataAmount");
+
+            this.newAnnotation = lookup.findConstructor(annotationElement,
+                    MethodType.methodType(void.class, Class.class, Object.class));
+            this.newValueDescriptor = lookup.findConstructor(valueDescriptor,
+                    MethodType.methodType(void.class, Class.class, String.class, List.class));
+            this.createFactory = lookup.findStatic(eventFactory, "create",
+                    MethodType.methodType(eventFactory, List.class, List.class));
+            this.newEvent = lookup.findVirtual(eventFactory, "newEvent", MethodType.methodType(event));
+            this.isEnabled = lookup.findVirtual(event, "isEnabled", MethodType.methodType(boolean.class));
+            this.begin = lookup.findVirtual(event, "begin", MethodType.methodType(void.class));
+            this.end = lookup.findVirtual(event, "end", MethodType.methodType(void.class));
+            this.shouldCommit = lookup.findVirtual(event, "shouldCommit", MethodType.methodType(boolean.class));
+            this.commit = lookup.findVirtual(event, "commit", MethodType.methodType(void.class));
+            this.set = lookup.findVirtual(event, "set", MethodType.methodType(void.class, int.class, Object.class));
+        }
+
+        static Support load() {
+            try {
+                return new Support();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                LOGGER.info("Flight Recorder events are not supported by this JVM");
+                return null;
+            }
+        }
+
+        Object define(String name, String label, List<String> fields, List<FieldType> types, List<String> labels) {
+            try {
+                final List<Object> fieldDescriptors = new ArrayList<>(fields.size());
+                for (int i = 0; i < fields.size(); i++) {
+                    final List<Object> annotations = new ArrayList<>(2);
+                    annotations.add(annotation(labelAnnotation, labels.get(i)));
+                    if (types.get(i) == FieldType.BYTES) {
+                        annotations.add(annotation(dataAmountAnnotation, "BYTES"));
+                    }
+                    fieldDescriptors.add(newValueDescriptor.invoke(types.get(i).type, fields.get(i), annotations));
+                }
+
+                final List<Object> annotations = ImmutableList.of(
+                        annotation(nameAnnotation, name),
+                        annotation(labelAnnotation, label),
+                        annotation(categoryAnnotation, new String[]{CATEGORY})
+                );
+                return createFactory.invoke(annotations, fieldDescriptors);
+            } catch (Throwable e) {
+                LOGGER.warn("Unable to define Flight Recorder event " + name, e);
+                return null;
+            }
+        }
+
+        private Object annotation(Class<?> type, Object value) throws Throwable {
+            return newAnnotation.invoke(type.asSubclass(Annotation.class), value);
+        }
+
+        Object begin(Object factory) {
+            try {
+                final Object event = newEvent.invoke(factory);
+                if (!(boolean) isEnabled.invoke(event)) {
+                    return null;
+                }
+                begin.invoke(event);
+                return event;
+            } catch (Throwable e) {
+                return null;
+            }
+        }
+
+        void set(Object event, int index, Object value) {
+            try {
+                set.invoke(event, index, value);
+            } catch (Throwable ignored) {
+                // a missing field isn't worth failing the operation over
+            }
+        }
+
+        void commit(Object event) {
+            try {
+                end.invoke(event);
+                if ((boolean) shouldCommit.invoke(event)) {
+                    commit.invoke(event);
+                }
+            } catch (Throwable ignored) {
+                // nor is a lost event
+            }
+        }
+    }
+}
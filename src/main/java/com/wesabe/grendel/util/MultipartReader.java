@@ -0,0 +1,186 @@
+package com.wesabe.grendel.util;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.google.common.collect.Maps.newHashMap;
+
+/**
+ * A reader for {@code multipart/mixed} entities (RFC 2046), which reads one
+ * part at a time from the underlying stream.
+ * <p>
+ * Bodies are copied to a caller-provided {@link OutputStream} rather than
+ * buffered, so callers can decide where they end up (e.g. a
+ * {@link SpillBuffer}, to keep plaintext off the disk).
+ */
+public class MultipartReader {
+    private static final int MAX_HEADER_LENGTH = 8 * 1024; // 8KB
+    private static final int MAX_HEADERS = 32;
+    private static final int BUFFER_SIZE = 16 * 1024; // 16KB
+
+    private final InputStream input;
+    private final byte[] delimiter;
+    private final int[] failure;
+    private boolean started = false;
+    private boolean inBody = false;
+    private boolean finished = false;
+
+    /**
+     * Creates a new {@link MultipartReader}.
+     *
+     * @param input    the multipart entity
+     * @param boundary the entity's boundary parameter
+     */
+    public MultipartReader(InputStream input, String boundary) {
+        this.input = new BufferedInputStream(input, BUFFER_SIZE);
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.failure = failureTable(delimiter);
+    }
+
+    /**
+     * Advances to the next part, skipping the rest of the current part's body
+     * if it hasn't been read.
+     *
+     * @return the next part's headers, keyed by lower-case name, or
+     *         {@code null} if there are no more parts
+     * @throws IOException if the entity is malformed or can't be read
+     */
+    public Map<String, String> nextPart() throws IOException {
+        if (finished) {
+            return null;
+        }
+
+        if (!started) {
+            // skip the preamble; the first delimiter's leading CRLF is optional
+            if (!copyUntilDelimiter(ByteStreams.nullOutputStream(), 2)) {
+                throw new EOFException("no multipart boundary found");
+            }
+            this.started = true;
+        } else if (inBody) {
+            readBody(ByteStreams.nullOutputStream());
+        }
+
+        if (readDelimiterSuffix()) {
+            this.finished = true;
+            return null;
+        }
+
+        this.inBody = true;
+        return readHeaders();
+    }
+
+    /**
+     * Copies the current part's body to {@code output}.
+     *
+     * @throws IOException if the entity is malformed or can't be read, or if
+     *                     {@code output} can't be written to
+     */
+    public void readBody(OutputStream output) throws IOException {
+        if (!inBody) {
+            throw new IllegalStateException("not positioned at a part");
+        }
+
+        if (!copyUntilDelimiter(output, 0)) {
+            throw new EOFException("unterminated multipart body");
+        }
+        this.inBody = false;
+    }
+
+    /*
+     * Reads the rest of a delimiter line, returning true if it was the close
+     * delimiter.
+     */
+    private boolean readDelimiterSuffix() throws IOException {
+        return readRequiredLine().startsWith("--");
+    }
+
+    private Map<String, String> readHeaders() throws IOException {
+        final Map<String, String> headers = newHashMap();
+        String line;
+        while (!(line = readRequiredLine()).isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon <= 0 || headers.size() == MAX_HEADERS) {
+                throw new IOException("malformed multipart header: " + line);
+            }
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH),
+                    line.substring(colon + 1).trim());
+        }
+        return headers;
+    }
+
+    private String readRequiredLine() throws IOException {
+        final String line = readLine();
+        if (line == null) {
+            throw new EOFException("unterminated multipart entity");
+        }
+        return line;
+    }
+
+    private String readLine() throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = input.read()) >= 0) {
+            if (b == '\n') {
+                final int end = line.length();
+                return (end > 0 && line.charAt(end - 1) == '\r') ? line.substring(0, end - 1) : line.toString();
+            }
+
+            if (line.length() == MAX_HEADER_LENGTH) {
+                throw new IOException("multipart header line too long");
+            }
+            line.append((char) b);
+        }
+
+        if (line.length() == 0) {
+            return null;
+        }
+        throw new EOFException("unterminated multipart header");
+    }
+
+    /*
+     * Copies bytes to output until the delimiter is found, using
+     * Knuth-Morris-Pratt so partial matches never need to be re-read.
+     */
+    private boolean copyUntilDelimiter(OutputStream output, int matched) throws IOException {
+        final OutputStream buffered = new BufferedOutputStream(output, BUFFER_SIZE);
+        int b;
+        while ((b = input.read()) >= 0) {
+            while (matched > 0 && b != (delimiter[matched] & 0xFF)) {
+                final int next = failure[matched - 1];
+                buffered.write(delimiter, 0, matched - next);
+                matched = next;
+            }
+
+            if (b == (delimiter[matched] & 0xFF)) {
+                matched++;
+                if (matched == delimiter.length) {
+                    buffered.flush();
+                    return true;
+                }
+            } else {
+                buffered.write(b);
+            }
+        }
+        buffered.flush();
+        return false;
+    }
+
+    private static int[] failureTable(byte[] pattern) {
+        final int[] table = new int[pattern.length];
+        int k = 0;
+        for (int i = 1; i < pattern.length; i++) {
+            while (k > 0 && pattern[i] != pattern[k]) {
+                k = table[k - 1];
+            }
+            if (pattern[i] == pattern[k]) {
+                k++;
+            }
+            table[i] = k;
+        }
+        return table;
+    }
+}
@@ -0,0 +1,136 @@
+package com.wesabe.grendel.util;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the metrics of a {@link MetricRegistry} in the Prometheus text
+ * exposition format.
+ * <p>
+ * Metric names have the {@code com.wesabe.grendel.} package prefix replaced
+ * with {@code grendel_}, and are converted to snake case. Timers and
+ * histograms are written as summaries with quantiles of their recent
+ * values, timers in seconds with a {@code _seconds} suffix. Meters are
+ * written as counters with a {@code _total} suffix, and counters and gauges
+ * as gauges. Gauges which aren't numbers or booleans are left out.
+ * <p>
+ * Reading a registry takes no locks beyond those of the individual metrics,
+ * so it's cheap enough to be scraped frequently.
+ */
+public final class PrometheusFormat {
+    /**
+     * The content type of the format.
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String PACKAGE_PREFIX = "com.wesabe.grendel.";
+    private static final String NAME_PREFIX = "grendel_";
+    private static final double[] QUANTILES = {0.5, 0.75, 0.95, 0.98, 0.99, 0.999};
+    private static final double SECONDS = TimeUnit.SECONDS.toNanos(1);
+
+    private PrometheusFormat() {
+    }
+
+    /**
+     * Writes every metric in {@code registry} to {@code output}.
+     *
+     * @throws IOException if there is an error writing to {@code output}
+     */
+    public static void write(MetricRegistry registry, Writer output) throws IOException {
+        for (Map.Entry<String, ?> entry : registry.getGauges().entrySet()) {
+            final Object value = ((Gauge<?>) entry.getValue()).getValue();
+            if (value instanceof Number) {
+                writeSample(output, toName(entry.getKey()), "gauge", ((Number) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                writeSample(output, toName(entry.getKey()), "gauge", ((Boolean) value) ? 1 : 0);
+            }
+        }
+
+        for (Map.Entry<String, Counter> entry : registry.getCounters().entrySet()) {
+            writeSample(output, toName(entry.getKey()), "gauge", entry.getValue().getCount());
+        }
+
+        for (Map.Entry<String, Meter> entry : registry.getMeters().entrySet()) {
+            writeSample(output, toName(entry.getKey()) + "_total", "counter", entry.getValue().getCount());
+        }
+
+        for (Map.Entry<String, Histogram> entry : registry.getHistograms().entrySet()) {
+            final Histogram histogram = entry.getValue();
+            writeSummary(output, toName(entry.getKey()), histogram.getSnapshot(), 1, histogram.getCount());
+        }
+
+        for (Map.Entry<String, Timer> entry : registry.getTimers().entrySet()) {
+            final Timer timer = entry.getValue();
+            writeSummary(output, toName(entry.getKey()) + "_seconds", timer.getSnapshot(), SECONDS, timer.getCount());
+        }
+    }
+
+    /**
+     * Converts a metric name to a valid Prometheus metric name, e.g.
+     * {@code com.wesabe.grendel.openpgp.MessageWriter.session-key} to
+     * {@code grendel_openpgp_message_writer_session_key}.
+     */
+    public static String toName(String name) {
+        final String unprefixed = name.startsWith(PACKAGE_PREFIX) ? name.substring(PACKAGE_PREFIX.length()) : name;
+        final StringBuilder builder = new StringBuilder(NAME_PREFIX.length() + unprefixed.length() + 8);
+        builder.append(NAME_PREFIX);
+
+        char previous = '_';
+        for (int i = 0; i < unprefixed.length(); i++) {
+            final char c = unprefixed.charAt(i);
+            if (Character.isUpperCase(c) && (Character.isLowerCase(previous) || Character.isDigit(previous))) {
+                builder.append('_');
+            }
+
+            final char converted = isNameChar(c) ? Character.toLowerCase(c) : '_';
+            if (converted != '_' || builder.charAt(builder.length() - 1) != '_') {
+                builder.append(converted);
+            }
+            previous = c;
+        }
+        return builder.toString();
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    private static void writeSample(Writer output, String name, String type, double value) throws IOException {
+        output.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        output.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void writeSummary(Writer output, String name, Snapshot snapshot,
+                                     double scale, long count) throws IOException {
+        output.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : QUANTILES) {
+            output.append(name)
+                  .append("{quantile=\"").append(Double.toString(quantile)).append("\"} ")
+                  .append(format(snapshot.getValue(quantile) / scale))
+                  .append('\n');
+        }
+        output.append(name).append("_count ").append(Long.toString(count)).append('\n');
+    }
+
+    private static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+
+        if (Double.isInfinite(value)) {
+            return (value > 0) ? "+Inf" : "-Inf";
+        }
+
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,209 @@
+package com.wesabe.grendel.util;
+
+import com.google.common.io.ByteSource;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import static java.util.Arrays.fill;
+
+/**
+ * An {@link OutputStream} which holds its contents in memory until they
+ * exceed a threshold, after which they are spilled to a temporary file.
+ * <p>
+ * Spilled contents are encrypted with an ephemeral AES key which is only ever
+ * held in memory, so plaintext never reaches the disk. Calling
+ * {@link #close()} wipes the in-memory contents and deletes the temporary
+ * file. Buffers which are never closed leave their temporary files behind,
+ * but those can't be decrypted once the process exits.
+ */
+public class SpillBuffer extends OutputStream {
+    private static final String CIPHER = "AES/CTR/NoPadding";
+    private static final int KEY_SIZE = 16;
+    private static final int BUFFER_SIZE = 1024 * 16; // 16KB
+
+    private final int threshold;
+    private final WipeableByteArrayOutputStream memory;
+    private File file;
+    private OutputStream fileOutput;
+    private byte[] key;
+    private byte[] iv;
+    private long size = 0;
+
+    /**
+     * Creates a new {@link SpillBuffer}.
+     *
+     * @param threshold the maximum number of bytes to hold in memory
+     */
+    public SpillBuffer(int threshold) {
+        this.threshold = threshold;
+        this.memory = new WipeableByteArrayOutputStream();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if ((file == null) && ((memory.size() + len) > threshold)) {
+            spill();
+        }
+
+        if (file == null) {
+            memory.write(b, off, len);
+        } else {
+            fileOutput.write(b, off, len);
+        }
+        size += len;
+    }
+
+    /**
+     * Returns the number of bytes written to the buffer.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns {@code true} if the buffer's contents have been spilled to disk.
+     */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Writes the buffer's contents to {@code output}. No further writes to the
+     * buffer are permitted.
+     *
+     * @param output an {@link OutputStream}
+     * @throws IOException if there is an error reading the temporary file or
+     *                     writing to {@code output}
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        if (file == null) {
+            memory.writeTo(output);
+        } else {
+            try (InputStream input = openSpilledStream()) {
+                final byte[] b = new byte[BUFFER_SIZE];
+                int r;
+                while ((r = input.read(b)) >= 0) {
+                    output.write(b, 0, r);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns an {@link InputStream} of the buffer's contents. No further
+     * writes to the buffer are permitted, and the stream must be consumed
+     * before the buffer is closed.
+     *
+     * @throws IOException if there is an error opening the temporary file
+     */
+    public InputStream getInputStream() throws IOException {
+        if (file == null) {
+            return memory.toInputStream();
+        }
+        return openSpilledStream();
+    }
+
+    /**
+     * Returns a {@link ByteSource} of the buffer's contents, which can be
+     * read more than once. The same restrictions apply to it as to
+     * {@link #getInputStream()}.
+     */
+    public ByteSource asByteSource() {
+        return new ByteSource() {
+            @Override
+            public InputStream openStream() throws IOException {
+                return getInputStream();
+            }
+
+            @Override
+            public long size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Wipes the in-memory contents of the buffer and deletes the temporary
+     * file, if any.
+     */
+    @Override
+    public void close() {
+        memory.wipe();
+        if (key != null) {
+            fill(key, (byte) 0);
+        }
+
+        if (file != null) {
+            try {
+                fileOutput.close();
+            } catch (IOException ignored) {
+                // we're deleting it anyway
+            }
+
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException ignored) {
+                // the contents are unreadable without the key
+            }
+        }
+    }
+
+    private void spill() throws IOException {
+        final SecureRandom random = new SecureRandom();
+        this.key = new byte[KEY_SIZE];
+        this.iv = new byte[KEY_SIZE];
+        random.nextBytes(key);
+        random.nextBytes(iv);
+
+        this.file = File.createTempFile("grendel-", ".spill");
+        this.fileOutput = new BufferedOutputStream(
+                new CipherOutputStream(new FileOutputStream(file), getCipher(Cipher.ENCRYPT_MODE)),
+                BUFFER_SIZE
+        );
+
+        memory.writeTo(fileOutput);
+        memory.wipe();
+    }
+
+    private InputStream openSpilledStream() throws IOException {
+        fileOutput.close();
+        return new CipherInputStream(new FileInputStream(file), getCipher(Cipher.DECRYPT_MODE));
+    }
+
+    private Cipher getCipher(int mode) throws IOException {
+        try {
+            final Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} which can overwrite its buffer.
+     */
+    private static class WipeableByteArrayOutputStream extends ByteArrayOutputStream {
+        public InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+
+        public void wipe() {
+            fill(buf, (byte) 0);
+            reset();
+        }
+    }
+}
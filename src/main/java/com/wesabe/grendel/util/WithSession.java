@@ -1,33 +1,80 @@
 package com.wesabe.grendel.util;
 
-import org.hibernate.Session;
+import com.codahale.metrics.Timer;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
 import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.persistence.EntityManager;
+import java.util.Collection;
 
 /**
- * 4/5/14 Created by Jonathan Garay
+ * Runs a statement with the {@link EntityManager} of the current transaction,
+ * starting a transaction if there isn't one.
+ * <p>
+ * Within a request, this joins the request's unit of work, so every
+ * statement shares one {@link EntityManager} and one connection. Outside of a
+ * request, the {@link EntityManager} is closed when the statement's
+ * transaction completes.
+ * <p>
+ * If a {@link Timer} is given, the time taken by each statement is recorded
+ * in it. Each statement is also recorded as a
+ * {@code com.wesabe.grendel.Statement} Flight Recorder event, whose stack
+ * trace identifies the repository method which ran it.
+ *
+ * @see com.wesabe.grendel.modules.UnitOfWorkFilter
  */
 public class WithSession<T> {
+    private static final FlightEventType STATEMENT_EVENT = FlightEventType
+            .builder("com.wesabe.grendel.Statement", "Statement")
+            .withBoolean("newTransaction", "New Transaction")
+            .withBoolean("readOnly", "Read Only")
+            .withLong("results", "Results")
+            .build();
+
     private final JpaTransactionManager transactionManager;
+    private final Timer timer;
 
     public WithSession(JpaTransactionManager manager) {
+        this(manager, null);
+    }
+
+    public WithSession(JpaTransactionManager manager, Timer timer) {
         this.transactionManager = manager;
+        this.timer = timer;
     }
 
     public T transaction(Seasonable<T> statement) {
-        EntityManager entityManager = transactionManager
-                .getEntityManagerFactory()
-                .createEntityManager();
-
-        Session session = entityManager.unwrap(Session.class);
-        session.beginTransaction();
-        T result = statement.doStatement(entityManager);
-        session.getTransaction().commit();
-        return result;
+        return new TransactionTemplate(transactionManager).execute(status -> {
+            final EntityManager entityManager = EntityManagerFactoryUtils.getTransactionalEntityManager(
+                    transactionManager.getEntityManagerFactory()
+            );
+            final FlightEvent event = STATEMENT_EVENT.begin()
+                    .set("newTransaction", status.isNewTransaction())
+                    .set("readOnly", TransactionSynchronizationManager.isCurrentTransactionReadOnly());
+            final Timer.Context context = (timer == null) ? null : timer.time();
+            try {
+                final T result = statement.doStatement(entityManager);
+                event.set("results", countResults(result));
+                return result;
+            } finally {
+                if (context != null) {
+                    context.stop();
+                }
+                event.commit();
+            }
+        });
+    }
+
+    private static long countResults(Object result) {
+        if (result instanceof Collection) {
+            return ((Collection<?>) result).size();
+        }
+        return (result == null) ? 0 : 1;
     }
 
     public interface Seasonable<T> {
         public T doStatement(EntityManager entityManager);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,139 @@
+package com.wesabe.grendel.auth.tests;
+
+import com.codahale.metrics.MetricRegistry;
+import com.wesabe.grendel.auth.UnlockedKeySetCache;
+import com.wesabe.grendel.entities.User;
+import com.wesabe.grendel.openpgp.CryptographicException;
+import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.KeySetCache;
+import com.wesabe.grendel.openpgp.UnlockedKeySet;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import java.io.FileInputStream;
+import java.security.Security;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(Enclosed.class)
+public class UnlockedKeySetCacheTest {
+	private static class VersionedUser extends User {
+		private static final long serialVersionUID = 1L;
+		private long version = 0;
+		
+		private VersionedUser(KeySet keySet) {
+			super(keySet);
+		}
+		
+		@Override
+		public long getVersion() {
+			return version;
+		}
+	}
+	
+	private static abstract class Context {
+		protected MetricRegistry metrics;
+		protected UnlockedKeySetCache cache;
+		protected KeySetCache keySets;
+		protected VersionedUser user;
+		
+		@Before
+		public void setup() throws Exception {
+			Security.addProvider(new BouncyCastleProvider());
+			
+			this.metrics = new MetricRegistry();
+			this.cache = new UnlockedKeySetCache(metrics, 100, 60);
+			this.keySets = new KeySetCache(metrics, 100);
+			keySets.install();
+			this.user = new VersionedUser(KeySet.load(new FileInputStream("src/test/resources/secret-keyring.gpg")));
+		}
+		
+		@After
+		public void teardown() throws Exception {
+			keySets.uninstall();
+		}
+		
+		protected long hits() {
+			return metrics.meter(name(UnlockedKeySetCache.class, "hits")).getCount();
+		}
+		
+		protected long misses() {
+			return metrics.meter(name(UnlockedKeySetCache.class, "misses")).getCount();
+		}
+		
+		protected Object size() {
+			return metrics.getGauges().get(name(UnlockedKeySetCache.class, "size")).getValue();
+		}
+	}
+	
+	public static class Unlocking_With_Matching_Credentials extends Context {
+		@Test
+		public void itReturnsTheCachedKeySet() throws Exception {
+			final UnlockedKeySet first = cache.unlock(user, "test".toCharArray());
+			final UnlockedKeySet second = cache.unlock(user, "test".toCharArray());
+			
+			assertThat(second).isSameAs(first);
+			assertThat(misses()).isEqualTo(1);
+			assertThat(hits()).isEqualTo(1);
+		}
+	}
+	
+	public static class Unlocking_With_A_Wrong_Passphrase extends Context {
+		@Test
+		public void itThrowsAndCachesNothing() throws Exception {
+			try {
+				cache.unlock(user, "wrong".toCharArray());
+				fail("should have thrown a CryptographicException but didn't");
+			} catch (CryptographicException e) {
+				assertThat(size()).isEqualTo(0L);
+			}
+			
+			assertThat(hits()).isEqualTo(0);
+			assertThat(misses()).isEqualTo(1);
+		}
+		
+		@Test
+		public void itDoesNotReturnAKeySetCachedWithOtherCredentials() throws Exception {
+			cache.unlock(user, "test".toCharArray());
+			
+			try {
+				cache.unlock(user, "wrong".toCharArray());
+				fail("should have thrown a CryptographicException but didn't");
+			} catch (CryptographicException e) {
+				assertThat(hits()).isEqualTo(0);
+				assertThat(misses()).isEqualTo(2);
+			}
+		}
+	}
+	
+	public static class Unlocking_After_The_User_Changes extends Context {
+		@Test
+		public void itUnlocksTheKeySetAgain() throws Exception {
+			final UnlockedKeySet first = cache.unlock(user, "test".toCharArray());
+			user.version++;
+			final UnlockedKeySet second = cache.unlock(user, "test".toCharArray());
+			
+			assertThat(second).isNotSameAs(first);
+			assertThat(hits()).isEqualTo(0);
+			assertThat(misses()).isEqualTo(2);
+		}
+	}
+	
+	public static class Invalidating_A_User extends Context {
+		@Test
+		public void itDiscardsTheCachedKeySet() throws Exception {
+			final UnlockedKeySet first = cache.unlock(user, "test".toCharArray());
+			cache.invalidate(user.getId());
+			
+			assertThat(size()).isEqualTo(0L);
+			assertThat(cache.unlock(user, "test".toCharArray())).isNotSameAs(first);
+			assertThat(misses()).isEqualTo(2);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package com.wesabe.grendel.decorators.tests;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.wesabe.grendel.decorators.DocumentListRepresentation;
+import com.wesabe.grendel.entities.DocumentSummary;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import javax.ws.rs.core.UriInfo;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@RunWith(Enclosed.class)
+public class DocumentListRepresentationTest {
+	public static class Serializing_A_Document_List {
+		private JsonNode json;
+
+		@Before
+		public void setup() throws Exception {
+			final UriInfo uriInfo = new BaseUriInfo("http://example.com/");
+			final DateTime modifiedAt = new DateTime(2014, 4, 11, 12, 30, 0, 0, DateTimeZone.UTC);
+
+			final DocumentListRepresentation list = new DocumentListRepresentation(uriInfo, ImmutableList.of(
+					new DocumentSummary("bob", "a.txt", "text/plain", modifiedAt, modifiedAt, 2L, 5L, 500L),
+					new DocumentSummary("bob", "b.json", "application/json", modifiedAt, modifiedAt, 0L, null, null)
+			));
+
+			final ObjectMapper mapper = new ObjectMapper();
+			this.json = mapper.readTree(mapper.writeValueAsString(list));
+		}
+
+		@Test
+		public void itListsEachDocument() throws Exception {
+			assertThat(json.get("documents").size()).isEqualTo(2);
+			assertThat(json.get("documents").get(0).get("name").asText()).isEqualTo("a.txt");
+			assertThat(json.get("documents").get(1).get("name").asText()).isEqualTo("b.json");
+		}
+
+		@Test
+		public void itIncludesTheContentType() throws Exception {
+			assertThat(json.get("documents").get(0).get("content-type").asText()).isEqualTo("text/plain");
+			assertThat(json.get("documents").get(1).get("content-type").asText()).isEqualTo("application/json");
+		}
+
+		@Test
+		public void itIncludesThePlaintextSize() throws Exception {
+			assertThat(json.get("documents").get(0).get("size").asLong()).isEqualTo(5L);
+		}
+
+		@Test
+		public void itLeavesOutUnrecordedSizes() throws Exception {
+			assertThat(json.get("documents").get(1).has("size")).isFalse();
+		}
+
+		@Test
+		public void itIncludesTheModificationTime() throws Exception {
+			assertThat(json.get("documents").get(0).get("modified-at").asText()).isEqualTo("20140411T123000Z");
+		}
+
+		@Test
+		public void itIncludesTheDocumentsURI() throws Exception {
+			assertThat(json.get("documents").get(0).get("uri").asText())
+					.isEqualTo("http://example.com/users/bob/documents/a.txt");
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.wesabe.grendel.decorators.tests;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.wesabe.grendel.decorators.LinkedDocumentListRepresentation;
+import com.wesabe.grendel.entities.DocumentSummary;
+import com.wesabe.grendel.entities.User;
+import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.KeySetCache;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import javax.ws.rs.core.UriInfo;
+import java.io.FileInputStream;
+import java.security.Security;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@RunWith(Enclosed.class)
+public class LinkedDocumentListRepresentationTest {
+	public static class Serializing_A_Linked_Document_List {
+		private KeySetCache keySets;
+		private User user;
+		private JsonNode json;
+
+		@Before
+		public void setup() throws Exception {
+			Security.addProvider(new BouncyCastleProvider());
+
+			this.keySets = new KeySetCache(new MetricRegistry(), 100);
+			keySets.install();
+			this.user = new User(KeySet.load(new FileInputStream("src/test/resources/secret-keyring.gpg")));
+
+			final UriInfo uriInfo = new BaseUriInfo("http://example.com/");
+			final DateTime modifiedAt = new DateTime(2014, 4, 11, 12, 30, 0, 0, DateTimeZone.UTC);
+
+			final LinkedDocumentListRepresentation list = new LinkedDocumentListRepresentation(uriInfo, user, ImmutableList.of(
+					new DocumentSummary("carol", "a.txt", "text/plain", modifiedAt, modifiedAt, 2L, 5L, 500L),
+					new DocumentSummary("dave", "b.json", "application/json", modifiedAt, modifiedAt, 0L, null, null)
+			));
+
+			final ObjectMapper mapper = new ObjectMapper();
+			this.json = mapper.readTree(mapper.writeValueAsString(list));
+		}
+
+		@After
+		public void teardown() throws Exception {
+			keySets.uninstall();
+		}
+
+		@Test
+		public void itListsEachDocument() throws Exception {
+			assertThat(json.get("linked-documents").size()).isEqualTo(2);
+			assertThat(json.get("linked-documents").get(0).get("name").asText()).isEqualTo("a.txt");
+			assertThat(json.get("linked-documents").get(1).get("name").asText()).isEqualTo("b.json");
+		}
+
+		@Test
+		public void itIncludesTheContentType() throws Exception {
+			assertThat(json.get("linked-documents").get(0).get("content-type").asText()).isEqualTo("text/plain");
+		}
+
+		@Test
+		public void itIncludesThePlaintextSize() throws Exception {
+			assertThat(json.get("linked-documents").get(0).get("size").asLong()).isEqualTo(5L);
+		}
+
+		@Test
+		public void itLeavesOutUnrecordedSizes() throws Exception {
+			assertThat(json.get("linked-documents").get(1).has("size")).isFalse();
+		}
+
+		@Test
+		public void itIncludesTheModificationTime() throws Exception {
+			assertThat(json.get("linked-documents").get(0).get("modified-at").asText()).isEqualTo("20140411T123000Z");
+		}
+
+		@Test
+		public void itIncludesTheOwner() throws Exception {
+			final JsonNode owner = json.get("linked-documents").get(1).get("owner");
+
+			assertThat(owner.get("id").asText()).isEqualTo("dave");
+			assertThat(owner.get("uri").asText()).isEqualTo("http://example.com/users/dave");
+		}
+
+		@Test
+		public void itIncludesTheLinkedDocumentsURI() throws Exception {
+			assertThat(json.get("linked-documents").get(0).get("uri").asText()).isEqualTo(
+					"http://example.com/users/Sample%20Key%20%3Csample@wesabe.com%3E/linked-documents/carol/a.txt"
+			);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.wesabe.grendel.entities.dao.tests;
+
+import com.codahale.metrics.MetricRegistry;
+import com.wesabe.grendel.entities.Document;
+import com.wesabe.grendel.entities.DocumentSummary;
+import com.wesabe.grendel.entities.User;
+import com.wesabe.grendel.entities.dao.DocumentRepository;
+import com.wesabe.grendel.entities.dao.UserRepository;
+import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.KeySetCache;
+import com.wesabe.grendel.openpgp.UnlockedKeySet;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.ws.rs.core.MediaType;
+import java.io.FileInputStream;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@RunWith(Enclosed.class)
+public class DocumentRepositoryTest {
+	private static abstract class Context {
+		protected KeySetCache keySets;
+		protected TestDatabase database;
+		protected UserRepository userRepository;
+		protected DocumentRepository documentRepository;
+		protected User owner, reader;
+		protected Document document;
+
+		@Before
+		public void setup() throws Exception {
+			Security.addProvider(new BouncyCastleProvider());
+
+			this.keySets = new KeySetCache(new MetricRegistry(), 100);
+			keySets.install();
+
+			this.database = new TestDatabase();
+			this.userRepository = database.getUserRepository();
+			this.documentRepository = database.getDocumentRepository();
+
+			final KeySet ownerKeySet = KeySet.load(new FileInputStream("src/test/resources/secret-keyring.gpg"));
+			final UnlockedKeySet unlockedKeySet = ownerKeySet.unlock("test".toCharArray());
+			this.owner = userRepository.saveOrUpdate(new User(ownerKeySet));
+			this.reader = userRepository.saveOrUpdate(new User(
+					KeySet.load(new FileInputStream("src/test/resources/another-secret-keyring.gpg"))
+			));
+
+			final Document doc = documentRepository.newDocument(owner, "a.txt", MediaType.TEXT_PLAIN_TYPE);
+			doc.encryptAndSetBody(unlockedKeySet, new SecureRandom(), "hello".getBytes("UTF-8"));
+			documentRepository.saveOrUpdate(doc);
+
+			// link the document, and bump its version with a second write
+			new TransactionTemplate(database.getTransactionManager()).execute(status -> {
+				final Document managed = documentRepository.findByOwnerAndName(owner, "a.txt");
+				managed.linkUser(userRepository.findById(reader.getId()));
+				managed.setModifiedAt(managed.getModifiedAt().plusSeconds(1));
+				return managed;
+			});
+			this.document = documentRepository.findByOwnerAndName(owner, "a.txt");
+		}
+
+		@After
+		public void teardown() throws Exception {
+			database.close();
+			keySets.uninstall();
+		}
+	}
+
+	public static class Finding_A_Summary extends Context {
+		@Test
+		public void itHasTheDocumentsETag() throws Exception {
+			final DocumentSummary summary = documentRepository.findSummaryByOwnerAndName(owner, "a.txt");
+
+			assertThat(summary.getETag()).isEqualTo("doc-a.txt-1");
+			assertThat(summary.getETag()).isEqualTo(documentRepository.findByOwnerAndName(owner, "a.txt").getETag());
+			assertThat(summary.getModifiedAt()).isEqualTo(document.getModifiedAt());
+		}
+
+		@Test
+		public void itReturnsNullIfTheDocumentDoesntExist() throws Exception {
+			assertThat(documentRepository.findSummaryByOwnerAndName(owner, "b.txt")).isNull();
+		}
+	}
+
+	public static class Listing_Summaries extends Context {
+		@Test
+		public void itListsOwnedDocuments() throws Exception {
+			final List<DocumentSummary> summaries = documentRepository.getUserDocumentSummaries(owner);
+
+			assertThat(summaries).hasSize(1);
+			assertThat(summaries.get(0).getName()).isEqualTo("a.txt");
+			assertThat(summaries.get(0).getOwnerId()).isEqualTo(owner.getId());
+			assertThat(summaries.get(0).getContentType()).isEqualTo(MediaType.TEXT_PLAIN_TYPE);
+			assertThat(summaries.get(0).getPlaintextSize()).isEqualTo(5L);
+			assertThat(summaries.get(0).getCiphertextSize()).isEqualTo(document.getCiphertextSize());
+		}
+
+		@Test
+		public void itListsLinkedDocuments() throws Exception {
+			final List<DocumentSummary> summaries = documentRepository.getLinkedDocumentSummaries(reader);
+
+			assertThat(summaries).hasSize(1);
+			assertThat(summaries.get(0).getName()).isEqualTo("a.txt");
+			assertThat(summaries.get(0).getOwnerId()).isEqualTo(owner.getId());
+		}
+
+		@Test
+		public void itLeavesTheDocumentsUnloaded() throws Exception {
+			final Statistics statistics = database.getStatistics();
+			statistics.clear();
+
+			documentRepository.getUserDocumentSummaries(owner);
+			documentRepository.getLinkedDocumentSummaries(reader);
+			documentRepository.findSummaryByOwnerAndName(owner, "a.txt");
+			documentRepository.findLinkedSummary(reader, owner.getId(), "a.txt");
+
+			assertThat(statistics.getEntityLoadCount()).isEqualTo(0);
+		}
+
+		@Test
+		public void itLoadsTheDocumentWhenAskedForIt() throws Exception {
+			final Statistics statistics = database.getStatistics();
+			statistics.clear();
+
+			documentRepository.findByOwnerAndName(owner, "a.txt");
+
+			assertThat(statistics.getEntityStatistics(Document.class.getName()).getLoadCount()).isEqualTo(1);
+		}
+	}
+
+	public static class Finding_A_Linked_Summary extends Context {
+		@Test
+		public void itHasTheDocumentsETag() throws Exception {
+			final DocumentSummary summary = documentRepository.findLinkedSummary(reader, owner.getId(), "a.txt");
+
+			assertThat(summary.getETag()).isEqualTo("doc-a.txt-1");
+			assertThat(summary.getETag()).isEqualTo(documentRepository.findByOwnerAndName(owner, "a.txt").getETag());
+			assertThat(summary.getModifiedAt()).isEqualTo(document.getModifiedAt());
+		}
+
+		@Test
+		public void itReturnsNullIfTheDocumentIsntLinked() throws Exception {
+			assertThat(documentRepository.findLinkedSummary(owner, owner.getId(), "a.txt")).isNull();
+		}
+	}
+}
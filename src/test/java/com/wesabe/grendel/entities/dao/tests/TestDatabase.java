@@ -0,0 +1,106 @@
+package com.wesabe.grendel.entities.dao.tests;
+
+import com.google.common.collect.ImmutableMap;
+import com.wesabe.grendel.entities.dao.DocumentRepository;
+import com.wesabe.grendel.entities.dao.UserRepository;
+import org.hibernate.SessionFactory;
+import org.hibernate.dialect.H2Dialect;
+import org.hibernate.stat.Statistics;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.sql.Types;
+import java.util.UUID;
+
+/**
+ * An in-memory H2 database with Grendel's schema, and the repositories which
+ * use it.
+ */
+final class TestDatabase implements AutoCloseable {
+	/**
+	 * H2 with Postgres's {@code uuid} type, and room for encoded key sets.
+	 */
+	public static class Dialect extends H2Dialect {
+		public Dialect() {
+			registerColumnType(Types.OTHER, "uuid");
+			registerColumnType(Types.VARBINARY, "varbinary(4096)");
+		}
+	}
+
+	static class Config {
+		@Bean(destroyMethod = "shutdown")
+		public EmbeddedDatabase dataSource() {
+			return new EmbeddedDatabaseBuilder()
+					.setType(EmbeddedDatabaseType.H2)
+					.setName("grendel-" + UUID.randomUUID())
+					.build();
+		}
+
+		@Bean
+		public LocalContainerEntityManagerFactoryBean entityManagerFactory(DataSource dataSource) {
+			final LocalContainerEntityManagerFactoryBean factory = new LocalContainerEntityManagerFactoryBean();
+			factory.setDataSource(dataSource);
+			factory.setPackagesToScan("com.wesabe.grendel.entities");
+			factory.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
+			factory.setJpaPropertyMap(ImmutableMap.of(
+					"hibernate.dialect", Dialect.class.getName(),
+					"hibernate.hbm2ddl.auto", "create-drop",
+					"hibernate.generate_statistics", "true"
+			));
+			return factory;
+		}
+
+		@Bean
+		public JpaTransactionManager transactionManager(EntityManagerFactory entityManagerFactory) {
+			return new JpaTransactionManager(entityManagerFactory);
+		}
+
+		@Bean
+		public UserRepository userRepository() {
+			return new UserRepository();
+		}
+
+		@Bean
+		public DocumentRepository documentRepository() {
+			return new DocumentRepository();
+		}
+	}
+
+	private final AnnotationConfigApplicationContext context;
+
+	TestDatabase() {
+		this.context = new AnnotationConfigApplicationContext(Config.class);
+	}
+
+	JpaTransactionManager getTransactionManager() {
+		return context.getBean(JpaTransactionManager.class);
+	}
+
+	UserRepository getUserRepository() {
+		return context.getBean(UserRepository.class);
+	}
+
+	DocumentRepository getDocumentRepository() {
+		return context.getBean(DocumentRepository.class);
+	}
+
+	/**
+	 * Returns Hibernate's statistics, which count the entities loaded.
+	 */
+	Statistics getStatistics() {
+		return context.getBean(EntityManagerFactory.class).unwrap(SessionFactory.class).getStatistics();
+	}
+
+	@Override
+	public void close() {
+		context.close();
+	}
+}
@@ -0,0 +1,75 @@
+package com.wesabe.grendel.modules.tests;
+
+import com.codahale.metrics.MetricRegistry;
+import com.wesabe.grendel.modules.CryptoExecutor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@RunWith(Enclosed.class)
+public class CryptoExecutorTest {
+	public static class A_Crypto_Executor {
+		private CryptoExecutor executor;
+		private MetricRegistry metrics;
+
+		@Before
+		public void setup() throws Exception {
+			this.metrics = new MetricRegistry();
+			this.executor = new CryptoExecutor(metrics, 1, 1);
+		}
+
+		@After
+		public void teardown() throws Exception {
+			executor.shutdown();
+		}
+
+		private Callable<String> currentThreadName() {
+			return new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return Thread.currentThread().getName();
+				}
+			};
+		}
+
+		@Test
+		public void itRunsTasksInTheBackground() throws Exception {
+			assertThat(executor.submit(currentThreadName()).get()).isEqualTo("crypto-0");
+		}
+
+		@Test
+		public void itRunsTasksOnTheCallerWhenFull() throws Exception {
+			final CountDownLatch latch = new CountDownLatch(1);
+			final Callable<String> blocked = new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					latch.await();
+					return null;
+				}
+			};
+
+			executor.submit(blocked);
+			executor.submit(blocked);
+			final Future<String> overflow = executor.submit(currentThreadName());
+			latch.countDown();
+
+			assertThat(overflow.get()).isEqualTo(Thread.currentThread().getName());
+		}
+
+		@Test
+		public void itRegistersGauges() throws Exception {
+			assertThat(metrics.getGauges().keySet()).contains(
+					"com.wesabe.grendel.modules.CryptoExecutor.active",
+					"com.wesabe.grendel.modules.CryptoExecutor.queued"
+			);
+		}
+	}
+}
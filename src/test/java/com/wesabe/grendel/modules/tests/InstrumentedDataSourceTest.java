@@ -0,0 +1,95 @@
+package com.wesabe.grendel.modules.tests;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.wesabe.grendel.modules.InstrumentedDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.sql.Connection;
+import java.util.UUID;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.fest.assertions.Assertions.assertThat;
+
+@RunWith(Enclosed.class)
+public class InstrumentedDataSourceTest {
+	private static abstract class Context {
+		protected MetricRegistry metrics;
+		protected org.apache.tomcat.jdbc.pool.DataSource pool;
+		protected InstrumentedDataSource dataSource;
+
+		@Before
+		public void setup() throws Exception {
+			this.metrics = new MetricRegistry();
+			this.pool = new org.apache.tomcat.jdbc.pool.DataSource();
+			pool.setDriverClassName("org.h2.Driver");
+			pool.setUrl("jdbc:h2:mem:" + UUID.randomUUID());
+			this.dataSource = new InstrumentedDataSource(pool, metrics);
+		}
+
+		@After
+		public void teardown() throws Exception {
+			pool.close();
+		}
+
+		protected Object gauge(String metric) {
+			final Gauge<?> gauge = metrics.getGauges().get(name(InstrumentedDataSource.class, metric));
+			return gauge.getValue();
+		}
+	}
+
+	public static class Checking_Out_A_Connection extends Context {
+		@Test
+		public void itTimesTheCheckout() throws Exception {
+			try (Connection connection = dataSource.getConnection()) {
+				assertThat(connection.isValid(1)).isTrue();
+			}
+
+			assertThat(metrics.timer(name(InstrumentedDataSource.class, "checkouts")).getCount()).isEqualTo(1);
+		}
+
+		@Test
+		public void itReportsTheActiveConnections() throws Exception {
+			final Connection connection = dataSource.getConnection();
+			assertThat(gauge("active")).isEqualTo(1);
+			connection.close();
+
+			assertThat(gauge("active")).isEqualTo(0);
+		}
+
+		@Test
+		public void itReportsTheIdleConnections() throws Exception {
+			dataSource.getConnection().close();
+			final int idle = (Integer) gauge("idle");
+
+			final Connection connection = dataSource.getConnection();
+			assertThat(gauge("idle")).isEqualTo(idle - 1);
+			connection.close();
+
+			assertThat(gauge("idle")).isEqualTo(idle);
+		}
+
+		@Test
+		public void itReportsTheWaitingThreads() throws Exception {
+			dataSource.getConnection().close();
+
+			assertThat(gauge("waiting")).isEqualTo(0);
+		}
+	}
+
+	public static class Wrapping_Another_Data_Source {
+		@Test
+		public void itOnlyTimesCheckouts() throws Exception {
+			final MetricRegistry metrics = new MetricRegistry();
+			new InstrumentedDataSource(new DriverManagerDataSource(), metrics);
+
+			assertThat(metrics.getGauges()).isEmpty();
+			assertThat(metrics.getTimers()).hasSize(1);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.wesabe.grendel.modules.tests;
+
+import com.codahale.metrics.MetricRegistry;
+import com.wesabe.grendel.modules.MetricRegistryProvider;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@RunWith(Enclosed.class)
+public class MetricRegistryProviderTest {
+	public static class Providing_A_Registry {
+		private MetricRegistryProvider provider;
+		
+		@Before
+		public void setup() throws Exception {
+			this.provider = new MetricRegistryProvider();
+		}
+		
+		@Test
+		public void itProvidesAMetricRegistry() throws Exception {
+			assertThat(provider.getObject()).isInstanceOfAny(MetricRegistry.class);
+		}
+		
+		@Test
+		public void itProvidesTheSameInstanceAsTheStaticAccessor() throws Exception {
+			assertThat(provider.getObject()).isSameAs(MetricRegistryProvider.getRegistry());
+		}
+	}
+}
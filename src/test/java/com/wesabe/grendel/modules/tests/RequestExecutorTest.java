@@ -0,0 +1,235 @@
+package com.wesabe.grendel.modules.tests;
+
+import com.codahale.metrics.MetricRegistry;
+import com.wesabe.grendel.modules.RequestExecutor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@RunWith(Enclosed.class)
+public class RequestExecutorTest {
+	private static class RecordingTransactionManager implements PlatformTransactionManager {
+		private final SimpleTransactionStatus status = new SimpleTransactionStatus();
+		private volatile boolean committed, rolledBack;
+
+		@Override
+		public TransactionStatus getTransaction(TransactionDefinition definition) {
+			return status;
+		}
+
+		@Override
+		public void commit(TransactionStatus status) {
+			if (status.isRollbackOnly()) {
+				this.rolledBack = true;
+			} else {
+				this.committed = true;
+			}
+		}
+
+		@Override
+		public void rollback(TransactionStatus status) {
+			this.rolledBack = true;
+		}
+	}
+
+	private static class RecordingResponse implements AsyncResponse {
+		private final CountDownLatch resumed = new CountDownLatch(1);
+		private volatile Object result;
+
+		private Object await() throws InterruptedException {
+			assertThat(resumed.await(5, TimeUnit.SECONDS)).isTrue();
+			return result;
+		}
+
+		@Override
+		public boolean resume(Object response) {
+			this.result = response;
+			resumed.countDown();
+			return true;
+		}
+
+		@Override
+		public boolean resume(Throwable response) {
+			return resume((Object) response);
+		}
+
+		@Override
+		public boolean cancel() {
+			return false;
+		}
+
+		@Override
+		public boolean cancel(int retryAfter) {
+			return false;
+		}
+
+		@Override
+		public boolean cancel(Date retryAfter) {
+			return false;
+		}
+
+		@Override
+		public boolean isSuspended() {
+			return resumed.getCount() > 0;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return !isSuspended();
+		}
+
+		@Override
+		public boolean setTimeout(long time, TimeUnit unit) {
+			return true;
+		}
+
+		@Override
+		public void setTimeoutHandler(TimeoutHandler handler) {
+		}
+
+		@Override
+		public Collection<Class<?>> register(Class<?> callback) {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+			return Collections.emptyMap();
+		}
+
+		@Override
+		public Collection<Class<?>> register(Object callback) {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+			return Collections.emptyMap();
+		}
+	}
+
+	public static class A_Request_Executor {
+		private MetricRegistry metrics;
+		private RecordingTransactionManager transactionManager;
+		private RequestExecutor executor;
+
+		@Before
+		public void setup() throws Exception {
+			this.metrics = new MetricRegistry();
+			this.transactionManager = new RecordingTransactionManager();
+			this.executor = new RequestExecutor(metrics, transactionManager, 1, 1);
+		}
+
+		@After
+		public void teardown() throws Exception {
+			executor.shutdown();
+		}
+
+		private Callable<Response> returning(final Response result) {
+			return new Callable<Response>() {
+				@Override
+				public Response call() throws Exception {
+					return result;
+				}
+			};
+		}
+
+		@Test
+		public void itResumesWithTheResultOnceCommitted() throws Exception {
+			final RecordingResponse response = new RecordingResponse();
+			final Response result = Response.noContent().build();
+
+			executor.resume(response, false, returning(result));
+
+			assertThat(response.await()).isSameAs(result);
+			assertThat(transactionManager.committed).isTrue();
+		}
+
+		@Test
+		public void itRollsBackErrorResponses() throws Exception {
+			final RecordingResponse response = new RecordingResponse();
+
+			executor.resume(response, false, returning(Response.status(412).build()));
+
+			assertThat(((Response) response.await()).getStatus()).isEqualTo(412);
+			assertThat(transactionManager.rolledBack).isTrue();
+			assertThat(transactionManager.committed).isFalse();
+		}
+
+		@Test
+		public void itResumesWithCheckedExceptions() throws Exception {
+			final RecordingResponse response = new RecordingResponse();
+			final Exception failure = new Exception("oops");
+
+			executor.resume(response, true, new Callable<Response>() {
+				@Override
+				public Response call() throws Exception {
+					throw failure;
+				}
+			});
+
+			assertThat(response.await()).isSameAs(failure);
+			assertThat(transactionManager.rolledBack).isTrue();
+		}
+
+		@Test
+		public void itTurnsRequestsAwayWhenFull() throws Exception {
+			final CountDownLatch started = new CountDownLatch(1);
+			final CountDownLatch latch = new CountDownLatch(1);
+			final Callable<Response> blocked = new Callable<Response>() {
+				@Override
+				public Response call() throws Exception {
+					started.countDown();
+					latch.await();
+					return null;
+				}
+			};
+
+			assertThat(executor.resume(new RecordingResponse(), true, blocked)).isTrue();
+			started.await();
+			assertThat(executor.resume(new RecordingResponse(), true, blocked)).isTrue();
+
+			final RecordingResponse rejected = new RecordingResponse();
+			assertThat(executor.resume(rejected, true, blocked)).isFalse();
+			latch.countDown();
+
+			assertThat(((Response) rejected.await()).getStatus()).isEqualTo(503);
+			assertThat(metrics.getMeters().get("com.wesabe.grendel.modules.RequestExecutor.rejected").getCount()).isEqualTo(1);
+		}
+
+		@Test
+		public void itRegistersMetrics() throws Exception {
+			assertThat(metrics.getGauges().keySet()).contains(
+					"com.wesabe.grendel.modules.RequestExecutor.active",
+					"com.wesabe.grendel.modules.RequestExecutor.queued"
+			);
+			assertThat(metrics.getTimers().keySet()).contains(
+					"com.wesabe.grendel.modules.RequestExecutor.wait"
+			);
+		}
+	}
+}
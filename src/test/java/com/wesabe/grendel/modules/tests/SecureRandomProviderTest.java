@@ -1,6 +1,8 @@
 package com.wesabe.grendel.modules.tests;
 
+import com.codahale.metrics.MetricRegistry;
 import com.wesabe.grendel.modules.SecureRandomProvider;
+import com.wesabe.grendel.modules.StripedSecureRandom;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.Before;
 import org.junit.Test;
@@ -36,5 +38,25 @@ public class SecureRandomProviderTest {
 		public void itProvidesTheSameInstance() throws Exception {
 			assertThat(provider.getObject()).isSameAs(provider.getObject());
 		}
+		
+		@Test
+		public void itProvidesAStripedInstance() throws Exception {
+			assertThat(provider.getObject()).isInstanceOf(StripedSecureRandom.class);
+			assertThat(((StripedSecureRandom) new SecureRandomProvider(5).getObject()).getStripeCount()).isEqualTo(8);
+		}
+		
+		@Test
+		public void itTimesReseeding() throws Exception {
+			final MetricRegistry metrics = new MetricRegistry();
+			final SecureRandomProvider provider = new SecureRandomProvider(metrics, 2);
+			try {
+				provider.reseed(1);
+			} finally {
+				provider.shutdown();
+			}
+			
+			assertThat(metrics.timer("com.wesabe.grendel.modules.SecureRandomProvider.entropy").getCount()).isEqualTo(1);
+			assertThat(metrics.timer("com.wesabe.grendel.modules.SecureRandomProvider.reseed").getCount()).isEqualTo(1);
+		}
 	}
 }
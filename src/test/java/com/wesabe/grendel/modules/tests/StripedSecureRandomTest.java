@@ -0,0 +1,121 @@
+package com.wesabe.grendel.modules.tests;
+
+import com.wesabe.grendel.modules.StripedSecureRandom;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(Enclosed.class)
+public class StripedSecureRandomTest {
+	private static class CountingSource extends SecureRandom {
+		private static final long serialVersionUID = 1L;
+		private int seeds;
+
+		@Override
+		public byte[] generateSeed(int numBytes) {
+			seeds++;
+			return new byte[numBytes];
+		}
+	}
+
+	public static class A_Striped_Secure_Random {
+		private StripedSecureRandom random;
+
+		@Before
+		public void setup() throws Exception {
+			this.random = new StripedSecureRandom(3);
+		}
+
+		@Test
+		public void itRoundsTheStripeCountUpToAPowerOfTwo() throws Exception {
+			assertThat(random.getStripeCount()).isEqualTo(4);
+			assertThat(new StripedSecureRandom(1).getStripeCount()).isEqualTo(1);
+		}
+
+		@Test
+		public void itGeneratesRandomBytes() throws Exception {
+			final byte[] a = new byte[32], b = new byte[32];
+			random.nextBytes(a);
+			random.nextBytes(b);
+
+			assertThat(a).isNotEqualTo(new byte[32]);
+			assertThat(Arrays.equals(a, b)).isFalse();
+		}
+
+		@Test
+		public void itCanBeReseeded() throws Exception {
+			random.reseed(0, new byte[]{1, 2, 3});
+			random.setSeed(new byte[]{4, 5, 6});
+			random.setSeed(7L);
+
+			assertThat(random.nextLong()).isNotEqualTo(random.nextLong());
+		}
+
+		@Test
+		public void itIsUsableFromManyThreads() throws Exception {
+			final ExecutorService pool = Executors.newFixedThreadPool(8);
+			try {
+				final Callable<byte[]> task = new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						final byte[] bytes = new byte[16];
+						random.nextBytes(bytes);
+						return bytes;
+					}
+				};
+
+				final List<Future<byte[]>> results = pool.invokeAll(Collections.nCopies(64, task));
+
+				for (int i = 0; i < results.size(); i++) {
+					for (int j = i + 1; j < results.size(); j++) {
+						assertThat(Arrays.equals(results.get(i).get(), results.get(j).get())).isFalse();
+					}
+				}
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+
+		@Test
+		public void itSeedsStripesFromTheGivenSource() throws Exception {
+			final CountingSource source = new CountingSource();
+			new StripedSecureRandom(4, source);
+
+			assertThat(source.seeds).isEqualTo(4);
+		}
+
+		@Test
+		public void itReplacesAReseededStripe() throws Exception {
+			final StripedSecureRandom single = new StripedSecureRandom(1);
+			final byte[] before = new byte[16], after = new byte[16];
+			single.nextBytes(before);
+			single.reseed(0, new byte[]{1, 2, 3});
+			single.nextBytes(after);
+
+			assertThat(Arrays.equals(before, after)).isFalse();
+		}
+
+		@Test
+		public void itRejectsAnInvalidStripeCount() throws Exception {
+			try {
+				new StripedSecureRandom(0);
+				fail("should have thrown an IllegalArgumentException but didn't");
+			} catch (IllegalArgumentException e) {
+				assertThat(e.getMessage()).isEqualTo("invalid stripe count: 0");
+			}
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package com.wesabe.grendel.modules.tests;
+
+import com.codahale.metrics.MetricRegistry;
+import com.wesabe.grendel.modules.InstrumentedDataSource;
+import com.wesabe.grendel.modules.UnitOfWorkFilter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static org.fest.assertions.Assertions.assertThat;
+
+@RunWith(Enclosed.class)
+public class UnitOfWorkFilterTest {
+	/**
+	 * Records transactions, and the order things happen in, in a shared log.
+	 */
+	private static class RecordingTransactionManager implements PlatformTransactionManager {
+		private final List<String> events;
+		private Boolean readOnly;
+
+		private RecordingTransactionManager(List<String> events) {
+			this.events = events;
+		}
+
+		@Override
+		public TransactionStatus getTransaction(TransactionDefinition definition) {
+			this.readOnly = definition.isReadOnly();
+			events.add("begin");
+			return new SimpleTransactionStatus();
+		}
+
+		@Override
+		public void commit(TransactionStatus status) {
+			events.add(status.isRollbackOnly() ? "rollback" : "commit");
+		}
+
+		@Override
+		public void rollback(TransactionStatus status) {
+			events.add("rollback");
+		}
+	}
+
+	/**
+	 * A response which records when its body is first written to.
+	 */
+	private static class RecordingResponse {
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private final List<String> events;
+		private int status = 200;
+
+		private RecordingResponse(List<String> events) {
+			this.events = events;
+		}
+
+		private HttpServletResponse proxy() {
+			final ServletOutputStream output = new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					if (body.size() == 0) {
+						events.add("write");
+					}
+					body.write(b);
+				}
+			};
+
+			return (HttpServletResponse) Proxy.newProxyInstance(
+					HttpServletResponse.class.getClassLoader(),
+					new Class<?>[]{HttpServletResponse.class},
+					(proxy, method, args) -> {
+						switch (method.getName()) {
+							case "setStatus":
+								this.status = (Integer) args[0];
+								return null;
+							case "sendError":
+								this.status = (Integer) args[0];
+								return null;
+							case "getStatus":
+								return status;
+							case "getOutputStream":
+								return output;
+							case "getCharacterEncoding":
+								return "UTF-8";
+							default:
+								return defaultValue(method.getReturnType());
+						}
+					});
+		}
+	}
+
+	private static HttpServletRequest request(String method, String uri) {
+		final Map<String, Object> attributes = newHashMap();
+		return (HttpServletRequest) Proxy.newProxyInstance(
+				HttpServletRequest.class.getClassLoader(),
+				new Class<?>[]{HttpServletRequest.class},
+				(proxy, m, args) -> {
+					switch (m.getName()) {
+						case "getMethod":
+							return method;
+						case "getRequestURI":
+							return uri;
+						case "getContextPath":
+							return "";
+						case "getAttribute":
+							return attributes.get(args[0]);
+						case "setAttribute":
+							attributes.put((String) args[0], args[1]);
+							return null;
+						case "removeAttribute":
+							attributes.remove(args[0]);
+							return null;
+						default:
+							return defaultValue(m.getReturnType());
+					}
+				});
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return false;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+
+	private static FilterChain responding(int status, String body) {
+		return (request, response) -> {
+			((HttpServletResponse) response).setStatus(status);
+			response.getOutputStream().write(body.getBytes("UTF-8"));
+		};
+	}
+
+	private static abstract class Context {
+		protected List<String> events;
+		protected RecordingTransactionManager transactionManager;
+		protected RecordingResponse response;
+		protected UnitOfWorkFilter filter;
+
+		@Before
+		public void setup() throws Exception {
+			this.events = newArrayList();
+			this.transactionManager = new RecordingTransactionManager(events);
+			this.response = new RecordingResponse(events);
+			this.filter = new UnitOfWorkFilter(transactionManager, new MetricRegistry());
+		}
+
+		protected void filter(String method, int status) throws Exception {
+			filter.doFilter(request(method, "/users/bob"), response.proxy(), responding(status, "hello"));
+		}
+	}
+
+	public static class A_Read_Only_Request extends Context {
+		@Test
+		public void itRunsGETsInAReadOnlyTransaction() throws Exception {
+			filter("GET", 200);
+
+			assertThat(transactionManager.readOnly).isTrue();
+		}
+
+		@Test
+		public void itRunsHEADsInAReadOnlyTransaction() throws Exception {
+			filter("HEAD", 200);
+
+			assertThat(transactionManager.readOnly).isTrue();
+		}
+
+		@Test
+		public void itRunsOPTIONSInAReadOnlyTransaction() throws Exception {
+			filter("OPTIONS", 200);
+
+			assertThat(transactionManager.readOnly).isTrue();
+		}
+
+		@Test
+		public void itSendsTheBodyOnceTheTransactionHasCommitted() throws Exception {
+			filter("GET", 200);
+
+			assertThat(events).isEqualTo(newArrayList("begin", "commit", "write"));
+			assertThat(response.body.toString("UTF-8")).isEqualTo("hello");
+		}
+
+		@Test
+		public void itRollsBackErrorResponses() throws Exception {
+			filter("GET", 404);
+
+			assertThat(events).isEqualTo(newArrayList("begin", "rollback", "write"));
+			assertThat(response.status).isEqualTo(404);
+		}
+	}
+
+	public static class A_Read_Write_Request extends Context {
+		@Test
+		public void itRunsInAReadWriteTransaction() throws Exception {
+			filter("PUT", 204);
+
+			assertThat(transactionManager.readOnly).isFalse();
+		}
+
+		@Test
+		public void itSendsTheBodyOnceTheTransactionHasCommitted() throws Exception {
+			filter("POST", 201);
+
+			assertThat(events).isEqualTo(newArrayList("begin", "commit", "write"));
+			assertThat(response.body.toString("UTF-8")).isEqualTo("hello");
+		}
+
+		@Test
+		public void itRollsBackErrorResponses() throws Exception {
+			filter("PUT", 412);
+
+			assertThat(events).isEqualTo(newArrayList("begin", "rollback", "write"));
+			assertThat(response.status).isEqualTo(412);
+		}
+
+		@Test
+		public void itRollsBackServerErrors() throws Exception {
+			filter("DELETE", 500);
+
+			assertThat(events).containsOnly("begin", "rollback", "write");
+		}
+	}
+
+	public static class A_Metrics_Request extends Context {
+		@Test
+		public void itIsntRunInATransaction() throws Exception {
+			filter.doFilter(request("GET", "/metrics"), response.proxy(), responding(200, "metrics"));
+
+			assertThat(events).isEqualTo(newArrayList("write"));
+		}
+	}
+
+	public static class A_Request_Using_A_Connection_Pool {
+		private MetricRegistry metrics;
+		private org.apache.tomcat.jdbc.pool.DataSource pool;
+		private InstrumentedDataSource dataSource;
+		private UnitOfWorkFilter filter;
+		private int activeWhenWritten;
+
+		@Before
+		public void setup() throws Exception {
+			this.metrics = new MetricRegistry();
+			this.pool = new org.apache.tomcat.jdbc.pool.DataSource();
+			pool.setDriverClassName("org.h2.Driver");
+			pool.setUrl("jdbc:h2:mem:" + UUID.randomUUID());
+			this.dataSource = new InstrumentedDataSource(pool, metrics);
+			this.filter = new UnitOfWorkFilter(new DataSourceTransactionManager(dataSource), metrics);
+			this.activeWhenWritten = -1;
+		}
+
+		@After
+		public void teardown() throws Exception {
+			pool.close();
+		}
+
+		private void filter(String method) throws Exception {
+			final HttpServletResponse response = new RecordingResponse(newArrayList()).proxy();
+			filter.doFilter(request(method, "/users/bob/documents"), new HttpServletResponseWrapper(response) {
+				@Override
+				public ServletOutputStream getOutputStream() throws IOException {
+					final ServletOutputStream output = super.getOutputStream();
+					return new ServletOutputStream() {
+						@Override
+						public void write(int b) throws IOException {
+							if (activeWhenWritten < 0) {
+								activeWhenWritten = pool.getActive();
+							}
+							output.write(b);
+						}
+					};
+				}
+			}, responding(200, "[]"));
+		}
+
+		private long connectionsPerRequest() {
+			return metrics.histogram(name(UnitOfWorkFilter.class, "connections-per-request")).getSnapshot().getMax();
+		}
+
+		@Test
+		public void itReleasesTheConnectionBeforeAGETsBodyIsSent() throws Exception {
+			filter("GET");
+
+			assertThat(activeWhenWritten).isEqualTo(0);
+			assertThat(connectionsPerRequest()).isEqualTo(1);
+		}
+
+		@Test
+		public void itReleasesTheConnectionBeforeAPUTsBodyIsSent() throws Exception {
+			filter("PUT");
+
+			assertThat(activeWhenWritten).isEqualTo(0);
+			assertThat(connectionsPerRequest()).isEqualTo(1);
+		}
+	}
+}
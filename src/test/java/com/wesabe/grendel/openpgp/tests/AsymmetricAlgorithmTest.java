@@ -8,6 +8,7 @@ import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
 
+import java.security.spec.ECGenParameterSpec;
 import java.security.spec.RSAKeyGenParameterSpec;
 
 import static org.fest.assertions.Assertions.assertThat;
@@ -114,21 +115,16 @@ public class AsymmetricAlgorithmTest {
 		}
 	}
 
-	@SuppressWarnings("deprecation")
 	public static class EC {
 		@Test
 		public void itHasTheSameValueAsTheBCTag() throws Exception {
-			assertThat(AsymmetricAlgorithm.EC.toInteger()).isEqualTo(PublicKeyAlgorithmTags.EC);
+			assertThat(AsymmetricAlgorithm.EC.toInteger()).isEqualTo(PublicKeyAlgorithmTags.ECDH);
 		}
 
 		@Test
-		public void itProhibitsKeyGeneration() throws Exception {
-			try {
-				AsymmetricAlgorithm.EC.getAlgorithmParameterSpec();
-				fail("should have thrown an UnsupportedOperationException but didn't");
-			} catch (UnsupportedOperationException e) {
-				assertThat(e.getMessage()).isEqualTo("EC keys cannot be generated");
-			}
+		public void itGeneratesP256KeysByDefault() throws Exception {
+			final ECGenParameterSpec spec = (ECGenParameterSpec) AsymmetricAlgorithm.EC.getAlgorithmParameterSpec();
+			assertThat(spec.getName()).isEqualTo("P-256");
 		}
 
 		@Test
@@ -137,7 +133,6 @@ public class AsymmetricAlgorithmTest {
 		}
 	}
 
-	@SuppressWarnings("deprecation")
 	public static class ECDSA {
 		@Test
 		public void itHasTheSameValueAsTheBCTag() throws Exception {
@@ -145,13 +140,9 @@ public class AsymmetricAlgorithmTest {
 		}
 
 		@Test
-		public void itProhibitsKeyGeneration() throws Exception {
-			try {
-				AsymmetricAlgorithm.ECDSA.getAlgorithmParameterSpec();
-				fail("should have thrown an UnsupportedOperationException but didn't");
-			} catch (UnsupportedOperationException e) {
-				assertThat(e.getMessage()).isEqualTo("ECDSA keys cannot be generated");
-			}
+		public void itGeneratesP256KeysByDefault() throws Exception {
+			final ECGenParameterSpec spec = (ECGenParameterSpec) AsymmetricAlgorithm.ECDSA.getAlgorithmParameterSpec();
+			assertThat(spec.getName()).isEqualTo("P-256");
 		}
 		@Test
 		public void itIsNamedECDSA() throws Exception {
@@ -0,0 +1,69 @@
+package com.wesabe.grendel.openpgp.tests;
+
+import com.wesabe.grendel.openpgp.BufferPool;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(Enclosed.class)
+public class BufferPoolTest {
+	public static class A_Buffer_Pool {
+		private BufferPool pool;
+		
+		@Before
+		public void setup() throws Exception {
+			this.pool = new BufferPool(1024, 2);
+		}
+		
+		@Test
+		public void itAllocatesBuffersWhenEmpty() throws Exception {
+			final byte[] buffer = pool.acquire();
+			
+			assertThat(buffer.length).isEqualTo(1024);
+			assertThat(pool.getIdleCount()).isZero();
+		}
+		
+		@Test
+		public void itReusesReleasedBuffers() throws Exception {
+			final byte[] buffer = pool.acquire();
+			pool.release(buffer);
+			
+			assertThat(pool.getIdleCount()).isEqualTo(1);
+			assertThat(pool.acquire()).isSameAs(buffer);
+		}
+		
+		@Test
+		public void itWipesReleasedBuffers() throws Exception {
+			final byte[] buffer = pool.acquire();
+			Arrays.fill(buffer, (byte) 0x2A);
+			pool.release(buffer);
+			
+			assertThat(buffer).isEqualTo(new byte[1024]);
+		}
+		
+		@Test
+		public void itDropsBuffersWhenFull() throws Exception {
+			pool.release(new byte[1024]);
+			pool.release(new byte[1024]);
+			pool.release(new byte[1024]);
+			
+			assertThat(pool.getIdleCount()).isEqualTo(2);
+		}
+		
+		@Test
+		public void itRejectsBuffersOfTheWrongSize() throws Exception {
+			try {
+				pool.release(new byte[512]);
+				fail("should have thrown an IllegalArgumentException but didn't");
+			} catch (IllegalArgumentException e) {
+				assertThat(pool.getIdleCount()).isZero();
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.wesabe.grendel.openpgp.tests;
+
+import com.wesabe.grendel.openpgp.CompressionLevel;
+import com.wesabe.grendel.openpgp.CompressionPolicy;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@RunWith(Enclosed.class)
+public class CompressionPolicyTest {
+	private static byte[] random() {
+		final byte[] sample = new byte[CompressionPolicy.SAMPLE_SIZE];
+		new Random().nextBytes(sample);
+		return sample;
+	}
+
+	private static byte[] repetitive() {
+		final byte[] sample = new byte[CompressionPolicy.SAMPLE_SIZE];
+		Arrays.fill(sample, (byte) 'a');
+		return sample;
+	}
+
+	public static class A_Policy_Without_A_Content_Type {
+		private final CompressionPolicy policy = new CompressionPolicy();
+
+		@Test
+		public void itStoresRandomLookingBodies() throws Exception {
+			assertThat(policy.choose(random(), CompressionPolicy.SAMPLE_SIZE)).isEqualTo(CompressionLevel.STORED);
+		}
+
+		@Test
+		public void itCompressesOtherBodiesQuickly() throws Exception {
+			assertThat(policy.choose(repetitive(), CompressionPolicy.SAMPLE_SIZE)).isEqualTo(CompressionLevel.FAST);
+		}
+
+		@Test
+		public void itCompressesShortBodiesQuickly() throws Exception {
+			assertThat(policy.choose(random(), 100)).isEqualTo(CompressionLevel.FAST);
+		}
+	}
+
+	public static class A_Policy_For_A_Compressed_Content_Type {
+		@Test
+		public void itStoresBodies() throws Exception {
+			final CompressionPolicy policy = new CompressionPolicy("image/jpeg");
+
+			assertThat(policy.choose(repetitive(), CompressionPolicy.SAMPLE_SIZE)).isEqualTo(CompressionLevel.STORED);
+		}
+
+		@Test
+		public void itIgnoresParametersAndCase() throws Exception {
+			final CompressionPolicy policy = new CompressionPolicy("Application/ZIP; name=\"x.zip\"");
+
+			assertThat(policy.choose(repetitive(), CompressionPolicy.SAMPLE_SIZE)).isEqualTo(CompressionLevel.STORED);
+		}
+	}
+
+	public static class A_Policy_For_A_Text_Content_Type {
+		@Test
+		public void itCompressesBodiesStrongly() throws Exception {
+			final CompressionPolicy policy = new CompressionPolicy("text/plain; charset=utf-8");
+
+			assertThat(policy.choose(repetitive(), CompressionPolicy.SAMPLE_SIZE)).isEqualTo(CompressionLevel.STRONG);
+		}
+
+		@Test
+		public void itTreatsStructuredSuffixesAsText() throws Exception {
+			final CompressionPolicy policy = new CompressionPolicy("application/vnd.api+json");
+
+			assertThat(policy.choose(repetitive(), CompressionPolicy.SAMPLE_SIZE)).isEqualTo(CompressionLevel.STRONG);
+		}
+	}
+
+	public static class A_Policy_For_Another_Content_Type {
+		private final CompressionPolicy policy = new CompressionPolicy("application/octet-stream");
+
+		@Test
+		public void itStoresRandomLookingBodies() throws Exception {
+			assertThat(policy.choose(random(), CompressionPolicy.SAMPLE_SIZE)).isEqualTo(CompressionLevel.STORED);
+		}
+
+		@Test
+		public void itCompressesOtherBodiesQuickly() throws Exception {
+			assertThat(policy.choose(repetitive(), CompressionPolicy.SAMPLE_SIZE)).isEqualTo(CompressionLevel.FAST);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.wesabe.grendel.openpgp.tests;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.wesabe.grendel.openpgp.AsymmetricAlgorithm;
+import com.wesabe.grendel.openpgp.KeyPairPool;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.interfaces.RSAPublicKey;
+
+import static java.util.EnumSet.of;
+import static org.fest.assertions.Assertions.assertThat;
+
+@RunWith(Enclosed.class)
+public class KeyPairPoolTest {
+	public static class A_Key_Pair_Pool {
+		private MetricRegistry metrics;
+		private KeyPairPool pool;
+
+		@Before
+		public void setup() throws Exception {
+			Security.addProvider(new BouncyCastleProvider());
+			this.metrics = new MetricRegistry();
+			this.pool = new KeyPairPool(new SecureRandom(), 1, 1, of(AsymmetricAlgorithm.RSA), metrics);
+		}
+
+		@After
+		public void teardown() throws Exception {
+			pool.shutdown();
+		}
+
+		private KeyPair awaitKeyPair() throws Exception {
+			for (int i = 0; i < 600; i++) {
+				final KeyPair keyPair = pool.poll(AsymmetricAlgorithm.RSA);
+				if (keyPair != null) {
+					return keyPair;
+				}
+				Thread.sleep(100);
+			}
+			return null;
+		}
+
+		@Test
+		public void itPregeneratesKeyPairs() throws Exception {
+			final KeyPair keyPair = awaitKeyPair();
+
+			assertThat(keyPair).isNotNull();
+			assertThat(((RSAPublicKey) keyPair.getPublic()).getModulus().bitLength()).isEqualTo(2048);
+		}
+
+		@Test
+		public void itHasNoKeyPairsForOtherAlgorithms() throws Exception {
+			assertThat(pool.poll(AsymmetricAlgorithm.DSA)).isNull();
+		}
+
+		@Test
+		public void itMeasuresItsDepth() throws Exception {
+			final Gauge<?> depth = metrics.getGauges().get("com.wesabe.grendel.openpgp.KeyPairPool.RSA.depth");
+			assertThat(depth).isNotNull();
+		}
+
+		@Test
+		public void itMeasuresRefills() throws Exception {
+			awaitKeyPair();
+
+			assertThat(metrics.getMeters().get("com.wesabe.grendel.openpgp.KeyPairPool.refills").getCount()).isGreaterThan(0);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.wesabe.grendel.openpgp.tests;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.io.Files;
+import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.KeySetCache;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.security.Security;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(Enclosed.class)
+public class KeySetCacheTest {
+	public static class Loading_A_Key_Set {
+		private MetricRegistry metrics;
+		private KeySetCache cache;
+		private byte[] encoded;
+
+		@Before
+		public void setup() throws Exception {
+			Security.addProvider(new BouncyCastleProvider());
+			this.metrics = new MetricRegistry();
+			this.cache = new KeySetCache(metrics, 10);
+			this.encoded = Files.toByteArray(new File("src/test/resources/secret-keyring.gpg"));
+		}
+
+		@Test
+		public void itLoadsTheKeySet() throws Exception {
+			final KeySet keySet = cache.load(encoded);
+
+			assertThat(keySet.getMasterKey().getKeyID()).isEqualTo(0x8C7035EF8838238CL);
+		}
+
+		@Test
+		public void itReturnsTheSameInstanceForTheSameBytes() throws Exception {
+			assertThat(cache.load(encoded)).isSameAs(cache.load(encoded.clone()));
+		}
+
+		@Test
+		public void itRecordsHitsAndMisses() throws Exception {
+			cache.load(encoded);
+			cache.load(encoded);
+
+			assertThat(metrics.meter(name(KeySetCache.class, "hits")).getCount()).isEqualTo(1);
+			assertThat(metrics.meter(name(KeySetCache.class, "misses")).getCount()).isEqualTo(1);
+			assertThat(metrics.getGauges().get(name(KeySetCache.class, "size")).getValue()).isEqualTo(1L);
+		}
+
+		@Test
+		public void itReturnsAPutInstance() throws Exception {
+			final KeySet keySet = KeySet.load(encoded);
+			cache.put(encoded, keySet);
+
+			assertThat(cache.load(encoded)).isSameAs(keySet);
+		}
+
+		@Test
+		public void itDoesNotCacheUnlockedKeySets() throws Exception {
+			cache.put(encoded, KeySet.load(encoded).unlock("test".toCharArray()));
+
+			assertThat(cache.load(encoded).getClass()).isEqualTo(KeySet.class);
+		}
+	}
+
+	public static class Filling_The_Cache {
+		@Test
+		public void itHoldsNoMoreThanItsMaximumSize() throws Exception {
+			Security.addProvider(new BouncyCastleProvider());
+			final KeySetCache cache = new KeySetCache(new MetricRegistry(), 1);
+
+			cache.load(Files.toByteArray(new File("src/test/resources/secret-keyring.gpg")));
+			cache.load(Files.toByteArray(new File("src/test/resources/another-secret-keyring.gpg")));
+
+			assertThat(cache.size()).isEqualTo(1);
+		}
+	}
+
+	public static class Getting_The_Shared_Instance {
+		private KeySetCache cache;
+
+		@Before
+		public void setup() throws Exception {
+			this.cache = new KeySetCache(new MetricRegistry(), 10);
+		}
+
+		@After
+		public void teardown() throws Exception {
+			cache.uninstall();
+		}
+
+		@Test
+		public void itReturnsTheInstalledCache() throws Exception {
+			cache.install();
+
+			assertThat(KeySetCache.getInstance()).isSameAs(cache);
+		}
+
+		@Test
+		public void itThrowsAnExceptionOnceUninstalled() throws Exception {
+			cache.install();
+			cache.uninstall();
+
+			try {
+				KeySetCache.getInstance();
+				fail("should have thrown an IllegalStateException but didn't");
+			} catch (IllegalStateException e) {
+				assertThat(e.getMessage()).isEqualTo("no KeySetCache has been installed");
+			}
+		}
+
+		@Test
+		public void itLeavesAnotherInstalledCacheInPlace() throws Exception {
+			final KeySetCache other = new KeySetCache(new MetricRegistry(), 10);
+			other.install();
+			cache.uninstall();
+
+			try {
+				assertThat(KeySetCache.getInstance()).isSameAs(other);
+			} finally {
+				other.uninstall();
+			}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package com.wesabe.grendel.openpgp.tests;
+
+import com.google.common.collect.ImmutableList;
+import com.wesabe.grendel.openpgp.AsymmetricAlgorithm;
+import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.KeySetGenerator;
+import com.wesabe.grendel.openpgp.KeySuite;
+import com.wesabe.grendel.openpgp.MessageReader;
+import com.wesabe.grendel.openpgp.MessageRewrapper;
+import com.wesabe.grendel.openpgp.MessageWriter;
+import com.wesabe.grendel.openpgp.UnlockedKeySet;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import java.io.FileInputStream;
+import java.security.SecureRandom;
+import java.security.Security;
+
+import static com.wesabe.grendel.openpgp.KeySet.load;
+import static org.fest.assertions.Assertions.assertThat;
+
+@RunWith(Enclosed.class)
+public class KeySetGeneratorTest {
+	private static abstract class Context {
+		protected KeySetGenerator generator;
+		protected SecureRandom random;
+		
+		@Before
+		public void setup() throws Exception {
+			Security.addProvider(new BouncyCastleProvider());
+			this.random = new SecureRandom();
+			this.generator = new KeySetGenerator(random, suite());
+		}
+		
+		@After
+		public void teardown() throws Exception {
+			generator.shutdown();
+		}
+		
+		protected abstract KeySuite suite();
+		
+		protected UnlockedKeySet generate(String userId) throws Exception {
+			return generator.generate(userId, "secret".toCharArray()).unlock("secret".toCharArray());
+		}
+	}
+	
+	public static class Generating_A_P256_Key_Set extends Context {
+		@Override
+		protected KeySuite suite() {
+			return KeySuite.P_256;
+		}
+		
+		@Test
+		public void itHasAnECDSAMasterKeyAndAnECDHSubKey() throws Exception {
+			final KeySet keySet = generator.generate("Example <example@example.com>", "secret".toCharArray());
+			
+			assertThat(keySet.getMasterKey().getAlgorithm()).isEqualTo(AsymmetricAlgorithm.ECDSA);
+			assertThat(keySet.getSubKey().getAlgorithm()).isEqualTo(AsymmetricAlgorithm.EC);
+			assertThat(keySet.getMasterKey().getSize()).isEqualTo(256);
+		}
+		
+		@Test
+		public void itSurvivesBeingEncodedAndLoaded() throws Exception {
+			final KeySet keySet = generator.generate("Example <example@example.com>", "secret".toCharArray());
+			final KeySet loaded = load(keySet.getEncoded());
+			
+			assertThat(loaded.unlock("secret".toCharArray()).getUserID()).isEqualTo("Example <example@example.com>");
+		}
+		
+		@Test
+		public void itExchangesMessagesWithRSAKeySets() throws Exception {
+			final UnlockedKeySet owner = generate("Owner <owner@example.com>");
+			final UnlockedKeySet rsa = load(new FileInputStream("src/test/resources/another-secret-keyring.gpg"))
+					.unlock("test2".toCharArray());
+			final byte[] body = "a secret".getBytes("UTF-8");
+			
+			final byte[] encrypted = new MessageWriter(owner, ImmutableList.<KeySet>of(rsa), random).write(body);
+			assertThat(new MessageReader(owner, owner).read(encrypted)).isEqualTo(body);
+			assertThat(new MessageReader(owner, rsa).read(encrypted)).isEqualTo(body);
+			
+			final byte[] reply = new MessageWriter(rsa, ImmutableList.<KeySet>of(owner), random).write(body);
+			assertThat(new MessageReader(rsa, owner).read(reply)).isEqualTo(body);
+		}
+		
+		@Test
+		public void itRewrapsMessages() throws Exception {
+			final UnlockedKeySet owner = generate("Owner <owner@example.com>");
+			final UnlockedKeySet recipient = generate("Recipient <recipient@example.com>");
+			final byte[] body = "a secret".getBytes("UTF-8");
+			
+			final byte[] encrypted = new MessageWriter(owner, ImmutableList.<KeySet>of(), random).write(body);
+			final byte[] rewrapped = new MessageRewrapper(owner, ImmutableList.<KeySet>of(recipient), random).rewrap(encrypted);
+			
+			assertThat(new MessageReader(owner, recipient).read(rewrapped)).isEqualTo(body);
+		}
+	}
+	
+	public static class Generating_A_P384_Key_Set extends Context {
+		@Override
+		protected KeySuite suite() {
+			return KeySuite.P_384;
+		}
+		
+		@Test
+		public void itUsesTheP384Curve() throws Exception {
+			final UnlockedKeySet keySet = generate("Example <example@example.com>");
+			
+			assertThat(keySet.getMasterKey().getSize()).isEqualTo(384);
+			assertThat(keySet.getSubKey().getSize()).isEqualTo(384);
+			
+			final byte[] body = "a secret".getBytes("UTF-8");
+			final byte[] encrypted = new MessageWriter(keySet, ImmutableList.<KeySet>of(), random).write(body);
+			assertThat(new MessageReader(keySet, keySet).read(encrypted)).isEqualTo(body);
+		}
+	}
+	
+	public static class Rotating_A_Key_Set extends Context {
+		private UnlockedKeySet original;
+		
+		@Override
+		protected KeySuite suite() {
+			return KeySuite.P_256;
+		}
+		
+		@Before
+		@Override
+		public void setup() throws Exception {
+			super.setup();
+			this.original = load(new FileInputStream("src/test/resources/secret-keyring.gpg"))
+					.unlock("test".toCharArray());
+		}
+		
+		@Test
+		public void itKeepsTheMasterKeyAndReplacesTheSubKey() throws Exception {
+			final KeySet rotated = load(generator.rotate(original, "test".toCharArray()).getEncoded());
+			
+			assertThat(rotated.getMasterKey().getKeyID()).isEqualTo(original.getMasterKey().getKeyID());
+			assertThat(rotated.getSubKey().getKeyID()).isNotEqualTo(original.getSubKey().getKeyID());
+			assertThat(rotated.getSubKey().getAlgorithm()).isEqualTo(AsymmetricAlgorithm.EC);
+			assertThat(rotated.getFormatVersion()).isEqualTo(KeySet.FORMAT_VERSION);
+			assertThat(rotated.unlock("test".toCharArray()).getUserID()).isEqualTo(original.getUserID());
+		}
+		
+		@Test
+		public void itReadsRewrappedMessages() throws Exception {
+			final UnlockedKeySet rotated = generator.rotate(original, "test".toCharArray()).unlock("test".toCharArray());
+			final byte[] body = "a secret".getBytes("UTF-8");
+			
+			final byte[] encrypted = new MessageWriter(original, ImmutableList.<KeySet>of(), random).write(body);
+			final byte[] rewrapped = new MessageRewrapper(original, rotated, ImmutableList.<KeySet>of(), random).rewrap(encrypted);
+			
+			assertThat(new MessageReader(rotated, rotated).read(rewrapped)).isEqualTo(body);
+		}
+	}
+}
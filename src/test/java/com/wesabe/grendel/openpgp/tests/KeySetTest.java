@@ -1,5 +1,6 @@
 package com.wesabe.grendel.openpgp.tests;
 
+import com.wesabe.grendel.openpgp.CryptographicException;
 import com.wesabe.grendel.openpgp.KeySet;
 import static com.wesabe.grendel.openpgp.KeySet.load;
 import org.junit.Before;
@@ -8,9 +9,13 @@ import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
 
 import java.io.FileInputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
 import static org.bouncycastle.util.encoders.Base64.encode;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
 
 @RunWith(Enclosed.class)
 public class KeySetTest {
@@ -109,5 +114,52 @@ public class KeySetTest {
 				"MI9XuOPrJSkKLwaRC4OeGG7yAGezRZFj9dLkMJOiNNynny9IIWiVyc1a7kjx" +
 				"arPffdkm7VDEqAyU8CdoKnK95bKGRk3D4zZ3CfqeBvTRKWl6waI=");
 		}
+		
+		@Test
+		public void itIsUnversionedIfItsKeysHaveDifferentS2KSpecifiers() throws Exception {
+			assertThat(keySet.getFormatVersion()).isEqualTo(0);
+		}
+	}
+	
+	public static class A_Relocked_Key_Set {
+		private KeySet keySet;
+		
+		@Before
+		public void setup() throws Exception {
+			final KeySet legacy = load(new FileInputStream("src/test/resources/secret-keyring.gpg"));
+			this.keySet = legacy.unlock("test".toCharArray())
+					.relock("test".toCharArray(), "test".toCharArray(), new SecureRandom());
+		}
+		
+		@Test
+		public void itIsInTheCurrentFormat() throws Exception {
+			final byte[] encoded = keySet.getEncoded();
+			
+			assertThat(keySet.getFormatVersion()).isEqualTo(KeySet.FORMAT_VERSION);
+			assertThat(Arrays.copyOf(encoded, 4)).isEqualTo(new byte[] { 'G', 'K', 'S', KeySet.FORMAT_VERSION });
+		}
+		
+		@Test
+		public void itCanBeLoadedAndUnlocked() throws Exception {
+			final KeySet loaded = load(keySet.getEncoded());
+			
+			assertThat(loaded.getFormatVersion()).isEqualTo(KeySet.FORMAT_VERSION);
+			assertThat(loaded.unlock("test".toCharArray()).getUnlockedMasterKey().getKeyID()).isEqualTo(0x8C7035EF8838238CL);
+		}
+	}
+	
+	public static class A_Key_Set_With_An_Unknown_Version {
+		@Test
+		public void itIsRejected() throws Exception {
+			final byte[] encoded = load(new FileInputStream("src/test/resources/another-secret-keyring.gpg")).getEncoded();
+			encoded[3] = KeySet.FORMAT_VERSION + 1;
+			
+			try {
+				load(encoded);
+				fail("should have thrown a CryptographicException but didn't");
+			} catch (CryptographicException e) {
+				assertThat(e.getMessage()).isEqualTo("unsupported key set version: " + (KeySet.FORMAT_VERSION + 1));
+			}
+		}
 	}
 }
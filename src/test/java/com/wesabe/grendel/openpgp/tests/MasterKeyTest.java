@@ -8,6 +8,7 @@ import static com.google.common.collect.ImmutableList.of;
 import com.wesabe.grendel.openpgp.*;
 import static com.wesabe.grendel.openpgp.MasterKey.load;
 import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.junit.Before;
@@ -28,7 +29,7 @@ public class MasterKeyTest {
 		public void setup() throws Exception {
 			final PGPSecretKeyRing keyRing;
             try (FileInputStream keyRingFile = new FileInputStream("src/test/resources/secret-keyring.gpg")) {
-                keyRing = new PGPSecretKeyRing(keyRingFile);
+                keyRing = new PGPSecretKeyRing(keyRingFile, new JcaKeyFingerprintCalculator());
             }
 			
 			this.key = load(keyRing.getSecretKey(0x8C7035EF8838238CL));
@@ -127,7 +128,7 @@ public class MasterKeyTest {
 		@Before
 		public void setup() throws Exception {
             try (FileInputStream keyRingFile = new FileInputStream("src/test/resources/secret-keyring.gpg")) {
-                this.keyRing = new PGPSecretKeyRing(keyRingFile);
+                this.keyRing = new PGPSecretKeyRing(keyRingFile, new JcaKeyFingerprintCalculator());
             }
 		}
 
@@ -148,7 +149,7 @@ public class MasterKeyTest {
 		public void setup() throws Exception {
 			final PGPSecretKeyRing keyRing;
             try (FileInputStream keyRingFile = new FileInputStream("src/test/resources/secret-keyring.gpg")) {
-                keyRing = new PGPSecretKeyRing(keyRingFile);
+                keyRing = new PGPSecretKeyRing(keyRingFile, new JcaKeyFingerprintCalculator());
             }
 			
 			this.key = load(keyRing.getSecretKey(0x8C7035EF8838238CL));
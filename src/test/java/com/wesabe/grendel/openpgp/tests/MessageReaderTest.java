@@ -1,7 +1,10 @@
 package com.wesabe.grendel.openpgp.tests;
 
+import com.google.common.collect.ImmutableList;
+import com.wesabe.grendel.openpgp.CryptographicException;
 import com.wesabe.grendel.openpgp.KeySet;
 import com.wesabe.grendel.openpgp.MessageReader;
+import com.wesabe.grendel.openpgp.MessageWriter;
 import com.wesabe.grendel.openpgp.UnlockedKeySet;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.Before;
@@ -9,12 +12,22 @@ import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.security.SecureRandom;
 import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
 
 import static com.wesabe.grendel.openpgp.KeySet.load;
+import static com.google.common.collect.Sets.difference;
+import static com.google.common.collect.Sets.newHashSet;
 import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
 
 @RunWith(Enclosed.class)
 public class MessageReaderTest {
@@ -58,7 +71,62 @@ public class MessageReaderTest {
 		}
 	}
 	
-	// TODO coda@wesabe.com -- Dec 23, 2009: check for integrity check failure
+	public static class Reading_A_Tampered_Message {
+		private UnlockedKeySet owner;
+		private UnlockedKeySet recipient;
+		private byte[] tampered;
+		
+		@Before
+		public void setup() throws Exception {
+			Security.addProvider(new BouncyCastleProvider());
+			
+			this.owner = load(new FileInputStream("src/test/resources/secret-keyring.gpg")).unlock("test".toCharArray());
+			this.recipient = load(new FileInputStream("src/test/resources/another-secret-keyring.gpg")).unlock("test2".toCharArray());
+			
+			// large enough to spill
+			final byte[] body = new byte[3 << 20];
+			new Random().nextBytes(body);
+			
+			this.tampered = new MessageWriter(owner, ImmutableList.<KeySet>of(recipient), new SecureRandom()).write(body);
+			tampered[tampered.length / 2] ^= 0x01;
+		}
+		
+		@Test
+		public void itReleasesNoPlaintext() throws Exception {
+			final Set<File> existing = spillFiles();
+			final MessageReader reader = new MessageReader(owner, recipient);
+			
+			try {
+				reader.readBuffered(new ByteArrayInputStream(tampered)).close();
+				fail("should have thrown a CryptographicException but didn't");
+			} catch (CryptographicException e) {
+				assertThat(e.getMessage()).isNotNull();
+			}
+			
+			assertThat(difference(spillFiles(), existing)).isEmpty();
+		}
+		
+		@Test
+		public void itRejectsTheMessage() throws Exception {
+			try {
+				new MessageReader(owner, recipient).read(tampered);
+				fail("should have thrown a CryptographicException but didn't");
+			} catch (CryptographicException e) {
+				assertThat(e.getMessage()).isNotNull();
+			}
+		}
+		
+		private static Set<File> spillFiles() {
+			final File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.startsWith("grendel-") && name.endsWith(".spill");
+				}
+			});
+			return newHashSet(Arrays.asList(files));
+		}
+	}
+	
 	// TODO coda@wesabe.com -- Dec 23, 2009: check for bad signature
 	// TODO coda@wesabe.com -- Dec 23, 2009: check for missing signature
 	// TODO coda@wesabe.com -- Dec 23, 2009: check for missing one-pass signature
@@ -0,0 +1,101 @@
+package com.wesabe.grendel.openpgp.tests;
+
+import com.google.common.collect.ImmutableList;
+import com.wesabe.grendel.openpgp.CryptographicException;
+import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.KeySetGenerator;
+import com.wesabe.grendel.openpgp.KeySuite;
+import com.wesabe.grendel.openpgp.MessageReader;
+import com.wesabe.grendel.openpgp.MessageRewrapper;
+import com.wesabe.grendel.openpgp.MessageWriter;
+import com.wesabe.grendel.openpgp.UnlockedKeySet;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import java.io.FileInputStream;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Random;
+
+import static com.wesabe.grendel.openpgp.KeySet.load;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(Enclosed.class)
+public class MessageRewrapperTest {
+	public static class Rewrapping_A_Message {
+		private UnlockedKeySet owner;
+		private UnlockedKeySet recipient;
+		private byte[] original;
+		
+		@Before
+		public void setup() throws Exception {
+			Security.addProvider(new BouncyCastleProvider());
+			
+			final FileInputStream keyRingFile = new FileInputStream("src/test/resources/secret-keyring.gpg");
+			this.owner = load(keyRingFile).unlock("test".toCharArray());
+			
+			final FileInputStream anotherKeyRingFile = new FileInputStream("src/test/resources/another-secret-keyring.gpg");
+			this.recipient = load(anotherKeyRingFile).unlock("test2".toCharArray());
+			
+			this.original = new byte[1 << 16];
+			new Random().nextBytes(original);
+		}
+		
+		@Test
+		public void itAddsARecipient() throws Exception {
+			final byte[] encrypted = new MessageWriter(owner, ImmutableList.<KeySet>of(), new SecureRandom()).write(original);
+			
+			final MessageRewrapper rewrapper = new MessageRewrapper(owner, ImmutableList.<KeySet>of(recipient), new SecureRandom());
+			final byte[] rewrapped = rewrapper.rewrap(encrypted);
+			
+			assertThat(new MessageReader(owner, recipient).read(rewrapped)).isEqualTo(original);
+			assertThat(new MessageReader(owner, owner).read(rewrapped)).isEqualTo(original);
+		}
+		
+		@Test
+		public void itRemovesARecipient() throws Exception {
+			final byte[] encrypted = new MessageWriter(owner, ImmutableList.<KeySet>of(recipient), new SecureRandom()).write(original);
+			
+			final MessageRewrapper rewrapper = new MessageRewrapper(owner, ImmutableList.<KeySet>of(), new SecureRandom());
+			final byte[] rewrapped = rewrapper.rewrap(encrypted);
+			
+			assertThat(new MessageReader(owner, owner).read(rewrapped)).isEqualTo(original);
+			
+			try {
+				new MessageReader(owner, recipient).read(rewrapped);
+				fail("should have thrown a CryptographicException but didn't");
+			} catch (CryptographicException e) {
+				assertThat(e.getMessage()).startsWith("no encrypted data for");
+			}
+		}
+		
+		@Test
+		public void itLeavesTheEncryptedBodyUntouched() throws Exception {
+			final byte[] encrypted = new MessageWriter(owner, ImmutableList.<KeySet>of(recipient), new SecureRandom()).write(original);
+			
+			final MessageRewrapper rewrapper = new MessageRewrapper(owner, ImmutableList.<KeySet>of(recipient), new SecureRandom());
+			
+			assertThat(rewrapper.rewrap(encrypted)).isEqualTo(encrypted);
+		}
+		
+		@Test
+		public void itRecoversTheSessionKeyWithARecipientsSubKey() throws Exception {
+			final KeySetGenerator generator = new KeySetGenerator(new SecureRandom(), KeySuite.P_256);
+			final UnlockedKeySet third = generator.generate("Third <third@example.com>", "test3".toCharArray())
+					.unlock("test3".toCharArray());
+			generator.shutdown();
+			final byte[] encrypted = new MessageWriter(owner, ImmutableList.<KeySet>of(recipient), new SecureRandom()).write(original);
+			
+			final MessageRewrapper rewrapper = new MessageRewrapper(recipient, owner, ImmutableList.<KeySet>of(recipient, third), new SecureRandom());
+			final byte[] rewrapped = rewrapper.rewrap(encrypted);
+			
+			assertThat(new MessageReader(owner, third).read(rewrapped)).isEqualTo(original);
+			assertThat(new MessageReader(owner, recipient).read(rewrapped)).isEqualTo(original);
+			assertThat(new MessageReader(owner, owner).read(rewrapped)).isEqualTo(original);
+		}
+	}
+}
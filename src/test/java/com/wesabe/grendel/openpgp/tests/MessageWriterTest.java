@@ -1,6 +1,9 @@
 package com.wesabe.grendel.openpgp.tests;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableList;
+import com.wesabe.grendel.modules.MetricRegistryProvider;
+import com.wesabe.grendel.openpgp.CompressionPolicy;
 import com.wesabe.grendel.openpgp.KeySet;
 import com.wesabe.grendel.openpgp.MessageReader;
 import com.wesabe.grendel.openpgp.MessageWriter;
@@ -11,6 +14,8 @@ import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.security.SecureRandom;
 import java.security.Security;
@@ -53,6 +58,61 @@ public class MessageWriterTest {
 			
 			assertThat(decrypted).isEqualTo(original);
 		}
+		
+		@Test
+		public void itRecordsTheTimeSpentInEachStage() throws Exception {
+			final MetricRegistry metrics = MetricRegistryProvider.getRegistry();
+			final long writes = metrics.timer("com.wesabe.grendel.openpgp.MessageWriter.encryption").getCount();
+			final long reads = metrics.timer("com.wesabe.grendel.openpgp.MessageReader.decryption").getCount();
+			final long encrypted = metrics.meter("com.wesabe.grendel.openpgp.MessageWriter.bytes").getCount();
+			
+			final MessageWriter writer = new MessageWriter(owner, ImmutableList.<KeySet>of(recipient), new SecureRandom());
+			new MessageReader(owner, recipient).read(writer.write(original));
+			
+			assertThat(metrics.timer("com.wesabe.grendel.openpgp.MessageWriter.encryption").getCount()).isEqualTo(writes + 1);
+			assertThat(metrics.timer("com.wesabe.grendel.openpgp.MessageReader.decryption").getCount()).isEqualTo(reads + 1);
+			assertThat(metrics.meter("com.wesabe.grendel.openpgp.MessageWriter.bytes").getCount()).isEqualTo(encrypted + original.length);
+		}
+		
+		@Test
+		public void itStoresIncompressibleBodies() throws Exception {
+			final MetricRegistry metrics = MetricRegistryProvider.getRegistry();
+			final long stored = metrics.meter("com.wesabe.grendel.openpgp.MessageWriter.stored").getCount();
+			
+			final MessageWriter writer = new MessageWriter(owner, ImmutableList.<KeySet>of(recipient), new SecureRandom());
+			final byte[] encrypted = writer.write(original);
+			
+			assertThat(metrics.meter("com.wesabe.grendel.openpgp.MessageWriter.stored").getCount()).isEqualTo(stored + 1);
+			assertThat(new MessageReader(owner, recipient).read(encrypted)).isEqualTo(original);
+		}
+		
+		@Test
+		public void itCompressesTextBodiesStrongly() throws Exception {
+			final byte[] text = new byte[original.length];
+			for (int i = 0; i < text.length; i++) {
+				text[i] = (byte) ('a' + (original[i] & 0x07));
+			}
+			
+			final MessageWriter writer = new MessageWriter(owner, ImmutableList.<KeySet>of(recipient), new SecureRandom(),
+					new CompressionPolicy("text/plain"));
+			final byte[] encrypted = writer.write(text);
+			
+			assertThat(encrypted.length).isLessThan(text.length / 2);
+			assertThat(new MessageReader(owner, recipient).read(encrypted)).isEqualTo(text);
+		}
+		
+		@Test
+		public void itStreamsAMessageWhichIsDecryptableByMessageReader() throws Exception {
+			final MessageWriter writer = new MessageWriter(owner, ImmutableList.<KeySet>of(recipient), new SecureRandom());
+			
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			writer.write(new ByteArrayInputStream(original), output);
+			
+			final MessageReader reader = new MessageReader(owner, recipient);
+			final byte[] decrypted = reader.read(output.toByteArray());
+			
+			assertThat(decrypted).isEqualTo(original);
+		}
 	}
 }
 
@@ -0,0 +1,276 @@
+package com.wesabe.grendel.openpgp.tests;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.wesabe.grendel.openpgp.CryptographicException;
+import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.MessageReader;
+import com.wesabe.grendel.openpgp.MessageRewrapper;
+import com.wesabe.grendel.openpgp.SegmentedMessage;
+import com.wesabe.grendel.openpgp.SegmentedMessageReader;
+import com.wesabe.grendel.openpgp.SegmentedMessageWriter;
+import com.wesabe.grendel.openpgp.UnlockedKeySet;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.wesabe.grendel.openpgp.KeySet.load;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(Enclosed.class)
+public class SegmentedMessageTest {
+	private static final int SEGMENT_SIZE = 1000;
+
+	private static abstract class Context {
+		protected UnlockedKeySet owner;
+		protected UnlockedKeySet recipient;
+		protected ExecutorService executor;
+		protected byte[] original;
+		protected byte[] encrypted;
+
+		@Before
+		public void setup() throws Exception {
+			Security.addProvider(new BouncyCastleProvider());
+
+			final FileInputStream keyRingFile = new FileInputStream("src/test/resources/secret-keyring.gpg");
+			this.owner = load(keyRingFile).unlock("test".toCharArray());
+
+			final FileInputStream anotherKeyRingFile = new FileInputStream("src/test/resources/another-secret-keyring.gpg");
+			this.recipient = load(anotherKeyRingFile).unlock("test2".toCharArray());
+
+			this.executor = Executors.newFixedThreadPool(4);
+
+			this.original = new byte[10 * SEGMENT_SIZE + 123];
+			new Random().nextBytes(original);
+
+			this.encrypted = write(original);
+		}
+
+		@After
+		public void teardown() throws Exception {
+			executor.shutdownNow();
+		}
+
+		protected byte[] write(byte[] body) throws Exception {
+			final SegmentedMessageWriter writer = new SegmentedMessageWriter(owner, ImmutableList.<KeySet>of(), new SecureRandom(), SEGMENT_SIZE, executor);
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			assertThat(writer.write(new ByteArrayInputStream(body), output)).isEqualTo(body.length);
+			return output.toByteArray();
+		}
+
+		protected SegmentedMessage open(byte[] message, UnlockedKeySet keySet) throws Exception {
+			return new SegmentedMessageReader(owner, keySet, executor).open(ByteSource.wrap(message));
+		}
+
+		protected int segmentsOffset(byte[] message) {
+			return 9 + ByteBuffer.wrap(message, 5, 4).getInt();
+		}
+
+		protected int indexOffset(byte[] message) {
+			final ByteBuffer trailer = ByteBuffer.wrap(message, message.length - 8, 8);
+			final int indexLength = trailer.getInt();
+			final int signatureLength = trailer.getInt();
+			return message.length - 8 - signatureLength - indexLength;
+		}
+	}
+
+	public static class Reading_A_Segmented_Message extends Context {
+		@Test
+		public void itIsSegmented() throws Exception {
+			assertThat(SegmentedMessage.isSegmented(new ByteArrayInputStream(encrypted))).isTrue();
+			assertThat(SegmentedMessage.isSegmented(new ByteArrayInputStream(original))).isFalse();
+		}
+
+		@Test
+		public void itHasALength() throws Exception {
+			try (SegmentedMessage message = open(encrypted, owner)) {
+				assertThat(message.getLength()).isEqualTo(original.length);
+				assertThat(message.getSegmentSize()).isEqualTo(SEGMENT_SIZE);
+			}
+		}
+
+		@Test
+		public void itDecryptsTheWholeBody() throws Exception {
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			try (SegmentedMessage message = open(encrypted, owner)) {
+				message.read(output);
+			}
+
+			assertThat(output.toByteArray()).isEqualTo(original);
+		}
+
+		@Test
+		public void itDecryptsARange() throws Exception {
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			try (SegmentedMessage message = open(encrypted, owner)) {
+				message.read(2500, 3000, output);
+			}
+
+			assertThat(output.toByteArray()).isEqualTo(Arrays.copyOfRange(original, 2500, 5500));
+		}
+
+		@Test
+		public void itDecryptsTheLastByte() throws Exception {
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			try (SegmentedMessage message = open(encrypted, owner)) {
+				message.read(original.length - 1, 1, output);
+			}
+
+			assertThat(output.toByteArray()).isEqualTo(new byte[]{original[original.length - 1]});
+		}
+
+		@Test
+		public void itIsReadableByMessageReader() throws Exception {
+			assertThat(new MessageReader(owner, owner).read(encrypted)).isEqualTo(original);
+		}
+
+		@Test
+		public void itHandlesAnEmptyBody() throws Exception {
+			final byte[] empty = write(new byte[0]);
+			try (SegmentedMessage message = open(empty, owner)) {
+				assertThat(message.getLength()).isEqualTo(0);
+			}
+
+			assertThat(new MessageReader(owner, owner).read(empty)).isEmpty();
+		}
+
+		@Test
+		public void itHandlesAnExactMultipleOfTheSegmentSize() throws Exception {
+			final byte[] body = Arrays.copyOf(original, 3 * SEGMENT_SIZE);
+			final byte[] message = write(body);
+			try (SegmentedMessage opened = open(message, owner)) {
+				assertThat(opened.getLength()).isEqualTo(body.length);
+			}
+
+			assertThat(new MessageReader(owner, owner).read(message)).isEqualTo(body);
+		}
+
+		@Test
+		public void itIsUnreadableByOthers() throws Exception {
+			try {
+				open(encrypted, recipient);
+				fail("should have thrown a CryptographicException but didn't");
+			} catch (CryptographicException e) {
+				assertThat(e.getMessage()).startsWith("no encrypted data for");
+			}
+		}
+	}
+
+	public static class Reading_A_Tampered_Segmented_Message extends Context {
+		@Test
+		public void itRejectsAModifiedSegment() throws Exception {
+			encrypted[segmentsOffset(encrypted) + 1500] ^= 1;
+
+			try {
+				new MessageReader(owner, owner).read(encrypted);
+				fail("should have thrown a CryptographicException but didn't");
+			} catch (CryptographicException e) {
+				assertThat(e.getMessage()).isEqualTo("segment failed authentication");
+			}
+		}
+
+		@Test
+		public void itRejectsASegmentForgedWithTheDataKey() throws Exception {
+			// anyone the message is encrypted for can recover the data key
+			final byte[] header = Arrays.copyOfRange(encrypted, 9, segmentsOffset(encrypted));
+			final ByteBuffer contents = ByteBuffer.wrap(new MessageReader(owner, owner).read(header));
+			contents.getInt();
+			final byte[] noncePrefix = new byte[8];
+			final byte[] key = new byte[32];
+			contents.get(noncePrefix).get(key);
+
+			final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"),
+					new GCMParameterSpec(128, ByteBuffer.allocate(12).put(noncePrefix).putInt(1).array()));
+			cipher.updateAAD(ByteBuffer.allocate(9).putLong(1).put((byte) 0).array());
+			final byte[] forged = cipher.doFinal(new byte[SEGMENT_SIZE]);
+			System.arraycopy(forged, 0, encrypted, segmentsOffset(encrypted) + forged.length, forged.length);
+
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			try (SegmentedMessage message = open(encrypted, owner)) {
+				message.read(1000, 1000, output);
+				fail("should have thrown a CryptographicException but didn't");
+			} catch (CryptographicException e) {
+				assertThat(e.getMessage()).isEqualTo("segment failed authentication");
+			}
+
+			assertThat(output.size()).isEqualTo(0);
+		}
+
+		@Test
+		public void itRejectsAModifiedIndex() throws Exception {
+			encrypted[indexOffset(encrypted) + 30] ^= 1;
+
+			try {
+				open(encrypted, owner);
+				fail("should have thrown a CryptographicException but didn't");
+			} catch (CryptographicException e) {
+				assertThat(e.getMessage()).isEqualTo("invalid segment index signature");
+			}
+		}
+
+		@Test
+		public void itRejectsATruncatedMessage() throws Exception {
+			// drop the partial last segment, leaving the index in place
+			final int index = indexOffset(encrypted);
+			final byte[] truncated = new byte[encrypted.length - (123 + 16)];
+			System.arraycopy(encrypted, 0, truncated, 0, index - (123 + 16));
+			System.arraycopy(encrypted, index, truncated, index - (123 + 16), encrypted.length - index);
+
+			try {
+				open(truncated, owner);
+				fail("should have thrown a CryptographicException but didn't");
+			} catch (CryptographicException e) {
+				assertThat(e.getMessage()).isEqualTo("invalid segmented message length");
+			}
+		}
+
+		@Test
+		public void itRejectsAMissingIndex() throws Exception {
+			final byte[] truncated = Arrays.copyOf(encrypted, indexOffset(encrypted));
+
+			try {
+				open(truncated, owner);
+				fail("should have thrown a CryptographicException but didn't");
+			} catch (CryptographicException e) {
+				assertThat(e.getMessage()).isEqualTo("invalid segment index");
+			}
+		}
+	}
+
+	public static class Rewrapping_A_Segmented_Message extends Context {
+		@Test
+		public void itOnlyRewrapsTheHeader() throws Exception {
+			final MessageRewrapper rewrapper = new MessageRewrapper(owner, ImmutableList.<KeySet>of(recipient), new SecureRandom());
+			final byte[] rewrapped = rewrapper.rewrap(encrypted);
+
+			final int segments = encrypted.length - segmentsOffset(encrypted);
+			assertThat(Arrays.copyOfRange(rewrapped, rewrapped.length - segments, rewrapped.length))
+					.isEqualTo(Arrays.copyOfRange(encrypted, encrypted.length - segments, encrypted.length));
+
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			try (SegmentedMessage message = open(rewrapped, recipient)) {
+				message.read(1000, 1000, output);
+			}
+			assertThat(output.toByteArray()).isEqualTo(Arrays.copyOfRange(original, 1000, 2000));
+		}
+	}
+}
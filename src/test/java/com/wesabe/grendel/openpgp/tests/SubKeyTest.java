@@ -2,6 +2,7 @@ package com.wesabe.grendel.openpgp.tests;
 
 import com.wesabe.grendel.openpgp.*;
 import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.junit.Before;
@@ -26,7 +27,7 @@ public class SubKeyTest {
 		public void setup() throws Exception {
 			final PGPSecretKeyRing keyRing;
             try (FileInputStream keyRingFile = new FileInputStream("src/test/resources/secret-keyring.gpg")) {
-                keyRing = new PGPSecretKeyRing(keyRingFile);
+                keyRing = new PGPSecretKeyRing(keyRingFile, new JcaKeyFingerprintCalculator());
             }
 			
 			this.masterKey = load(keyRing.getSecretKey(0x8C7035EF8838238CL));
@@ -1,10 +1,17 @@
 package com.wesabe.grendel.openpgp.tests;
 
+import com.codahale.metrics.Meter;
+import com.google.common.collect.ImmutableList;
+import com.wesabe.grendel.modules.MetricRegistryProvider;
 import com.wesabe.grendel.openpgp.CryptographicException;
 import com.wesabe.grendel.openpgp.KeySet;
 import static com.wesabe.grendel.openpgp.KeySet.load;
+import com.wesabe.grendel.openpgp.MessageReader;
+import com.wesabe.grendel.openpgp.MessageWriter;
 import com.wesabe.grendel.openpgp.UnlockedKeySet;
+import com.wesabe.grendel.openpgp.UnlockedMasterKey;
 import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
@@ -13,6 +20,7 @@ import org.junit.runner.RunWith;
 import java.io.FileInputStream;
 import java.security.SecureRandom;
 
+import static com.codahale.metrics.MetricRegistry.name;
 import static org.fest.assertions.Assertions.assertThat;
 import static org.junit.Assert.fail;
 
@@ -26,10 +34,12 @@ public class UnlockedKeySetTest {
 		public void setup() throws Exception {
 			final PGPSecretKeyRing keyRing;
             try (FileInputStream keyRingFile = new FileInputStream("src/test/resources/secret-keyring.gpg")) {
-                keyRing = new PGPSecretKeyRing(keyRingFile);
+                keyRing = new PGPSecretKeyRing(keyRingFile, new JcaKeyFingerprintCalculator());
             }
 
-			this.keySet = load(keyRing);
+			// relocking a key set with its own passphrase migrates it to the current format
+			this.keySet = load(keyRing).unlock("test".toCharArray())
+					.relock("test".toCharArray(), "test".toCharArray(), new SecureRandom());
 			this.unlockedKeySet = keySet.unlock("test".toCharArray());
 		}
 		
@@ -38,6 +48,29 @@ public class UnlockedKeySetTest {
 			assertThat(unlockedKeySet.getUnlockedMasterKey().getKeyID()).isEqualTo(0x8C7035EF8838238CL);
 		}
 		
+		@Test
+		public void itUnlocksTheMasterKeyOnFirstUse() throws Exception {
+			assertThat(unlockedKeySet.isMasterKeyUnlocked()).isFalse();
+			
+			final UnlockedMasterKey masterKey = unlockedKeySet.getUnlockedMasterKey();
+			
+			assertThat(unlockedKeySet.isMasterKeyUnlocked()).isTrue();
+			assertThat(unlockedKeySet.getUnlockedMasterKey()).isSameAs(masterKey);
+		}
+		
+		@Test
+		public void itReadsMessagesWithoutUnlockingTheMasterKey() throws Exception {
+			final byte[] body = "hello".getBytes("UTF-8");
+			final byte[] encrypted = new MessageWriter(
+					keySet.unlock("test".toCharArray()),
+					ImmutableList.<KeySet>of(),
+					new SecureRandom()
+			).write(body);
+			
+			assertThat(new MessageReader(keySet, unlockedKeySet).read(encrypted)).isEqualTo(body);
+			assertThat(unlockedKeySet.isMasterKeyUnlocked()).isFalse();
+		}
+		
 		@Test
 		public void itHasAnUnlockedSubKey() throws Exception {
 			assertThat(unlockedKeySet.getUnlockedSubKey().getKeyID()).isEqualTo(0xA3A5D038FF30574EL);
@@ -62,5 +95,50 @@ public class UnlockedKeySetTest {
 			}
 			
 		}
+		
+		@Test
+		public void itCanRelockTheKeySetWithoutTheOldPassphrase() throws Exception {
+			final KeySet newKeySet = unlockedKeySet.relock("yay".toCharArray(), new SecureRandom());
+			
+			assertThat(newKeySet.getFormatVersion()).isEqualTo(KeySet.FORMAT_VERSION);
+			assertThat(newKeySet.getMasterKey().getKeyID()).isEqualTo(0x8C7035EF8838238CL);
+			assertThat(newKeySet.getSubKey().getKeyID()).isEqualTo(0xA3A5D038FF30574EL);
+			
+			try {
+				newKeySet.unlock("test".toCharArray());
+				fail("should have thrown a CryptographicException but didn't");
+			} catch (CryptographicException e) {
+				assertThat(e.getMessage()).isEqualTo("incorrect passphrase");
+			}
+			
+			assertThat(newKeySet.unlock("yay".toCharArray()).getUnlockedMasterKey().getKeyID())
+					.isEqualTo(0x8C7035EF8838238CL);
+		}
+		
+		@Test
+		public void itRelocksTheKeySetWithASingleKeyDerivation() throws Exception {
+			final Meter derivations = MetricRegistryProvider.getRegistry().meter(name(KeySet.class, "derivations"));
+			final long before = derivations.getCount();
+			
+			unlockedKeySet.relock("yay".toCharArray(), new SecureRandom());
+			
+			assertThat(derivations.getCount() - before).isEqualTo(1);
+		}
+	}
+	
+	public static class A_Legacy_Unlocked_Key_Set {
+		@Test
+		public void itUnlocksTheMasterKeyImmediately() throws Exception {
+			final KeySet keySet;
+			try (FileInputStream keyRingFile = new FileInputStream("src/test/resources/secret-keyring.gpg")) {
+				keySet = load(keyRingFile);
+			}
+			assertThat(keySet.getFormatVersion()).isEqualTo(0);
+			
+			final UnlockedKeySet unlockedKeySet = keySet.unlock("test".toCharArray());
+			
+			assertThat(unlockedKeySet.isMasterKeyUnlocked()).isTrue();
+			assertThat(unlockedKeySet.getUnlockedMasterKey().getKeyID()).isEqualTo(0x8C7035EF8838238CL);
+		}
 	}
 }
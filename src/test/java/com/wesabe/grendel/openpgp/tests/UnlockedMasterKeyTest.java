@@ -4,6 +4,7 @@ import com.wesabe.grendel.openpgp.MasterKey;
 import static com.wesabe.grendel.openpgp.MasterKey.load;
 import com.wesabe.grendel.openpgp.UnlockedMasterKey;
 import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
@@ -22,7 +23,7 @@ public class UnlockedMasterKeyTest {
 		public void setup() throws Exception {
 			final PGPSecretKeyRing keyRing;
             try (FileInputStream keyRingFile = new FileInputStream("src/test/resources/secret-keyring.gpg")) {
-                keyRing = new PGPSecretKeyRing(keyRingFile);
+                keyRing = new PGPSecretKeyRing(keyRingFile, new JcaKeyFingerprintCalculator());
             }
 			
 			this.key = load(keyRing.getSecretKey(0x8C7035EF8838238CL)).unlock("test".toCharArray());
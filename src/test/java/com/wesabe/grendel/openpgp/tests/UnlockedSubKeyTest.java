@@ -4,6 +4,7 @@ import com.wesabe.grendel.openpgp.MasterKey;
 import com.wesabe.grendel.openpgp.UnlockedSubKey;
 import org.bouncycastle.openpgp.PGPSecretKey;
 import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
@@ -26,7 +27,7 @@ public class UnlockedSubKeyTest {
 		public void setup() throws Exception {
 			final PGPSecretKeyRing keyRing;
             try (FileInputStream keyRingFile = new FileInputStream("src/test/resources/secret-keyring.gpg")) {
-                keyRing = new PGPSecretKeyRing(keyRingFile);
+                keyRing = new PGPSecretKeyRing(keyRingFile, new JcaKeyFingerprintCalculator());
             }
 			
 			final List<PGPSecretKey> secretKeys = toList(keyRing.getSecretKeys());
@@ -0,0 +1,315 @@
+package com.wesabe.grendel.resources.tests;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.wesabe.grendel.auth.Session;
+import com.wesabe.grendel.decorators.StoredDocumentListRepresentation;
+import com.wesabe.grendel.decorators.StoredDocumentListRepresentation.StoredDocumentItem;
+import com.wesabe.grendel.decorators.tests.BaseUriInfo;
+import com.wesabe.grendel.entities.Document;
+import com.wesabe.grendel.entities.User;
+import com.wesabe.grendel.entities.dao.DocumentRepository;
+import com.wesabe.grendel.modules.CryptoExecutor;
+import com.wesabe.grendel.modules.RequestExecutor;
+import com.wesabe.grendel.modules.UploadPolicy;
+import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.KeySetCache;
+import com.wesabe.grendel.openpgp.UnlockedKeySet;
+import com.wesabe.grendel.resources.DocumentsResource;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.net.URI;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(Enclosed.class)
+public class DocumentsResourceTest {
+	private static class StubTransactionManager implements PlatformTransactionManager {
+		@Override
+		public TransactionStatus getTransaction(TransactionDefinition definition) {
+			return new SimpleTransactionStatus();
+		}
+
+		@Override
+		public void commit(TransactionStatus status) {
+		}
+
+		@Override
+		public void rollback(TransactionStatus status) {
+		}
+	}
+
+	private static class StubRequestExecutor extends RequestExecutor {
+		private Callable<?> task;
+
+		private StubRequestExecutor() {
+			super(new MetricRegistry(), new StubTransactionManager(), 1, 1);
+		}
+
+		@Override
+		public boolean resume(AsyncResponse response, boolean readOnly, Callable<?> task) {
+			this.task = task;
+			return true;
+		}
+	}
+
+	private static class StubDocumentRepository extends DocumentRepository {
+		private final List<Document> documents = newArrayList();
+		private final List<List<String>> saved = newArrayList();
+		private final List<List<String>> detached = newArrayList();
+
+		@Override
+		public List<Document> findByOwnerAndNames(User owner, Collection<String> names) {
+			return documents;
+		}
+
+		@Override
+		public void saveAll(Collection<Document> docs) {
+			saved.add(names(docs));
+		}
+
+		@Override
+		public void detachAll(Collection<Document> docs) {
+			detached.add(names(docs));
+		}
+
+		private static List<String> names(Collection<Document> docs) {
+			final List<String> names = newArrayList();
+			for (Document doc : docs) {
+				names.add(doc.getName());
+			}
+			return names;
+		}
+	}
+
+	/**
+	 * Records how many parts of a batch GET had been written when each decrypt
+	 * was started.
+	 */
+	private static class RecordingCryptoExecutor extends CryptoExecutor {
+		private final List<Integer> writtenWhenSubmitted = newArrayList();
+		private ByteArrayOutputStream output;
+
+		private RecordingCryptoExecutor(int threads) {
+			super(new MetricRegistry(), threads, 100);
+		}
+
+		@Override
+		public <T> ListenableFuture<T> submit(Callable<T> task) {
+			if (output != null) {
+				writtenWhenSubmitted.add(output.toString().split("Content-Location:", -1).length - 1);
+			}
+			return super.submit(task);
+		}
+	}
+
+	private static abstract class Context {
+		protected KeySetCache keySets;
+		protected User user;
+		protected UnlockedKeySet keySet;
+		protected StubDocumentRepository documentRepository;
+		protected StubRequestExecutor requestExecutor;
+		protected RecordingCryptoExecutor cryptoExecutor;
+		protected DocumentsResource resource;
+
+		@Before
+		public void setup() throws Exception {
+			Security.addProvider(new BouncyCastleProvider());
+
+			this.keySets = new KeySetCache(new MetricRegistry(), 100);
+			keySets.install();
+			final KeySet userKeySet = KeySet.load(new FileInputStream("src/test/resources/secret-keyring.gpg"));
+			this.user = new User(userKeySet);
+			this.keySet = userKeySet.unlock("test".toCharArray());
+
+			this.documentRepository = new StubDocumentRepository();
+			this.requestExecutor = new StubRequestExecutor();
+			this.cryptoExecutor = new RecordingCryptoExecutor(2);
+			this.resource = new DocumentsResource(SecureRandom::new, documentRepository, cryptoExecutor, requestExecutor,
+					new UploadPolicy(1024, 20));
+
+			SecurityContextHolder.getContext().setAuthentication(
+					new UsernamePasswordAuthenticationToken(new Session(user, keySet), null)
+			);
+
+			addDocuments();
+		}
+
+		@After
+		public void teardown() throws Exception {
+			SecurityContextHolder.clearContext();
+			requestExecutor.shutdown();
+			cryptoExecutor.shutdown();
+			keySets.uninstall();
+		}
+
+		protected abstract void addDocuments() throws Exception;
+
+		protected void addDocument(String name, String body) throws Exception {
+			final Document document = new Document(user, name, MediaType.TEXT_PLAIN_TYPE);
+			document.encryptAndSetBody(keySet, new SecureRandom(), body.getBytes("UTF-8"));
+			documentRepository.documents.add(document);
+		}
+	}
+
+	public static class A_Batch_GET extends Context {
+		private List<String> names;
+
+		@Override
+		protected void addDocuments() throws Exception {
+			this.names = newArrayList();
+			for (int i = 0; i < 6; i++) {
+				addDocument("doc" + i + ".txt", "body " + i);
+				names.add("doc" + i + ".txt");
+			}
+		}
+
+		private String show() throws Exception {
+			resource.showDocuments(new BaseUriInfo("http://example.com/"), names, null);
+
+			final Response response = (Response) requestExecutor.task.call();
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			cryptoExecutor.output = output;
+			((StreamingOutput) response.getEntity()).write(output);
+			return output.toString("UTF-8");
+		}
+
+		@Test
+		public void itReturnsEveryDocumentInOrder() throws Exception {
+			final String body = show();
+
+			int position = 0;
+			for (int i = 0; i < 6; i++) {
+				position = body.indexOf("body " + i, position);
+				assertThat(position).isGreaterThan(0);
+			}
+		}
+
+		@Test
+		public void itOnlyDecryptsAsManyDocumentsAheadAsTheCryptoPoolHasThreads() throws Exception {
+			show();
+
+			assertThat(cryptoExecutor.writtenWhenSubmitted).isEqualTo(newArrayList(0, 0, 1, 2, 3, 4));
+		}
+	}
+
+	public static class A_Batch_PUT extends Context {
+		@Override
+		protected void addDocuments() throws Exception {
+		}
+
+		private ContainerRequest request(String entity, Integer length) throws Exception {
+			final ContainerRequest request = new ContainerRequest(
+					URI.create("http://example.com/"),
+					URI.create("http://example.com/users/bob/documents"),
+					"PUT", null, new MapPropertiesDelegate()
+			);
+			request.header("Content-Type", "multipart/mixed; boundary=XYZ");
+			if (length != null) {
+				request.header("Content-Length", length.toString());
+			}
+			request.setEntityStream(new ByteArrayInputStream(entity.getBytes("UTF-8")));
+			return request;
+		}
+
+		private String entity(String... bodies) {
+			final StringBuilder entity = new StringBuilder();
+			for (int i = 0; i < bodies.length; i++) {
+				entity.append("--XYZ\r\n")
+						.append("Content-Disposition: attachment; filename=\"doc").append(i).append(".txt\"\r\n")
+						.append("\r\n")
+						.append(bodies[i]).append("\r\n");
+			}
+			return entity.append("--XYZ--\r\n").toString();
+		}
+
+		private StoredDocumentListRepresentation store(ContainerRequest request) throws Exception {
+			return resource.storeDocuments(new BaseUriInfo("http://example.com/"), request, request.getEntityStream());
+		}
+
+		private void assertTooLarge(ContainerRequest request) throws Exception {
+			try {
+				store(request);
+				fail("should have thrown a WebApplicationException but didn't");
+			} catch (WebApplicationException e) {
+				assertThat(e.getResponse().getStatus()).isEqualTo(413);
+			}
+			assertThat(documentRepository.saved).isEmpty();
+		}
+
+		@Test
+		public void itStoresEveryDocument() throws Exception {
+			final String entity = entity("0123456789", "0123456789", "0123456789");
+
+			final List<StoredDocumentItem> stored = store(request(entity, entity.length())).getDocuments();
+
+			assertThat(stored).hasSize(3);
+			assertThat(stored.get(2).getName()).isEqualTo("doc2.txt");
+			assertThat(stored.get(2).getETag()).isEqualTo("doc-doc2.txt-0");
+			assertThat(stored.get(2).getURI()).isEqualTo(
+					"http://example.com/users/Sample%20Key%20%3Csample@wesabe.com%3E/documents/doc2.txt");
+		}
+
+		@Test
+		public void itWritesAndDetachesTheDocumentsAChunkAtATime() throws Exception {
+			final String entity = entity("0123456789", "0123456789", "0123456789", "0123456789012345678901234");
+
+			store(request(entity, entity.length()));
+
+			assertThat(documentRepository.saved).isEqualTo(ImmutableList.of(
+					ImmutableList.of("doc0.txt", "doc1.txt"),
+					ImmutableList.of("doc2.txt"),
+					ImmutableList.of("doc3.txt")
+			));
+			assertThat(documentRepository.detached).isEqualTo(documentRepository.saved);
+		}
+
+		@Test
+		public void itRefusesEntitiesWhoseLengthIsTooLarge() throws Exception {
+			assertTooLarge(request(entity("0123456789"), 1025));
+		}
+
+		@Test
+		public void itRefusesEntitiesWithoutALengthWhichAreTooLarge() throws Exception {
+			assertTooLarge(request(entity(Strings.repeat("0123456789", 103)), null));
+		}
+
+		@Test
+		public void itAcceptsEntitiesOfTheMaximumSize() throws Exception {
+			final String entity = entity(Strings.repeat("0", 1024 - entity("").length()));
+			assertThat(entity.length()).isEqualTo(1024);
+
+			assertThat(store(request(entity, null)).getDocuments()).hasSize(1);
+		}
+	}
+}
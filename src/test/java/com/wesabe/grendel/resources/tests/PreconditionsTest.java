@@ -0,0 +1,276 @@
+package com.wesabe.grendel.resources.tests;
+
+import com.codahale.metrics.MetricRegistry;
+import com.wesabe.grendel.auth.Session;
+import com.wesabe.grendel.entities.Document;
+import com.wesabe.grendel.entities.DocumentSummary;
+import com.wesabe.grendel.entities.User;
+import com.wesabe.grendel.entities.dao.DocumentRepository;
+import com.wesabe.grendel.entities.dao.UserRepository;
+import com.wesabe.grendel.modules.RequestExecutor;
+import com.wesabe.grendel.openpgp.KeySet;
+import com.wesabe.grendel.openpgp.KeySetCache;
+import com.wesabe.grendel.resources.DocumentResource;
+import com.wesabe.grendel.resources.LinkedDocumentResource;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.FileInputStream;
+import java.net.URI;
+import java.security.Security;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(Enclosed.class)
+public class PreconditionsTest {
+	private static class StubTransactionManager implements PlatformTransactionManager {
+		@Override
+		public TransactionStatus getTransaction(TransactionDefinition definition) {
+			return new SimpleTransactionStatus();
+		}
+
+		@Override
+		public void commit(TransactionStatus status) {
+		}
+
+		@Override
+		public void rollback(TransactionStatus status) {
+		}
+	}
+
+	private static class StubRequestExecutor extends RequestExecutor {
+		private Callable<?> task;
+
+		private StubRequestExecutor() {
+			super(new MetricRegistry(), new StubTransactionManager(), 1, 1);
+		}
+
+		@Override
+		public boolean resume(AsyncResponse response, boolean readOnly, Callable<?> task) {
+			this.task = task;
+			return true;
+		}
+	}
+
+	private static class StubDocumentRepository extends DocumentRepository {
+		private DocumentSummary summary;
+		private boolean loaded;
+
+		@Override
+		public DocumentSummary findSummaryByOwnerAndName(User owner, String name) {
+			return summary;
+		}
+
+		@Override
+		public DocumentSummary findLinkedSummary(User user, String ownerId, String name) {
+			return summary;
+		}
+
+		@Override
+		public Document findByOwnerAndName(User owner, String name) {
+			this.loaded = true;
+			return null;
+		}
+	}
+
+	private static class StubUserRepository extends UserRepository {
+		private User user;
+
+		@Override
+		public User findById(String id) {
+			return user;
+		}
+	}
+
+	private static abstract class Context {
+		protected static final DateTime MODIFIED_AT = new DateTime(2014, 4, 11, 12, 0, 0, 0, DateTimeZone.UTC);
+
+		protected KeySetCache keySets;
+		protected User user;
+		protected StubDocumentRepository documentRepository;
+		protected StubUserRepository userRepository;
+		protected StubRequestExecutor requestExecutor;
+
+		@Before
+		public void setup() throws Exception {
+			Security.addProvider(new BouncyCastleProvider());
+
+			this.keySets = new KeySetCache(new MetricRegistry(), 100);
+			keySets.install();
+			this.user = new User(KeySet.load(new FileInputStream("src/test/resources/secret-keyring.gpg")));
+
+			this.documentRepository = new StubDocumentRepository();
+			documentRepository.summary = new DocumentSummary(
+					user.getId(), "a.txt", "text/plain", MODIFIED_AT, MODIFIED_AT, 0L, 5L, 500L
+			);
+			this.userRepository = new StubUserRepository();
+			userRepository.user = user;
+			this.requestExecutor = new StubRequestExecutor();
+
+			SecurityContextHolder.getContext().setAuthentication(
+					new UsernamePasswordAuthenticationToken(new Session(user, null), null)
+			);
+
+			createResource();
+		}
+
+		@After
+		public void teardown() throws Exception {
+			SecurityContextHolder.clearContext();
+			requestExecutor.shutdown();
+			keySets.uninstall();
+		}
+
+		protected ContainerRequest request(String header, String value) {
+			final ContainerRequest request = new ContainerRequest(
+					URI.create("http://example.com/"),
+					URI.create("http://example.com/users/bob/documents/a.txt"),
+					"GET", null, new MapPropertiesDelegate()
+			);
+			request.header(header, value);
+			return request;
+		}
+
+		protected String httpDate(DateTime dateTime) {
+			final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return format.format(dateTime.toDate());
+		}
+
+		protected abstract void createResource();
+
+		protected abstract void show(ContainerRequest request);
+
+		protected Response notModified(ContainerRequest request) {
+			try {
+				show(request);
+				fail("should have thrown a WebApplicationException but didn't");
+				return null;
+			} catch (WebApplicationException e) {
+				return e.getResponse();
+			}
+		}
+
+		protected void loadBody() throws Exception {
+			assertThat(requestExecutor.task).isNotNull();
+			try {
+				requestExecutor.task.call();
+				fail("should have thrown a WebApplicationException but didn't");
+			} catch (WebApplicationException e) {
+				assertThat(e.getResponse().getStatus()).isEqualTo(404);
+			}
+		}
+	}
+
+	public static class A_Conditional_Document_GET extends Context {
+		private DocumentResource resource;
+
+		@Override
+		protected void createResource() {
+			this.resource = new DocumentResource(null, userRepository, documentRepository, null, null, requestExecutor);
+		}
+
+		@Override
+		protected void show(ContainerRequest request) {
+			resource.show(request, null, user.getId(), "a.txt", null);
+		}
+
+		@Test
+		public void itReturnsNotModifiedForAMatchingETagWithoutLoadingTheBody() throws Exception {
+			final Response response = notModified(request("If-None-Match", "\"doc-a.txt-0\""));
+
+			assertThat(response.getStatus()).isEqualTo(304);
+			assertThat(response.getEntityTag().getValue()).isEqualTo("doc-a.txt-0");
+			assertThat(requestExecutor.task).isNull();
+			assertThat(documentRepository.loaded).isFalse();
+		}
+
+		@Test
+		public void itReturnsNotModifiedIfUnmodifiedSinceWithoutLoadingTheBody() throws Exception {
+			final Response response = notModified(request("If-Modified-Since", httpDate(MODIFIED_AT)));
+
+			assertThat(response.getStatus()).isEqualTo(304);
+			assertThat(requestExecutor.task).isNull();
+			assertThat(documentRepository.loaded).isFalse();
+		}
+
+		@Test
+		public void itLoadsTheBodyIfTheETagDoesntMatch() throws Exception {
+			show(request("If-None-Match", "\"doc-a.txt-1\""));
+			loadBody();
+
+			assertThat(documentRepository.loaded).isTrue();
+		}
+
+		@Test
+		public void itLoadsTheBodyIfModifiedSince() throws Exception {
+			show(request("If-Modified-Since", httpDate(MODIFIED_AT.minusDays(1))));
+			loadBody();
+
+			assertThat(documentRepository.loaded).isTrue();
+		}
+	}
+
+	public static class A_Conditional_Linked_Document_GET extends Context {
+		private LinkedDocumentResource resource;
+
+		@Override
+		protected void createResource() {
+			this.resource = new LinkedDocumentResource(userRepository, documentRepository, requestExecutor);
+		}
+
+		@Override
+		protected void show(ContainerRequest request) {
+			resource.show(request, "carol", user.getId(), "a.txt", null);
+		}
+
+		@Test
+		public void itReturnsNotModifiedForAMatchingETagWithoutLoadingTheBody() throws Exception {
+			final Response response = notModified(request("If-None-Match", "\"doc-a.txt-0\""));
+
+			assertThat(response.getStatus()).isEqualTo(304);
+			assertThat(requestExecutor.task).isNull();
+			assertThat(documentRepository.loaded).isFalse();
+		}
+
+		@Test
+		public void itUsesTheDocumentsETag() throws Exception {
+			final Document doc = new Document(user, "a.txt", MediaType.TEXT_PLAIN_TYPE);
+
+			final Response response = notModified(request("If-None-Match", '"' + doc.getETag() + '"'));
+
+			assertThat(response.getEntityTag().getValue()).isEqualTo(doc.getETag());
+		}
+
+		@Test
+		public void itLoadsTheBodyIfTheETagDoesntMatch() throws Exception {
+			show(request("If-None-Match", "\"doc-a.txt-1\""));
+			loadBody();
+
+			assertThat(documentRepository.loaded).isTrue();
+		}
+	}
+}
@@ -0,0 +1,338 @@
+package com.wesabe.grendel.rotation.tests;
+
+import com.codahale.metrics.MetricRegistry;
+import com.wesabe.grendel.auth.UnlockedKeySetCache;
+import com.wesabe.grendel.entities.Document;
+import com.wesabe.grendel.entities.KeyRotation;
+import com.wesabe.grendel.entities.KeyRotation.Phase;
+import com.wesabe.grendel.entities.User;
+import com.wesabe.grendel.entities.dao.DocumentRepository;
+import com.wesabe.grendel.entities.dao.KeyRotationRepository;
+import com.wesabe.grendel.entities.dao.UserRepository;
+import com.wesabe.grendel.modules.RequestExecutor;
+import com.wesabe.grendel.openpgp.KeySetCache;
+import com.wesabe.grendel.openpgp.KeySetGenerator;
+import com.wesabe.grendel.openpgp.KeySuite;
+import com.wesabe.grendel.openpgp.UnlockedKeySet;
+import com.wesabe.grendel.rotation.KeyRotator;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import javax.ws.rs.core.MediaType;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@RunWith(Enclosed.class)
+public class KeyRotatorTest {
+	private static class StubTransactionManager implements PlatformTransactionManager {
+		@Override
+		public TransactionStatus getTransaction(TransactionDefinition definition) {
+			return new SimpleTransactionStatus();
+		}
+		
+		@Override
+		public void commit(TransactionStatus status) {
+		}
+		
+		@Override
+		public void rollback(TransactionStatus status) {
+		}
+	}
+	
+	private static class StubUserRepository extends UserRepository {
+		private final Map<String, User> users = new ConcurrentHashMap<>();
+		private volatile Consumer<User> onSave = user -> {};
+		
+		@Override
+		public User findById(String id) {
+			return users.get(id);
+		}
+		
+		@Override
+		public User saveOrUpdate(User user) {
+			users.put(user.getId(), user);
+			onSave.accept(user);
+			return user;
+		}
+	}
+	
+	private static class StubDocumentRepository extends DocumentRepository {
+		private final List<Document> documents = new CopyOnWriteArrayList<>();
+		private final List<String> written = new CopyOnWriteArrayList<>();
+		private final AtomicInteger updatesUntilFailure = new AtomicInteger();
+		
+		@Override
+		public void updateAll(Collection<Document> docs) {
+			if (updatesUntilFailure.decrementAndGet() == 0) {
+				throw new IllegalStateException("database went away");
+			}
+			
+			for (Document doc : docs) {
+				written.add(doc.getName());
+			}
+		}
+		
+		@Override
+		public List<Document> findReadableByUser(User user, String ownerId, String name, DateTime since, int limit) {
+			return readableBy(user, since).stream()
+					.filter(doc -> compare(doc, ownerId, name) > 0)
+					.sorted(Comparator.comparing((Document doc) -> doc.getOwner().getId()).thenComparing(Document::getName))
+					.limit(limit)
+					.collect(Collectors.toList());
+		}
+		
+		@Override
+		public long countReadableByUser(User user, DateTime since) {
+			return readableBy(user, since).size();
+		}
+		
+		private List<Document> readableBy(User user, DateTime since) {
+			return documents.stream()
+					.filter(doc -> Stream.concat(Stream.of(doc.getOwner()), doc.getLinkedUsers().stream())
+							.anyMatch(reader -> reader.getId().equals(user.getId())))
+					.filter(doc -> !doc.getModifiedAt().isBefore(since))
+					.collect(Collectors.toList());
+		}
+		
+		private int compare(Document doc, String ownerId, String name) {
+			final int result = doc.getOwner().getId().compareTo(ownerId);
+			return (result == 0) ? doc.getName().compareTo(name) : result;
+		}
+	}
+	
+	private static class StubKeyRotationRepository extends KeyRotationRepository {
+		private final Map<String, KeyRotation> rotations = new ConcurrentHashMap<>();
+		
+		@Override
+		public KeyRotation findByUserId(String userId) {
+			return rotations.get(userId);
+		}
+		
+		@Override
+		public KeyRotation saveOrUpdate(KeyRotation rotation) {
+			rotations.put(rotation.getUserId(), rotation);
+			return rotation;
+		}
+	}
+	
+	private static abstract class Context {
+		protected SecureRandom random;
+		protected KeySetGenerator generator;
+		protected RequestExecutor requestExecutor;
+		protected StubUserRepository users;
+		protected StubDocumentRepository documents;
+		protected StubKeyRotationRepository rotations;
+		protected KeyRotator rotator;
+		protected KeySetCache keySets;
+		protected User owner, other;
+		
+		@Before
+		public void setup() throws Exception {
+			Security.addProvider(new BouncyCastleProvider());
+			final MetricRegistry metrics = new MetricRegistry();
+			final StubTransactionManager transactionManager = new StubTransactionManager();
+			this.keySets = new KeySetCache(metrics, 100);
+			keySets.install();
+			
+			this.random = new SecureRandom();
+			this.generator = new KeySetGenerator(random, KeySuite.P_256);
+			this.requestExecutor = new RequestExecutor(metrics, transactionManager, 1, 1);
+			this.users = new StubUserRepository();
+			this.documents = new StubDocumentRepository();
+			this.rotations = new StubKeyRotationRepository();
+			this.rotator = new KeyRotator(users, documents, rotations, transactionManager, generator,
+					new UnlockedKeySetCache(metrics, 100, 60), requestExecutor, random, metrics, 2, 2, 1000);
+			
+			this.owner = users.saveOrUpdate(new User(generator.generate("Owner <owner@example.com>", "secret".toCharArray())));
+			this.other = users.saveOrUpdate(new User(generator.generate("Other <other@example.com>", "sekrit".toCharArray())));
+			
+			final UnlockedKeySet ownerKeySet = owner.getKeySet().unlock("secret".toCharArray());
+			for (String name : new String[] { "a.txt", "b.txt", "c.txt" }) {
+				documents.documents.add(document(owner, name, ownerKeySet));
+			}
+			
+			final Document linked = new Document(other, "shared.txt", MediaType.TEXT_PLAIN_TYPE);
+			linked.linkUser(owner);
+			linked.encryptAndSetBody(other.getKeySet().unlock("sekrit".toCharArray()), random, "shared.txt".getBytes());
+			linked.setModifiedAt(new DateTime().minusMinutes(1));
+			documents.documents.add(linked);
+		}
+		
+		@After
+		public void teardown() throws Exception {
+			rotator.shutdown();
+			requestExecutor.shutdown();
+			generator.shutdown();
+			keySets.uninstall();
+		}
+		
+		protected Document document(User user, String name, UnlockedKeySet keySet) throws Exception {
+			final Document doc = new Document(user, name, MediaType.TEXT_PLAIN_TYPE);
+			doc.encryptAndSetBody(keySet, random, name.getBytes());
+			doc.setModifiedAt(new DateTime().minusMinutes(1));
+			return doc;
+		}
+		
+		protected void awaitRotation() throws Exception {
+			final long deadline = System.currentTimeMillis() + 30000;
+			while (rotator.isRunning(owner.getId())) {
+				assertThat(System.currentTimeMillis()).isLessThan(deadline);
+				Thread.sleep(10);
+			}
+		}
+	}
+	
+	public static class Rotating_A_Users_Keys extends Context {
+		@Test
+		public void itRewrapsEveryDocumentForTheNewSubKey() throws Exception {
+			final long oldSubKeyID = owner.getKeySet().getSubKey().getKeyID();
+			
+			rotator.start(owner, "secret".toCharArray());
+			awaitRotation();
+			
+			final KeyRotation rotation = rotations.findByUserId(owner.getId());
+			assertThat(rotation.getPhase()).isEqualTo(Phase.COMPLETED);
+			assertThat(rotation.getPreviousKeySet()).isNull();
+			assertThat(rotation.getError()).isNull();
+			
+			final User rotated = users.findById(owner.getId());
+			assertThat(rotated.getPendingKeySet()).isNull();
+			assertThat(rotated.getKeySet().getSubKey().getKeyID()).isNotEqualTo(oldSubKeyID);
+			
+			final UnlockedKeySet keySet = rotated.getKeySet().unlock("secret".toCharArray());
+			for (Document doc : documents.documents) {
+				assertThat(new String(doc.decryptBody(keySet))).isEqualTo(doc.getName());
+			}
+		}
+	}
+	
+	public static class Rotating_With_A_Document_Written_After_The_Swap extends Context {
+		@Test
+		public void itSweepsTheDocumentWithTheNewSubKey() throws Exception {
+			final long oldSubKeyID = owner.getKeySet().getSubKey().getKeyID();
+			final AtomicBoolean written = new AtomicBoolean();
+			users.onSave = user -> {
+				final boolean swapped = (user.getPendingKeySet() == null)
+						&& (user.getKeySet().getSubKey().getKeyID() != oldSubKeyID);
+				if (swapped && written.compareAndSet(false, true)) {
+					try {
+						// written for the new subkey alone, and not backdated
+						final Document doc = new Document(user, "d.txt", MediaType.TEXT_PLAIN_TYPE);
+						doc.linkUser(other);
+						doc.encryptAndSetBody(user.getKeySet().unlock("secret".toCharArray()), random, "d.txt".getBytes());
+						doc.setModifiedAt(new DateTime());
+						documents.documents.add(doc);
+						
+						// the linked user starts rotating too, so the sweep has to
+						// add a recipient to a document the old subkey can't open
+						final UnlockedKeySet otherKeySet = other.getKeySet().unlock("sekrit".toCharArray());
+						other.setPendingKeySet(generator.rotate(otherKeySet, "sekrit".toCharArray()));
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			
+			rotator.start(owner, "secret".toCharArray());
+			awaitRotation();
+			
+			final KeyRotation rotation = rotations.findByUserId(owner.getId());
+			assertThat(written.get()).isTrue();
+			assertThat(rotation.getError()).isNull();
+			assertThat(rotation.getPhase()).isEqualTo(Phase.COMPLETED);
+			assertThat(documents.written).contains("d.txt");
+			
+			final UnlockedKeySet keySet = users.findById(owner.getId()).getKeySet().unlock("secret".toCharArray());
+			for (Document doc : documents.documents) {
+				assertThat(new String(doc.decryptBody(keySet))).isEqualTo(doc.getName());
+			}
+		}
+	}
+	
+	public static class Starting_A_Rotation_Concurrently extends Context {
+		@Test
+		public void itOnlyBeginsOneRotation() throws Exception {
+			final AtomicInteger begun = new AtomicInteger();
+			users.onSave = user -> {
+				if (user.getPendingKeySet() != null) {
+					begun.incrementAndGet();
+				}
+			};
+			
+			final CyclicBarrier barrier = new CyclicBarrier(4);
+			final ExecutorService starters = Executors.newFixedThreadPool(4);
+			try {
+				final List<Future<KeyRotation>> futures = new ArrayList<>();
+				for (int i = 0; i < 4; i++) {
+					futures.add(starters.submit(() -> {
+						barrier.await();
+						return rotator.start(owner, "secret".toCharArray());
+					}));
+				}
+				for (Future<KeyRotation> future : futures) {
+					future.get();
+				}
+			} finally {
+				starters.shutdown();
+			}
+			awaitRotation();
+			
+			assertThat(begun.get()).isEqualTo(1);
+			assertThat(rotations.findByUserId(owner.getId()).getPhase()).isEqualTo(Phase.COMPLETED);
+		}
+	}
+	
+	public static class Resuming_A_Failed_Rotation extends Context {
+		@Test
+		public void itCarriesOnFromItsLastCheckpoint() throws Exception {
+			documents.updatesUntilFailure.set(2);
+			rotator.start(owner, "secret".toCharArray());
+			awaitRotation();
+			
+			final KeyRotation failed = rotations.findByUserId(owner.getId());
+			assertThat(failed.getPhase()).isEqualTo(Phase.REWRAPPING);
+			assertThat(failed.getProcessed()).isEqualTo(2);
+			assertThat(failed.getError()).isEqualTo("database went away");
+			assertThat(documents.written).containsOnly("shared.txt", "a.txt");
+			
+			rotator.start(owner, "secret".toCharArray());
+			awaitRotation();
+			
+			final KeyRotation resumed = rotations.findByUserId(owner.getId());
+			assertThat(resumed.getPhase()).isEqualTo(Phase.COMPLETED);
+			assertThat(documents.written).containsExactly("shared.txt", "a.txt", "b.txt", "c.txt");
+			
+			final UnlockedKeySet keySet = users.findById(owner.getId()).getKeySet().unlock("secret".toCharArray());
+			for (Document doc : documents.documents) {
+				assertThat(new String(doc.decryptBody(keySet))).isEqualTo(doc.getName());
+			}
+		}
+	}
+}
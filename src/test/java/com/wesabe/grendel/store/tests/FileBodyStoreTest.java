@@ -0,0 +1,182 @@
+package com.wesabe.grendel.store.tests;
+
+import com.google.common.io.ByteStreams;
+import com.wesabe.grendel.store.BodyStore.PendingBody;
+import com.wesabe.grendel.store.FileBodyStore;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(Enclosed.class)
+public class FileBodyStoreTest {
+	private static String store(FileBodyStore store, byte[] body) throws Exception {
+		try (PendingBody pending = store.create()) {
+			pending.write(body);
+			return pending.commit();
+		}
+	}
+
+	private static byte[] read(FileBodyStore store, String ref) throws Exception {
+		try (InputStream input = store.open(ref)) {
+			return ByteStreams.toByteArray(input);
+		}
+	}
+
+	public static class Storing_A_Body {
+		@Rule
+		public TemporaryFolder folder = new TemporaryFolder();
+
+		private Path root;
+		private FileBodyStore store;
+
+		@Before
+		public void setup() throws Exception {
+			this.root = folder.getRoot().toPath();
+			this.store = new FileBodyStore(root);
+		}
+
+		@Test
+		public void itReturnsTheSHA256OfTheBody() throws Exception {
+			assertThat(store(store, "hello".getBytes()))
+					.isEqualTo("2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824");
+		}
+
+		@Test
+		public void itShardsBodiesByDigest() throws Exception {
+			final String ref = store(store, "hello".getBytes());
+
+			assertThat(root.resolve("2c").resolve("f2").resolve(ref).toFile().isFile()).isTrue();
+		}
+
+		@Test
+		public void itReadsTheBodyBack() throws Exception {
+			final String ref = store(store, "hello".getBytes());
+
+			assertThat(read(store, ref)).isEqualTo("hello".getBytes());
+		}
+
+		@Test
+		public void itReadsEmptyBodies() throws Exception {
+			final String ref = store(store, new byte[0]);
+
+			assertThat(read(store, ref)).isEmpty();
+		}
+
+		@Test
+		public void itStoresIdenticalBodiesOnce() throws Exception {
+			assertThat(store(store, "hello".getBytes())).isEqualTo(store(store, "hello".getBytes()));
+			assertThat(root.resolve("tmp").toFile().list()).isEmpty();
+		}
+
+		@Test
+		public void itCountsTheBytesWritten() throws Exception {
+			try (PendingBody pending = store.create()) {
+				pending.write(new byte[1000]);
+				pending.write(1);
+
+				assertThat(pending.size()).isEqualTo(1001L);
+			}
+		}
+
+		@Test
+		public void itDiscardsUncommittedBodies() throws Exception {
+			try (PendingBody pending = store.create()) {
+				pending.write("hello".getBytes());
+			}
+
+			assertThat(root.resolve("tmp").toFile().list()).isEmpty();
+			assertThat(store.findOlderThan(Long.MAX_VALUE)).isEmpty();
+		}
+
+		@Test
+		public void itRejectsInvalidReferences() throws Exception {
+			try {
+				store.open("../../etc/passwd");
+				fail("should have thrown a FileNotFoundException but didn't");
+			} catch (FileNotFoundException e) {
+				assertThat(e.getMessage()).isEqualTo("invalid body reference: ../../etc/passwd");
+			}
+		}
+	}
+
+	public static class Collecting_Bodies {
+		@Rule
+		public TemporaryFolder folder = new TemporaryFolder();
+
+		private FileBodyStore store;
+		private String ref;
+
+		@Before
+		public void setup() throws Exception {
+			this.store = new FileBodyStore(folder.getRoot().toPath());
+			this.ref = store(store, "hello".getBytes());
+		}
+
+		@Test
+		public void itFindsBodiesOlderThanTheCutoff() throws Exception {
+			assertThat(store.findOlderThan(Long.MAX_VALUE)).containsOnly(ref);
+		}
+
+		@Test
+		public void itDoesNotFindNewerBodies() throws Exception {
+			assertThat(store.findOlderThan(0)).isEmpty();
+		}
+
+		@Test
+		public void itDeletesOlderBodies() throws Exception {
+			assertThat(store.deleteIfOlderThan(ref, Long.MAX_VALUE)).isTrue();
+			assertThat(store.findOlderThan(Long.MAX_VALUE)).isEmpty();
+		}
+
+		@Test
+		public void itDoesNotDeleteNewerBodies() throws Exception {
+			assertThat(store.deleteIfOlderThan(ref, 0)).isFalse();
+			assertThat(read(store, ref)).isEqualTo("hello".getBytes());
+		}
+
+		@Test
+		public void itNeverDeletesABodyWhichIsCommittedAgainDuringCollection() throws Exception {
+			final ExecutorService executor = Executors.newFixedThreadPool(2);
+			try {
+				for (int i = 0; i < 200; i++) {
+					final FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+					Files.setLastModifiedTime(folder.getRoot().toPath().resolve(ref.substring(0, 2))
+							.resolve(ref.substring(2, 4)).resolve(ref), old);
+					final long cutoff = System.currentTimeMillis() - 30000;
+					
+					final CyclicBarrier barrier = new CyclicBarrier(2);
+					final Future<Boolean> collected = executor.submit(() -> {
+						barrier.await();
+						return store.deleteIfOlderThan(ref, cutoff);
+					});
+					final Future<String> committed = executor.submit(() -> {
+						barrier.await();
+						return store(store, "hello".getBytes());
+					});
+					
+					collected.get();
+					assertThat(committed.get()).isEqualTo(ref);
+					assertThat(read(store, ref)).isEqualTo("hello".getBytes());
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package com.wesabe.grendel.util.tests;
+
+import com.wesabe.grendel.util.FlightEvent;
+import com.wesabe.grendel.util.FlightEventType;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+@RunWith(Enclosed.class)
+public class FlightEventTypeTest {
+	private static final FlightEventType TYPE = FlightEventType
+			.builder("com.wesabe.grendel.tests.Example", "Example")
+			.withBytes("size", "Size")
+			.withString("algorithm", "Algorithm")
+			.withHash("user", "User")
+			.build();
+
+	public static class An_Event_Which_Isnt_Being_Recorded {
+		@Test
+		public void itIgnoresItsFields() throws Exception {
+			final FlightEvent event = TYPE.begin();
+
+			assertThat(event.isRecording()).isFalse();
+			event.set("size", 10).set("nonexistent", "ignored").commit();
+		}
+	}
+
+	public static class An_Event_Which_Is_Being_Recorded {
+		@Test
+		public void itIsCommittedWithItsFields() throws Exception {
+			assumeTrue(FlightEventType.isSupported());
+
+			// jdk.jfr isn't available to compile against on Java 8
+			final Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+			final Object recording = recordingClass.newInstance();
+			recordingClass.getMethod("enable", String.class).invoke(recording, "com.wesabe.grendel.tests.Example");
+			recordingClass.getMethod("start").invoke(recording);
+
+			final FlightEvent event = TYPE.begin();
+			assertThat(event.isRecording()).isTrue();
+			event.set("size", 10).set("algorithm", "AES-256").set("user", "Example <example@example.com>").commit();
+
+			recordingClass.getMethod("stop").invoke(recording);
+			final File file = File.createTempFile("grendel", ".jfr");
+			try {
+				recordingClass.getMethod("dump", Path.class).invoke(recording, file.toPath());
+				recordingClass.getMethod("close").invoke(recording);
+
+				final List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+						.getMethod("readAllEvents", Path.class)
+						.invoke(null, file.toPath());
+				assertThat(events).hasSize(1);
+
+				final Object recorded = events.get(0);
+				final Class<?> recordedClass = Class.forName("jdk.jfr.consumer.RecordedObject");
+				assertThat(recordedClass.getMethod("getLong", String.class).invoke(recorded, "size")).isEqualTo(10L);
+				assertThat(recordedClass.getMethod("getString", String.class).invoke(recorded, "algorithm")).isEqualTo("AES-256");
+				assertThat((String) recordedClass.getMethod("getString", String.class).invoke(recorded, "user"))
+						.matches("[0-9a-f]{16}");
+			} finally {
+				file.delete();
+			}
+		}
+	}
+}
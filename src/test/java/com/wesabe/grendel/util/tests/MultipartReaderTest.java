@@ -0,0 +1,87 @@
+package com.wesabe.grendel.util.tests;
+
+import com.wesabe.grendel.util.MultipartReader;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(Enclosed.class)
+public class MultipartReaderTest {
+	private static MultipartReader reader(String entity) {
+		return new MultipartReader(new ByteArrayInputStream(entity.getBytes(StandardCharsets.ISO_8859_1)), "xyz");
+	}
+
+	public static class Reading_A_Multipart_Entity {
+		private MultipartReader reader;
+
+		@Before
+		public void setup() throws Exception {
+			this.reader = reader(
+					"preamble\r\n" +
+					"--xyz\r\n" +
+					"Content-Type: text/plain\r\n" +
+					"Content-Disposition: attachment; filename=\"one.txt\"\r\n" +
+					"\r\n" +
+					"first\r\n--xy body\r\n" +
+					"--xyz\r\n" +
+					"\r\n" +
+					"\r\n" +
+					"--xyz--\r\n" +
+					"epilogue"
+			);
+		}
+
+		@Test
+		public void itReadsEachPartInOrder() throws Exception {
+			final Map<String, String> first = reader.nextPart();
+			assertThat(first.get("content-type")).isEqualTo("text/plain");
+			assertThat(first.get("content-disposition")).isEqualTo("attachment; filename=\"one.txt\"");
+
+			final ByteArrayOutputStream body = new ByteArrayOutputStream();
+			reader.readBody(body);
+			assertThat(body.toString("ISO-8859-1")).isEqualTo("first\r\n--xy body");
+
+			final Map<String, String> second = reader.nextPart();
+			assertThat(second).isEmpty();
+
+			final ByteArrayOutputStream empty = new ByteArrayOutputStream();
+			reader.readBody(empty);
+			assertThat(empty.size()).isEqualTo(0);
+
+			assertThat(reader.nextPart()).isNull();
+			assertThat(reader.nextPart()).isNull();
+		}
+
+		@Test
+		public void itSkipsUnreadBodies() throws Exception {
+			reader.nextPart();
+			assertThat(reader.nextPart()).isEmpty();
+			assertThat(reader.nextPart()).isNull();
+		}
+	}
+
+	public static class Reading_A_Truncated_Entity {
+		@Test
+		public void itThrowsAnEOFException() throws Exception {
+			final MultipartReader reader = reader("--xyz\r\n\r\nunterminated");
+			reader.nextPart();
+
+			try {
+				reader.readBody(new ByteArrayOutputStream());
+				fail("should have thrown an EOFException but didn't");
+			} catch (EOFException e) {
+				assertThat(e.getMessage()).isEqualTo("unterminated multipart body");
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.wesabe.grendel.util.tests;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.wesabe.grendel.util.PrometheusFormat;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+@RunWith(Enclosed.class)
+public class PrometheusFormatTest {
+	public static class Converting_Metric_Names {
+		@Test
+		public void itReplacesThePackagePrefix() throws Exception {
+			assertThat(PrometheusFormat.toName("com.wesabe.grendel.openpgp.MessageWriter.session-key"))
+					.isEqualTo("grendel_openpgp_message_writer_session_key");
+		}
+
+		@Test
+		public void itPrefixesOtherNames() throws Exception {
+			assertThat(PrometheusFormat.toName("jvm.GC..count")).isEqualTo("grendel_jvm_gc_count");
+		}
+	}
+
+	public static class Writing_A_Registry {
+		private MetricRegistry metrics;
+
+		@Before
+		public void setup() throws Exception {
+			this.metrics = new MetricRegistry();
+		}
+
+		private String write() throws Exception {
+			final StringWriter output = new StringWriter();
+			PrometheusFormat.write(metrics, output);
+			return output.toString();
+		}
+
+		@Test
+		public void itWritesTimersAsSummariesInSeconds() throws Exception {
+			metrics.timer("com.wesabe.grendel.KeySet.unlock").update(2, TimeUnit.SECONDS);
+
+			assertThat(write()).isEqualTo(
+					"# TYPE grendel_key_set_unlock_seconds summary\n" +
+					"grendel_key_set_unlock_seconds{quantile=\"0.5\"} 2.0\n" +
+					"grendel_key_set_unlock_seconds{quantile=\"0.75\"} 2.0\n" +
+					"grendel_key_set_unlock_seconds{quantile=\"0.95\"} 2.0\n" +
+					"grendel_key_set_unlock_seconds{quantile=\"0.98\"} 2.0\n" +
+					"grendel_key_set_unlock_seconds{quantile=\"0.99\"} 2.0\n" +
+					"grendel_key_set_unlock_seconds{quantile=\"0.999\"} 2.0\n" +
+					"grendel_key_set_unlock_seconds_count 1\n"
+			);
+		}
+
+		@Test
+		public void itWritesMetersAsCounters() throws Exception {
+			metrics.meter("com.wesabe.grendel.MessageReader.bytes").mark(1024);
+
+			assertThat(write()).isEqualTo(
+					"# TYPE grendel_message_reader_bytes_total counter\n" +
+					"grendel_message_reader_bytes_total 1024.0\n"
+			);
+		}
+
+		@Test
+		public void itWritesCountersAndNumericGaugesAsGauges() throws Exception {
+			metrics.counter("evictions").inc(3);
+			metrics.register("active", new Gauge<Integer>() {
+				@Override
+				public Integer getValue() {
+					return 7;
+				}
+			});
+			metrics.register("name", new Gauge<String>() {
+				@Override
+				public String getValue() {
+					return "grendel";
+				}
+			});
+
+			assertThat(write()).isEqualTo(
+					"# TYPE grendel_active gauge\n" +
+					"grendel_active 7.0\n" +
+					"# TYPE grendel_evictions gauge\n" +
+					"grendel_evictions 3.0\n"
+			);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.wesabe.grendel.util.tests;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.wesabe.grendel.util.SpillBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+
+import static com.google.common.collect.Sets.difference;
+import static com.google.common.collect.Sets.newHashSet;
+import static org.fest.assertions.Assertions.assertThat;
+
+@RunWith(Enclosed.class)
+public class SpillBufferTest {
+	private static Set<File> spillFiles() {
+		final File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith("grendel-") && name.endsWith(".spill");
+			}
+		});
+		return newHashSet(Arrays.asList(files));
+	}
+	
+	public static class Writing_Less_Than_The_Threshold {
+		private SpillBuffer buffer;
+		
+		@Before
+		public void setup() throws Exception {
+			this.buffer = new SpillBuffer(1024);
+			buffer.write("hello".getBytes());
+		}
+		
+		@After
+		public void teardown() throws Exception {
+			buffer.close();
+		}
+		
+		@Test
+		public void itHoldsTheContentsInMemory() throws Exception {
+			assertThat(buffer.isSpilled()).isFalse();
+			assertThat(buffer.size()).isEqualTo(5);
+		}
+		
+		@Test
+		public void itReturnsTheContents() throws Exception {
+			try (InputStream input = buffer.getInputStream()) {
+				assertThat(ByteStreams.toByteArray(input)).isEqualTo("hello".getBytes());
+			}
+		}
+	}
+	
+	public static class Writing_More_Than_The_Threshold {
+		private Set<File> existing;
+		private SpillBuffer buffer;
+		private byte[] contents;
+		
+		@Before
+		public void setup() throws Exception {
+			this.existing = spillFiles();
+			this.contents = new byte[100000];
+			new Random().nextBytes(contents);
+			
+			this.buffer = new SpillBuffer(1024);
+			buffer.write(contents, 0, 1000);
+			buffer.write(contents, 1000, contents.length - 1000);
+		}
+		
+		@After
+		public void teardown() throws Exception {
+			buffer.close();
+		}
+		
+		@Test
+		public void itSpillsTheContentsToDisk() throws Exception {
+			assertThat(buffer.isSpilled()).isTrue();
+			assertThat(buffer.size()).isEqualTo(contents.length);
+			assertThat(difference(spillFiles(), existing)).hasSize(1);
+		}
+		
+		@Test
+		public void itEncryptsTheSpilledContents() throws Exception {
+			final File file = difference(spillFiles(), existing).iterator().next();
+			buffer.getInputStream().close();
+			
+			final byte[] spilled = Files.readAllBytes(file.toPath());
+			assertThat(spilled.length).isEqualTo(contents.length);
+			assertThat(spilled).isNotEqualTo(contents);
+		}
+		
+		@Test
+		public void itReturnsTheContents() throws Exception {
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			buffer.writeTo(output);
+			
+			assertThat(output.toByteArray()).isEqualTo(contents);
+		}
+		
+		@Test
+		public void itReturnsARereadableSource() throws Exception {
+			final ByteSource source = buffer.asByteSource();
+			
+			assertThat(source.size()).isEqualTo(contents.length);
+			assertThat(source.slice(50000, 10).read()).isEqualTo(Arrays.copyOfRange(contents, 50000, 50010));
+			assertThat(source.read()).isEqualTo(contents);
+		}
+		
+		@Test
+		public void itDeletesTheSpilledContentsWhenClosed() throws Exception {
+			buffer.close();
+			
+			assertThat(difference(spillFiles(), existing)).isEmpty();
+		}
+	}
+}